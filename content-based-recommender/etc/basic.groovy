@@ -1,9 +1,13 @@
+import org.lenskit.mooc.cbf.TFIDFItemRecommender
 import org.lenskit.mooc.cbf.TFIDFItemScorer
 import org.lenskit.mooc.cbf.ThresholdUserProfileBuilder
 import org.lenskit.mooc.cbf.UserProfileBuilder
+import org.lenskit.api.ItemRecommender
 import org.lenskit.api.ItemScorer
 
 // the core: use our item scorer
 bind ItemScorer to TFIDFItemScorer
+// and recommend by searching the tag postings instead of scoring every item
+bind ItemRecommender to TFIDFItemRecommender
 // with the basic profile builder
 bind UserProfileBuilder to ThresholdUserProfileBuilder
@@ -0,0 +1,134 @@
+package org.lenskit.mooc.cbf;
+
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.entities.Entities;
+import org.lenskit.data.entities.Entity;
+import org.lenskit.data.ratings.Rating;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark building one user's profile with the threshold and weighted profile builders.
+ *
+ * <p>{@link #accumulate()} adds the profile to a reused {@link TagAccumulator} over tag IDs, which allocates nothing
+ * once the builder has created its per-thread scratch on the first call;
+ * {@link #makeUserProfile()} does the same and copies the result to a map over tag strings.
+ * {@link #hashMapProfile()} is the old accumulation into a {@code HashMap} over tag strings, kept here as the
+ * baseline.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProfileBuildBenchmark {
+    private static final double RATING_THRESHOLD = 3.5;
+
+    @Param({"10", "1000", "10000"})
+    public int ratingCount;
+
+    @Param({"threshold", "weighted"})
+    public String builder;
+
+    @Param({"20000"})
+    public int itemCount;
+
+    @Param({"5000"})
+    public int tagCount;
+
+    @Param({"15"})
+    public int tagsPerItem;
+
+    private TFIDFModel model;
+    private UserProfileBuilder profileBuilder;
+    private TagAccumulator profile;
+    private List<Rating> ratings;
+
+    @Setup(Level.Trial)
+    public void buildModel() {
+        Random rng = new Random(42);
+        StaticDataSource data = new StaticDataSource("benchmark");
+        List<Entity> tags = new ArrayList<>();
+        long id = 0;
+        for (long item = 1; item <= itemCount; item++) {
+            for (int k = 0; k < tagsPerItem; k++) {
+                // square the uniform draw to skew applications toward a popular head of tags
+                double u = rng.nextDouble();
+                tags.add(Entities.newBuilder(TagData.ITEM_TAG_TYPE)
+                                 .setId(++id)
+                                 .setAttribute(TagData.ITEM_ID, item)
+                                 .setAttribute(TagData.TAG, "tag" + (int) (tagCount * u * u))
+                                 .build());
+            }
+        }
+        data.addSource(tags);
+        data.addDerivedEntity(CommonTypes.ITEM, TagData.ITEM_TAG_TYPE, TagData.ITEM_ID);
+        model = new TFIDFModelProvider(data.get(), 1).get();
+
+        if (builder.equals("threshold")) {
+            profileBuilder = new ThresholdUserProfileBuilder(model);
+        } else {
+            profileBuilder = new WeightedUserProfileBuilder(model);
+        }
+        profile = new TagAccumulator(model.getTagVocabulary().size());
+
+        ratings = new ArrayList<>(ratingCount);
+        for (int k = 0; k < ratingCount; k++) {
+            ratings.add(Rating.create(42, rng.nextInt(itemCount) + 1, rng.nextInt(10) * 0.5 + 0.5));
+        }
+    }
+
+    @Benchmark
+    public int accumulate() {
+        profileBuilder.accumulateProfile(ratings, model.getTagVocabulary(), profile);
+        int size = profile.size();
+        profile.clear();
+        return size;
+    }
+
+    @Benchmark
+    public Map<String, Double> makeUserProfile() {
+        return profileBuilder.makeUserProfile(ratings);
+    }
+
+    @Benchmark
+    public Map<String, Double> hashMapProfile() {
+        double mean = 0;
+        Map<Long, Double> latest = new HashMap<>();
+        if (builder.equals("weighted")) {
+            for (Rating r: ratings) {
+                mean += r.getValue();
+                latest.put(r.getItemId(), r.getValue());
+            }
+            mean /= ratings.size();
+        }
+        Map<String, Double> vector = new HashMap<>();
+        for (Rating r: ratings) {
+            double weight;
+            if (builder.equals("weighted")) {
+                weight = latest.get(r.getItemId()) - mean;
+            } else if (r.getValue() >= RATING_THRESHOLD) {
+                weight = 1;
+            } else {
+                continue;
+            }
+            for (Map.Entry<String, Double> e: model.getItemVector(r.getItemId()).entrySet()) {
+                double wv = e.getValue() * weight;
+                if (vector.containsKey(e.getKey())) {
+                    vector.put(e.getKey(), vector.get(e.getKey()) + wv);
+                } else {
+                    vector.put(e.getKey(), wv);
+                }
+            }
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,132 @@
+package org.lenskit.mooc.cbf;
+
+/**
+ * Accumulates a user profile's dot products with the model's items term at a time, over the
+ * {@linkplain TFIDFModel#tagStart(int) tag postings}, so that only items sharing a tag with the
+ * profile are touched.
+ *
+ * <p>The sums are kept in a dense array over the model's rows, with a list of the rows that have
+ * been touched, so that {@link #clear()} costs only as much as the accumulation did.  An
+ * accumulator is meant to be reused for many requests on one thread.  When a profile's tags are
+ * added in increasing order, each item's sum is added up in the same order, and so to the same
+ * value, as {@link TFIDFModel#dot(int, SparseTagVector)}.</p>
+ */
+final class ItemAccumulator {
+    private final double[] sums;
+    private final boolean[] touched;
+    private final int[] rows;
+    private int size;
+
+    /**
+     * Create an accumulator.
+     * @param nRows The number of rows in the model.
+     */
+    ItemAccumulator(int nRows) {
+        sums = new double[nRows];
+        touched = new boolean[nRows];
+        rows = new int[nRows];
+    }
+
+    /**
+     * Decide whether to score candidates by accumulating a profile over the postings, rather than
+     * with a dot product per candidate.
+     * @param model The model.
+     * @param profile The profile.
+     * @param candidates The number of candidate items.
+     * @return {@code true} if the profile's postings are fewer than the tags of the candidates,
+     *         estimated from the model's average row length.
+     */
+    static boolean isCheaper(TFIDFModel model, SparseTagVector profile, int candidates) {
+        int nRows = model.getItemIndex().size();
+        if (nRows == 0) {
+            return false;
+        }
+        long postings = 0;
+        for (int k = 0; k < profile.size(); k++) {
+            int tag = profile.termAt(k);
+            postings += model.tagEnd(tag) - model.tagStart(tag);
+        }
+        return postings * nRows < (long) candidates * model.getPostingCount();
+    }
+
+    /**
+     * Add a tag's contribution to every item with the tag.
+     * @param model The model.
+     * @param tag The tag ID.
+     * @param weight The profile's weight on the tag.
+     */
+    void addTag(TFIDFModel model, int tag, double weight) {
+        int end = model.tagEnd(tag);
+        for (int pos = model.tagStart(tag); pos < end; pos++) {
+            int row = model.postingRowAt(pos);
+            if (!touched[row]) {
+                touched[row] = true;
+                rows[size++] = row;
+            }
+            sums[row] += weight * model.postingWeightAt(pos);
+        }
+    }
+
+    /**
+     * Add a tag's contribution to the items with the tag that have already been touched.
+     * @param model The model.
+     * @param tag The tag ID.
+     * @param weight The profile's weight on the tag.
+     */
+    void addTagToTouched(TFIDFModel model, int tag, double weight) {
+        int end = model.tagEnd(tag);
+        for (int pos = model.tagStart(tag); pos < end; pos++) {
+            int row = model.postingRowAt(pos);
+            if (touched[row]) {
+                sums[row] += weight * model.postingWeightAt(pos);
+            }
+        }
+    }
+
+    /**
+     * Get the number of rows touched.
+     * @return The number of items that have had a tag added.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get a touched row.
+     * @param k The index, in {@code [0, size())}.
+     * @return The row number; rows are in the order they were first touched.
+     */
+    int rowAt(int k) {
+        return rows[k];
+    }
+
+    /**
+     * Query whether a row has been touched.
+     * @param row The row number.
+     * @return {@code true} if one of the added tags is on the row's item.
+     */
+    boolean isTouched(int row) {
+        return touched[row];
+    }
+
+    /**
+     * Get a row's sum.
+     * @param row The row number.
+     * @return The sum of the added contributions to the row; 0 if it has not been touched.
+     */
+    double get(int row) {
+        return sums[row];
+    }
+
+    /**
+     * Reset the touched rows, so the accumulator can be used again.
+     */
+    void clear() {
+        for (int k = 0; k < size; k++) {
+            int row = rows[k];
+            sums[row] = 0;
+            touched[row] = false;
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,22 @@
+package org.lenskit.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultDouble;
+import org.lenskit.inject.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * How long, in seconds, {@link UserProfileCache} keeps a profile after building it from the user's ratings; it is
+ * built again from the ratings the next time it is asked for.  Ratings added to a cached profile do not extend its
+ * time.  0 (the default) keeps profiles until they are evicted for space, which suits a DAO whose ratings only
+ * change through {@link UserProfileCache#addRating(org.lenskit.data.ratings.Rating)}.
+ */
+@Documented
+@DefaultDouble(0)
+@Parameter(Double.class)
+@Qualifier
+@Target({ElementType.METHOD, ElementType.PARAMETER, ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ProfileCacheExpiry {
+}
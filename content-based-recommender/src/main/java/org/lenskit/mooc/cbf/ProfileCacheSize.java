@@ -0,0 +1,20 @@
+package org.lenskit.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.lenskit.inject.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * The number of user profiles {@link UserProfileCache} keeps; the least recently used are evicted first.  0 turns
+ * the cache off, building each profile from the user's ratings every time it is asked for.
+ */
+@Documented
+@DefaultInteger(10000)
+@Parameter(Integer.class)
+@Qualifier
+@Target({ElementType.METHOD, ElementType.PARAMETER, ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ProfileCacheSize {
+}
@@ -0,0 +1,32 @@
+package org.lenskit.mooc.cbf;
+
+import org.lenskit.data.ratings.Rating;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A profile state that keeps the user's ratings and makes the profile from all of them again when
+ * it changes.  This is the default for builders that cannot update a profile directly.
+ */
+class RebuildingProfileState implements UserProfileState {
+    private final UserProfileBuilder builder;
+    private final TagVocabulary tags;
+    private final List<Rating> ratings;
+
+    RebuildingProfileState(UserProfileBuilder builder, List<Rating> ratings, TagVocabulary tags) {
+        this.builder = builder;
+        this.tags = tags;
+        this.ratings = new ArrayList<>(ratings);
+    }
+
+    @Override
+    public void addRating(Rating rating) {
+        ratings.add(rating);
+    }
+
+    @Override
+    public SparseTagVector getProfile() {
+        return SparseTagVector.fromMap(tags, builder.makeUserProfile(ratings));
+    }
+}
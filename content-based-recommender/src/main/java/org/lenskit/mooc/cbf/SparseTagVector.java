@@ -0,0 +1,119 @@
+package org.lenskit.mooc.cbf;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A sparse vector over interned tags, stored as the IDs of its tags in increasing order and their weights.  This is
+ * the form in which the item scorer compares a user profile with the {@linkplain TFIDFModel model's} item rows: a
+ * sorted vector can be merged with a row without looking anything up, and its norm is computed once, however many
+ * items it is compared with.
+ */
+public final class SparseTagVector {
+    private final int[] terms;
+    private final double[] weights;
+    private final double norm;
+
+    SparseTagVector(int[] terms, double[] weights, double norm) {
+        this.terms = terms;
+        this.weights = weights;
+        this.norm = norm;
+    }
+
+    /**
+     * Convert a vector over tag strings to a sparse tag vector.
+     * @param tags The vocabulary to intern the tags with.
+     * @param vector The vector.
+     * @return The vector over the IDs of its tags.  Tags that are not in the vocabulary are left out, as they cannot
+     *         match any item, but still count towards the {@linkplain #getNorm() norm}.
+     */
+    public static SparseTagVector fromMap(TagVocabulary tags, Map<String, Double> vector) {
+        // sort (tag ID, entry) pairs packed into longs, then gather the weights in that order
+        double[] values = new double[vector.size()];
+        long[] keys = new long[vector.size()];
+        int size = 0;
+        double squareSum = 0;
+        for (Map.Entry<String, Double> e: vector.entrySet()) {
+            double v = e.getValue();
+            squareSum += v * v;
+            int id = tags.getId(e.getKey());
+            if (id >= 0) {
+                values[size] = v;
+                keys[size] = (long) id << 32 | size;
+                size++;
+            }
+        }
+        Arrays.sort(keys, 0, size);
+        int[] terms = new int[size];
+        double[] weights = new double[size];
+        for (int k = 0; k < size; k++) {
+            terms[k] = (int) (keys[k] >>> 32);
+            weights[k] = values[(int) keys[k]];
+        }
+        return new SparseTagVector(terms, weights, Math.sqrt(squareSum));
+    }
+
+    /**
+     * Convert a vector over tag IDs to a sparse tag vector.
+     * @param vector The vector, keyed by tag ID.
+     * @return The vector, with its tags sorted.
+     */
+    public static SparseTagVector fromTagIds(Int2DoubleMap vector) {
+        int[] terms = vector.keySet().toIntArray();
+        Arrays.sort(terms);
+        double[] weights = new double[terms.length];
+        double squareSum = 0;
+        for (int k = 0; k < terms.length; k++) {
+            double v = vector.get(terms[k]);
+            weights[k] = v;
+            squareSum += v * v;
+        }
+        return new SparseTagVector(terms, weights, Math.sqrt(squareSum));
+    }
+
+    /**
+     * Get the number of tags in the vector.
+     * @return The number of stored tags.
+     */
+    public int size() {
+        return terms.length;
+    }
+
+    /**
+     * Get a tag of the vector.
+     * @param k The entry number, in {@code [0, size())}.
+     * @return The ID of the entry's tag; the IDs increase with the entry number.
+     */
+    public int termAt(int k) {
+        return terms[k];
+    }
+
+    /**
+     * Get a weight of the vector.
+     * @param k The entry number, in {@code [0, size())}.
+     * @return The weight of the entry's tag.
+     */
+    public double weightAt(int k) {
+        return weights[k];
+    }
+
+    /**
+     * Get the Euclidean norm of the vector.
+     * @return The norm.
+     */
+    public double getNorm() {
+        return norm;
+    }
+
+    /**
+     * Find a tag at or after an entry.
+     * @param term The tag ID.
+     * @param from The first entry to search.
+     * @return The tag's entry number if it is in the vector; otherwise, {@code -(insertion point) - 1}.
+     */
+    int search(int term, int from) {
+        return Arrays.binarySearch(terms, from, terms.length, term);
+    }
+}
@@ -0,0 +1,334 @@
+package org.lenskit.mooc.cbf;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.lenskit.api.ResultList;
+import org.lenskit.results.Results;
+import org.lenskit.util.collections.LongUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Scores a block of users at once, and keeps the top items for each, for jobs that recommend to
+ * many users at a time.  The results are those of calling {@link TFIDFItemScorer#scoreWithDetails}
+ * for each user and keeping the {@code n} best, ties broken by item ID: the scores are the same to
+ * the last bit.
+ *
+ * <p>The users' profiles are packed into a sparse users&times;tags matrix, which is multiplied with
+ * the candidates' item&times;tags matrix in tiles.  The candidates are split into tiles of
+ * {@value #ITEM_TILE_SIZE} items, each indexed by tag, so that a tile's sums fit in a core's
+ * cache; the users are split into chunks of {@value #USER_CHUNK_SIZE}, and each chunk takes its
+ * users through every tile in turn, so a tile is read by all of a chunk's users while it is in
+ * cache.  Chunks are scored on {@link BatchThreadCount} threads.  As in the scorer, each user's
+ * sum for an item is added up in increasing order of tag; items that share no tag with a profile
+ * score 0, and are only ranked while they could still make the top {@code n}.</p>
+ */
+public class TFIDFBatchScorer {
+    private static final Logger logger = LoggerFactory.getLogger(TFIDFBatchScorer.class);
+    /**
+     * The number of candidate items in a tile.
+     */
+    private static final int ITEM_TILE_SIZE = 4096;
+    /**
+     * The number of users scored together on a thread.
+     */
+    private static final int USER_CHUNK_SIZE = 64;
+
+    private final TFIDFModel model;
+    private final UserProfileCache profiles;
+    private final int threads;
+    private final int tileSize;
+    private final int chunkSize;
+
+    /**
+     * Construct a batch scorer.
+     *
+     * @param m        The precomputed model containing the item tag vectors.
+     * @param profiles The cache of user tag profiles.
+     * @param threads  The number of threads to score on, or 0 for one per available processor.
+     */
+    @Inject
+    public TFIDFBatchScorer(TFIDFModel m, UserProfileCache profiles, @BatchThreadCount int threads) {
+        this(m, profiles, threads, ITEM_TILE_SIZE, USER_CHUNK_SIZE);
+    }
+
+    /**
+     * Construct a batch scorer with custom tile and chunk sizes, for testing.
+     */
+    TFIDFBatchScorer(TFIDFModel m, UserProfileCache profiles, int threads, int tileSize, int chunkSize) {
+        model = m;
+        this.profiles = profiles;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.tileSize = tileSize;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Score candidate items for a block of users, and keep each user's top items.
+     *
+     * @param users      The users to score for.
+     * @param candidates The items to score, or {@code null} to score every item in the model.
+     * @param n          The number of items to keep for each user, or a negative number to keep
+     *                   all of them.
+     * @return Each user's top items, in decreasing order of score.  Unknown items and items without
+     *         tags are not scored; a user with no profile gets an empty list.
+     */
+    public Map<Long, ResultList> scoreTopN(Collection<Long> users, @Nullable Collection<Long> candidates, int n) {
+        long[] userIds = new LongOpenHashSet(LongUtils.asLongCollection(users)).toLongArray();
+        int[] rows = candidateRows(candidates);
+        int nTiles = (rows.length + tileSize - 1) / tileSize;
+        int nChunks = (userIds.length + chunkSize - 1) / chunkSize;
+        logger.debug("scoring {} items for {} users in {} tiles and {} chunks",
+                     rows.length, userIds.length, nTiles, nChunks);
+
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            List<Tile> tiles = inParallel(executor, nTiles, t -> new Tile(rows, t * tileSize));
+            List<ResultList[]> chunks = inParallel(executor, nChunks, c -> {
+                int lo = c * chunkSize;
+                int hi = Math.min(lo + chunkSize, userIds.length);
+                return scoreChunk(Arrays.copyOfRange(userIds, lo, hi), rows, tiles, n);
+            });
+
+            Map<Long, ResultList> results = new Long2ObjectOpenHashMap<>(userIds.length);
+            for (int c = 0; c < nChunks; c++) {
+                ResultList[] lists = chunks.get(c);
+                for (int k = 0; k < lists.length; k++) {
+                    results.put(userIds[c * chunkSize + k], lists[k]);
+                }
+            }
+            return results;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Get the rows of the candidates that can be scored.
+     * @return The sorted rows of the candidates the model knows and that have tags.
+     */
+    private int[] candidateRows(@Nullable Collection<Long> candidates) {
+        int[] rows;
+        if (candidates == null) {
+            rows = new int[model.getItemIndex().size()];
+            for (int row = 0; row < rows.length; row++) {
+                rows[row] = row;
+            }
+        } else {
+            IntOpenHashSet known = new IntOpenHashSet(candidates.size());
+            LongIterator iter = LongUtils.asLongCollection(candidates).iterator();
+            while (iter.hasNext()) {
+                int row = model.getItemRow(iter.nextLong());
+                if (row >= 0) {
+                    known.add(row);
+                }
+            }
+            rows = known.toIntArray();
+            Arrays.sort(rows);
+        }
+        int size = 0;
+        for (int row: rows) {
+            if (model.getRowNorm(row) > 0) {
+                rows[size++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, size);
+    }
+
+    /**
+     * Score a chunk of users against every tile.
+     * @return The users' top items.
+     */
+    private ResultList[] scoreChunk(long[] users, int[] rows, List<Tile> tiles, int n) {
+        // pack the profiles into compressed sparse rows
+        SparseTagVector[] vectors = new SparseTagVector[users.length];
+        int[] userStart = new int[users.length + 1];
+        for (int u = 0; u < users.length; u++) {
+            vectors[u] = profiles.getProfile(users[u]);
+            userStart[u + 1] = userStart[u] + vectors[u].size();
+        }
+        int[] terms = new int[userStart[users.length]];
+        double[] weights = new double[terms.length];
+        double[] norms = new double[users.length];
+        for (int u = 0; u < users.length; u++) {
+            SparseTagVector v = vectors[u];
+            for (int k = 0; k < v.size(); k++) {
+                terms[userStart[u] + k] = v.termAt(k);
+                weights[userStart[u] + k] = v.weightAt(k);
+            }
+            norms[u] = v.getNorm();
+        }
+
+        TopNItemHeap[] heaps = new TopNItemHeap[users.length];
+        for (int u = 0; u < users.length; u++) {
+            heaps[u] = new TopNItemHeap(n);
+        }
+        double[] sums = new double[tileSize];
+        boolean[] touched = new boolean[tileSize];
+        int[] touchedItems = new int[tileSize];
+        for (Tile tile: tiles) {
+            for (int u = 0; u < users.length; u++) {
+                // with no length, every cosine would have a zero denominator
+                if (norms[u] == 0 || n == 0) {
+                    continue;
+                }
+                TopNItemHeap heap = heaps[u];
+
+                // accumulate the user's tags in increasing order, as the scorer does
+                int nTouched = 0;
+                int k = 0;
+                for (int j = userStart[u]; j < userStart[u + 1] && k < tile.tags.length; j++) {
+                    int found = Arrays.binarySearch(tile.tags, k, tile.tags.length, terms[j]);
+                    if (found < 0) {
+                        k = -found - 1;
+                        continue;
+                    }
+                    k = found + 1;
+                    double weight = weights[j];
+                    for (int pos = tile.tagStart[found]; pos < tile.tagStart[found + 1]; pos++) {
+                        int item = tile.items[pos];
+                        if (!touched[item]) {
+                            touched[item] = true;
+                            touchedItems[nTouched++] = item;
+                        }
+                        sums[item] += weight * tile.weights[pos];
+                    }
+                }
+
+                for (int t = 0; t < nTouched; t++) {
+                    int item = touchedItems[t];
+                    int row = rows[tile.offset + item];
+                    heap.offer(model.getItemIndex().getKey(row), sums[item] / (norms[u] * model.getRowNorm(row)));
+                }
+                // The untouched items score 0.  If the heap is full and its weakest score is 0, they
+                // can only displace an item with a higher ID; the tile's items start at its first.
+                if (!heap.isFull() || heap.minScore() < 0
+                        || (heap.minScore() == 0 && heap.minItem() > model.getItemIndex().getKey(rows[tile.offset]))) {
+                    for (int item = 0; item < tile.size; item++) {
+                        if (!touched[item]) {
+                            heap.offer(model.getItemIndex().getKey(rows[tile.offset + item]), 0);
+                        }
+                    }
+                }
+
+                for (int t = 0; t < nTouched; t++) {
+                    int item = touchedItems[t];
+                    sums[item] = 0;
+                    touched[item] = false;
+                }
+            }
+        }
+
+        ResultList[] results = new ResultList[users.length];
+        for (int u = 0; u < users.length; u++) {
+            results[u] = norms[u] > 0 ? heaps[u].finish() : Results.newResultList();
+        }
+        return results;
+    }
+
+    /**
+     * Run a task for each of a number of pieces, on the executor if there is one.
+     */
+    private static <T> List<T> inParallel(@Nullable ExecutorService executor, int pieces, PieceTask<T> task) {
+        List<T> results = new ArrayList<>(pieces);
+        if (executor == null) {
+            for (int p = 0; p < pieces; p++) {
+                results.add(task.run(p));
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<>(pieces);
+        for (int p = 0; p < pieces; p++) {
+            final int piece = p;
+            futures.add(executor.submit(() -> task.run(piece)));
+        }
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while scoring users", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("batch scoring failed", e.getCause());
+        }
+        return results;
+    }
+
+    @FunctionalInterface
+    private interface PieceTask<T> {
+        T run(int piece);
+    }
+
+    /**
+     * A tile of the candidates, indexed by tag: the tags on any of its items, in increasing order,
+     * and for each the tile's items with the tag, in increasing order, and its weights on them.
+     */
+    private class Tile {
+        final int offset;
+        final int size;
+        final int[] tags;
+        final int[] tagStart;
+        final int[] items;
+        final float[] weights;
+
+        /**
+         * Index a tile.
+         * @param rows The sorted candidate rows.
+         * @param offset The position in {@code rows} of the tile's first item.
+         */
+        Tile(int[] rows, int offset) {
+            this.offset = offset;
+            size = Math.min(tileSize, rows.length - offset);
+
+            // count the tiles' items with each tag, then lay the items out by tag
+            int[] counts = new int[model.getTagVocabulary().size() + 1];
+            for (int item = 0; item < size; item++) {
+                int row = rows[offset + item];
+                for (int pos = model.rowStart(row); pos < model.rowEnd(row); pos++) {
+                    counts[model.termAt(pos) + 1]++;
+                }
+            }
+            int nTags = 0;
+            for (int tag = 0; tag + 1 < counts.length; tag++) {
+                if (counts[tag + 1] > 0) {
+                    nTags++;
+                }
+                counts[tag + 1] += counts[tag];
+            }
+            tags = new int[nTags];
+            tagStart = new int[nTags + 1];
+            int t = 0;
+            for (int tag = 0; tag + 1 < counts.length; tag++) {
+                if (counts[tag + 1] > counts[tag]) {
+                    tags[t] = tag;
+                    tagStart[t + 1] = counts[tag + 1];
+                    t++;
+                }
+            }
+            items = new int[counts[counts.length - 1]];
+            weights = new float[items.length];
+            for (int item = 0; item < size; item++) {
+                int row = rows[offset + item];
+                for (int pos = model.rowStart(row); pos < model.rowEnd(row); pos++) {
+                    int slot = counts[model.termAt(pos)]++;
+                    items[slot] = item;
+                    weights[slot] = model.weightAt(pos);
+                }
+            }
+        }
+    }
+}
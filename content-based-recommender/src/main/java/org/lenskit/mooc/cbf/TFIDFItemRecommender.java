@@ -0,0 +1,295 @@
+package org.lenskit.mooc.cbf;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.lenskit.api.ResultList;
+import org.lenskit.basic.AbstractItemRecommender;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.entities.CommonAttributes;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.results.Results;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.List;
+
+/**
+ * Recommends the items with the highest cosine between their tag vectors and the user's tag
+ * profile, the same scores as {@link TFIDFItemScorer}, without scoring every item.
+ *
+ * <p>Only items that share a tag with the profile can score above zero, so the profile is
+ * {@linkplain ItemAccumulator accumulated} term at a time over the model's tag postings.  Tags with
+ * negative profile weights go first; the positive ones follow in decreasing order of the most they
+ * can add to any item's score (MaxScore).  Since the item weights are never negative, an item's
+ * partial sum is then a lower bound on its score, and adding what the remaining tags could add gives
+ * an upper bound.  Once the remaining tags could add less than the {@code n}th best lower bound, no
+ * item that has not been reached can make the top {@code n}: the remaining tags are only added to
+ * the items already reached, and only those whose upper bound reaches the threshold are ranked.
+ * Items that share no tag with the profile score 0, and are only recommended to fill the list
+ * out.</p>
+ *
+ * <p>The scores are those of {@link TFIDFItemScorer}, up to rounding, as the tags are added in a
+ * different order.  By default, the user's rated items are excluded.  Ties are broken by item
+ * ID.</p>
+ */
+public class TFIDFItemRecommender extends AbstractItemRecommender {
+    /**
+     * The factor the score bounds are padded by, so rounding cannot prune an item that ties.
+     */
+    private static final double BOUND_PADDING = 1 + 1.0e-9;
+
+    private final DataAccessObject dao;
+    private final TFIDFModel model;
+    private final UserProfileCache profiles;
+    private final ThreadLocal<SearchScratch> scratch;
+
+    /**
+     * Construct a new item recommender.
+     *
+     * @param dao      The data access object, for looking up the items users have rated.
+     * @param m        The precomputed model containing the item tag vectors.
+     * @param profiles The cache of user tag profiles.
+     */
+    @Inject
+    public TFIDFItemRecommender(DataAccessObject dao, TFIDFModel m, UserProfileCache profiles) {
+        this.dao = dao;
+        model = m;
+        this.profiles = profiles;
+        scratch = ThreadLocal.withInitial(() -> new SearchScratch(m));
+    }
+
+    @Override
+    protected ResultList recommendWithDetails(long user, int n, @Nullable LongSet candidates,
+                                              @Nullable LongSet exclude) {
+        if (exclude == null) {
+            exclude = new LongOpenHashSet();
+            List<Rating> ratings = dao.query(Rating.class)
+                                      .withAttribute(CommonAttributes.USER_ID, user)
+                                      .get();
+            for (Rating r: ratings) {
+                exclude.add(r.getItemId());
+            }
+        }
+
+        SparseTagVector profile = profiles.getProfile(user);
+        if (n == 0 || profile.getNorm() == 0) {
+            // nothing asked for, or every cosine would have a zero denominator
+            return Results.newResultList();
+        }
+
+        TopNItemHeap heap = new TopNItemHeap(n);
+        if (candidates != null && !ItemAccumulator.isCheaper(model, profile, candidates.size())) {
+            // a few candidates are cheaper to score one by one
+            LongIterator iter = candidates.iterator();
+            while (iter.hasNext()) {
+                long item = iter.nextLong();
+                int row = model.getItemRow(item);
+                if (row >= 0 && model.getRowNorm(row) > 0 && !exclude.contains(item)) {
+                    heap.offer(item, model.dot(row, profile) / (profile.getNorm() * model.getRowNorm(row)));
+                }
+            }
+            return heap.finish();
+        }
+
+        SearchScratch work = scratch.get();
+        try {
+            work.mark(candidates, exclude);
+            search(profile, n, candidates, work, heap);
+        } finally {
+            work.clear();
+        }
+        return heap.finish();
+    }
+
+    /**
+     * Search the postings for the top items.
+     */
+    private void search(SparseTagVector profile, int n, @Nullable LongSet candidates, SearchScratch work,
+                        TopNItemHeap heap) {
+        ItemAccumulator acc = work.acc;
+        // order the profile's tags: the negative ones first, then by decreasing bound
+        int size = profile.size();
+        final double[] bounds = new double[size];
+        int[] order = new int[size];
+        int nNegative = 0;
+        for (int k = 0; k < size; k++) {
+            double weight = profile.weightAt(k);
+            if (weight < 0) {
+                bounds[k] = 0;
+                order[nNegative++] = k;
+            } else {
+                bounds[k] = weight * model.getMaxTagScore(profile.termAt(k)) * BOUND_PADDING;
+            }
+        }
+        int next = nNegative;
+        for (int k = 0; k < size; k++) {
+            if (profile.weightAt(k) >= 0) {
+                order[next++] = k;
+            }
+        }
+        IntArrays.quickSort(order, nNegative, size, new AbstractIntComparator() {
+            @Override
+            public int compare(int k1, int k2) {
+                return Double.compare(bounds[k2], bounds[k1]);
+            }
+        });
+        // remaining[j] is the most that the tags from order[j] on can add to a score
+        double[] remaining = new double[size + 1];
+        for (int j = size - 1; j >= 0; j--) {
+            remaining[j] = remaining[j + 1] + bounds[order[j]];
+        }
+
+        // Accumulate tags until the rest cannot lift an unreached item into the top n.  Finding
+        // the nth best lower bound costs a pass over the touched items, so only look each time
+        // the remaining bound has halved.
+        double threshold = Double.NEGATIVE_INFINITY;
+        double nextCheck = remaining[nNegative] / 2;
+        int j = 0;
+        for (; j < size; j++) {
+            if (j >= nNegative && remaining[j] == 0) {
+                // the rest of the tags have no weight, or are on every item and have no IDF
+                break;
+            }
+            if (j >= nNegative && remaining[j] <= nextCheck) {
+                threshold = lowerBoundThreshold(n, work);
+                if (remaining[j] < threshold) {
+                    break;
+                }
+                nextCheck = remaining[j] / 2;
+            }
+            int k = order[j];
+            acc.addTag(model, profile.termAt(k), profile.weightAt(k));
+        }
+        double rest = remaining[j];
+
+        // Only the touched items whose upper bound reaches the threshold might still make it.  Add
+        // the rest of the tags to the items already reached, without reaching any more, and keep
+        // the best of those that might.
+        int nSurvivors = 0;
+        int[] survivors = new int[acc.size()];
+        for (int t = 0; t < acc.size(); t++) {
+            int row = acc.rowAt(t);
+            if (work.isEligible(row) && acc.get(row) / model.getRowNorm(row) + rest >= threshold) {
+                survivors[nSurvivors++] = row;
+            }
+        }
+        for (; j < size; j++) {
+            int k = order[j];
+            acc.addTagToTouched(model, profile.termAt(k), profile.weightAt(k));
+        }
+        for (int t = 0; t < nSurvivors; t++) {
+            int row = survivors[t];
+            heap.offer(model.getItemIndex().getKey(row),
+                       acc.get(row) / (profile.getNorm() * model.getRowNorm(row)));
+        }
+
+        // If we stopped early, the heap is full of positive scores.  Otherwise, the items the
+        // postings never reached score 0, which beats nothing or a negative score.
+        if (!heap.isFull() || heap.minScore() < 0) {
+            if (candidates == null) {
+                for (int row = 0; row < model.getItemIndex().size(); row++) {
+                    if (!acc.isTouched(row) && work.isEligible(row)) {
+                        heap.offer(model.getItemIndex().getKey(row), 0);
+                    }
+                }
+            } else {
+                LongIterator iter = candidates.iterator();
+                while (iter.hasNext()) {
+                    int row = model.getItemRow(iter.nextLong());
+                    if (row >= 0 && !acc.isTouched(row) && work.isEligible(row)) {
+                        heap.offer(model.getItemIndex().getKey(row), 0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the {@code n}th best lower bound of the touched items.
+     * @return The threshold an item must reach to make the top {@code n}, or negative infinity if
+     *         fewer than {@code n} items have been reached.
+     */
+    private double lowerBoundThreshold(int n, SearchScratch work) {
+        ItemAccumulator acc = work.acc;
+        if (n < 0 || acc.size() < n) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        TopNItemHeap bounds = new TopNItemHeap(n);
+        for (int t = 0; t < acc.size(); t++) {
+            int row = acc.rowAt(t);
+            if (work.isEligible(row)) {
+                bounds.offer(row, acc.get(row) / model.getRowNorm(row));
+            }
+        }
+        return bounds.isFull() ? bounds.minScore() : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * The per-thread working state of a search: the accumulator, and which rows may be
+     * recommended.  Marking the candidates and exclusions by row once per request saves looking
+     * item IDs up in their sets each time a row is checked.
+     */
+    private static class SearchScratch {
+        final ItemAccumulator acc;
+        private final boolean[] candidate;
+        private final boolean[] excluded;
+        private final IntArrayList marked = new IntArrayList();
+        private final TFIDFModel model;
+        private boolean restricted;
+
+        SearchScratch(TFIDFModel model) {
+            this.model = model;
+            int nRows = model.getItemIndex().size();
+            acc = new ItemAccumulator(nRows);
+            candidate = new boolean[nRows];
+            excluded = new boolean[nRows];
+        }
+
+        /**
+         * Mark the rows of a request's candidates and exclusions.
+         */
+        void mark(@Nullable LongSet candidates, LongSet exclude) {
+            restricted = candidates != null;
+            if (restricted) {
+                LongIterator iter = candidates.iterator();
+                while (iter.hasNext()) {
+                    int row = model.getItemRow(iter.nextLong());
+                    if (row >= 0) {
+                        candidate[row] = true;
+                        marked.add(row);
+                    }
+                }
+            }
+            LongIterator iter = exclude.iterator();
+            while (iter.hasNext()) {
+                int row = model.getItemRow(iter.nextLong());
+                if (row >= 0) {
+                    excluded[row] = true;
+                    marked.add(row);
+                }
+            }
+        }
+
+        /**
+         * Query whether an item may be recommended: it is a candidate, is not excluded, and has a
+         * tag vector with some length.
+         */
+        boolean isEligible(int row) {
+            return (!restricted || candidate[row]) && !excluded[row] && model.getRowNorm(row) > 0;
+        }
+
+        void clear() {
+            acc.clear();
+            for (int k = 0; k < marked.size(); k++) {
+                int row = marked.getInt(k);
+                candidate[row] = false;
+                excluded[row] = false;
+            }
+            marked.clear();
+        }
+    }
+}
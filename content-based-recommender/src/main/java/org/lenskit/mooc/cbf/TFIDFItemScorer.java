@@ -1,41 +1,53 @@
 package org.lenskit.mooc.cbf;
 
+import it.unimi.dsi.fastutil.longs.LongIterator;
 import org.lenskit.api.Result;
 import org.lenskit.api.ResultMap;
 import org.lenskit.basic.AbstractItemScorer;
-import org.lenskit.data.dao.DataAccessObject;
-import org.lenskit.data.entities.CommonAttributes;
-import org.lenskit.data.ratings.Rating;
 import org.lenskit.results.Results;
+import org.lenskit.util.collections.LongUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 /**
+ * Scores items by the cosine of their tag vectors with the user's tag profile.
+ *
+ * <p>A few candidates are scored with a {@linkplain TFIDFModel#dot(int, SparseTagVector) dot
+ * product} each.  When that would read more tags than the profile's postings hold &mdash; as when
+ * scoring all items &mdash; the profile is instead accumulated term at a time over the postings,
+ * which only reach the items that share a tag with it; every other item scores 0.  The two ways
+ * give identical scores.</p>
+ *
+ * <p>User profiles come from the {@link UserProfileCache}, so a user's ratings are only read and
+ * their profile only built when it is not cached.</p>
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 public class TFIDFItemScorer extends AbstractItemScorer {
-    private final DataAccessObject dao;
     private final TFIDFModel model;
-    private final UserProfileBuilder profileBuilder;
+    private final UserProfileCache profiles;
+    private final ThreadLocal<ItemAccumulator> scratch;
     private static final Logger logger = LoggerFactory.getLogger(TFIDFModelProvider.class);
 
     /**
      * Construct a new item scorer.  LensKit's dependency injector will call this constructor and
      * provide the appropriate parameters.
      *
-     * @param dao The data access object, for looking up users' ratings.
-     * @param m   The precomputed model containing the item tag vectors.
-     * @param upb The user profile builder for building user tag profiles.
+     * @param m        The precomputed model containing the item tag vectors.
+     * @param profiles The cache of user tag profiles.
      */
     @Inject
-    public TFIDFItemScorer(DataAccessObject dao, TFIDFModel m, UserProfileBuilder upb) {
-        this.dao = dao;
+    public TFIDFItemScorer(TFIDFModel m, UserProfileCache profiles) {
         model = m;
-        profileBuilder = upb;
+        this.profiles = profiles;
+        int nRows = m.getItemIndex().size();
+        scratch = ThreadLocal.withInitial(() -> new ItemAccumulator(nRows));
     }
 
     /**
@@ -48,86 +60,44 @@ public class TFIDFItemScorer extends AbstractItemScorer {
     @Nonnull
     @Override
     public ResultMap scoreWithDetails(long user, @Nonnull Collection<Long> items){
-        // Get the user's ratings
-        List<Rating> ratings = dao.query(Rating.class)
-                                  .withAttribute(CommonAttributes.USER_ID, user)
-                                  .get();
-
-        if (ratings == null) {
-            // the user doesn't exist, so return an empty ResultMap
+        // Get the user's profile, which is a vector with their 'like' for each tag, over tag IDs so
+        // it can be merged with the item vectors.  Its norm is the same for every item.
+        SparseTagVector profile = profiles.getProfile(user);
+        double userNorm = profile.getNorm();
+        if (userNorm == 0) {
+            // the user has no ratings (or none that count), and every cosine would have a zero denominator
             return Results.newResultMap();
         }
 
         // Create a place to store the results of our score computations
-        List<Result> results = new ArrayList<>();
-
-        // Get the user's profile, which is a vector with their 'like' for each tag
-        Map<String, Double> userVector = profileBuilder.makeUserProfile(ratings);
-
-        for (Long item: items) {
-            Map<String, Double> iv = model.getItemVector(item);
-
-            // Compute the cosine of this item and the user's profile, store it in the output list
-            // If the denominator of the cosine similarity is 0, skip the item
-
-            // find keys that are in iv, but not userVector
-            Set<String> diff = new HashSet<String>(iv.keySet());
-            diff.removeAll(userVector.keySet());
-
-            // combine diff keys and userVector keys
-            Set<String> union = new HashSet<String>(userVector.keySet());
-            union.addAll(diff);
-
-            // loop over union and create new item and user vectors to compare
-            Map<String,Double> niv = new HashMap<>();
-            Map<String,Double> nuv = new HashMap<>();
-            for (String key : union) {
-                // add to niv
-                if (iv.containsKey(key)) niv.put(key, iv.get(key));
-                else niv.put(key, 0.0);
+        List<Result> results = new ArrayList<>(items.size());
 
-                // add to nuv
-                if (userVector.containsKey(key)) nuv.put(key, userVector.get(key));
-                else nuv.put(key, 0.0);
+        ItemAccumulator acc = null;
+        if (ItemAccumulator.isCheaper(model, profile, items.size())) {
+            acc = scratch.get();
+            for (int k = 0; k < profile.size(); k++) {
+                acc.addTag(model, profile.termAt(k), profile.weightAt(k));
             }
-
-            //now that we have matching vectors for user and item we can compute the cosine similarity
-            double dotProduct = 0.0;
-            double normA = 0.0;
-            double normB = 0.0;
-
-            Collection<Double> va = nuv.values();
-            Double[] vectorA = va.toArray(new Double[va.size()]);
-            Collection<Double> vb = niv.values();
-            Double[] vectorB = vb.toArray(new Double[vb.size()]);
-
-            for (int i = 0; i < vectorA.length; i++) {
-                dotProduct += vectorA[i] * vectorB[i];
-                normA += Math.pow(vectorA[i], 2);
-                normB += Math.pow(vectorB[i], 2);
+        }
+        try {
+            LongIterator iter = LongUtils.asLongCollection(items).iterator();
+            while (iter.hasNext()) {
+                long item = iter.nextLong();
+                int row = model.getItemRow(item);
+                // Compute the cosine of this item and the user's profile, store it in the output list
+                // If the denominator of the cosine similarity is 0 (an unknown item has no tags), skip the item
+                double itemNorm = row >= 0 ? model.getRowNorm(row) : 0;
+                if (itemNorm == 0) {
+                    continue;
+                }
+
+                double dot = acc != null ? acc.get(row) : model.dot(row, profile);
+                results.add(Results.create(item, dot / (userNorm * itemNorm)));
+            }
+        } finally {
+            if (acc != null) {
+                acc.clear();
             }
-
-            double denominator = (Math.sqrt(normA) * Math.sqrt(normB));
-            if (denominator==0) continue;
-
-            double similarity = dotProduct / denominator;
-
-            //output test results
-            //if (item==48394) logger.info("48394 (Pan's Labyrinth (Laberinto del fauno, El) (2006)) weighted should be:(0.204)  got: {}", similarity);
-            //if (item==1210) logger.info("1210 (Star Wars: Episode VI - Return of the Jedi (1983)) weighted should be:(0.178)  got: {}", similarity);
-            //if (item==1089) logger.info("1089 (Reservoir Dogs (1992)) weighted should be:(0.165)  got: {}", similarity);
-            /*if (item==32) logger.info("32 (Twelve Monkeys (a.k.a. 12 Monkeys) (1995)) should be:(0.349)  got: {}", similarity);
-            if (item==1748) logger.info("1748 (Dark City (1998)) should be:(0.307)  got: {}", similarity);
-            if (item==1206) logger.info("1206 (Clockwork Orange, A (1971)) should be:(0.298)  got: {}", similarity);
-            if (item==48394) logger.info("48394 (Pan's Labyrinth (Laberinto del fauno, El) (2006)) should be:(0.288)  got: {}", similarity);
-            if (item==1199) logger.info("1199 (Brazil (1985)) should be:(0.288)  got: {}", similarity);
-            if (item==32587) logger.info("32587 (Sin City (2005)) should be:(0.287)  got: {}", similarity);
-            if (item==1270) logger.info("1270 (Back to the Future (1985)) should be:(0.283)  got: {}", similarity);
-            if (item==1089) logger.info("1089 (Reservoir Dogs (1992)) should be:(0.278)  got: {}", similarity);
-            if (item==1210) logger.info("1210 (Star Wars: Episode VI - Return of the Jedi (1983)) should be:(0.277)  got: {}", similarity);
-            if (item==7147) logger.info("7147 (Big Fish (2003)) should be:(0.264)  got: {}", similarity);*/
-
-            results.add(Results.create(item, similarity));
         }
 
         return Results.newResultMap(results);
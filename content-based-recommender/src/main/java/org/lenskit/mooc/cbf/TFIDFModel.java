@@ -1,17 +1,29 @@
 package org.lenskit.mooc.cbf;
 
-import com.google.common.collect.ImmutableMap;
 import org.grouplens.grapht.annotation.DefaultProvider;
 import org.lenskit.inject.Shareable;
+import org.lenskit.util.keys.SortedKeyIndex;
 
 import java.io.Serializable;
-import java.util.Collections;
-import java.util.Map;
+import java.util.*;
 
 /**
  * The model for a TF-IDF recommender.  The model just remembers the normalized tag vector for each
  * item.
  *
+ * <p>Tags are interned in a {@link TagVocabulary}, and the vectors are stored as compressed sparse
+ * rows: each item's row is a range of positions holding its tag IDs, in increasing order, and the
+ * tags' weights.  The row accessors iterate a vector without allocating; {@link #getItemVector(long)}
+ * presents a row as a read-only map over tag strings for code that still works with maps.</p>
+ *
+ * <p>The model also keeps the Euclidean norm of each row, so that a cosine with a user profile
+ * takes only a {@linkplain #dot(int, SparseTagVector) dot product} per item.</p>
+ *
+ * <p>The same weights are indexed by tag as well: each tag has a posting list of the rows it is
+ * on, in increasing order, with its weight on each, and the largest weight it has on any item
+ * relative to that item's norm.  The postings let a scorer reach only the items that share a tag
+ * with a profile; see {@link ItemAccumulator}.</p>
+ *
  * @see TFIDFModelProvider
  */
 // LensKit models are annotated with @Shareable so they can be serialized and reused
@@ -19,39 +31,337 @@ import java.util.Map;
 // This model class will be built by the model builder
 @DefaultProvider(TFIDFModelProvider.class)
 public class TFIDFModel implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 4L;
+    /**
+     * How many times longer than a row a vector must be for {@link #dot(int, SparseTagVector)} to
+     * search it rather than merge with it.
+     */
+    private static final int SEARCH_RATIO = 16;
 
-    private final Map<Long, Map<String, Double>> itemVectors;
+    private final TagVocabulary tags;
+    private final SortedKeyIndex items;
+    private final int[] rowStart;
+    private final int[] terms;
+    private final float[] weights;
+    private final double[] norms;
+    private final int[] tagStart;
+    private final int[] postingRows;
+    private final float[] postingWeights;
+    private final double[] maxTagScores;
 
     /**
      * Constructor for the model.  This is package-private; the only way to build a model is with
      * the {@linkplain TFIDFModelProvider model builder}.
      *
-     * @param itemVectors A map of item IDs to tag vectors.
+     * @param tags     The tag vocabulary.
+     * @param items    The item index; row {@code i} is the vector of item {@code items.getKey(i)}.
+     * @param rowStart The start of each row in {@code terms} and {@code weights}, followed by the
+     *                 end of the last row.
+     * @param terms    The tag IDs of each row, sorted within the row.
+     * @param weights  The tag weights, parallel to {@code terms}.  Unit vectors need no more than
+     *                 single precision.
      */
-    TFIDFModel(Map<Long, Map<String, Double>> itemVectors) {
-        ImmutableMap.Builder<Long,Map<String,Double>> bld = ImmutableMap.builder();
-        for (Map.Entry<Long,Map<String,Double>> e: itemVectors.entrySet()) {
-            bld.put(e.getKey(), ImmutableMap.copyOf(e.getValue()));
+    TFIDFModel(TagVocabulary tags, SortedKeyIndex items, int[] rowStart, int[] terms, float[] weights) {
+        this.tags = tags;
+        this.items = items;
+        this.rowStart = rowStart;
+        this.terms = terms;
+        this.weights = weights;
+        norms = new double[rowStart.length - 1];
+        for (int row = 0; row < norms.length; row++) {
+            double squareSum = 0;
+            for (int pos = rowStart[row]; pos < rowStart[row + 1]; pos++) {
+                double w = weights[pos];
+                squareSum += w * w;
+            }
+            norms[row] = Math.sqrt(squareSum);
+        }
+
+        // transpose the rows into posting lists; walking the rows in order leaves each tag's rows sorted
+        int nTags = tags.size();
+        tagStart = new int[nTags + 1];
+        for (int term : terms) {
+            tagStart[term + 1]++;
+        }
+        for (int tag = 0; tag < nTags; tag++) {
+            tagStart[tag + 1] += tagStart[tag];
+        }
+        int[] fill = Arrays.copyOf(tagStart, nTags);
+        postingRows = new int[terms.length];
+        postingWeights = new float[terms.length];
+        maxTagScores = new double[nTags];
+        for (int row = 0; row < norms.length; row++) {
+            for (int pos = rowStart[row]; pos < rowStart[row + 1]; pos++) {
+                int tag = terms[pos];
+                int post = fill[tag]++;
+                postingRows[post] = row;
+                postingWeights[post] = weights[pos];
+                if (norms[row] > 0) {
+                    maxTagScores[tag] = Math.max(maxTagScores[tag], weights[pos] / norms[row]);
+                }
+            }
         }
-        this.itemVectors = bld.build();
+    }
+
+    /**
+     * Get the tag vocabulary.
+     * @return The vocabulary interning the model's tags.
+     */
+    public TagVocabulary getTagVocabulary() {
+        return tags;
+    }
+
+    /**
+     * Get the item index.
+     * @return The mapping between item IDs and row numbers.
+     */
+    public SortedKeyIndex getItemIndex() {
+        return items;
+    }
+
+    /**
+     * Get the row of an item's vector.
+     * @param item The item ID.
+     * @return The item's row number, or -1 if the item is not known to the model.
+     */
+    public int getItemRow(long item) {
+        int row = items.tryGetIndex(item);
+        return row >= 0 ? row : -1;
+    }
+
+    /**
+     * Get the first position of a row.
+     * @param row The row number.
+     * @return The position of the row's first tag.
+     */
+    public int rowStart(int row) {
+        return rowStart[row];
+    }
+
+    /**
+     * Get the end of a row.
+     * @param row The row number.
+     * @return The position after the row's last tag.
+     */
+    public int rowEnd(int row) {
+        return rowStart[row + 1];
+    }
+
+    /**
+     * Get the tag at a position.
+     * @param pos The position.
+     * @return The tag ID.
+     */
+    public int termAt(int pos) {
+        return terms[pos];
+    }
+
+    /**
+     * Get the weight at a position.
+     * @param pos The position.
+     * @return The tag's normalized TF-IDF weight.
+     */
+    public float weightAt(int pos) {
+        return weights[pos];
+    }
+
+    /**
+     * Get the first position of a tag's postings.
+     * @param tag The tag ID.
+     * @return The position of the tag's first posting.
+     */
+    public int tagStart(int tag) {
+        return tagStart[tag];
+    }
+
+    /**
+     * Get the end of a tag's postings.
+     * @param tag The tag ID.
+     * @return The position after the tag's last posting.
+     */
+    public int tagEnd(int tag) {
+        return tagStart[tag + 1];
+    }
+
+    /**
+     * Get the row of a posting.
+     * @param pos The posting position.
+     * @return The row number of an item with the tag; a tag's rows increase with the position.
+     */
+    public int postingRowAt(int pos) {
+        return postingRows[pos];
+    }
+
+    /**
+     * Get the weight of a posting.
+     * @param pos The posting position.
+     * @return The tag's weight on the posting's item.
+     */
+    public float postingWeightAt(int pos) {
+        return postingWeights[pos];
+    }
+
+    /**
+     * Get the largest score a tag can contribute.
+     * @param tag The tag ID.
+     * @return The largest weight the tag has on any item, divided by that item's norm.  A profile
+     *         weight {@code w > 0} on the tag adds at most {@code w} times this to the dot product of
+     *         the profile and any item, divided by the item's norm.
+     */
+    public double getMaxTagScore(int tag) {
+        return maxTagScores[tag];
+    }
+
+    /**
+     * Get the total number of postings.
+     * @return The number of (item, tag) entries in the model.
+     */
+    public int getPostingCount() {
+        return terms.length;
+    }
+
+    /**
+     * Get the Euclidean norm of a row.
+     * @param row The row number.
+     * @return The norm of the row's weights; 1, up to rounding, unless the item's tags are all on
+     *         every item, in which case it is 0.
+     */
+    public double getRowNorm(int row) {
+        return norms[row];
+    }
+
+    /**
+     * Compute the dot product of a row with a sparse tag vector.  This merges the two sorted lists of
+     * tags; when the vector has many more tags than the row, it instead searches the vector for each
+     * of the row's tags.  It does not allocate.
+     *
+     * @param row The row number.
+     * @param vector The vector.
+     * @return The dot product of the row's weights and the vector.
+     */
+    public double dot(int row, SparseTagVector vector) {
+        int pos = rowStart[row];
+        int end = rowStart[row + 1];
+        int k = 0;
+        int n = vector.size();
+        double sum = 0;
+        if (n > SEARCH_RATIO * (end - pos)) {
+            for (; pos < end && k < n; pos++) {
+                int found = vector.search(terms[pos], k);
+                if (found >= 0) {
+                    sum += weights[pos] * vector.weightAt(found);
+                    k = found + 1;
+                } else {
+                    k = -found - 1;
+                }
+            }
+        } else {
+            while (pos < end && k < n) {
+                int a = terms[pos];
+                int b = vector.termAt(k);
+                if (a < b) {
+                    pos++;
+                } else if (a > b) {
+                    k++;
+                } else {
+                    sum += weights[pos] * vector.weightAt(k);
+                    pos++;
+                    k++;
+                }
+            }
+        }
+        return sum;
     }
 
     /**
      * Get the normalized tag vector for a particular item.
      *
      * @param item The item.
-     * @return The item's tag vector.  If the item is not known to the model, then this vector is
-     *         empty.
+     * @return The item's tag vector, as a read-only view of its row.  If the item is not known to
+     *         the model, then this vector is empty.
      */
     public Map<String, Double> getItemVector(long item) {
         // Look up the item
-        Map<String, Double> vec = itemVectors.get(item);
-        if (vec == null) {
+        int row = items.tryGetIndex(item);
+        if (row < 0) {
             // We don't know the item! Return an empty vector
             return Collections.emptyMap();
         } else {
-            return vec;
+            return new RowView(rowStart[row], rowStart[row + 1]);
+        }
+    }
+
+    /**
+     * A read-only map view of a row, keyed by tag.
+     */
+    private class RowView extends AbstractMap<String, Double> {
+        private final int start;
+        private final int end;
+
+        RowView(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        private int find(Object key) {
+            if (!(key instanceof String)) {
+                return -1;
+            }
+            int id = tags.getId((String) key);
+            if (id < 0) {
+                return -1;
+            }
+            int pos = Arrays.binarySearch(terms, start, end, id);
+            return pos >= 0 ? pos : -1;
+        }
+
+        @Override
+        public int size() {
+            return end - start;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return find(key) >= 0;
+        }
+
+        @Override
+        public Double get(Object key) {
+            int pos = find(key);
+            return pos >= 0 ? (double) weights[pos] : null;
+        }
+
+        @Override
+        public Set<Entry<String, Double>> entrySet() {
+            return new AbstractSet<Entry<String, Double>>() {
+                @Override
+                public int size() {
+                    return end - start;
+                }
+
+                @Override
+                public Iterator<Entry<String, Double>> iterator() {
+                    return new Iterator<Entry<String, Double>>() {
+                        private int pos = start;
+
+                        @Override
+                        public boolean hasNext() {
+                            return pos < end;
+                        }
+
+                        @Override
+                        public Entry<String, Double> next() {
+                            if (pos >= end) {
+                                throw new NoSuchElementException();
+                            }
+                            Entry<String, Double> e = new SimpleImmutableEntry<>(tags.getTag(terms[pos]),
+                                                                                  (double) weights[pos]);
+                            pos++;
+                            return e;
+                        }
+                    };
+                }
+            };
         }
     }
 }
@@ -1,41 +1,61 @@
 package org.lenskit.mooc.cbf;
 
-import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import org.lenskit.data.dao.DataAccessObject;
 import org.lenskit.data.entities.CommonTypes;
 import org.lenskit.data.entities.Entity;
 import org.lenskit.inject.Transient;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.keys.SortedKeyIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Collection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * Builder for computing {@linkplain TFIDFModel TF-IDF models} from item tag data.  Each item is
  * represented by a normalized TF-IDF vector.
  *
+ * <p>The tag applications are streamed once, interning each tag to an integer the first time it
+ * is seen, and grouped by item with a counting sort.  Term and document frequencies are then
+ * counted in primitive arrays indexed by tag ID, and the IDF weighting and normalization are
+ * applied as the vectors are copied into the model's arrays, so the build is linear in the number
+ * of tag applications.</p>
+ *
+ * <p>Once the applications are grouped, each item's TF vector and its weighting are independent
+ * of every other item, so those phases can run on several threads.  The items are split into
+ * contiguous ranges with about the same number of tag applications; each thread counts its own
+ * partial document frequencies, and the partials are added up before the IDF is taken.  Every
+ * item's weights are computed by the same arithmetic whatever the ranges are, so the model is
+ * identical for any thread count.</p>
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 public class TFIDFModelProvider implements Provider<TFIDFModel> {
     private static final Logger logger = LoggerFactory.getLogger(TFIDFModelProvider.class);
 
     private final DataAccessObject dao;
-
-    private double squareSum;
+    private final int threads;
 
     /**
      * Construct a model builder.  The {@link Inject} annotation on this constructor tells LensKit
      * that it can be used to build the model builder.
      *
      * @param dao The data access object.
+     * @param threads The number of threads to build the item vectors on.  The model is identical
+     *                for any thread count.
      */
     @Inject
-    public TFIDFModelProvider(@Transient DataAccessObject dao) {
+    public TFIDFModelProvider(@Transient DataAccessObject dao,
+                              @BuildThreadCount int threads) {
         this.dao = dao;
+        this.threads = Math.max(threads, 1);
     }
 
     /**
@@ -45,103 +65,227 @@ public class TFIDFModelProvider implements Provider<TFIDFModel> {
     @Override
     public TFIDFModel get() {
         logger.info("Building TF-IDF model");
+        SortedKeyIndex items = SortedKeyIndex.fromCollection(dao.getEntityIds(CommonTypes.ITEM));
+        int nItems = items.size();
 
-        // Create a map to accumulate document frequencies for the IDF computation
-        Map<String, Double> docFreq = new HashMap<>();
-
-        // We now proceed in 2 stages. First, we build a TF vector for each item.
-        // While we do this, we also build the DF vector.
-        // We will then apply the IDF to each TF vector and normalize it to a unit vector.
-
-        // Create a map to store the item TF vectors.
-        Map<Long, Map<String, Double>> itemVectors = new HashMap<>();
-
-        // Iterate over the items to compute each item's vector.
-        LongSet items = dao.getEntityIds(CommonTypes.ITEM);
-        for (long item : items) {
-            // Create a work vector to accumulate this item's tag vector.
-            Map<String, Double> work = new HashMap<>();
-
-            for (Entity tagApplication : dao.query(TagData.ITEM_TAG_TYPE)
-                                            .withAttribute(TagData.ITEM_ID, item)
-                                            .get()) {
+        // Stream the tag applications once.  Each tag gets an integer ID the first time it is seen.
+        Object2IntOpenHashMap<String> tagIds = new Object2IntOpenHashMap<>();
+        tagIds.defaultReturnValue(-1);
+        List<String> tagList = new ArrayList<>();
+        IntArrayList appItems = new IntArrayList();
+        IntArrayList appTags = new IntArrayList();
+        try (ObjectStream<Entity> stream = dao.query(TagData.ITEM_TAG_TYPE).stream()) {
+            for (Entity tagApplication : stream) {
+                int item = items.tryGetIndex(tagApplication.getLong(TagData.ITEM_ID));
+                if (item < 0) {
+                    // not an item we are modeling
+                    continue;
+                }
                 String tag = tagApplication.get(TagData.TAG);
-
-                if (work.containsKey(tag)) {  //if the tag is already in the work map
-                    work.put(tag, work.get(tag)+1);
-                } else {  // if not then add it
-                    work.put(tag,1.0);
-
-                    //increment DF for the tag and this item
-                    if (docFreq.containsKey(tag)) { //if already in DF, increment count
-                        docFreq.put(tag, docFreq.get(tag)+1);
-                    } else { // if not then add it
-                        docFreq.put(tag,1.0);
-                    }
+                int id = tagIds.getInt(tag);
+                if (id < 0) {
+                    id = tagList.size();
+                    tagIds.put(tag, id);
+                    tagList.add(tag);
                 }
+                appItems.add(item);
+                appTags.add(id);
             }
+        }
 
-            itemVectors.put(item, work);
+        // Renumber the tags in sorted order, so the model does not depend on the order of the data.
+        String[] sortedTags = tagList.toArray(new String[tagList.size()]);
+        Arrays.sort(sortedTags);
+        int nTags = sortedTags.length;
+        int[] rank = new int[nTags];
+        for (int t = 0; t < nTags; t++) {
+            rank[tagIds.getInt(sortedTags[t])] = t;
         }
 
-        logger.info("Computed TF vectors for {} items", itemVectors.size());
+        // Group the applications by item with a counting sort, so each item's tag IDs are a range.
+        int nApps = appItems.size();
+        int[] itemStart = new int[nItems + 1];
+        for (int k = 0; k < nApps; k++) {
+            itemStart[appItems.getInt(k) + 1]++;
+        }
+        for (int i = 0; i < nItems; i++) {
+            itemStart[i + 1] += itemStart[i];
+        }
+        int[] fill = Arrays.copyOf(itemStart, nItems);
+        int[] applied = new int[nApps];
+        for (int k = 0; k < nApps; k++) {
+            applied[fill[appItems.getInt(k)]++] = rank[appTags.getInt(k)];
+        }
 
-        // Now we've seen all the items, so we have each item's TF vector and a global vector
-        // of document frequencies.
-        // Invert and log the document frequency.  We can do this in-place.
-        final double logN = Math.log(items.size());
+        int[] bounds = splitItems(itemStart, nItems);
+        ExecutorService executor = bounds.length > 2 ? Executors.newFixedThreadPool(bounds.length - 1) : null;
+        try {
+            // We now proceed in 2 stages. First, we build a TF vector for each item, as its sorted tag
+            // IDs and their counts, in place of its range of applications.  While we do this, we also
+            // build the DF vector, a partial one for each range of items.
+            // We will then apply the IDF to each TF vector and normalize it to a unit vector.
+            int[] counts = new int[nApps];
+            int[] rowLength = new int[nItems];
+            List<int[]> partials = inRanges(executor, bounds, (lo, hi) -> {
+                int[] partial = new int[nTags];
+                for (int i = lo; i < hi; i++) {
+                    rowLength[i] = countTerms(applied, counts, itemStart[i], itemStart[i + 1], partial);
+                }
+                return partial;
+            });
+            int[] docFreq = new int[nTags];
+            for (int[] partial : partials) {
+                for (int tag = 0; tag < nTags; tag++) {
+                    docFreq[tag] += partial[tag];
+                }
+            }
 
-        for (Map.Entry<String, Double> e : docFreq.entrySet()) {
-            e.setValue(logN - Math.log(e.getValue()));
-        }
+            int[] rowStart = new int[nItems + 1];
+            for (int i = 0; i < nItems; i++) {
+                rowStart[i + 1] = rowStart[i] + rowLength[i];
+            }
+            logger.info("Computed TF vectors for {} items with {} tags on {} threads",
+                        nItems, nTags, bounds.length - 1);
 
-        // Now docFreq is a log-IDF vector.  Its values can therefore be multiplied by TF values.
-        // So we can use it to apply IDF to each item vector to put it in the final model.
-        // Create a map to store the final model data.
-        Map<Long, Map<String, Double>> modelData = new HashMap<>();
-        for (Map.Entry<Long, Map<String, Double>> entry : itemVectors.entrySet()) {
-            Map<String, Double> tv = new HashMap<>(entry.getValue());
+            // Now we've seen all the items, so we have each item's TF vector and a global vector
+            // of document frequencies.
+            // Invert and log the document frequency.
+            final double logN = Math.log(nItems);
+            double[] idf = new double[nTags];
+            for (int tag = 0; tag < nTags; tag++) {
+                idf[tag] = logN - Math.log(docFreq[tag]);
+            }
 
-            // multiply each term value by the log of the document frequency
-            tv.replaceAll((k, v) -> v * docFreq.get(k));
+            // Now idf is a log-IDF vector.  Its values can therefore be multiplied by TF values.
+            // Apply it to each item vector, and normalize the vector by dividing each element by its
+            // Euclidean norm, which is the square root of the sum of the squares of the values.
+            int[] terms = new int[rowStart[nItems]];
+            float[] weights = new float[rowStart[nItems]];
+            inRanges(executor, bounds, (lo, hi) -> {
+                for (int i = lo; i < hi; i++) {
+                    int src = itemStart[i];
+                    int dst = rowStart[i];
+                    int len = rowLength[i];
+                    double squareSum = 0;
+                    for (int j = 0; j < len; j++) {
+                        double v = counts[src + j] * idf[applied[src + j]];
+                        squareSum += v * v;
+                    }
+                    final double length = Math.sqrt(squareSum);
+                    for (int j = 0; j < len; j++) {
+                        int tag = applied[src + j];
+                        terms[dst + j] = tag;
+                        // a vector of tags on every item has no length; leave it all zeros
+                        weights[dst + j] = length > 0 ? (float) (counts[src + j] * idf[tag] / length) : 0;
+                    }
+                }
+                return null;
+            });
 
-            // Normalize it by dividing each element by its Euclidean norm, which is the
-            // square root of the sum of the squares of the values.
+            // We don't need the IDF vector anymore, as long as as we have no new tags
+            return new TFIDFModel(TagVocabulary.fromSorted(sortedTags), items, rowStart, terms, weights);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
 
-            //compute the length (Euclidean norm) of the TF-IDF vector
-            squareSum = 0.0;
-            Collection<Double> values = tv.values();
-            for (Double v : values) {
-                squareSum += Math.pow(v, 2);
+    /**
+     * Turn an item's range of tag applications into its TF vector.  The range is sorted, and its
+     * distinct tags are moved to the front of it with their counts at the same positions of
+     * {@code counts}.
+     *
+     * @param applied The tag IDs of the applications.
+     * @param counts The array to store the term frequencies in.
+     * @param start The start of the item's applications.
+     * @param end The end of the item's applications.
+     * @param docFreq The document frequencies to add the item's tags to.
+     * @return The number of distinct tags on the item.
+     */
+    private static int countTerms(int[] applied, int[] counts, int start, int end, int[] docFreq) {
+        Arrays.sort(applied, start, end);
+        int size = 0;
+        for (int k = start; k < end; k++) {
+            int tag = applied[k];
+            if (size > 0 && applied[start + size - 1] == tag) {
+                counts[start + size - 1] += 1;
+            } else {
+                applied[start + size] = tag;
+                counts[start + size] = 1;
+                docFreq[tag] += 1;
+                size++;
             }
+        }
+        return size;
+    }
 
-            final double length = Math.sqrt(squareSum);
+    /**
+     * Split the items into one contiguous range per thread, with about the same number of tag
+     * applications in each.
+     *
+     * @param itemStart The start of each item's applications, followed by their end.
+     * @param nItems The number of items.
+     * @return The bounds of the ranges; range {@code r} is {@code [bounds[r], bounds[r+1])}.
+     */
+    private int[] splitItems(int[] itemStart, int nItems) {
+        int ranges = Math.max(Math.min(threads, nItems), 1);
+        int nApps = itemStart[nItems];
+        int[] bounds = new int[ranges + 1];
+        int item = 0;
+        for (int r = 1; r < ranges; r++) {
+            long target = (long) nApps * r / ranges;
+            while (item < nItems && itemStart[item] < target) {
+                item++;
+            }
+            bounds[r] = item;
+        }
+        bounds[ranges] = nItems;
+        return bounds;
+    }
 
-            //divide each element of it by the length to yield a unit vector
-            for (Map.Entry<String, Double> e : tv.entrySet()) {
-                e.setValue(e.getValue() / length);
+    /**
+     * Run a task over each range of items, on the executor if there is one.
+     *
+     * @param executor The executor, or {@code null} to run on the calling thread.
+     * @param bounds The bounds of the ranges.
+     * @param task The task.
+     * @return The results of the ranges, in range order.
+     */
+    private static <T> List<T> inRanges(ExecutorService executor, int[] bounds, RangeTask<T> task) {
+        int ranges = bounds.length - 1;
+        List<T> results = new ArrayList<>(ranges);
+        if (executor == null) {
+            for (int r = 0; r < ranges; r++) {
+                results.add(task.run(bounds[r], bounds[r + 1]));
             }
+            return results;
+        }
 
-            modelData.put(entry.getKey(), tv);
-
-            /*if (entry.getKey()==2231) {
-                logger.info("cards: " + tv.get("cards"));
-                logger.info("John Malkovich should be:(0.23970853283741034)  got: " + tv.get("John Malkovich"));
-                logger.info("Matt Damon should be:(0.3159509700099918)  got: " + tv.get("Matt Damon"));
-                logger.info("poker should be:(0.5969723646885582)  got: " + tv.get("poker"));
-                logger.info("gambling should be:(0.24572008949856772)  got: " + tv.get("gambling"));
-                logger.info("library vhs should be:(0.06053343286414036)  got: " + tv.get("library vhs"));
-                logger.info("card games should be:(0.12526237038499663)  got: " + tv.get("card games"));
-                logger.info("2.5 should be:(0.06789050985047351)  got: " + tv.get("2.5"));
-                logger.info("John Turturro should be:(0.2606167586076272)  got: " + tv.get("John Turturro"));
-                logger.info("Edward Norton should be:(0.5529141975174856)  got: " + tv.get("Edward Norton"));
-                logger.info("John Dahl should be:(0.1141651377329722)  got: " + tv.get("John Dahl"));
-                logger.info("watched 2006 should be:(0.061105276598972115)  got: " + tv.get("watched 2006"));
-                logger.info("END");
-            }*/
+        List<Future<T>> futures = new ArrayList<>(ranges);
+        for (int r = 0; r < ranges; r++) {
+            final int lo = bounds[r];
+            final int hi = bounds[r + 1];
+            futures.add(executor.submit(() -> task.run(lo, hi)));
         }
+        try {
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while building TF-IDF model", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("TF-IDF model build failed", e.getCause());
+        }
+        return results;
+    }
 
-        // We don't need the IDF vector anymore, as long as as we have no new tags
-        return new TFIDFModel(modelData);
+    /**
+     * A phase of the build over a range of items.  A range task only writes its own items' slots
+     * of shared arrays; anything else it writes is its own.
+     */
+    private interface RangeTask<T> {
+        T run(int lo, int hi);
     }
 }
@@ -0,0 +1,142 @@
+package org.lenskit.mooc.cbf;
+
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accumulates a user profile over the {@linkplain TagVocabulary interned tags} of a model, for
+ * {@link UserProfileBuilder#accumulateProfile(java.util.List, TagVocabulary, TagAccumulator)}.
+ *
+ * <p>The sums are kept in a dense array over the tag IDs, with a list of the tags that have been
+ * touched, so adding to a tag costs no lookup and no allocation, and {@link #clear()} costs only
+ * as much as the accumulation did.  An accumulator is not thread-safe; it is meant to be reused
+ * for many profiles on one thread.  Each tag's sum is added up in the order its contributions are
+ * added, so a profile accumulated here has the same values as one accumulated in a map.</p>
+ */
+public final class TagAccumulator {
+    private final double[] sums;
+    private final boolean[] touched;
+    private final int[] tags;
+    private int size;
+
+    /**
+     * Create an accumulator.
+     * @param nTags The number of tags in the vocabulary.
+     */
+    public TagAccumulator(int nTags) {
+        sums = new double[nTags];
+        touched = new boolean[nTags];
+        tags = new int[nTags];
+    }
+
+    /**
+     * Add to a tag's weight.
+     * @param tag The tag ID.
+     * @param weight The weight to add.
+     */
+    public void add(int tag, double weight) {
+        if (!touched[tag]) {
+            touched[tag] = true;
+            tags[size++] = tag;
+        }
+        sums[tag] += weight;
+    }
+
+    /**
+     * Add an item's tag vector, scaled by a factor.
+     * @param model The model.
+     * @param row The item's row number.
+     * @param scale The factor to multiply the item's weights by.
+     */
+    public void addRow(TFIDFModel model, int row, double scale) {
+        int end = model.rowEnd(row);
+        for (int pos = model.rowStart(row); pos < end; pos++) {
+            add(model.termAt(pos), model.weightAt(pos) * scale);
+        }
+    }
+
+    /**
+     * Get the number of tags touched.
+     * @return The number of tags that have had a weight added, even if it was 0.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get a touched tag.
+     * @param k The index, in {@code [0, size())}.
+     * @return The tag ID; tags are in the order they were first touched.
+     */
+    public int tagAt(int k) {
+        return tags[k];
+    }
+
+    /**
+     * Get a tag's weight.
+     * @param tag The tag ID.
+     * @return The sum of the weights added to the tag; 0 if it has not been touched.
+     */
+    public double get(int tag) {
+        return sums[tag];
+    }
+
+    /**
+     * Copy the accumulated profile to a sparse tag vector.
+     * @return The vector of the touched tags' weights.
+     */
+    public SparseTagVector toVector() {
+        int[] terms = Arrays.copyOf(tags, size);
+        Arrays.sort(terms);
+        double[] weights = new double[size];
+        double squareSum = 0;
+        for (int k = 0; k < size; k++) {
+            double v = sums[terms[k]];
+            weights[k] = v;
+            squareSum += v * v;
+        }
+        return new SparseTagVector(terms, weights, Math.sqrt(squareSum));
+    }
+
+    /**
+     * Copy the accumulated profile to a map over tag strings.
+     * @param vocabulary The vocabulary the tag IDs are from.
+     * @return The map of the touched tags' weights.
+     */
+    public Map<String, Double> toMap(TagVocabulary vocabulary) {
+        Map<String, Double> map = new HashMap<>(size * 2);
+        for (int k = 0; k < size; k++) {
+            int tag = tags[k];
+            map.put(vocabulary.getTag(tag), sums[tag]);
+        }
+        return map;
+    }
+
+    /**
+     * Copy the accumulated profile to a map over tag IDs.
+     * @return A map of the touched tags' weights, sized to hold them.
+     */
+    Int2DoubleOpenHashMap toIdMap() {
+        Int2DoubleOpenHashMap map = new Int2DoubleOpenHashMap(size);
+        for (int k = 0; k < size; k++) {
+            int tag = tags[k];
+            map.put(tag, sums[tag]);
+        }
+        return map;
+    }
+
+    /**
+     * Reset the touched tags, so the accumulator can be used again.
+     */
+    public void clear() {
+        for (int k = 0; k < size; k++) {
+            int tag = tags[k];
+            sums[tag] = 0;
+            touched[tag] = false;
+        }
+        size = 0;
+    }
+}
@@ -0,0 +1,106 @@
+package org.lenskit.mooc.cbf;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.TreeSet;
+
+/**
+ * An interned tag dictionary, mapping each tag to a dense integer ID.  Tags are numbered in sorted order, so the same
+ * set of tags always gets the same IDs, and a vector over tags can be stored as a sorted array of tag IDs.
+ *
+ * <p>The tags are packed end to end in one character array, so the dictionary costs little more than the characters
+ * themselves; a tag is looked up by binary search over the packed tags, and {@link #getTag(int)} makes a new string.
+ * Code that looks tags up in bulk, such as the model builder, should keep its own hash map from tags to IDs.</p>
+ */
+public final class TagVocabulary implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final char[] chars;
+    private final int[] offsets;
+
+    private TagVocabulary(String[] tags) {
+        offsets = new int[tags.length + 1];
+        for (int i = 0; i < tags.length; i++) {
+            offsets[i + 1] = offsets[i] + tags[i].length();
+        }
+        chars = new char[offsets[tags.length]];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i].getChars(0, tags[i].length(), chars, offsets[i]);
+        }
+    }
+
+    /**
+     * Create a vocabulary.
+     * @param tags The tags; duplicates are ignored.
+     * @return A vocabulary numbering the distinct tags in sorted order.
+     */
+    public static TagVocabulary create(Collection<String> tags) {
+        return new TagVocabulary(new TreeSet<>(tags).toArray(new String[0]));
+    }
+
+    /**
+     * Create a vocabulary from tags that are already sorted and distinct.
+     * @param tags The tags, in {@link String#compareTo(String)} order.
+     * @return A vocabulary numbering the tags in order.
+     */
+    static TagVocabulary fromSorted(String[] tags) {
+        return new TagVocabulary(tags);
+    }
+
+    /**
+     * Get the number of tags.
+     * @return The number of tags; IDs run from 0 up to this number.
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Get the ID of a tag.
+     * @param tag The tag.
+     * @return The tag's ID, or -1 if the tag is not in the vocabulary.
+     */
+    public int getId(String tag) {
+        int lo = 0;
+        int hi = size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(mid, tag);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the tag with an ID.
+     * @param id The tag ID.
+     * @return The tag.
+     * @throws IndexOutOfBoundsException if the ID is not in the vocabulary.
+     */
+    public String getTag(int id) {
+        return new String(chars, offsets[id], offsets[id + 1] - offsets[id]);
+    }
+
+    /**
+     * Compare a packed tag with a string, in the order of {@link String#compareTo(String)}.
+     */
+    private int compare(int id, String tag) {
+        int start = offsets[id];
+        int len = offsets[id + 1] - start;
+        int n = Math.min(len, tag.length());
+        for (int k = 0; k < n; k++) {
+            char c = chars[start + k];
+            char d = tag.charAt(k);
+            if (c != d) {
+                return c - d;
+            }
+        }
+        return len - tag.length();
+    }
+}
@@ -1,12 +1,12 @@
 package org.lenskit.mooc.cbf;
 
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import org.lenskit.data.ratings.Rating;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -23,37 +23,76 @@ public class ThresholdUserProfileBuilder implements UserProfileBuilder {
      * The tag model, to get item tag vectors.
      */
     private final TFIDFModel model;
+    /**
+     * Each thread's accumulator, for building profiles.
+     */
+    private final ThreadLocal<TagAccumulator> scratch;
 
     @Inject
     public ThresholdUserProfileBuilder(TFIDFModel m) {
         model = m;
+        scratch = ThreadLocal.withInitial(() -> new TagAccumulator(m.getTagVocabulary().size()));
     }
 
     @Override
     public Map<String, Double> makeUserProfile(@Nonnull List<Rating> ratings) {
-        // Create a new vector over tags to accumulate the user profile
-        Map<String,Double> profile = new HashMap<>();
+        TagAccumulator profile = scratch.get();
+        try {
+            accumulateProfile(ratings, model.getTagVocabulary(), profile);
+            return profile.toMap(model.getTagVocabulary());
+        } finally {
+            profile.clear();
+        }
+    }
 
-        // Iterate over the user's ratings to build their profile
+    @Override
+    public void accumulateProfile(@Nonnull List<Rating> ratings, TagVocabulary tags, TagAccumulator profile) {
+        // add the tag vector of each item rated at or above the threshold
         for (Rating r: ratings) {
-            if (r.getValue() >= RATING_THRESHOLD) {
-
-                //add each of these tags to the profile
-                Map<String, Double> iv = model.getItemVector(r.getItemId());
-
-                //loop over iv
-                for (Map.Entry<String,Double> e : iv.entrySet()) {
-                    if (profile.containsKey(e.getKey())) {  //check to see if it exists in profile
-                        //if so then add the value
-                        profile.put(e.getKey(), profile.get(e.getKey()) + e.getValue());
-                    } else {  //if not then create with value
-                        profile.put(e.getKey(), e.getValue());
-                    }
+            int row = model.getItemRow(r.getItemId());
+            if (r.getValue() >= RATING_THRESHOLD && row >= 0) {
+                profile.addRow(model, row, 1);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The state is the profile itself, over tag IDs; a new rating at or above the threshold
+     * adds its item's vector to it.</p>
+     */
+    @Override
+    public UserProfileState makeProfileState(@Nonnull List<Rating> ratings, TagVocabulary tags) {
+        TagAccumulator profile = scratch.get();
+        try {
+            accumulateProfile(ratings, tags, profile);
+            return new ThresholdProfileState(profile.toIdMap());
+        } finally {
+            profile.clear();
+        }
+    }
+
+    private class ThresholdProfileState implements UserProfileState {
+        private final Int2DoubleOpenHashMap profile;
+
+        ThresholdProfileState(Int2DoubleOpenHashMap profile) {
+            this.profile = profile;
+        }
+
+        @Override
+        public void addRating(Rating rating) {
+            int row = model.getItemRow(rating.getItemId());
+            if (rating.getValue() >= RATING_THRESHOLD && row >= 0) {
+                for (int pos = model.rowStart(row); pos < model.rowEnd(row); pos++) {
+                    profile.addTo(model.termAt(pos), model.weightAt(pos));
                 }
             }
         }
 
-        // The profile is accumulated, return it.
-        return profile;
+        @Override
+        public SparseTagVector getProfile() {
+            return SparseTagVector.fromTagIds(profile);
+        }
     }
 }
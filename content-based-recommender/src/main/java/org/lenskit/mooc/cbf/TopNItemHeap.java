@@ -0,0 +1,171 @@
+package org.lenskit.mooc.cbf;
+
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultList;
+import org.lenskit.results.Results;
+
+import java.util.Arrays;
+
+/**
+ * A bounded min-heap that keeps the {@code n} highest-scored items offered to it.
+ *
+ * <p>Items and scores are kept in primitive arrays, so offering an item allocates nothing; result objects are only
+ * created for the survivors in {@link #finish()}.  Ties are broken by item ID, lower IDs first, so the output is
+ * deterministic.</p>
+ */
+public class TopNItemHeap {
+    /**
+     * The most items a new heap has room for; it grows as items are offered, up to its limit.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int limit;
+    private long[] items;
+    private double[] scores;
+    private int size;
+
+    /**
+     * Create a heap.
+     * @param n The number of items to keep.  If negative, keep every item offered.  Room is only
+     *          made for items as they are offered, so {@code n} may be far more than will be offered.
+     */
+    public TopNItemHeap(int n) {
+        limit = n;
+        int capacity = n >= 0 ? Math.min(n, INITIAL_CAPACITY) : INITIAL_CAPACITY;
+        items = new long[capacity];
+        scores = new double[capacity];
+    }
+
+    /**
+     * Get the number of items currently held.
+     * @return The heap size.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Query whether the heap is full, so that an item must beat the current minimum to get in.
+     * @return {@code true} if the heap holds its maximum number of items.
+     */
+    public boolean isFull() {
+        return limit >= 0 && size >= limit;
+    }
+
+    /**
+     * Get the lowest score currently held.
+     * @return The score of the weakest item in the heap.
+     * @throws IllegalStateException if the heap is empty.
+     */
+    public double minScore() {
+        if (size == 0) {
+            throw new IllegalStateException("heap is empty");
+        }
+        return scores[0];
+    }
+
+    /**
+     * Get the item with the lowest score currently held.
+     * @return The weakest item in the heap; of items tied for the lowest score, the one with the highest ID.
+     * @throws IllegalStateException if the heap is empty.
+     */
+    public long minItem() {
+        if (size == 0) {
+            throw new IllegalStateException("heap is empty");
+        }
+        return items[0];
+    }
+
+    /**
+     * Offer an item to the heap.
+     * @param item The item ID.
+     * @param score The item's score.
+     * @return {@code true} if the item was kept.
+     */
+    public boolean offer(long item, double score) {
+        if (limit == 0) {
+            return false;
+        }
+        if (isFull()) {
+            if (!worse(items[0], scores[0], item, score)) {
+                return false;
+            }
+            items[0] = item;
+            scores[0] = score;
+            siftDown(0);
+        } else {
+            if (size == items.length) {
+                int capacity = limit >= 0 ? (int) Math.min((long) size * 2, limit) : size * 2;
+                items = Arrays.copyOf(items, capacity);
+                scores = Arrays.copyOf(scores, capacity);
+            }
+            items[size] = item;
+            scores[size] = score;
+            siftUp(size);
+            size++;
+        }
+        return true;
+    }
+
+    /**
+     * Empty the heap into a result list.
+     * @return The held items, in decreasing order of score.
+     */
+    public ResultList finish() {
+        Result[] results = new Result[size];
+        while (size > 0) {
+            results[size - 1] = Results.create(items[0], scores[0]);
+            size--;
+            items[0] = items[size];
+            scores[0] = scores[size];
+            siftDown(0);
+        }
+        return Results.newResultList(Arrays.asList(results));
+    }
+
+    /**
+     * Whether item 1 ranks below item 2.
+     */
+    private static boolean worse(long item1, double score1, long item2, double score2) {
+        int cmp = Double.compare(score1, score2);
+        return cmp < 0 || (cmp == 0 && item1 > item2);
+    }
+
+    private void siftUp(int pos) {
+        long item = items[pos];
+        double score = scores[pos];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!worse(item, score, items[parent], scores[parent])) {
+                break;
+            }
+            items[pos] = items[parent];
+            scores[pos] = scores[parent];
+            pos = parent;
+        }
+        items[pos] = item;
+        scores[pos] = score;
+    }
+
+    private void siftDown(int pos) {
+        long item = items[pos];
+        double score = scores[pos];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && worse(items[child + 1], scores[child + 1], items[child], scores[child])) {
+                child++;
+            }
+            if (!worse(items[child], scores[child], item, score)) {
+                break;
+            }
+            items[pos] = items[child];
+            scores[pos] = scores[child];
+            pos = child;
+        }
+        items[pos] = item;
+        scores[pos] = score;
+    }
+}
@@ -19,4 +19,36 @@ public interface UserProfileBuilder {
      * @return A vector of tag weights describing the user's preferences.
      */
     Map<String,Double> makeUserProfile(@Nonnull List<Rating> ratings);
+
+    /**
+     * Add a user profile to an accumulator over the model's tag IDs.  This makes the profile of
+     * {@link #makeUserProfile(List)} without a map over tag strings, into an accumulator the caller
+     * can clear and reuse.  The default makes the map and interns its tags, leaving out any that
+     * are not in the vocabulary; builders that work over the model's rows override it.
+     *
+     * @param ratings The user's history (their ratings).
+     * @param tags    The vocabulary of the model's tags.
+     * @param profile The accumulator to add the profile to, sized for {@code tags}.
+     */
+    default void accumulateProfile(@Nonnull List<Rating> ratings, TagVocabulary tags, TagAccumulator profile) {
+        for (Map.Entry<String, Double> e: makeUserProfile(ratings).entrySet()) {
+            int tag = tags.getId(e.getKey());
+            if (tag >= 0) {
+                profile.add(tag, e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Create the state of a user profile, which can be updated one rating at a time.  The default
+     * keeps the ratings and makes the profile again with {@link #makeUserProfile(List)} each time
+     * one is added; builders that can update their profiles directly override it.
+     *
+     * @param ratings The user's history (their ratings).
+     * @param tags    The vocabulary of the model's tags.
+     * @return The profile state.
+     */
+    default UserProfileState makeProfileState(@Nonnull List<Rating> ratings, TagVocabulary tags) {
+        return new RebuildingProfileState(this, ratings, tags);
+    }
 }
@@ -0,0 +1,200 @@
+package org.lenskit.mooc.cbf;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.entities.CommonAttributes;
+import org.lenskit.data.ratings.Rating;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded, concurrent cache of user tag profiles, in front of the {@link UserProfileBuilder}.
+ *
+ * <p>A user's profile is built from their ratings in the DAO the first time it is asked for, and
+ * kept as the builder's {@linkplain UserProfileState profile state}.  When the user rates another
+ * item, {@link #addRating(Rating)} updates a cached state instead of dropping it, so the profile is
+ * never rebuilt from the whole history.  Each state remembers the IDs of the ratings in it, so a
+ * rating is counted once however its addition and the DAO read that built the state are ordered.
+ * The cache keeps at most {@link ProfileCacheSize} users,
+ * evicting the least recently used, and can expire profiles {@link ProfileCacheExpiry} seconds
+ * after they were built.  Its hit, miss, load and eviction counts are available from
+ * {@link #getStats()}.</p>
+ */
+public class UserProfileCache {
+    private static final Logger logger = LoggerFactory.getLogger(UserProfileCache.class);
+
+    private final DataAccessObject dao;
+    private final TFIDFModel model;
+    private final UserProfileBuilder profileBuilder;
+    private final LoadingCache<Long, Entry> cache;
+    /**
+     * The ratings added for each user since their profile was last asked for.  A profile may be
+     * built from DAO ratings read before these were stored, or out of sight of
+     * {@link #addRating(Rating)} while it is built, so they are applied to it when it is returned.
+     */
+    private final Cache<Long, List<Rating>> added;
+
+    /**
+     * Construct a profile cache.
+     *
+     * @param dao    The data access object, for looking up users' ratings.
+     * @param m      The model, whose tags the profiles are over.
+     * @param upb    The user profile builder.
+     * @param size   The maximum number of profiles to keep.
+     * @param expiry The number of seconds to keep a profile after building it, or 0 to keep it
+     *               until it is evicted.
+     */
+    @Inject
+    public UserProfileCache(DataAccessObject dao, TFIDFModel m, UserProfileBuilder upb,
+                            @ProfileCacheSize int size, @ProfileCacheExpiry double expiry) {
+        this(dao, m, upb, size, expiry, Ticker.systemTicker());
+    }
+
+    /**
+     * Construct a profile cache with a custom clock, for testing expiry.
+     */
+    UserProfileCache(DataAccessObject dao, TFIDFModel m, UserProfileBuilder upb,
+                     int size, double expiry, Ticker ticker) {
+        this.dao = dao;
+        model = m;
+        profileBuilder = upb;
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+                                                           .maximumSize(size)
+                                                           .ticker(ticker)
+                                                           .recordStats();
+        CacheBuilder<Object, Object> addedBuilder = CacheBuilder.newBuilder()
+                                                                .maximumSize(size)
+                                                                .ticker(ticker);
+        if (expiry > 0) {
+            builder.expireAfterWrite((long) (expiry * 1.0e9), TimeUnit.NANOSECONDS);
+            addedBuilder.expireAfterWrite((long) (expiry * 1.0e9), TimeUnit.NANOSECONDS);
+        }
+        cache = builder.build(new CacheLoader<Long, Entry>() {
+            @Override
+            public Entry load(Long user) {
+                return loadEntry(user);
+            }
+        });
+        added = addedBuilder.build();
+    }
+
+    /**
+     * Get a user's profile.
+     *
+     * @param user The user ID.
+     * @return The user's profile, as a vector over the model's tag IDs.  A user with no ratings
+     *         has an empty profile.
+     */
+    public SparseTagVector getProfile(long user) {
+        Entry entry = cache.getUnchecked(user);
+        List<Rating> pending = added.asMap().remove(user);
+        if (pending != null) {
+            for (Rating rating: pending) {
+                entry.addRating(rating);
+            }
+        }
+        return entry.getProfile();
+    }
+
+    /**
+     * Add a new rating to its user's profile.  If the user's profile is cached, it is updated as
+     * if the rating had been appended to their history.  The rating is also kept until the user's
+     * profile is next asked for, and added to it then if the profile was built from DAO ratings
+     * that did not include it yet.  A profile that already holds the rating, because the DAO
+     * had it when the profile was built or it was added before, is left as it is.
+     *
+     * @param rating The rating.
+     */
+    public void addRating(Rating rating) {
+        long user = rating.getUserId();
+        ConcurrentMap<Long, List<Rating>> pending = added.asMap();
+        // each list is replaced rather than changed, so a list taken by getProfile stays whole
+        while (true) {
+            List<Rating> old = pending.get(user);
+            List<Rating> ratings = new ArrayList<>(old == null ? 1 : old.size() + 1);
+            if (old != null) {
+                ratings.addAll(old);
+            }
+            ratings.add(rating);
+            if (old == null ? pending.putIfAbsent(user, ratings) == null : pending.replace(user, old, ratings)) {
+                break;
+            }
+        }
+        Entry entry = cache.getIfPresent(user);
+        if (entry != null) {
+            entry.addRating(rating);
+        }
+    }
+
+    /**
+     * Drop a user's cached profile, so it is built again from the DAO when it is next asked for.
+     *
+     * @param user The user ID.
+     */
+    public void invalidate(long user) {
+        cache.invalidate(user);
+    }
+
+    /**
+     * Get the cache's statistics.
+     *
+     * @return The counts of hits, misses, loads and evictions since the cache was created.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    private Entry loadEntry(long user) {
+        List<Rating> ratings = dao.query(Rating.class)
+                                  .withAttribute(CommonAttributes.USER_ID, user)
+                                  .get();
+        logger.debug("building profile of user {} from {} ratings", user, ratings.size());
+        LongSet ids = new LongOpenHashSet(ratings.size());
+        for (Rating rating: ratings) {
+            ids.add(rating.getId());
+        }
+        return new Entry(profileBuilder.makeProfileState(ratings, model.getTagVocabulary()), ids);
+    }
+
+    /**
+     * A cached profile state, with the IDs of the ratings in it and its profile vector, which is kept
+     * until the state changes.
+     */
+    private static class Entry {
+        private final UserProfileState state;
+        private final LongSet ratingIds;
+        private SparseTagVector profile;
+
+        Entry(UserProfileState state, LongSet ratingIds) {
+            this.state = state;
+            this.ratingIds = ratingIds;
+        }
+
+        synchronized SparseTagVector getProfile() {
+            if (profile == null) {
+                profile = state.getProfile();
+            }
+            return profile;
+        }
+
+        synchronized void addRating(Rating rating) {
+            if (ratingIds.add(rating.getId())) {
+                state.addRating(rating);
+                profile = null;
+            }
+        }
+    }
+}
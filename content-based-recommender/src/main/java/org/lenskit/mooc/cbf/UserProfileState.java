@@ -0,0 +1,26 @@
+package org.lenskit.mooc.cbf;
+
+import org.lenskit.data.ratings.Rating;
+
+/**
+ * What a user's tag profile is computed from, kept so that the profile can be updated one rating
+ * at a time instead of being rebuilt from the user's whole history.  States are made by
+ * {@link UserProfileBuilder#makeProfileState(java.util.List, TagVocabulary)}; they are not
+ * thread-safe, and {@link UserProfileCache} synchronizes on them.
+ */
+public interface UserProfileState {
+    /**
+     * Add a rating to the state.  The profile afterwards is the one the builder would make from
+     * the user's history with the rating appended, up to rounding.
+     *
+     * @param rating The user's new rating.
+     */
+    void addRating(Rating rating);
+
+    /**
+     * Get the profile.
+     *
+     * @return The user's profile, as a vector over the model's tag IDs.
+     */
+    SparseTagVector getProfile();
+}
@@ -1,13 +1,15 @@
 package org.lenskit.mooc.cbf;
 
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import org.lenskit.data.ratings.Rating;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -19,53 +21,159 @@ public class WeightedUserProfileBuilder implements UserProfileBuilder {
      * The tag model, to get item tag vectors.
      */
     private final TFIDFModel model;
-    private double rSum;
+    /**
+     * Each thread's accumulator, for building profiles.
+     */
+    private final ThreadLocal<TagAccumulator> scratch;
+    /**
+     * Each thread's array of latest ratings, by the model's item rows.  A profile writes the rows
+     * of its items before reading them, so the array is never cleared.
+     */
+    private final ThreadLocal<double[]> latestRatings;
     private static final Logger logger = LoggerFactory.getLogger(TFIDFModelProvider.class);
 
     @Inject
     public WeightedUserProfileBuilder(TFIDFModel m) {
         model = m;
+        scratch = ThreadLocal.withInitial(() -> new TagAccumulator(m.getTagVocabulary().size()));
+        latestRatings = ThreadLocal.withInitial(() -> new double[m.getItemIndex().size()]);
     }
 
     @Override
     public Map<String, Double> makeUserProfile(@Nonnull List<Rating> ratings) {
-        // Create a new vector over tags to accumulate the user profile
-        Map<String,Double> profile = new HashMap<>();
+        TagAccumulator profile = scratch.get();
+        try {
+            accumulateProfile(ratings, model.getTagVocabulary(), profile);
+            return profile.toMap(model.getTagVocabulary());
+        } finally {
+            profile.clear();
+        }
+    }
 
-        // TODO Normalize the user's ratings
-        // get global mean of user's ratings
-        rSum = 0.0;
-        for (Rating r: ratings) rSum += r.getValue();
-        double grm = rSum / ratings.size();
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Each rated item's tag vector is added weighted by the rating less the mean of the user's
+     * ratings.  An item rated more than once is added once for each rating, each time weighted by
+     * its latest rating.</p>
+     */
+    @Override
+    public void accumulateProfile(@Nonnull List<Rating> ratings, TagVocabulary tags, TagAccumulator profile) {
+        // get the mean of the user's ratings, and each item's latest rating
+        double[] latest = latestRatings.get();
+        double sum = 0;
+        for (Rating r: ratings) {
+            sum += r.getValue();
+            int row = model.getItemRow(r.getItemId());
+            if (row >= 0) {
+                latest[row] = r.getValue();
+            }
+        }
+        double mean = sum / ratings.size();
 
-        //calculate normalized ratings
-        Map<Long,Double> nRatings = new HashMap<>();
+        // add each rated item's tags, weighted by the normalized rating
         for (Rating r: ratings) {
-            nRatings.put(r.getItemId(),r.getValue()-grm);
+            int row = model.getItemRow(r.getItemId());
+            if (row >= 0) {
+                profile.addRow(model, row, latest[row] - mean);
+            }
         }
+    }
 
-        // TODO Build the user's weighted profile
-        // Iterate over the user's ratings to build their profile
+    /**
+     * {@inheritDoc}
+     *
+     * <p>A new rating changes the user's mean, and so every tag of the profile.  But the profile
+     * is the sum of the rated items' vectors weighted by rating, less the mean times the sum of the
+     * vectors; the state keeps those 2 sums and the rating total, and a new rating adds to each.
+     * As in {@link #accumulateProfile(List, TagVocabulary, TagAccumulator)}, an item rated more
+     * than once adds its vector each time, weighted by its latest rating, so the state also keeps
+     * each item's count and latest rating.</p>
+     */
+    @Override
+    public UserProfileState makeProfileState(@Nonnull List<Rating> ratings, TagVocabulary tags) {
+        double sum = 0;
+        Long2IntOpenHashMap itemCounts = new Long2IntOpenHashMap(ratings.size());
+        Long2DoubleOpenHashMap itemRatings = new Long2DoubleOpenHashMap(ratings.size());
         for (Rating r: ratings) {
-            //get the tags for the rated item
-            Map<String, Double> iv = model.getItemVector(r.getItemId());
+            sum += r.getValue();
+            itemCounts.addTo(r.getItemId(), 1);
+            itemRatings.put(r.getItemId(), r.getValue());
+        }
+        TagAccumulator acc = scratch.get();
+        try {
+            for (Rating r: ratings) {
+                int row = model.getItemRow(r.getItemId());
+                if (row >= 0) {
+                    acc.addRow(model, row, itemRatings.get(r.getItemId()));
+                }
+            }
+            Int2DoubleOpenHashMap weightedSum = acc.toIdMap();
+            acc.clear();
+            for (Rating r: ratings) {
+                int row = model.getItemRow(r.getItemId());
+                if (row >= 0) {
+                    acc.addRow(model, row, 1);
+                }
+            }
+            return new WeightedProfileState(weightedSum, acc.toIdMap(), itemCounts, itemRatings,
+                                            ratings.size(), sum);
+        } finally {
+            acc.clear();
+        }
+    }
 
-            // User u's rating for item i minus the global mean of all user ratings multiplied by value for a particular tag t
-            // r.getValue()
+    private class WeightedProfileState implements UserProfileState {
+        private final Int2DoubleOpenHashMap weightedSum;
+        private final Int2DoubleOpenHashMap vectorSum;
+        private final Long2IntOpenHashMap itemCounts;
+        private final Long2DoubleOpenHashMap itemRatings;
+        private int count;
+        private double ratingSum;
 
-            //loop over iv and calculate unweighted profile vector
-            for (Map.Entry<String,Double> e : iv.entrySet()) {
-                double wv = e.getValue() * nRatings.get(r.getItemId());
-                if (profile.containsKey(e.getKey())) {  //check to see if it exists in profile
-                    //if so then add the value
-                    profile.put(e.getKey(), profile.get(e.getKey()) + wv);
-                } else {  //if not then create with value
-                    profile.put(e.getKey(), wv);
+        WeightedProfileState(Int2DoubleOpenHashMap weightedSum, Int2DoubleOpenHashMap vectorSum,
+                             Long2IntOpenHashMap itemCounts, Long2DoubleOpenHashMap itemRatings,
+                             int count, double ratingSum) {
+            this.weightedSum = weightedSum;
+            this.vectorSum = vectorSum;
+            this.itemCounts = itemCounts;
+            this.itemRatings = itemRatings;
+            this.count = count;
+            this.ratingSum = ratingSum;
+        }
+
+        @Override
+        public void addRating(Rating rating) {
+            double value = rating.getValue();
+            count += 1;
+            ratingSum += value;
+            long item = rating.getItemId();
+            int seen = itemCounts.addTo(item, 1);
+            double previous = itemRatings.put(item, value);
+            // the item's earlier ratings are reweighted to the new one
+            double weight = (seen + 1) * value - seen * previous;
+            int row = model.getItemRow(item);
+            if (row >= 0) {
+                for (int pos = model.rowStart(row); pos < model.rowEnd(row); pos++) {
+                    weightedSum.addTo(model.termAt(pos), weight * model.weightAt(pos));
+                    vectorSum.addTo(model.termAt(pos), model.weightAt(pos));
                 }
             }
         }
 
-        // The profile is accumulated, return it.
-        return profile;
+        @Override
+        public SparseTagVector getProfile() {
+            double mean = ratingSum / count;
+            int[] terms = vectorSum.keySet().toIntArray();
+            Arrays.sort(terms);
+            double[] weights = new double[terms.length];
+            double squareSum = 0;
+            for (int k = 0; k < terms.length; k++) {
+                double v = weightedSum.get(terms[k]) - mean * vectorSum.get(terms[k]);
+                weights[k] = v;
+                squareSum += v * v;
+            }
+            return new SparseTagVector(terms, weights, Math.sqrt(squareSum));
+        }
     }
 }
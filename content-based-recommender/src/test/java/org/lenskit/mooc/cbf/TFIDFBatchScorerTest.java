@@ -0,0 +1,92 @@
+package org.lenskit.mooc.cbf;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultList;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+
+import java.util.*;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class TFIDFBatchScorerTest {
+    private TFIDFModel model;
+    private List<Long> items;
+    private List<Long> users;
+    private UserProfileCache profiles;
+    private TFIDFItemScorer scorer;
+
+    @Before
+    public void createRatings() {
+        model = new TFIDFModelProvider(TFIDFModelProviderTest.createRandomData(), 1).get();
+        items = new ArrayList<>(model.getItemIndex().getKeyList());
+        Random rng = new Random(11);
+        List<Rating> ratings = new ArrayList<>();
+        users = new ArrayList<>();
+        for (long user = 1; user <= 150; user++) {
+            users.add(user);
+            // a few users rate only 2 items, so their profiles have few tags and many items tie at 0
+            int count = user % 10 == 0 ? 2 : rng.nextInt(30) + 1;
+            for (int k = 0; k < count; k++) {
+                ratings.add(Rating.create(user, items.get(rng.nextInt(items.size())), rng.nextInt(10) * 0.5 + 0.5));
+            }
+        }
+        // a user without ratings
+        users.add(1000L);
+        DataAccessObject dao = StaticDataSource.fromList(ratings).get();
+        profiles = new UserProfileCache(dao, model, new WeightedUserProfileBuilder(model), 1000, 0);
+        scorer = new TFIDFItemScorer(model, profiles);
+    }
+
+    @Test
+    public void testAllItems() {
+        checkTopN(new TFIDFBatchScorer(model, profiles, 1), null, 10);
+    }
+
+    @Test
+    public void testTilesAndThreads() {
+        // tiles of 16 items, chunks of 7 users, on 3 threads
+        checkTopN(new TFIDFBatchScorer(model, profiles, 3, 16, 7), null, 10);
+        checkTopN(new TFIDFBatchScorer(model, profiles, 3, 16, 7), null, -1);
+    }
+
+    @Test
+    public void testCandidates() {
+        Set<Long> candidates = new HashSet<>(items.subList(0, items.size() / 3));
+        // an item the model does not know
+        candidates.add(1000L);
+        checkTopN(new TFIDFBatchScorer(model, profiles, 2, 16, 20), candidates, 25);
+        checkTopN(new TFIDFBatchScorer(model, profiles, 2, 16, 20), candidates, 0);
+    }
+
+    /**
+     * Check each user's top items against their top items by the scorer, breaking ties by ID.
+     */
+    private void checkTopN(TFIDFBatchScorer batch, Set<Long> candidates, int n) {
+        Map<Long, ResultList> results = batch.scoreTopN(users, candidates, n);
+        assertThat(results.size(), equalTo(users.size()));
+        for (long user: users) {
+            List<Result> expected = new ArrayList<>();
+            for (Result r: scorer.scoreWithDetails(user, candidates != null ? candidates : items)) {
+                expected.add(r);
+            }
+            expected.sort((r1, r2) -> r1.getScore() != r2.getScore()
+                    ? Double.compare(r2.getScore(), r1.getScore())
+                    : Long.compare(r1.getId(), r2.getId()));
+            if (n >= 0 && expected.size() > n) {
+                expected = expected.subList(0, n);
+            }
+
+            ResultList actual = results.get(user);
+            assertThat(actual.size(), equalTo(expected.size()));
+            for (int i = 0; i < expected.size(); i++) {
+                assertThat(actual.get(i).getId(), equalTo(expected.get(i).getId()));
+                assertThat(actual.get(i).getScore(), equalTo(expected.get(i).getScore()));
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.lenskit.mooc.cbf;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultList;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TFIDFItemRecommenderTest {
+    private TFIDFModel model;
+    private List<Long> items;
+    private DataAccessObject dao;
+    private Set<Long> rated;
+
+    @Before
+    public void buildModel() {
+        model = new TFIDFModelProvider(TFIDFModelProviderTest.createRandomData(), 1).get();
+        items = new ArrayList<>(model.getItemIndex().getKeyList());
+        Random rng = new Random(11);
+        List<Rating> ratings = new ArrayList<>();
+        rated = new HashSet<>();
+        for (int k = 0; k < 20; k++) {
+            long item = items.get(rng.nextInt(items.size()));
+            ratings.add(Rating.create(42, item, rng.nextInt(10) * 0.5 + 0.5));
+            rated.add(item);
+        }
+        dao = StaticDataSource.fromList(ratings).get();
+    }
+
+    @Test
+    public void testWeightedTopN() {
+        checkTopN(new WeightedUserProfileBuilder(model), 10, null, null);
+    }
+
+    @Test
+    public void testThresholdTopN() {
+        checkTopN(new ThresholdUserProfileBuilder(model), 10, null, null);
+    }
+
+    @Test
+    public void testAllItems() {
+        checkTopN(new WeightedUserProfileBuilder(model), -1, null, null);
+    }
+
+    @Test
+    public void testMoreThanTouched() {
+        checkTopN(new WeightedUserProfileBuilder(model), items.size() - 5, null, Collections.<Long>emptySet());
+    }
+
+    @Test
+    public void testCandidates() {
+        Set<Long> few = new HashSet<>(items.subList(0, 20));
+        checkTopN(new WeightedUserProfileBuilder(model), 5, few, null);
+        Set<Long> many = new HashSet<>(items.subList(0, items.size() * 3 / 4));
+        checkTopN(new WeightedUserProfileBuilder(model), 5, many, null);
+    }
+
+    @Test
+    public void testUnknownUser() {
+        DataAccessObject empty = StaticDataSource.fromList(Collections.<Rating>emptyList()).get();
+        TFIDFItemRecommender rec = new TFIDFItemRecommender(empty, model, cache(empty, new WeightedUserProfileBuilder(model)));
+        assertThat(rec.recommendWithDetails(42, 10, null, null).size(), equalTo(0));
+    }
+
+    private UserProfileCache cache(DataAccessObject dao, UserProfileBuilder profileBuilder) {
+        return new UserProfileCache(dao, model, profileBuilder, 100, 0);
+    }
+
+    /**
+     * Check a recommendation against the top items by the scorer, breaking ties by ID.
+     */
+    private void checkTopN(UserProfileBuilder profileBuilder, int n, Set<Long> candidates, Set<Long> exclude) {
+        TFIDFItemRecommender rec = new TFIDFItemRecommender(dao, model, cache(dao, profileBuilder));
+        TFIDFItemScorer scorer = new TFIDFItemScorer(model, cache(dao, profileBuilder));
+        Set<Long> excluded = exclude != null ? exclude : rated;
+        List<Result> expected = new ArrayList<>();
+        for (Result r: scorer.scoreWithDetails(42, candidates != null ? candidates : items)) {
+            if (!excluded.contains(r.getId())) {
+                expected.add(r);
+            }
+        }
+        expected.sort((r1, r2) -> r1.getScore() != r2.getScore()
+                ? Double.compare(r2.getScore(), r1.getScore())
+                : Long.compare(r1.getId(), r2.getId()));
+        if (n >= 0 && expected.size() > n) {
+            expected = expected.subList(0, n);
+        }
+
+        ResultList actual = rec.recommendWithDetails(42, n, candidates, exclude);
+        assertThat(actual.size(), equalTo(expected.size()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(actual.get(i).getId(), equalTo(expected.get(i).getId()));
+            assertThat(actual.get(i).getScore(), closeTo(expected.get(i).getScore(), 1.0e-12));
+        }
+    }
+}
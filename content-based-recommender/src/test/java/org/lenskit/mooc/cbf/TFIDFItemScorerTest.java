@@ -0,0 +1,95 @@
+package org.lenskit.mooc.cbf;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultMap;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+
+import java.util.*;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TFIDFItemScorerTest {
+    private TFIDFModel model;
+    private List<Long> items;
+
+    @Before
+    public void buildModel() {
+        model = new TFIDFModelProvider(TFIDFModelProviderTest.createRandomData(), 1).get();
+        items = new ArrayList<>(model.getItemIndex().getKeyList());
+        // an item the model does not know
+        items.add(1000L);
+    }
+
+    @Test
+    public void testScoresMatchCosine() {
+        checkScores(items);
+    }
+
+    @Test
+    public void testFewItemsMatchCosine() {
+        checkScores(items.subList(0, 50));
+    }
+
+    private void checkScores(List<Long> items) {
+        Random rng = new Random(7);
+        List<Rating> ratings = new ArrayList<>();
+        for (int k = 0; k < 30; k++) {
+            ratings.add(Rating.create(42, items.get(rng.nextInt(items.size() - 1)), rng.nextInt(10) * 0.5 + 0.5));
+        }
+        DataAccessObject dao = StaticDataSource.fromList(ratings).get();
+        UserProfileBuilder profileBuilder = new WeightedUserProfileBuilder(model);
+        TFIDFItemScorer scorer = new TFIDFItemScorer(model, new UserProfileCache(dao, model, profileBuilder, 100, 0));
+
+        Map<String, Double> profile = profileBuilder.makeUserProfile(dao.query(Rating.class).get());
+        ResultMap scores = scorer.scoreWithDetails(42, items);
+        int expected = 0;
+        for (long item: items) {
+            Double cosine = cosine(profile, model.getItemVector(item));
+            Result result = scores.get(item);
+            if (cosine == null) {
+                assertThat(result, nullValue());
+            } else {
+                expected++;
+                assertThat(result.getScore(), closeTo(cosine, 1.0e-9));
+            }
+        }
+        assertThat(scores.size(), equalTo(expected));
+        assertThat(expected, greaterThan(items.size() / 2));
+    }
+
+    @Test
+    public void testUnknownUser() {
+        DataAccessObject dao = StaticDataSource.fromList(Collections.<Rating>emptyList()).get();
+        UserProfileCache profiles = new UserProfileCache(dao, model, new WeightedUserProfileBuilder(model), 100, 0);
+        TFIDFItemScorer scorer = new TFIDFItemScorer(model, profiles);
+        assertThat(scorer.scoreWithDetails(42, items).size(), equalTo(0));
+    }
+
+    /**
+     * Compute a cosine over maps, or {@code null} if either vector has no length.
+     */
+    private static Double cosine(Map<String, Double> a, Map<String, Double> b) {
+        double dot = 0;
+        for (Map.Entry<String, Double> e: a.entrySet()) {
+            Double w = b.get(e.getKey());
+            if (w != null) {
+                dot += e.getValue() * w;
+            }
+        }
+        double denominator = Math.sqrt(squareSum(a)) * Math.sqrt(squareSum(b));
+        return denominator == 0 ? null : dot / denominator;
+    }
+
+    private static double squareSum(Map<String, Double> vector) {
+        double sum = 0;
+        for (double v: vector.values()) {
+            sum += v * v;
+        }
+        return sum;
+    }
+}
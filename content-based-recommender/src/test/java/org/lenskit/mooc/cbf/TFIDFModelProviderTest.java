@@ -2,6 +2,7 @@ package org.lenskit.mooc.cbf;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.lenskit.data.dao.DataAccessObject;
 import org.lenskit.data.dao.file.StaticDataSource;
 import org.lenskit.data.entities.CommonTypes;
 import org.lenskit.data.entities.Entities;
@@ -10,14 +11,15 @@ import org.lenskit.data.entities.Entity;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
-import static org.hamcrest.Matchers.contains;
-import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
 
 /**
- * Basic tests for the TFIDF model builder.  These do not test value correctness, only that the
- * right tags are present.
+ * Basic tests for the TFIDF model builder.  These mostly test that the right tags are present;
+ * only item 2 has its values checked.
  */
 public class TFIDFModelProviderTest {
     private TFIDFModel model;
@@ -49,10 +51,30 @@ public class TFIDFModelProviderTest {
         data.addSource(tags);
         data.addDerivedEntity(CommonTypes.ITEM, TagData.ITEM_TAG_TYPE, TagData.ITEM_ID);
 
-        TFIDFModelProvider mb = new TFIDFModelProvider(data.get());
+        TFIDFModelProvider mb = new TFIDFModelProvider(data.get(), 1);
         return mb.get();
     }
 
+    /**
+     * Create 5000 random tag applications on 200 items, with skewed item and tag popularity.
+     */
+    static DataAccessObject createRandomData() {
+        StaticDataSource data = new StaticDataSource("random");
+        List<Entity> tags = new ArrayList<>();
+        Random rng = new Random(42);
+        for (int k = 1; k <= 5000; k++) {
+            long item = (long) (200 * rng.nextDouble() * rng.nextDouble()) + 1;
+            tags.add(Entities.newBuilder(TagData.ITEM_TAG_TYPE)
+                             .setId(k)
+                             .setAttribute(TagData.ITEM_ID, item)
+                             .setAttribute(TagData.TAG, "tag" + (int) (80 * rng.nextDouble() * rng.nextDouble()))
+                             .build());
+        }
+        data.addSource(tags);
+        data.addDerivedEntity(CommonTypes.ITEM, TagData.ITEM_TAG_TYPE, TagData.ITEM_ID);
+        return data.get();
+    }
+
     @Before
     public void buildModel() {
         model = createModel();
@@ -71,6 +93,12 @@ public class TFIDFModelProviderTest {
         Map<String, Double> v2 = model.getItemVector(2);
         assertThat(v2.keySet(),
                    containsInAnyOrder("walrus", "hamster"));
+        // walrus is on 2 of the 3 items, hamster on 1
+        double walrus = Math.log(3) - Math.log(2);
+        double hamster = Math.log(3);
+        double len = Math.sqrt(walrus * walrus + hamster * hamster);
+        assertThat(v2.get("walrus"), closeTo(walrus / len, 1.0e-6));
+        assertThat(v2.get("hamster"), closeTo(hamster / len, 1.0e-6));
     }
 
     @Test
@@ -80,4 +108,43 @@ public class TFIDFModelProviderTest {
         assertThat(v3.keySet(),
                    contains("jubjub bird"));
     }
+
+    @Test
+    public void testRowsMatchVectors() {
+        TagVocabulary tags = model.getTagVocabulary();
+        assertThat(tags.size(), equalTo(3));
+        for (long item = 1; item <= 3; item++) {
+            int row = model.getItemRow(item);
+            Map<String, Double> vec = model.getItemVector(item);
+            assertThat(model.rowEnd(row) - model.rowStart(row), equalTo(vec.size()));
+            for (int pos = model.rowStart(row); pos < model.rowEnd(row); pos++) {
+                if (pos > model.rowStart(row)) {
+                    assertThat(model.termAt(pos), greaterThan(model.termAt(pos - 1)));
+                }
+                String tag = tags.getTag(model.termAt(pos));
+                assertThat(tags.getId(tag), equalTo(model.termAt(pos)));
+                assertThat(vec.get(tag), equalTo((double) model.weightAt(pos)));
+            }
+        }
+        assertThat(model.getItemRow(4), equalTo(-1));
+        assertThat(model.getItemVector(4).size(), equalTo(0));
+        assertThat(tags.getId("platypus"), equalTo(-1));
+    }
+
+    @Test
+    public void testParallelBuildIsIdentical() {
+        DataAccessObject data = createRandomData();
+        TFIDFModel serial = new TFIDFModelProvider(data, 1).get();
+        TFIDFModel parallel = new TFIDFModelProvider(data, 4).get();
+        assertThat(parallel.getItemIndex().getKeyList(), equalTo(serial.getItemIndex().getKeyList()));
+        assertThat(parallel.getTagVocabulary().size(), equalTo(serial.getTagVocabulary().size()));
+        for (int row = 0; row < serial.getItemIndex().size(); row++) {
+            assertThat(parallel.rowStart(row), equalTo(serial.rowStart(row)));
+            assertThat(parallel.rowEnd(row), equalTo(serial.rowEnd(row)));
+            for (int pos = serial.rowStart(row); pos < serial.rowEnd(row); pos++) {
+                assertThat(parallel.termAt(pos), equalTo(serial.termAt(pos)));
+                assertEquals(serial.weightAt(pos), parallel.weightAt(pos), 0);
+            }
+        }
+    }
 }
@@ -0,0 +1,274 @@
+package org.lenskit.mooc.cbf;
+
+import com.google.common.base.Ticker;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.dao.AbstractDataAccessObject;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.EntityQuery;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.entities.Entity;
+import org.lenskit.data.entities.EntityType;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.io.ObjectStream;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class UserProfileCacheTest {
+    private TFIDFModel model;
+    private List<Long> items;
+    private List<Rating> ratings;
+    private DataAccessObject dao;
+
+    @Before
+    public void createRatings() {
+        model = new TFIDFModelProvider(TFIDFModelProviderTest.createRandomData(), 1).get();
+        items = model.getItemIndex().getKeyList();
+        Random rng = new Random(5);
+        ratings = new ArrayList<>();
+        for (long user = 1; user <= 3; user++) {
+            for (int k = 0; k < 15; k++) {
+                ratings.add(randomRating(rng, user));
+            }
+        }
+        dao = StaticDataSource.fromList(ratings).get();
+    }
+
+    @Test
+    public void testProfilesMatchBuilders() {
+        for (UserProfileBuilder builder: builders()) {
+            UserProfileCache cache = new UserProfileCache(dao, model, builder, 10, 0);
+            for (long user = 1; user <= 3; user++) {
+                assertSameProfile(cache.getProfile(user), expectedProfile(builder, ratings, user));
+            }
+            assertThat(cache.getProfile(4).size(), equalTo(0));
+        }
+    }
+
+    @Test
+    public void testHitsAndMisses() {
+        UserProfileCache cache = new UserProfileCache(dao, model, new ThresholdUserProfileBuilder(model), 10, 0);
+        cache.getProfile(1);
+        cache.getProfile(1);
+        cache.getProfile(2);
+        assertThat(cache.getStats().missCount(), equalTo(2L));
+        assertThat(cache.getStats().hitCount(), equalTo(1L));
+        cache.invalidate(1);
+        cache.getProfile(1);
+        assertThat(cache.getStats().missCount(), equalTo(3L));
+    }
+
+    @Test
+    public void testAddRatingUpdatesProfile() {
+        Random rng = new Random(9);
+        for (UserProfileBuilder builder: builders()) {
+            UserProfileCache cache = new UserProfileCache(dao, model, builder, 10, 0);
+            List<Rating> history = new ArrayList<>(ratings);
+            cache.getProfile(2);
+            for (int k = 0; k < 10; k++) {
+                Rating r = randomRating(rng, 2);
+                history.add(r);
+                cache.addRating(r);
+                assertSameProfile(cache.getProfile(2), expectedProfile(builder, history, 2));
+            }
+            // only the first request built the profile
+            assertThat(cache.getStats().loadCount(), equalTo(1L));
+            // a user who is not cached is left alone
+            cache.addRating(Rating.create(3, items.get(0), 5.0));
+            assertThat(cache.getStats().loadCount(), equalTo(1L));
+        }
+    }
+
+    /**
+     * A rating the DAO already had when the profile was built is not added to it again.
+     */
+    @Test
+    public void testAddRatingAfterStoredRating() {
+        Random rng = new Random(11);
+        for (UserProfileBuilder builder: builders()) {
+            List<Rating> history = new ArrayList<>(ratings);
+            Rating r = randomRating(rng, 2);
+            history.add(r);
+            UserProfileCache cache = new UserProfileCache(StaticDataSource.fromList(history).get(),
+                                                          model, builder, 10, 0);
+            cache.getProfile(2);
+            cache.addRating(r);
+            assertSameProfile(cache.getProfile(2), expectedProfile(builder, history, 2));
+            assertThat(cache.getStats().loadCount(), equalTo(1L));
+        }
+    }
+
+    /**
+     * A rating added before the DAO stores it is in a profile built from the DAO without it, and
+     * counted once when the DAO has it too.
+     */
+    @Test
+    public void testAddRatingBeforeStoringIt() {
+        Random rng = new Random(13);
+        for (UserProfileBuilder builder: builders()) {
+            List<Rating> history = new ArrayList<>(ratings);
+            Rating r = randomRating(rng, 2);
+            history.add(r);
+            SwitchingDAO switching = new SwitchingDAO(dao);
+            UserProfileCache cache = new UserProfileCache(switching, model, builder, 10, 0);
+            cache.addRating(r);
+            assertSameProfile(cache.getProfile(2), expectedProfile(builder, history, 2));
+
+            switching.current = StaticDataSource.fromList(history).get();
+            cache.getProfile(2);
+            cache.addRating(r);
+            assertSameProfile(cache.getProfile(2), expectedProfile(builder, history, 2));
+            cache.invalidate(2);
+            assertSameProfile(cache.getProfile(2), expectedProfile(builder, history, 2));
+        }
+    }
+
+    @Test
+    public void testAddRatingDuringBuild() {
+        Random rng = new Random(15);
+        for (UserProfileBuilder builder: builders()) {
+            // the first build reads user 2's ratings before a new one is stored and added mid-build
+            Rating late = randomRating(rng, 2);
+            List<Rating> history = new ArrayList<>(ratings);
+            history.add(late);
+            SwitchingDAO switching = new SwitchingDAO(dao);
+            UserProfileCache[] cache = new UserProfileCache[1];
+            UserProfileBuilder racing = new UserProfileBuilder() {
+                private boolean raced;
+
+                @Override
+                public Map<String, Double> makeUserProfile(@Nonnull List<Rating> ratings) {
+                    return builder.makeUserProfile(ratings);
+                }
+
+                @Override
+                public UserProfileState makeProfileState(@Nonnull List<Rating> ratings, TagVocabulary tags) {
+                    if (raced) {
+                        return builder.makeProfileState(ratings, tags);
+                    }
+                    raced = true;
+                    switching.current = StaticDataSource.fromList(history).get();
+                    cache[0].addRating(late);
+                    return builder.makeProfileState(ratings, tags);
+                }
+            };
+            cache[0] = new UserProfileCache(switching, model, racing, 10, 0);
+            assertSameProfile(cache[0].getProfile(2), expectedProfile(builder, history, 2));
+            assertSameProfile(cache[0].getProfile(2), expectedProfile(builder, history, 2));
+            assertThat(cache[0].getStats().loadCount(), equalTo(1L));
+        }
+    }
+
+    @Test
+    public void testSizeEviction() {
+        UserProfileCache cache = new UserProfileCache(dao, model, new ThresholdUserProfileBuilder(model), 1, 0);
+        cache.getProfile(1);
+        cache.getProfile(2);
+        cache.getProfile(1);
+        assertThat(cache.getStats().evictionCount(), equalTo(2L));
+        assertThat(cache.getStats().missCount(), equalTo(3L));
+    }
+
+    @Test
+    public void testExpiry() {
+        FakeTicker ticker = new FakeTicker();
+        UserProfileCache cache = new UserProfileCache(dao, model, new ThresholdUserProfileBuilder(model),
+                                                      10, 60, ticker);
+        cache.getProfile(1);
+        ticker.advance(30);
+        cache.getProfile(1);
+        assertThat(cache.getStats().missCount(), equalTo(1L));
+        ticker.advance(31);
+        cache.getProfile(1);
+        assertThat(cache.getStats().missCount(), equalTo(2L));
+    }
+
+    private List<UserProfileBuilder> builders() {
+        List<UserProfileBuilder> builders = new ArrayList<>();
+        builders.add(new ThresholdUserProfileBuilder(model));
+        builders.add(new WeightedUserProfileBuilder(model));
+        return builders;
+    }
+
+    private Rating randomRating(Random rng, long user) {
+        return Rating.create(user, items.get(rng.nextInt(items.size())), rng.nextInt(10) * 0.5 + 0.5);
+    }
+
+    private SparseTagVector expectedProfile(UserProfileBuilder builder, List<Rating> history, long user) {
+        List<Rating> userRatings = new ArrayList<>();
+        for (Rating r: history) {
+            if (r.getUserId() == user) {
+                userRatings.add(r);
+            }
+        }
+        return SparseTagVector.fromMap(model.getTagVocabulary(), builder.makeUserProfile(userRatings));
+    }
+
+    private static void assertSameProfile(SparseTagVector actual, SparseTagVector expected) {
+        assertThat(actual.size(), equalTo(expected.size()));
+        for (int k = 0; k < expected.size(); k++) {
+            assertThat(actual.termAt(k), equalTo(expected.termAt(k)));
+            assertThat(actual.weightAt(k), closeTo(expected.weightAt(k), 1.0e-9));
+        }
+        assertThat(actual.getNorm(), closeTo(expected.getNorm(), 1.0e-9));
+    }
+
+    /**
+     * A DAO whose ratings can be replaced, as if new ones were stored.
+     */
+    private static class SwitchingDAO extends AbstractDataAccessObject {
+        private volatile DataAccessObject current;
+
+        SwitchingDAO(DataAccessObject dao) {
+            current = dao;
+        }
+
+        @Override
+        public Set<EntityType> getEntityTypes() {
+            return current.getEntityTypes();
+        }
+
+        @Override
+        public LongSet getEntityIds(EntityType type) {
+            return current.getEntityIds(type);
+        }
+
+        @Override
+        public Entity lookupEntity(EntityType type, long id) {
+            return current.lookupEntity(type, id);
+        }
+
+        @Override
+        public <E extends Entity> E lookupEntity(EntityType type, long id, Class<E> view) {
+            return current.lookupEntity(type, id, view);
+        }
+
+        @Override
+        public <E extends Entity> ObjectStream<E> streamEntities(EntityQuery<E> query) {
+            return current.streamEntities(query);
+        }
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos;
+
+        void advance(long seconds) {
+            nanos += TimeUnit.SECONDS.toNanos(seconds);
+        }
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+}
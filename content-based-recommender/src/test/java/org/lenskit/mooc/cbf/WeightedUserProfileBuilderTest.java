@@ -7,18 +7,23 @@ import org.lenskit.data.history.History;
 import org.lenskit.data.history.UserHistory;
 import org.lenskit.data.ratings.Rating;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
+import static org.hamcrest.Matchers.closeTo;
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
 
 public class WeightedUserProfileBuilderTest {
     private EntityFactory factory = new EntityFactory();
+    private TFIDFModel model;
     private WeightedUserProfileBuilder profileBuilder;
 
     @Before
     public void buildModel() {
-        TFIDFModel model = TFIDFModelProviderTest.createModel();
+        model = TFIDFModelProviderTest.createModel();
         profileBuilder = new WeightedUserProfileBuilder(model);
     }
 
@@ -45,4 +50,39 @@ public class WeightedUserProfileBuilderTest {
         // two tags!
         assertThat(vector.size(), equalTo(2));
     }
+
+    @Test
+    public void testRepeatedItem() throws Exception {
+        UserHistory<Rating> history = History.forUser(42, factory.rating(42, 1, 5.0),
+                                                      factory.rating(42, 1, 4.0),
+                                                      factory.rating(42, 2, 3.0));
+        Map<String, Double> vector = profileBuilder.makeUserProfile(history);
+        // the mean is 4, so item 1 is added twice at its latest rating, with weight 0, and item 2
+        // with weight -1
+        assertThat(vector.get("walrus"), closeTo(-model.getItemVector(2).get("walrus"), 1.0e-6));
+    }
+
+    @Test
+    public void testAccumulatedProfiles() throws Exception {
+        TFIDFModel randomModel = new TFIDFModelProvider(TFIDFModelProviderTest.createRandomData(), 1).get();
+        WeightedUserProfileBuilder builder = new WeightedUserProfileBuilder(randomModel);
+        // the default goes through the map
+        UserProfileBuilder mapBuilder = builder::makeUserProfile;
+        TagAccumulator profile = new TagAccumulator(randomModel.getTagVocabulary().size());
+        Random rng = new Random(3);
+        List<Long> items = randomModel.getItemIndex().getKeyList();
+        for (int user = 0; user < 10; user++) {
+            List<Rating> ratings = new ArrayList<>();
+            for (int k = rng.nextInt(50); k >= 0; k--) {
+                ratings.add(factory.rating(user, items.get(rng.nextInt(items.size())), rng.nextInt(10) * 0.5 + 0.5));
+            }
+            Map<String, Double> expected = builder.makeUserProfile(ratings);
+            builder.accumulateProfile(ratings, randomModel.getTagVocabulary(), profile);
+            assertThat(profile.toMap(randomModel.getTagVocabulary()), equalTo(expected));
+            profile.clear();
+            mapBuilder.accumulateProfile(ratings, randomModel.getTagVocabulary(), profile);
+            assertThat(profile.toMap(randomModel.getTagVocabulary()), equalTo(expected));
+            profile.clear();
+        }
+    }
 }
@@ -3,25 +3,14 @@ package org.lenskit.mooc.ii;
 import com.google.common.collect.Maps;
 import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
 import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
-import it.unimi.dsi.fastutil.longs.LongSet;
-import org.apache.commons.lang3.tuple.Pair;
-import org.lenskit.data.dao.DataAccessObject;
-import org.lenskit.data.entities.CommonAttributes;
-import org.lenskit.data.entities.CommonTypes;
-import org.lenskit.data.entities.EntityType;
-import org.lenskit.data.ratings.Rating;
-import org.lenskit.data.ratings.Ratings;
 import org.lenskit.inject.Transient;
-import org.lenskit.util.IdBox;
 import org.lenskit.util.collections.LongUtils;
-import org.lenskit.util.io.ObjectStream;
-import org.lenskit.util.math.Vectors;
+import org.lenskit.util.keys.KeyIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -30,15 +19,15 @@ import java.util.Map;
 public class SimpleItemItemModelProvider implements Provider<SimpleItemItemModel> {
     private static final Logger logger = LoggerFactory.getLogger(SimpleItemItemModelProvider.class);
 
-    private final DataAccessObject dao;
+    private final SparseRatingMatrix ratings;
 
     /**
      * Construct the model provider.
-     * @param dao The data access object.
+     * @param ratings The rating matrix.
      */
     @Inject
-    public SimpleItemItemModelProvider(@Transient DataAccessObject dao) {
-        this.dao = dao;
+    public SimpleItemItemModelProvider(@Transient SparseRatingMatrix ratings) {
+        this.ratings = ratings;
     }
 
     /**
@@ -47,64 +36,93 @@ public class SimpleItemItemModelProvider implements Provider<SimpleItemItemModel
      */
     @Override
     public SimpleItemItemModel get() {
-        // mean centered item vectors
-        Map<Long,Long2DoubleMap> itemVectors = Maps.newHashMap();
+        KeyIndex items = ratings.getItemIndex();
+        int nItems = items.size();
         // list of each item's uncentered means
         Long2DoubleMap itemMeans = new Long2DoubleOpenHashMap();
+        double[] means = new double[nItems];
+        // norms of the mean centered item vectors
+        double[] norms = new double[nItems];
+
+        // build the item vectors from the item-major ratings
+        for (int i = 0; i < nItems; i++) {
+            int start = ratings.itemStart(i);
+            int end = ratings.itemEnd(i);
+            if (start == end) {
+                // items without ratings have no vector
+                continue;
+            }
 
-        //get all ratings data
-        try (ObjectStream<IdBox<List<Rating>>> stream = dao.query(Rating.class)
-                                                           .groupBy(CommonAttributes.ITEM_ID)
-                                                           .stream()) {
-            // build itemVectors
-            for (IdBox<List<Rating>> item : stream) {
-                // current item id
-                long itemId = item.getId();
-                // user ratings for this item
-                List<Rating> itemRatings = item.getValue();
-                Long2DoubleOpenHashMap ratings = new Long2DoubleOpenHashMap(Ratings.itemRatingVector(itemRatings));
-
-                // Compute and store the item's mean.
-                double mean = Vectors.mean(ratings);
-                itemMeans.put(itemId, mean);
-
-                // Mean center the ratings.
-                for (Map.Entry<Long, Double> entry : ratings.entrySet()) {
-                    entry.setValue(entry.getValue() - mean);
-                }
-
-                itemVectors.put(itemId, LongUtils.frozenMap(ratings));
+            // Compute and store the item's mean.
+            double sum = 0;
+            for (int pos = start; pos < end; pos++) {
+                sum += ratings.itemValueAt(pos);
             }
+            double mean = sum / (end - start);
+            means[i] = mean;
+            itemMeans.put(items.getKey(i), mean);
+
+            // Mean center the ratings.
+            double ss = 0;
+            for (int pos = start; pos < end; pos++) {
+                double v = ratings.itemValueAt(pos) - mean;
+                ss += v * v;
+            }
+            norms[i] = Math.sqrt(ss);
+        }
+
+        // mean centered ratings, user-major
+        double[] centered = new double[ratings.getRatingCount()];
+        for (int pos = 0; pos < centered.length; pos++) {
+            centered[pos] = ratings.userValueAt(pos) - means[ratings.userItemAt(pos)];
         }
 
         // Map items to vectors (maps) of item similarities.
         Map<Long,Long2DoubleMap> itemSimilarities = Maps.newHashMap();
 
-        // **** Compute the similarities between each pair of items
+        // **** Compute the similarities between each item and the items that share raters with it
+
+        // dot products of the current item with every other item, and the items that have one
+        double[] dots = new double[nItems];
+        boolean[] seen = new boolean[nItems];
+        int[] touched = new int[nItems];
+        for (int i = 0; i < nItems; i++) {
+            int start = ratings.itemStart(i);
+            int end = ratings.itemEnd(i);
+            if (start == end) {
+                continue;
+            }
 
-        // loop over itemVectors
-        for (Map.Entry<Long, Long2DoubleMap> iEntry : itemVectors.entrySet()) {
-            // mean centered ratings for current item i
-            Long2DoubleMap iItemRatingVector = iEntry.getValue();
-            // item i norm
-            double iNorm = Vectors.euclideanNorm(iItemRatingVector);
+            // accumulate the dot products over item i's raters; items with no common rater score 0
+            int nTouched = 0;
+            for (int pos = start; pos < end; pos++) {
+                int u = ratings.itemUserAt(pos);
+                double iValue = ratings.itemValueAt(pos) - means[i];
+                for (int k = ratings.userStart(u); k < ratings.userEnd(u); k++) {
+                    int j = ratings.userItemAt(k);
+                    if (!seen[j]) {
+                        seen[j] = true;
+                        touched[nTouched++] = j;
+                    }
+                    dots[j] += iValue * centered[k];
+                }
+            }
 
-            // similarity scores between current item and all items in itemVectors
+            // similarity scores between current item and all items it shares raters with
             // this is item i's neighborhood
             Long2DoubleMap simScores = new Long2DoubleOpenHashMap();
-
-            // loop over all items and calc similarities
-            for (Map.Entry<Long, Long2DoubleMap> jEntry : itemVectors.entrySet()) {
-                // calc the similarity score
-                double similarity = Vectors.dotProduct( iItemRatingVector, jEntry.getValue() ) /
-                        (iNorm * Vectors.euclideanNorm( jEntry.getValue() ));
+            for (int t = 0; t < nTouched; t++) {
+                int j = touched[t];
+                double similarity = dots[j] / (norms[i] * norms[j]);
 
                 // Ignore non-positive similarities
-                if (similarity > 0) simScores.put(jEntry.getKey().longValue(),similarity);
+                if (similarity > 0) simScores.put(items.getKey(j), similarity);
+                dots[j] = 0;
+                seen[j] = false;
             }
 
             // stash the item i and its similarity scores to all other items j
-            itemSimilarities.put(iEntry.getKey(),simScores);
+            itemSimilarities.put(items.getKey(i), simScores);
         }
 
         return new SimpleItemItemModel(LongUtils.frozenMap(itemMeans), itemSimilarities);
@@ -0,0 +1,35 @@
+package org.lenskit.mooc.ii;
+
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.inject.Transient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+/**
+ * Build the sparse rating matrix of the data.
+ */
+public class SparseRatingMatrixProvider implements Provider<SparseRatingMatrix> {
+    private static final Logger logger = LoggerFactory.getLogger(SparseRatingMatrixProvider.class);
+
+    private final DataAccessObject dao;
+
+    /**
+     * Construct the provider.
+     * @param dao The data access object.
+     */
+    @Inject
+    public SparseRatingMatrixProvider(@Transient DataAccessObject dao) {
+        this.dao = dao;
+    }
+
+    @Override
+    public SparseRatingMatrix get() {
+        SparseRatingMatrix matrix = SparseRatingMatrix.build(dao);
+        logger.info("indexed {} ratings of {} items by {} users", matrix.getRatingCount(),
+                    matrix.getItemIndex().size(), matrix.getUserIndex().size());
+        return matrix;
+    }
+}
@@ -0,0 +1,97 @@
+package org.lenskit.mooc.ii;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.entities.CommonAttributes;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.Ratings;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.math.Vectors;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SimpleItemItemModelProviderTest {
+    private static final double EPSILON = 1.0e-9;
+
+    private DataAccessObject dao;
+    private SimpleItemItemModel model;
+
+    @Before
+    public void createModel() {
+        Random rng = new Random(17);
+        List<Rating> ratings = new ArrayList<>();
+        for (int k = 0; k < 4000; k++) {
+            // some repeated ratings, and a few sparse items that share few raters with the others
+            long item = rng.nextInt(10) == 0 ? rng.nextInt(40) + 1000 : rng.nextInt(60) + 1;
+            ratings.add(Rating.create(rng.nextInt(150) + 1, item, rng.nextInt(10) * 0.5 + 0.5, k));
+        }
+        dao = StaticDataSource.fromList(ratings).get();
+        model = new SimpleItemItemModelProvider(SparseRatingMatrix.build(dao)).get();
+    }
+
+    @Test
+    public void testItemMeans() {
+        Map<Long, Long2DoubleMap> vectors = itemVectors();
+        assertEquals(vectors.size(), model.getItemMeans().size());
+        for (Map.Entry<Long, Long2DoubleMap> e: vectors.entrySet()) {
+            assertEquals(Vectors.mean(e.getValue()), model.getItemMeans().get((long) e.getKey()), EPSILON);
+        }
+    }
+
+    /**
+     * The similarities accumulated over co-raters are the ones of the dot product of every pair of item vectors.
+     */
+    @Test
+    public void testSimilaritiesMatchPairwise() {
+        Map<Long, Long2DoubleMap> vectors = itemVectors();
+        for (Long2DoubleMap vector: vectors.values()) {
+            double mean = Vectors.mean(vector);
+            for (Map.Entry<Long, Double> entry: vector.entrySet()) {
+                entry.setValue(entry.getValue() - mean);
+            }
+        }
+        for (Map.Entry<Long, Long2DoubleMap> iEntry: vectors.entrySet()) {
+            Long2DoubleMap iVector = iEntry.getValue();
+            Long2DoubleMap neighbors = model.getNeighbors(iEntry.getKey());
+            for (Map.Entry<Long, Long2DoubleMap> jEntry: vectors.entrySet()) {
+                Long2DoubleMap jVector = jEntry.getValue();
+                double similarity = Vectors.dotProduct(iVector, jVector) /
+                        (Vectors.euclideanNorm(iVector) * Vectors.euclideanNorm(jVector));
+                long j = jEntry.getKey();
+                if (similarity > EPSILON) {
+                    assertTrue(neighbors.containsKey(j));
+                    assertEquals(similarity, neighbors.get(j), EPSILON);
+                } else if (neighbors.containsKey(j)) {
+                    // the two sums of a zero dot product may round to either side of it
+                    assertTrue(similarity > -EPSILON);
+                    assertEquals(0, neighbors.get(j), EPSILON);
+                }
+            }
+            for (long j: neighbors.keySet()) {
+                assertTrue(vectors.containsKey(j));
+            }
+        }
+    }
+
+    /**
+     * Get each item's vector of user ratings, as the model provider did before it used the rating matrix.
+     */
+    private Map<Long, Long2DoubleMap> itemVectors() {
+        Map<Long, Long2DoubleMap> vectors = new HashMap<>();
+        try (ObjectStream<IdBox<List<Rating>>> stream = dao.query(Rating.class)
+                                                           .groupBy(CommonAttributes.ITEM_ID)
+                                                           .stream()) {
+            for (IdBox<List<Rating>> item: stream) {
+                vectors.put(item.getId(), new Long2DoubleOpenHashMap(Ratings.itemRatingVector(item.getValue())));
+            }
+        }
+        return vectors;
+    }
+}
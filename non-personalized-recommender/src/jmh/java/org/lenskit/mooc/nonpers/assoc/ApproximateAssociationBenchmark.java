@@ -0,0 +1,68 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark building lift models from MinHash sketches at several error bounds against counting co-occurrences
+ * exactly, on the skewed ratings of {@link CooccurrenceBuildBenchmark}.  The accuracy of each bound is reported by
+ * {@link ApproximateAssociationEvaluation}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g"})
+public class ApproximateAssociationBenchmark {
+    @Param({"1000000"})
+    public int ratingCount;
+
+    @Param({"10000"})
+    public int itemCount;
+
+    @Param({"20000"})
+    public int userCount;
+
+    @Param({"0.2", "0.1", "0.05"})
+    public double errorBound;
+
+    private long[] users;
+    private long[] items;
+
+    @Setup(Level.Trial)
+    public void generateRatings() {
+        Random rng = new Random(42);
+        users = new long[ratingCount];
+        items = new long[ratingCount];
+        for (int i = 0; i < ratingCount; i++) {
+            users[i] = rng.nextInt(userCount);
+            double u = rng.nextDouble();
+            items[i] = (long) (itemCount * u * u * u);
+        }
+    }
+
+    @Benchmark
+    public AssociationModel exact() {
+        CooccurrenceMatrix cooc = CooccurrenceMatrix.build(users, items);
+        double[] scores = new double[cooc.getEntryCount()];
+        for (int x = 0; x < cooc.getItemIndex().size(); x++) {
+            for (int pos = cooc.rowStart(x); pos < cooc.rowEnd(x); pos++) {
+                scores[pos] = AssociationMetric.LIFT.score(cooc.countAt(pos), cooc.getRaterCount(x),
+                                                           cooc.getRaterCount(cooc.columnAt(pos)),
+                                                           cooc.getUserCount());
+            }
+        }
+        return AssociationModel.fromCooccurrence(cooc, scores);
+    }
+
+    @Benchmark
+    public AssociationModel minHash() {
+        try (RowExecutor rows = new RowExecutor(1)) {
+            return new MinHashAssociationBuilder(errorBound).build(users, items, AssociationMetric.LIFT, -1,
+                                                                   ScorePrecision.DOUBLE, rows);
+        }
+    }
+}
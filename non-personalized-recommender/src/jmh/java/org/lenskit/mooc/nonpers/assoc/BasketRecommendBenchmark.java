@@ -0,0 +1,81 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.lenskit.api.ResultList;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark basket recommendations against a large sparse association model.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class BasketRecommendBenchmark {
+    @Param({"60000"})
+    public int itemCount;
+
+    @Param({"300"})
+    public int rowLength;
+
+    @Param({"1", "10", "50"})
+    public int basketSize;
+
+    @Param({"sum", "recency"})
+    public String mode;
+
+    private AssociationItemBasedItemRecommender recommender;
+    private List<Set<Long>> baskets;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void buildModel() {
+        Random rng = new Random(42);
+        long[] ids = new long[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            ids[i] = i * 7 + 1;
+        }
+        int[] rowStart = new int[itemCount + 1];
+        int[] columns = new int[itemCount * rowLength];
+        double[] values = new double[itemCount * rowLength];
+        for (int x = 0; x < itemCount; x++) {
+            IntOpenHashSet row = new IntOpenHashSet();
+            while (row.size() < rowLength) {
+                // cube the uniform draw so rows share a popular head of items
+                double u = rng.nextDouble();
+                row.add((int) (itemCount * u * u * u));
+            }
+            int[] sorted = row.toIntArray();
+            Arrays.sort(sorted);
+            System.arraycopy(sorted, 0, columns, rowStart[x], rowLength);
+            for (int k = 0; k < rowLength; k++) {
+                values[rowStart[x] + k] = rng.nextDouble();
+            }
+            rowStart[x + 1] = rowStart[x] + rowLength;
+        }
+        AssociationModel model = new AssociationModel(SortedKeyIndex.create(ids),
+                                                      new SparseAssociationScores(rowStart, columns, values));
+        recommender = new AssociationItemBasedItemRecommender(model, mode, 0.8);
+
+        baskets = new ArrayList<>();
+        for (int b = 0; b < 64; b++) {
+            Set<Long> basket = new LinkedHashSet<>();
+            while (basket.size() < basketSize) {
+                basket.add(ids[rng.nextInt(itemCount)]);
+            }
+            baskets.add(basket);
+        }
+    }
+
+    @Benchmark
+    public ResultList recommend() {
+        Set<Long> basket = baskets.get(next++ & 63);
+        return recommender.recommendRelatedItemsWithDetails(basket, 25, null, basket);
+    }
+}
@@ -0,0 +1,63 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark building the co-occurrence matrix on skewed ratings, with the dense block counted by bitset kernels
+ * (the default), with every pair counted user-major, and with the rows counted on several threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g"})
+public class CooccurrenceBuildBenchmark {
+    @Param({"1000000"})
+    public int ratingCount;
+
+    @Param({"10000"})
+    public int itemCount;
+
+    @Param({"20000"})
+    public int userCount;
+
+    @Param({"8"})
+    public int threads;
+
+    private long[] users;
+    private long[] items;
+
+    @Setup(Level.Trial)
+    public void generateRatings() {
+        Random rng = new Random(42);
+        users = new long[ratingCount];
+        items = new long[ratingCount];
+        for (int i = 0; i < ratingCount; i++) {
+            users[i] = rng.nextInt(userCount);
+            // cube the uniform draw to skew ratings toward a popular head of items
+            double u = rng.nextDouble();
+            items[i] = (long) (itemCount * u * u * u);
+        }
+    }
+
+    @Benchmark
+    public CooccurrenceMatrix withDenseBlock() {
+        return CooccurrenceMatrix.build(users, items);
+    }
+
+    @Benchmark
+    public CooccurrenceMatrix userMajor() {
+        return CooccurrenceMatrix.build(users, items, 0);
+    }
+
+    @Benchmark
+    public CooccurrenceMatrix parallel() {
+        try (RowExecutor rows = new RowExecutor(threads)) {
+            return CooccurrenceMatrix.build(users, items, CooccurrenceMatrix.DENSE_FRACTION, rows);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.lenskit.mooc.nonpers.structures.IntSetKernels;
+import org.lenskit.mooc.nonpers.structures.RoaringIntSet;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark the rater-set intersection kernels on item pairs drawn from a skewed popularity distribution.
+ *
+ * <p>Item popularity follows a Zipf-like law, so a few head items are rated by a large share of the users and the
+ * long tail by a handful.  Each benchmark intersects the same sample of pairs, drawn from the head, from the tail, or
+ * one from each, with one fixed kernel or with a per-pair choice from the two items' densities: bitset AND for two
+ * items rated by at least 1/{@value #BITSET_FRACTION} of the users, probing the other item's users into the bitset of
+ * one such item, and merging or galloping sorted arrays otherwise.  {@link RoaringIntSet} is a Roaring-style
+ * container from the tests, for comparison.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g"})
+public class IntersectionKernelBenchmark {
+    private static final int PAIR_COUNT = 1000;
+    /**
+     * The adaptive kernel holds items rated by at least 1/BITSET_FRACTION of the users as bitsets; a bitset then takes
+     * at most twice the memory of the item's array.
+     */
+    private static final int BITSET_FRACTION = 64;
+
+    @Param({"head", "mixed", "tail"})
+    public String pairs;
+
+    @Param({"4000"})
+    public int itemCount;
+
+    @Param({"150000"})
+    public int userCount;
+
+    private int[] start;
+    private int[] users;
+    private long[][] bitsets;
+    private RoaringIntSet[] containers;
+    private long[][] denseBitsets;
+    private int[] xs;
+    private int[] ys;
+
+    @Setup(Level.Trial)
+    public void generateSets() {
+        Random rng = new Random(42);
+        start = new int[itemCount + 1];
+        int[][] raters = new int[itemCount][];
+        for (int i = 0; i < itemCount; i++) {
+            // item i is rated by about half the users / (i+1)^0.9
+            int size = Math.max(1, (int) (userCount * 0.5 / Math.pow(i + 1, 0.9)));
+            IntOpenHashSet set = new IntOpenHashSet(size);
+            while (set.size() < size) {
+                set.add(rng.nextInt(userCount));
+            }
+            raters[i] = set.toIntArray();
+            Arrays.sort(raters[i]);
+            start[i + 1] = start[i] + size;
+        }
+        users = new int[start[itemCount]];
+        bitsets = new long[itemCount][];
+        containers = new RoaringIntSet[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            System.arraycopy(raters[i], 0, users, start[i], raters[i].length);
+            bitsets[i] = IntSetKernels.toBitset(users, start[i], start[i + 1], userCount);
+            containers[i] = RoaringIntSet.fromSorted(users, start[i], start[i + 1]);
+        }
+        denseBitsets = new long[itemCount][];
+        for (int i = 0; i < itemCount; i++) {
+            if ((long) (start[i + 1] - start[i]) * BITSET_FRACTION >= userCount) {
+                denseBitsets[i] = bitsets[i];
+            }
+        }
+
+        int head = itemCount / 100;
+        xs = new int[PAIR_COUNT];
+        ys = new int[PAIR_COUNT];
+        for (int p = 0; p < PAIR_COUNT; p++) {
+            switch (pairs) {
+            case "head":
+                xs[p] = rng.nextInt(head);
+                ys[p] = rng.nextInt(head);
+                break;
+            case "mixed":
+                xs[p] = rng.nextInt(head);
+                ys[p] = head + rng.nextInt(itemCount - head);
+                break;
+            default:
+                xs[p] = head + rng.nextInt(itemCount - head);
+                ys[p] = head + rng.nextInt(itemCount - head);
+            }
+        }
+    }
+
+    @Benchmark
+    public long merge() {
+        long total = 0;
+        for (int p = 0; p < PAIR_COUNT; p++) {
+            int x = xs[p];
+            int y = ys[p];
+            total += IntSetKernels.mergeCount(users, start[x], start[x + 1], users, start[y], start[y + 1]);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long gallop() {
+        long total = 0;
+        for (int p = 0; p < PAIR_COUNT; p++) {
+            int x = xs[p];
+            int y = ys[p];
+            if (start[x + 1] - start[x] <= start[y + 1] - start[y]) {
+                total += IntSetKernels.gallopCount(users, start[x], start[x + 1], users, start[y], start[y + 1]);
+            } else {
+                total += IntSetKernels.gallopCount(users, start[y], start[y + 1], users, start[x], start[x + 1]);
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long bitset() {
+        long total = 0;
+        for (int p = 0; p < PAIR_COUNT; p++) {
+            total += IntSetKernels.bitsetCount(bitsets[xs[p]], bitsets[ys[p]]);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long roaring() {
+        long total = 0;
+        for (int p = 0; p < PAIR_COUNT; p++) {
+            total += containers[xs[p]].intersectionSize(containers[ys[p]]);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long adaptive() {
+        long total = 0;
+        for (int p = 0; p < PAIR_COUNT; p++) {
+            int x = xs[p];
+            int y = ys[p];
+            long[] bx = denseBitsets[x];
+            long[] by = denseBitsets[y];
+            if (bx != null && by != null) {
+                total += IntSetKernels.bitsetCount(bx, by);
+            } else if (bx != null) {
+                total += IntSetKernels.probeCount(users, start[y], start[y + 1], bx);
+            } else if (by != null) {
+                total += IntSetKernels.probeCount(users, start[x], start[x + 1], by);
+            } else {
+                total += IntSetKernels.arrayCount(users, start[x], start[x + 1], users, start[y], start[y + 1]);
+            }
+        }
+        return total;
+    }
+}
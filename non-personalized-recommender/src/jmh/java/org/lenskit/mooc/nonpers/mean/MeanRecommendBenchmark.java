@@ -0,0 +1,69 @@
+package org.lenskit.mooc.nonpers.mean;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import org.lenskit.api.ResultList;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark request latency of the mean recommender.  Run in sample mode, so JMH reports percentiles (p99 etc.).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MeanRecommendBenchmark {
+    @Param({"60000"})
+    public int itemCount;
+
+    @Param({"25"})
+    public int n;
+
+    @Param({"1000"})
+    public int candidateCount;
+
+    private MeanItemBasedItemRecommender recommender;
+    private Set<Long> candidates;
+    private Set<Long> exclude;
+
+    @Setup(Level.Trial)
+    public void buildModel() {
+        Random rng = new Random(42);
+        Long2DoubleOpenHashMap means = new Long2DoubleOpenHashMap(itemCount);
+        for (long item = 0; item < itemCount; item++) {
+            means.put(item, 0.5 + rng.nextDouble() * 4.5);
+        }
+        recommender = new MeanItemBasedItemRecommender(new ItemMeanModel(means));
+
+        candidates = new HashSet<>();
+        while (candidates.size() < candidateCount) {
+            candidates.add((long) rng.nextInt(itemCount));
+        }
+        exclude = new HashSet<>();
+        while (exclude.size() < 50) {
+            exclude.add((long) rng.nextInt(itemCount));
+        }
+    }
+
+    @Benchmark
+    public ResultList topN() {
+        return recommender.recommendRelatedItemsWithDetails(Collections.<Long>emptySet(), n, null, null);
+    }
+
+    @Benchmark
+    public ResultList topNExcluding() {
+        return recommender.recommendRelatedItemsWithDetails(Collections.<Long>emptySet(), n, null, exclude);
+    }
+
+    @Benchmark
+    public ResultList topNOfCandidates() {
+        return recommender.recommendRelatedItemsWithDetails(Collections.<Long>emptySet(), n, candidates, exclude);
+    }
+}
@@ -0,0 +1,102 @@
+package org.lenskit.mooc.nonpers.structures;
+
+import org.lenskit.data.ratings.Rating;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark the rating aggregation step of the item mean model providers.
+ *
+ * <p>{@link #linearPass()} is the single-pass {@link RatingStatistics} aggregation the providers use now;
+ * {@link #listScan()} is the old per-rating scan of a list of item counts, kept here as the baseline.  The list
+ * scan is quadratic, so running it beyond 1M ratings takes hours; restrict it with
+ * {@code -Pjmh.include='listScan -p ratingCount=1000000'}.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g"})
+public class RatingStatisticsBenchmark {
+    @Param({"1000000", "10000000", "25000000"})
+    public int ratingCount;
+
+    @Param({"60000"})
+    public int itemCount;
+
+    @Param({"250000"})
+    public int userCount;
+
+    @Param({"8"})
+    public int threads;
+
+    private int[] users;
+    private int[] items;
+    private float[] values;
+
+    @Setup(Level.Trial)
+    public void generateRatings() {
+        Random rng = new Random(42);
+        users = new int[ratingCount];
+        items = new int[ratingCount];
+        values = new float[ratingCount];
+        for (int i = 0; i < ratingCount; i++) {
+            users[i] = rng.nextInt(userCount);
+            // cube the uniform draw to skew ratings toward a popular head of items
+            double u = rng.nextDouble();
+            items[i] = (int) (itemCount * u * u * u);
+            values[i] = (rng.nextInt(10) + 1) * 0.5f;
+        }
+    }
+
+    private Iterable<Rating> ratings() {
+        return () -> new Iterator<Rating>() {
+            int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < ratingCount;
+            }
+
+            @Override
+            public Rating next() {
+                Rating r = Rating.create(users[next], items[next], values[next]);
+                next++;
+                return r;
+            }
+        };
+    }
+
+    @Benchmark
+    public RatingStatistics linearPass() {
+        return RatingStatistics.compute(ratings());
+    }
+
+    @Benchmark
+    public RatingStatistics shardedPass() {
+        return RatingStatistics.compute(ratings(), threads);
+    }
+
+    @Benchmark
+    public List<double[]> listScan() {
+        // each entry is {item, count, sum}, as the providers used to keep them
+        List<double[]> counts = new ArrayList<>();
+        for (Rating r: ratings()) {
+            long itemID = r.getItemId();
+            double[] rc = counts.stream().filter(o -> itemID == (long) o[0]).findFirst().orElse(null);
+            if (rc == null) {
+                counts.add(new double[]{itemID, 1, r.getValue()});
+            } else {
+                rc[1] += 1;
+                rc[2] += r.getValue();
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,77 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import com.google.common.base.Stopwatch;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.mooc.nonpers.data.RatingColumnFile;
+import org.lenskit.mooc.nonpers.data.SparseRatingMatrix;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trades accuracy for build time: builds the exact association model and {@linkplain MinHashAssociationBuilder
+ * approximate} models at a range of error bounds, and compares each approximate model's top-N lists with the exact
+ * model's as {@link ScorePrecisionEvaluation} does.  Run {@link #main(String[])} (the {@code evalApproximateAssoc}
+ * Gradle task) on a data set.
+ */
+public class ApproximateAssociationEvaluation {
+    /**
+     * The error bounds compared by default.
+     */
+    static final double[] DEFAULT_BOUNDS = {0.2, 0.1, 0.05, 0.02};
+
+    private ApproximateAssociationEvaluation() {
+    }
+
+    /**
+     * Build the exact model and an approximate model at each error bound, and print their build times and agreement.
+     * @param args The data source file, optionally followed by the association metric ({@code basic} or
+     *             {@code lift}, default {@code lift}) and the error bounds to compare.
+     * @throws IOException if there is an error loading the data.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: ApproximateAssociationEvaluation DATA-SOURCE [basic|lift] [BOUND...]");
+            System.exit(2);
+        }
+        DataAccessObject dao = RatingColumnFile.loadDataSource(Paths.get(args[0]));
+        SparseRatingMatrix ratings = SparseRatingMatrix.build(dao);
+        AssociationMetric metric = args.length < 2 || args[1].equalsIgnoreCase("lift")
+                ? AssociationMetric.LIFT : AssociationMetric.BASIC;
+        double[] bounds = DEFAULT_BOUNDS;
+        if (args.length > 2) {
+            bounds = new double[args.length - 2];
+            for (int i = 0; i < bounds.length; i++) {
+                bounds[i] = Double.parseDouble(args[i + 2]);
+            }
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        Stopwatch timer = Stopwatch.createStarted();
+        AssociationModel exact = new AssociationModelBuilder(metric)
+                .setThreads(threads)
+                .build(ratings);
+        long exactMillis = timer.elapsed(TimeUnit.MILLISECONDS);
+        ScorePrecisionEvaluation eval = new ScorePrecisionEvaluation(exact, ScorePrecisionEvaluation.DEFAULT_LIST_SIZE);
+
+        System.out.printf("%-8s %7s %10s %12s %10s %8s %10s %10s%n",
+                          "Bound", "Hashes", "Bands", "Pairs", "Build", "Speedup", "Overlap", "Worst");
+        System.out.printf("%-8s %7s %10s %12d %8dms %8s %10.4f %10.4f%n",
+                          "exact", "-", "-", exact.getStoredScoreCount(), exactMillis, "1.00", 1.0, 1.0);
+        for (double bound: bounds) {
+            MinHashAssociationBuilder builder = new MinHashAssociationBuilder(bound);
+            timer.reset().start();
+            AssociationModel model;
+            try (RowExecutor rows = new RowExecutor(threads)) {
+                model = builder.build(ratings, metric, -1, ScorePrecision.DOUBLE, rows);
+            }
+            long millis = timer.elapsed(TimeUnit.MILLISECONDS);
+            ScorePrecisionEvaluation.Report report = eval.evaluate(model);
+            System.out.printf("%-8s %7d %5dx%-4d %12d %8dms %8.2f %10.4f %10.4f%n",
+                              bound, builder.getHashCount(), builder.getBandCount(), builder.getBandWidth(),
+                              model.getStoredScoreCount(), millis, exactMillis / (double) Math.max(millis, 1),
+                              report.getMeanOverlap(), report.getWorstOverlap());
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import org.grouplens.grapht.annotation.DefaultDouble;
+import org.lenskit.inject.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * The error bound of approximate association models: each pair's estimated Jaccard similarity is within this bound of
+ * the true similarity with probability at least 95%.  It bounds the similarity estimates, not the association scores
+ * made from them, which can be off by more for a small item among a popular item's raters.  0 (the default) counts
+ * co-occurrences exactly.  It is ignored when a time window or half-life is set.
+ * @see MinHashAssociationBuilder
+ */
+@Documented
+@DefaultDouble(0)
+@Parameter(Double.class)
+@Qualifier
+@Target({ElementType.METHOD, ElementType.PARAMETER, ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface AssociationErrorBound {
+}
@@ -0,0 +1,22 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import org.grouplens.grapht.annotation.DefaultDouble;
+import org.lenskit.inject.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * The half-life of rating weights in association models, in the units of the rating timestamps: a rating counts with
+ * weight {@code 2^(-age/halfLife)}, where its age is measured from the latest rating.  0 (the default) weights every
+ * rating equally.
+ * @see TemporalAssociationModel
+ */
+@Documented
+@DefaultDouble(0)
+@Parameter(Double.class)
+@Qualifier
+@Target({ElementType.METHOD, ElementType.PARAMETER, ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface AssociationHalfLife {
+}
@@ -1,85 +1,330 @@
 package org.lenskit.mooc.nonpers.assoc;
 
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.lenskit.api.Result;
 import org.lenskit.api.ResultList;
 import org.lenskit.basic.AbstractItemBasedItemRecommender;
+import org.lenskit.mooc.nonpers.structures.TopNItemHeap;
 import org.lenskit.results.Results;
 import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.keys.SortedKeyIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * An item-based item scorer that uses association rules.
+ *
+ * <p>A single-item basket is scored with that item's association row.  A basket of several items is scored by
+ * combining the rows of all of its items, as configured by {@link BasketAggregationMode}.  Either way, the rows'
+ * stored scores are accumulated in primitive arrays over the model's item index, reused across requests on the same
+ * thread, and the best items are kept with a bounded heap.  When only a few candidates are given, they are scored
+ * directly instead.  Basket items the model does not know are ignored, and unless an exclude set is given, the
+ * basket's own items are left out of the recommendations.</p>
+ *
+ * <p>{@link BasketAggregation#RECENCY} weights the basket items by the order they were added, so it needs a basket
+ * with a defined order: a {@link List}, oldest first, given to {@link #recommendRelatedItemsWithDetails(List, int,
+ * Set, Set)}, or a {@link LinkedHashSet} in the order the items were added.  Any other set has no such order, so its
+ * items are weighted equally, as {@link BasketAggregation#SUM} does, and a warning is logged.</p>
  */
 public class AssociationItemBasedItemRecommender extends AbstractItemBasedItemRecommender {
     private static final Logger logger = LoggerFactory.getLogger(AssociationItemBasedItemRecommender.class);
     private final AssociationModel model;
+    private final BasketAggregation aggregation;
+    private final double decay;
+    private final ThreadLocal<BasketScratch> scratch;
+    /**
+     * Whether an unordered basket has been scored with equal weights yet; only the first one is warned about.
+     */
+    private volatile boolean warnedUnordered;
+
+    /**
+     * Construct the item scorer, summing the rows of multi-item baskets.
+     *
+     * @param m The association rule model.
+     */
+    public AssociationItemBasedItemRecommender(AssociationModel m) {
+        this(m, BasketAggregation.SUM.name(), 1);
+    }
 
     /**
      * Construct the item scorer.
      *
      * @param m The association rule model.
+     * @param mode The name of the basket aggregation.
+     * @param decay The recency decay, used by {@link BasketAggregation#RECENCY}.
      */
     @Inject
-    public AssociationItemBasedItemRecommender(AssociationModel m) {
+    public AssociationItemBasedItemRecommender(AssociationModel m, @BasketAggregationMode String mode,
+                                               @RecencyDecay double decay) {
         model = m;
+        aggregation = BasketAggregation.valueOf(mode.toUpperCase(Locale.ROOT));
+        this.decay = decay;
+        int n = m.getIndex().size();
+        scratch = ThreadLocal.withInitial(() -> new BasketScratch(n));
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * The basket is taken in its iteration order, which {@link BasketAggregation#RECENCY} requires to be the order
+     * its items were added.  Under that aggregation, a basket of several items that is not a {@link LinkedHashSet}
+     * has its items weighted equally instead.
+     *
+     * @see #recommendRelatedItemsWithDetails(List, int, Set, Set)
+     */
     @Override
     public ResultList recommendRelatedItemsWithDetails(Set<Long> basket, int n, @Nullable Set<Long> candidates, @Nullable Set<Long> exclude) {
-        LongSet items;
-        if (candidates == null) {
-            items = model.getKnownItems();
-        } else {
-            items = LongUtils.asLongSet(candidates);
+        boolean recency = aggregation == BasketAggregation.RECENCY;
+        if (recency && basket.size() > 1 && !(basket instanceof LinkedHashSet)) {
+            if (warnedUnordered) {
+                logger.debug("weighting the items of an unordered basket equally");
+            } else {
+                warnedUnordered = true;
+                logger.warn("recency aggregation needs the basket in the order its items were added, as a list or a "
+                            + "LinkedHashSet; weighting the items of a {} equally", basket.getClass().getName());
+            }
+            recency = false;
+        }
+        return recommendRelated(new ArrayList<>(basket), n, candidates, exclude, recency);
+    }
+
+    /**
+     * Recommend items related to a basket whose items are in the order they were added.
+     *
+     * <p>For a single-item basket, if the model keeps only each item's top scores, this reads the item's pre-sorted
+     * row ({@link #recommendFromRow(AssociationScores, int, long, LongSet, LongSet)}).  Otherwise the basket's rows
+     * are scored by {@link #recommendForBasket(List, int, LongSet, LongSet)}.</p>
+     *
+     * @param basket The basket items, oldest first.  An item added more than once counts at its latest position.
+     * @param n The number of recommendations to produce.  If this is negative, then recommend all possible items.
+     * @param candidates The candidate items, or {@code null} for all items the model knows.
+     * @param exclude The items to leave out, or {@code null} to leave out the basket's items.
+     * @return The list of results; empty if the model knows none of the basket's items.
+     */
+    public ResultList recommendRelatedItemsWithDetails(List<Long> basket, int n, @Nullable Set<Long> candidates,
+                                                       @Nullable Set<Long> exclude) {
+        return recommendRelated(basket, n, candidates, exclude, aggregation == BasketAggregation.RECENCY);
+    }
+
+    /**
+     * Recommend items related to a basket.
+     * @param recency Whether to weight the basket items by recency; if not, they are weighted equally.
+     * @see #recommendRelatedItemsWithDetails(List, int, Set, Set)
+     */
+    private ResultList recommendRelated(List<Long> basket, int n, @Nullable Set<Long> candidates,
+                                        @Nullable Set<Long> exclude, boolean recency) {
+        if (basket.isEmpty()) {
+            return Results.newResultList();
         }
 
-        if (exclude != null) {
-            items = LongUtils.setDifference(items, LongUtils.asLongSet(exclude));
+        LongSet items = candidates == null ? null : LongUtils.asLongSet(candidates);
+        LongSet excluded = exclude == null ? new LongOpenHashSet(basket) : LongUtils.asLongSet(exclude);
+        long refItem = basket.get(0);
+        boolean single = true;
+        for (long item: basket) {
+            single &= item == refItem;
         }
+        if (single && model.getRowLimit() >= 0 && model.hasItem(refItem)) {
+            return recommendFromRow(model.getScores(), n, refItem, items, excluded);
+        } else {
+            return recommendForBasket(basket, n, items, excluded, recency);
+        }
+    }
 
-        if (basket.isEmpty()) {
+    /**
+     * Recommend items for a basket.  Basket items the model does not know are ignored.
+     *
+     * <p>If the candidates are fewer than the stored scores in the basket items' rows, each candidate is scored
+     * directly.  Otherwise the rows are accumulated into a dense per-thread score array, touching only the items
+     * that have a stored score, and those items go through a heap bounded at {@code n}; items with no stored score
+     * for any basket item score 0 and are only added, in order of ID, if fewer than {@code n} items scored.</p>
+     *
+     * @param basket The basket items, oldest first.
+     * @param n The number of recommendations to produce.  If this is negative, then recommend all possible items.
+     * @param candidates The candidate items, or {@code null} for all items the model knows.
+     * @param exclude The items to leave out.
+     * @param recency Whether to weight the basket items by recency.
+     * @return The list of results.
+     */
+    private ResultList recommendForBasket(List<Long> basket, int n, @Nullable LongSet candidates, LongSet exclude,
+                                          boolean recency) {
+        SortedKeyIndex index = model.getIndex();
+        AssociationScores scores = model.getScores();
+
+        // walk the basket from the newest item, so a repeated item keeps its latest position, then put it back in order
+        int[] refs = new int[basket.size()];
+        int size = 0;
+        long stored = 0;
+        LongSet added = new LongOpenHashSet();
+        for (int k = basket.size() - 1; k >= 0; k--) {
+            long item = basket.get(k);
+            int ref = index.tryGetIndex(item);
+            if (ref >= 0 && added.add(item)) {
+                refs[size++] = ref;
+                stored += scores.rowEnd(ref) - scores.rowStart(ref);
+            }
+        }
+        for (int k = 0; k < size / 2; k++) {
+            int ref = refs[k];
+            refs[k] = refs[size - 1 - k];
+            refs[size - 1 - k] = ref;
+        }
+        double[] weights = new double[size];
+        for (int k = 0; k < size; k++) {
+            weights[k] = recency ? Math.pow(decay, size - 1 - k) : 1;
+        }
+        logger.debug("scoring basket of {} known items with {} stored scores", size, stored);
+        if (size == 0) {
             return Results.newResultList();
-        } else if (basket.size() > 1) {
-            logger.warn("Reference set has more than 1 item, picking arbitrarily.");
         }
 
-        long refItem = basket.iterator().next();
+        TopNItemHeap heap = new TopNItemHeap(n);
+        if (candidates != null && candidates.size() * (long) size < stored) {
+            LongIterator iter = candidates.iterator();
+            while (iter.hasNext()) {
+                long item = iter.nextLong();
+                int y = index.tryGetIndex(item);
+                if (y >= 0 && !exclude.contains(item)) {
+                    double score = 0;
+                    for (int k = 0; k < size; k++) {
+                        score = combine(score, scores.get(refs[k], y) * weights[k]);
+                    }
+                    heap.offer(item, score);
+                }
+            }
+            return heap.finish();
+        }
+
+        BasketScratch buffers = scratch.get();
+        double[] acc = buffers.scores;
+        boolean[] seen = buffers.seen;
+        int[] touched = buffers.touched;
+        int nTouched = 0;
+        for (int k = 0; k < size; k++) {
+            int end = scores.rowEnd(refs[k]);
+            for (int pos = scores.rowStart(refs[k]); pos < end; pos++) {
+                int y = scores.columnAt(pos);
+                double value = scores.valueAt(refs[k], pos) * weights[k];
+                if (!seen[y]) {
+                    seen[y] = true;
+                    touched[nTouched++] = y;
+                    acc[y] = value;
+                } else {
+                    acc[y] = combine(acc[y], value);
+                }
+            }
+        }
+        for (int t = 0; t < nTouched; t++) {
+            int y = touched[t];
+            seen[y] = false;
+            double score = acc[y];
+            // most items cannot beat the heap's minimum once it is full, so check that before the set lookups
+            if (score == 0 || (heap.isFull() && score < heap.minScore())) {
+                continue;
+            }
+            long item = index.getKey(y);
+            if (!exclude.contains(item) && (candidates == null || candidates.contains(item))) {
+                heap.offer(item, score);
+            }
+        }
+
+        ResultList top = heap.finish();
+        if (n >= 0 && top.size() >= n) {
+            return top;
+        }
+        List<Result> results = new ArrayList<>(top);
+        appendZeroScores(results, n, candidates, exclude, new LongOpenHashSet(top.idList()));
+        return Results.newResultList(results);
+    }
 
-        return recommendItems(n, refItem, items);
+    /**
+     * Combine an item's score so far with its (weighted) association with one more basket item.
+     */
+    private double combine(double score, double value) {
+        return aggregation == BasketAggregation.MAX ? Math.max(score, value) : score + value;
     }
 
     /**
-     * Recommend items with an association rule.
-     * @param n The number of recommendations to produce.
+     * Recommend items from the reference item's pre-sorted row of a truncated model.
+     *
+     * <p>The row's prefix is read in order, skipping items that are excluded or not candidates, so this usually costs
+     * {@code O(n)}.  Only when the row runs out before {@code n} items are found are the remaining candidates added,
+     * with score 0 and in order of ID, exactly as scoring every candidate would have ranked them.</p>
+     *
+     * @param row The model's scores, with rows in decreasing order of score.
+     * @param n The number of recommendations to produce.  If this is negative, then recommend all possible items.
      * @param refItem The reference item.
-     * @param candidates The candidate items (set of items that can possibly be recommended).
+     * @param candidates The candidate items, or {@code null} for all items the model knows.
+     * @param exclude The items to leave out.
      * @return The list of results.
      */
-    private ResultList recommendItems(int n, long refItem, LongSet candidates) {
-        List<Result> results = new ArrayList<>();
+    private ResultList recommendFromRow(AssociationScores row, int n, long refItem,
+                                        @Nullable LongSet candidates, LongSet exclude) {
+        SortedKeyIndex index = model.getIndex();
+        int ref = index.getIndex(refItem);
 
-        for (long item: candidates) {
-            double association = model.getItemAssociation(refItem,item);
-            results.add(Results.create(item, association));
+        List<Result> results = new ArrayList<>();
+        LongSet used = new LongOpenHashSet();
+        for (int pos = row.rowStart(ref); pos < row.rowEnd(ref) && (n < 0 || results.size() < n); pos++) {
+            long item = index.getKey(row.columnAt(pos));
+            if (!exclude.contains(item) && (candidates == null || candidates.contains(item))) {
+                results.add(Results.create(item, row.valueAt(ref, pos)));
+                used.add(item);
+            }
         }
 
-        Collections.sort(results, (r1, r2) -> Double.compare(r2.getScore(), r1.getScore()));
+        appendZeroScores(results, n, candidates, exclude, used);
+        return Results.newResultList(results);
+    }
+
+    /**
+     * Fill a result list up to {@code n} with the remaining candidates, scored 0, in order of ID.
+     * @param results The results so far.
+     * @param n The number of results wanted, or a negative number for all candidates.
+     * @param candidates The candidate items, or {@code null} for all items the model knows.
+     * @param exclude The items to leave out.
+     * @param used The items already in the results.
+     */
+    private void appendZeroScores(List<Result> results, int n, @Nullable LongSet candidates, LongSet exclude,
+                                  LongSet used) {
+        if (n >= 0 && results.size() >= n) {
+            return;
+        }
+        SortedKeyIndex index = model.getIndex();
+        long[] rest = (candidates == null ? index.keySet() : candidates).toLongArray();
+        Arrays.sort(rest);
+        for (int i = 0; i < rest.length && (n < 0 || results.size() < n); i++) {
+            long item = rest[i];
+            if (!used.contains(item) && !exclude.contains(item) && index.containsKey(item)) {
+                results.add(Results.create(item, 0));
+            }
+        }
+    }
 
-        List<Result> finalResults = results
-                .stream()
-                .limit(n)
-                .collect(Collectors.toList());
+    /**
+     * Per-thread buffers for accumulating basket scores over the model's item index.  Between requests every
+     * {@code seen} flag is clear.
+     */
+    private static class BasketScratch {
+        final double[] scores;
+        final boolean[] seen;
+        final int[] touched;
 
-        return Results.newResultList(finalResults);
+        BasketScratch(int n) {
+            scores = new double[n];
+            seen = new boolean[n];
+            touched = new int[n];
+        }
     }
 }
@@ -0,0 +1,39 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+/**
+ * The association rule metric that scores an item Y with respect to a reference item X, from the number of users who
+ * rated each of them and both.
+ */
+public enum AssociationMetric {
+    /**
+     * The basic association rule, {@code P(Y|X)}: the fraction of X's raters who also rated Y.
+     * @see BasicAssociationModelProvider
+     */
+    BASIC {
+        @Override
+        double score(double count, double xRaters, double yRaters, double users) {
+            return count / xRaters;
+        }
+    },
+    /**
+     * Lift, {@code P(X and Y) / (P(X) P(Y))}.
+     * @see LiftAssociationModelProvider
+     */
+    LIFT {
+        @Override
+        double score(double count, double xRaters, double yRaters, double users) {
+            return count * users / (xRaters * yRaters);
+        }
+    };
+
+    /**
+     * Score a co-occurring pair.  Every model builder scores its pairs with this, so exact, approximate, updatable and
+     * temporal models agree on the metric.
+     * @param count The number (or weight) of users who rated both X and Y.
+     * @param xRaters The number (or weight) of users who rated X.
+     * @param yRaters The number (or weight) of users who rated Y.
+     * @param users The number (or weight) of users who rated anything.
+     * @return The score of Y with respect to X.
+     */
+    abstract double score(double count, double xRaters, double yRaters, double users);
+}
@@ -1,6 +1,10 @@
 package org.lenskit.mooc.nonpers.assoc;
 
-import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.Int2DoubleAVLTreeMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleSortedMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.lenskit.inject.Shareable;
 import org.lenskit.util.keys.SortedKeyIndex;
@@ -14,44 +18,152 @@ import java.util.Map;
  * An association rule model, storing item-item association scores.
  *
  * <p>You <strong>should note</strong> need to change this class.  It has some internal optimizations to reduce
- * the memory requirements after the model is built.</p>
+ * the memory requirements after the model is built: only non-zero scores are stored, in sparse rows over the item
+ * index, so memory grows with the number of associated pairs rather than the square of the number of items.  The
+ * model can also be built to keep only each item's top K scores ({@link AssociationRowLimit}), pre-sorted, which
+ * bounds it at {@code O(n K)}, and can store its scores as floats or 16- or 8-bit steps
+ * ({@link AssociationScorePrecision}).  Built models can be written to a file and memory-mapped back with
+ * {@link AssociationModelFile}, which keeps the scores off the heap.</p>
  */
 @Shareable
 public class AssociationModel implements Serializable {
     private static final Logger logger = LoggerFactory.getLogger(AssociationModel.class);
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
     private final SortedKeyIndex index;
-    private final double[][] scores;
+    private final AssociationScores scores;
 
     /**
      * Construct a new association model.
      * @param assocScores The association scores.  The outer map's keys are the X items, and the inner map's keys are
      *                    the Y items.  So {@code assocScores.get(x).get(y)} should return the score for {@code y}
-     *                    with respect to {@code x}.
+     *                    with respect to {@code x}.  Missing and zero scores are not stored, and score 0.
      */
     public AssociationModel(Map<Long, ? extends Map<Long,Double>> assocScores) {
         index = SortedKeyIndex.fromCollection(assocScores.keySet());
         int n = index.size();
-        logger.debug("transforming input map for {} items into log data", n);
-        scores = new double[n][n];
+        logger.debug("transforming input map for {} items into sparse rows", n);
+        int[] rowStart = new int[n + 1];
+        IntArrayList columns = new IntArrayList();
+        DoubleArrayList values = new DoubleArrayList();
+        Int2DoubleSortedMap row = new Int2DoubleAVLTreeMap();
         for (int i = 0; i < n; i++) {
-            long itemX = index.getKey(i);
-            for (int j = 0; j < n; j++) {
-                if (i == j) {
-                    continue; // skip self-similarities
+            row.clear();
+            for (Map.Entry<Long, Double> e: assocScores.get(index.getKey(i)).entrySet()) {
+                int j = index.tryGetIndex(e.getKey());
+                if (j >= 0 && j != i && e.getValue() != null && e.getValue() != 0) {
+                    row.put(j, e.getValue().doubleValue());
                 }
+            }
+            for (Int2DoubleMap.Entry e: row.int2DoubleEntrySet()) {
+                columns.add(e.getIntKey());
+                values.add(e.getDoubleValue());
+            }
+            rowStart[i + 1] = columns.size();
+        }
+        scores = new SparseAssociationScores(rowStart, columns.toIntArray(), values.toDoubleArray());
+    }
+
+    /**
+     * Construct a new association model from score storage.
+     * @param index The item index.
+     * @param scores The scores, addressed by positions in {@code index}.
+     */
+    AssociationModel(SortedKeyIndex index, AssociationScores scores) {
+        this.index = index;
+        this.scores = scores;
+    }
+
+    /**
+     * Construct an association model with one score per co-occurring pair.  Pairs that never co-occur score 0.  The
+     * scores are kept in sparse rows, unless so many pairs co-occur that a dense matrix is smaller.
+     *
+     * @param cooc The co-occurrence matrix.
+     * @param values The score for each of the matrix's entries, parallel to its entry positions.
+     * @return The association model.
+     */
+    static AssociationModel fromCooccurrence(CooccurrenceMatrix cooc, double[] values) {
+        try (RowExecutor rows = new RowExecutor(1)) {
+            return fromCooccurrence(cooc, values, -1, rows);
+        }
+    }
+
+    /**
+     * Construct an association model with one score per co-occurring pair, optionally truncated to each item's top
+     * scores.
+     *
+     * @param cooc The co-occurrence matrix.
+     * @param values The score for each of the matrix's entries, parallel to its entry positions.
+     * @param rowLimit The number of scores to keep for each reference item, or a negative number to keep them all.
+     * @param rows The executor to truncate rows on.
+     * @return The association model.
+     * @see AssociationRowLimit
+     */
+    static AssociationModel fromCooccurrence(CooccurrenceMatrix cooc, double[] values, int rowLimit,
+                                             RowExecutor rows) {
+        return fromCooccurrence(cooc, values, rowLimit, ScorePrecision.DOUBLE, rows);
+    }
+
+    /**
+     * Construct an association model with one score per co-occurring pair, optionally truncated to each item's top
+     * scores and stored with reduced precision.  Reduced-precision scores are always kept in sparse rows.
+     *
+     * @param cooc The co-occurrence matrix.
+     * @param values The score for each of the matrix's entries, parallel to its entry positions.
+     * @param rowLimit The number of scores to keep for each reference item, or a negative number to keep them all.
+     * @param precision The precision to store the scores with.
+     * @param rows The executor to truncate rows on.
+     * @return The association model.
+     * @see AssociationRowLimit
+     * @see AssociationScorePrecision
+     */
+    static AssociationModel fromCooccurrence(CooccurrenceMatrix cooc, double[] values, int rowLimit,
+                                             ScorePrecision precision, RowExecutor rows) {
+        return fromRows(cooc.getItemIndex(), cooc.getRowStarts(), cooc.getColumns(), values, rowLimit, precision, rows);
+    }
 
-                long itemY = index.getKey(j);
-                Double score = assocScores.get(itemX).get(itemY);
-                if (score == null) {
-                    logger.error("no score found for items {} and {}", itemX, itemY);
-                    String msg = String.format("no score found for x=%d, y=%d", itemX, itemY);
-                    throw new IllegalArgumentException(msg);
+    /**
+     * Construct an association model from sparse rows of scores, optionally truncated to each item's top scores and
+     * stored with reduced precision.  The rows are kept sparse unless so many pairs have scores that a dense matrix is
+     * smaller; reduced-precision scores are always kept in sparse rows.
+     *
+     * @param index The item index.
+     * @param rowStart The start of each row in {@code columns} and {@code values}, with a final entry marking the end
+     *                 of the last row.
+     * @param columns The item index of each score, sorted within each row.
+     * @param values The scores.
+     * @param rowLimit The number of scores to keep for each reference item, or a negative number to keep them all.
+     * @param precision The precision to store the scores with.
+     * @param rows The executor to truncate rows on.
+     * @return The association model.  It may share the arrays.
+     */
+    static AssociationModel fromRows(SortedKeyIndex index, int[] rowStart, int[] columns, double[] values,
+                                     int rowLimit, ScorePrecision precision, RowExecutor rows) {
+        int n = index.size();
+        AssociationScores scores;
+        if (rowLimit >= 0) {
+            scores = TopKAssociationScores.truncate(rowStart, columns, values, rowLimit, rows);
+        } else if (precision != ScorePrecision.DOUBLE
+                || values.length * 12L + (n + 1) * 4L <= n * (n * 8L + 16)
+                || (long) n * n > Integer.MAX_VALUE) {
+            scores = new SparseAssociationScores(rowStart, columns, values);
+        } else {
+            double[][] dense = new double[n][n];
+            for (int x = 0; x < n; x++) {
+                for (int pos = rowStart[x]; pos < rowStart[x + 1]; pos++) {
+                    dense[x][columns[pos]] = values[pos];
                 }
-                scores[i][j] = score;
             }
+            scores = new DenseAssociationScores(dense);
         }
+        if (precision != ScorePrecision.DOUBLE) {
+            scores = QuantizedAssociationScores.quantize(scores, n, precision);
+        }
+        AssociationModel model = new AssociationModel(index, scores);
+        logger.info("stored {} association scores for {} items in {} at {} precision ({} bytes)",
+                    model.getStoredScoreCount(), n, scores.getClass().getSimpleName(), precision,
+                    model.getMemoryFootprint());
+        return model;
     }
 
     /**
@@ -75,16 +187,61 @@ public class AssociationModel implements Serializable {
      * Get the association between two items.
      * @param ref The reference item (X).
      * @param item The item to score (Y).
-     * @return The score between X and Y.
+     * @return The score between X and Y, or 0 if the model has no score for the pair.
      * @throws IllegalArgumentException if either item is invalid.
      */
     public double getItemAssociation(long ref, long item) {
-        // look up item positions
+        // look up item positions; the checks are spelled out so the common path boxes nothing
         int refIndex = index.tryGetIndex(ref);
-        Preconditions.checkArgument(refIndex >= 0, "unknown reference item %d", ref);
+        if (refIndex < 0) {
+            throw new IllegalArgumentException("unknown reference item " + ref);
+        }
         int itemIndex = index.tryGetIndex(item);
-        Preconditions.checkArgument(itemIndex >= 0, "unknown target item %d", item);
+        if (itemIndex < 0) {
+            throw new IllegalArgumentException("unknown target item " + item);
+        }
+
+        return scores.get(refIndex, itemIndex);
+    }
+
+    /**
+     * Get the number of associated items kept for each reference item.
+     * @return The row limit, or -1 if the model keeps every score.
+     * @see AssociationRowLimit
+     */
+    public int getRowLimit() {
+        return scores.getRowLimit();
+    }
 
-        return scores[refIndex][itemIndex];
+    /**
+     * Get the item index that scores are addressed by.
+     * @return The item index.
+     */
+    SortedKeyIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Get the model's score storage.
+     * @return The scores, addressed by positions in {@link #getIndex()}.
+     */
+    AssociationScores getScores() {
+        return scores;
+    }
+
+    /**
+     * Get the number of scores the model actually stores.
+     * @return The number of stored scores; pairs without one score 0.
+     */
+    public long getStoredScoreCount() {
+        return scores.getStoredCount();
+    }
+
+    /**
+     * Estimate the heap used by the model.
+     * @return The approximate size of the model's score storage and item index, in bytes.
+     */
+    public long getMemoryFootprint() {
+        return scores.getMemoryFootprint() + index.size() * 8L;
     }
 }
@@ -0,0 +1,146 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import org.lenskit.mooc.nonpers.data.SparseRatingMatrix;
+
+import javax.annotation.Nullable;
+import java.io.File;
+
+/**
+ * Builds an association model for a metric from a rating matrix.  This is the build the association model providers
+ * share; they differ only in their metric.
+ *
+ * <p>By default the builder counts every co-occurrence exactly on one thread, keeps every score at double precision,
+ * and keeps the model on the heap.  A time window or half-life builds a {@linkplain TemporalAssociationModel temporal
+ * model} instead, and an error bound an {@linkplain MinHashAssociationBuilder approximate one}.</p>
+ */
+public class AssociationModelBuilder {
+    private final AssociationMetric metric;
+    private int threads = 1;
+    private int rowLimit = -1;
+    private ScorePrecision precision = ScorePrecision.DOUBLE;
+    private long window;
+    private double halfLife;
+    private double errorBound;
+    private File modelFile;
+
+    /**
+     * Create a builder.
+     * @param metric The association metric to score pairs with.
+     */
+    public AssociationModelBuilder(AssociationMetric metric) {
+        this.metric = metric;
+    }
+
+    /**
+     * Set the number of threads to build the model on.  The model is identical for any thread count; a temporal model
+     * is replayed in time order on one thread.
+     * @param threads The number of threads.
+     * @return The builder (for chaining).
+     */
+    public AssociationModelBuilder setThreads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * Set the number of associated items to keep per reference item.
+     * @param rowLimit The row limit, or -1 to keep them all.
+     * @return The builder (for chaining).
+     */
+    public AssociationModelBuilder setRowLimit(int rowLimit) {
+        this.rowLimit = rowLimit;
+        return this;
+    }
+
+    /**
+     * Set the precision to store the model's scores with.
+     * @param precision The score precision.
+     * @return The builder (for chaining).
+     */
+    public AssociationModelBuilder setPrecision(ScorePrecision precision) {
+        this.precision = precision;
+        return this;
+    }
+
+    /**
+     * Set the length of the time window to count ratings in.
+     * @param window The window length, in the units of the rating timestamps, or 0 to count every rating.
+     * @return The builder (for chaining).
+     */
+    public AssociationModelBuilder setWindow(long window) {
+        this.window = window;
+        return this;
+    }
+
+    /**
+     * Set the half-life of rating weights.
+     * @param halfLife The half-life, or 0 to weight every rating equally.
+     * @return The builder (for chaining).
+     */
+    public AssociationModelBuilder setHalfLife(double halfLife) {
+        this.halfLife = halfLife;
+        return this;
+    }
+
+    /**
+     * Set the error bound of an approximate model built from rater sketches.
+     * @param errorBound The error bound, or 0 to count co-occurrences exactly.
+     * @return The builder (for chaining).
+     */
+    public AssociationModelBuilder setErrorBound(double errorBound) {
+        this.errorBound = errorBound;
+        return this;
+    }
+
+    /**
+     * Set the file to write the model to and map it from.
+     * @param modelFile The model file, or {@code null} to keep the model on the heap.
+     * @return The builder (for chaining).
+     */
+    public AssociationModelBuilder setModelFile(@Nullable File modelFile) {
+        this.modelFile = modelFile;
+        return this;
+    }
+
+    /**
+     * Build the model.
+     * @param ratings The rating matrix.
+     * @return The association model.
+     */
+    public AssociationModel build(SparseRatingMatrix ratings) {
+        if (window > 0 || halfLife > 0) {
+            // recent ratings only: replay them through a sliding window instead of counting them all
+            AssociationModel model = TemporalAssociationModel.build(ratings, metric, window, halfLife,
+                                                                    rowLimit, precision)
+                                                             .getSnapshot();
+            return AssociationModelFile.writeAndMap(model, modelFile);
+        }
+        try (RowExecutor rows = new RowExecutor(threads)) {
+            if (errorBound > 0) {
+                // estimate the co-occurrences of likely pairs from sketches instead of counting every pair
+                AssociationModel model = new MinHashAssociationBuilder(errorBound)
+                        .build(ratings, metric, rowLimit, precision, rows);
+                return AssociationModelFile.writeAndMap(model, modelFile);
+            }
+
+            // First step: count, for each pair of items, the users who rated both.
+            CooccurrenceMatrix cooc = CooccurrenceMatrix.build(ratings, rows);
+            int n = cooc.getItemIndex().size();
+            double numAllUsers = cooc.getUserCount();
+
+            // Second step: compute all association rules, one per co-occurring pair.  Other pairs score 0.  Each
+            // row only writes its own entries, so the rows can be scored in parallel.
+            double[] scores = new double[cooc.getEntryCount()];
+            rows.forEachRow("association scoring", n, x -> {
+                double xUsers = cooc.getRaterCount(x);
+                for (int pos = cooc.rowStart(x); pos < cooc.rowEnd(x); pos++) {
+                    scores[pos] = metric.score(cooc.countAt(pos), xUsers, cooc.getRaterCount(cooc.columnAt(pos)),
+                                               numAllUsers);
+                }
+            });
+
+            AssociationModel model = AssociationModel.fromCooccurrence(cooc, scores, rowLimit, precision, rows);
+            return AssociationModelFile.writeAndMap(model, modelFile);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import com.google.common.base.Stopwatch;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes association models in a binary file that can be memory-mapped.
+ *
+ * <p>Java serialization has to copy every score onto the heap of every process that loads a model.  A model file is
+ * instead mapped read-only: opening it reads only the header and the item IDs, and the score rows are read in place
+ * by {@link MappedAssociationScores}, so a model loads in milliseconds, takes no heap for its scores, and is shared
+ * through the page cache by every process that maps it.</p>
+ *
+ * <p>The file is little-endian, with every section aligned to 8 bytes:</p>
+ * <ol>
+ *     <li>a 32-byte header: the magic number {@code LKASSOC1}, the format version, the item count {@code n}, the
+ *     stored score count {@code e}, and the row limit;</li>
+ *     <li>the {@code n} item IDs, sorted, as {@code long}s;</li>
+ *     <li>the {@code n + 1} row starts as {@code int}s;</li>
+ *     <li>the {@code e} item indexes of the stored scores as {@code int}s;</li>
+ *     <li>the {@code e} stored scores as {@code double}s.</li>
+ * </ol>
+ * <p>Rows are written in the order of the model's storage, so a model read back answers every query exactly as the
+ * model that was written.  Each section is mapped as a single buffer, so a file can hold at most 2<sup>28</sup>
+ * scores; truncate the rows with {@link AssociationRowLimit} for larger models.</p>
+ */
+public final class AssociationModelFile {
+    private static final Logger logger = LoggerFactory.getLogger(AssociationModelFile.class);
+    /**
+     * The magic number at the start of every model file, "LKASSOC1" in ASCII.
+     */
+    private static final long MAGIC = 0x4C4B4153534F4331L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private AssociationModelFile() {
+    }
+
+    /**
+     * Write a model to a file.  The model is written to a temporary file that then replaces {@code file}, so processes
+     * that have the old file mapped keep reading the old model.
+     * @param model The model.
+     * @param file The file to write.
+     * @throws IOException if there is an error writing the file.
+     * @throws IllegalArgumentException if the model stores too many scores for a model file.
+     */
+    public static void write(AssociationModel model, File file) throws IOException {
+        Stopwatch timer = Stopwatch.createStarted();
+        SortedKeyIndex index = model.getIndex();
+        AssociationScores scores = model.getScores();
+        int n = index.size();
+        long entries = 0;
+        for (int x = 0; x < n; x++) {
+            entries += scores.rowEnd(x) - scores.rowStart(x);
+        }
+        if (entries * 8 > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("model with " + entries + " scores is too large for a model file");
+        }
+
+        Path target = file.toPath().toAbsolutePath();
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                buf.putLong(MAGIC)
+                   .putInt(VERSION)
+                   .putInt(n)
+                   .putLong(entries)
+                   .putInt(scores.getRowLimit())
+                   .putInt(0);
+                for (int i = 0; i < n; i++) {
+                    ensure(channel, buf, 8);
+                    buf.putLong(index.getKey(i));
+                }
+                // rows are copied through the storage interface, so they keep its order but are renumbered
+                int start = 0;
+                for (int x = 0; x <= n; x++) {
+                    ensure(channel, buf, 4);
+                    buf.putInt(start);
+                    if (x < n) {
+                        start += scores.rowEnd(x) - scores.rowStart(x);
+                    }
+                }
+                pad(channel, buf, n + 1);
+                for (int x = 0; x < n; x++) {
+                    for (int pos = scores.rowStart(x); pos < scores.rowEnd(x); pos++) {
+                        ensure(channel, buf, 4);
+                        buf.putInt(scores.columnAt(pos));
+                    }
+                }
+                pad(channel, buf, entries);
+                for (int x = 0; x < n; x++) {
+                    for (int pos = scores.rowStart(x); pos < scores.rowEnd(x); pos++) {
+                        ensure(channel, buf, 8);
+                        buf.putDouble(scores.valueAt(x, pos));
+                    }
+                }
+                flush(channel, buf);
+                channel.force(false);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        logger.info("wrote {} association scores for {} items to {} in {}", entries, n, file, timer);
+    }
+
+    /**
+     * Write a freshly built model to its model file, if one is configured, and map it back.
+     * @param model The model.
+     * @param file The model file, or {@code null} to keep the model on the heap.
+     * @return The mapped model, or {@code model} if there is no model file.
+     * @see AssociationModelPath
+     */
+    static AssociationModel writeAndMap(AssociationModel model, @Nullable File file) {
+        if (file == null) {
+            return model;
+        }
+        try {
+            write(model, file);
+            return read(file);
+        } catch (IOException e) {
+            throw new RuntimeException("I/O error writing association model file", e);
+        }
+    }
+
+    /**
+     * Map a model file.
+     * @param file The file to read.
+     * @return A model whose scores are read in place from the file.
+     * @throws IOException if there is an error reading the file, or it is not a valid model file.
+     */
+    public static AssociationModel read(File file) throws IOException {
+        Stopwatch timer = Stopwatch.createStarted();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException(file + ": too short for an association model file");
+            }
+            ByteBuffer header = map(channel, 0, HEADER_SIZE);
+            if (header.getLong() != MAGIC) {
+                throw new IOException(file + ": not an association model file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + ": unsupported model file version " + version);
+            }
+            int n = header.getInt();
+            long entries = header.getLong();
+            int limit = header.getInt();
+            if (n < 0 || entries < 0 || entries * 8 > Integer.MAX_VALUE) {
+                throw new IOException(file + ": corrupt header");
+            }
+
+            long keyStart = HEADER_SIZE;
+            long rowStart = keyStart + n * 8L;
+            long columnStart = rowStart + aligned(n + 1L);
+            long valueStart = columnStart + aligned(entries);
+            if (size != valueStart + entries * 8) {
+                throw new IOException(file + ": expected " + (valueStart + entries * 8) + " bytes, found " + size);
+            }
+
+            // the keys are copied to make the item index; everything else stays mapped
+            long[] keys = new long[n];
+            map(channel, keyStart, n * 8L).asLongBuffer().get(keys);
+            for (int i = 1; i < n; i++) {
+                if (keys[i] <= keys[i - 1]) {
+                    throw new IOException(file + ": item IDs are not sorted");
+                }
+            }
+            IntBuffer starts = map(channel, rowStart, (n + 1) * 4L).asIntBuffer();
+            for (int i = 0; i < n; i++) {
+                if (starts.get(i) > starts.get(i + 1)) {
+                    throw new IOException(file + ": row starts are not sorted");
+                }
+            }
+            if (starts.get(0) != 0 || starts.get(n) != entries) {
+                throw new IOException(file + ": row starts do not cover the scores");
+            }
+            MappedAssociationScores scores =
+                    new MappedAssociationScores(file, limit, starts,
+                                                map(channel, columnStart, entries * 4).asIntBuffer(),
+                                                map(channel, valueStart, entries * 8).asDoubleBuffer());
+            logger.info("mapped {} association scores for {} items from {} in {}", entries, n, file, timer);
+            return new AssociationModel(SortedKeyIndex.wrap(keys, n), scores);
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long start, long length) throws IOException {
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    /**
+     * Get the size of a section of {@code int}s, padded to 8 bytes.
+     */
+    private static long aligned(long ints) {
+        return (ints * 4 + 7) & ~7L;
+    }
+
+    /**
+     * Pad a section of {@code int}s to 8 bytes.
+     */
+    private static void pad(FileChannel channel, ByteBuffer buf, long ints) throws IOException {
+        if (ints % 2 != 0) {
+            ensure(channel, buf, 4);
+            buf.putInt(0);
+        }
+    }
+
+    /**
+     * Make room in the buffer for the next value, writing it out if it is full.
+     */
+    private static void ensure(FileChannel channel, ByteBuffer buf, int bytes) throws IOException {
+        if (buf.remaining() < bytes) {
+            flush(channel, buf);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+}
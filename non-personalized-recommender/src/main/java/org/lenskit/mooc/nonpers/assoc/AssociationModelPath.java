@@ -0,0 +1,22 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import org.grouplens.grapht.annotation.DefaultNull;
+import org.lenskit.inject.Parameter;
+
+import javax.inject.Qualifier;
+import java.io.File;
+import java.lang.annotation.*;
+
+/**
+ * The file to write association models to.  When it is set, the model providers write each model they build to this
+ * file with {@link AssociationModelFile} and return the memory-mapped model, so the scores live in the page cache
+ * instead of on the heap.  By default (null) models are kept on the heap.
+ */
+@Documented
+@DefaultNull
+@Parameter(File.class)
+@Qualifier
+@Target({ElementType.METHOD, ElementType.PARAMETER, ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface AssociationModelPath {
+}
@@ -0,0 +1,20 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.lenskit.inject.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * The number of associated items to keep for each reference item.  The model then keeps only each item's K highest
+ * scores, pre-sorted, and scores every other pair 0.  A negative value (the default) keeps every score.
+ */
+@Documented
+@DefaultInteger(-1)
+@Parameter(Integer.class)
+@Qualifier
+@Target({ElementType.METHOD, ElementType.PARAMETER, ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface AssociationRowLimit {
+}
@@ -0,0 +1,65 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import java.io.Serializable;
+
+/**
+ * Storage for the scores of an {@link AssociationModel}, addressed by positions in the model's item index.
+ */
+interface AssociationScores extends Serializable {
+    /**
+     * Get a score.  This must not allocate.
+     * @param ref The index of the reference item (X).
+     * @param item The index of the item to score (Y).
+     * @return The score of Y with respect to X; 0 if no score is stored.
+     */
+    double get(int ref, int item);
+
+    /**
+     * Get the start of a reference item's row of stored scores.
+     * @param ref The index of the reference item.
+     * @return The position of the row's first stored score.
+     */
+    int rowStart(int ref);
+
+    /**
+     * Get the end of a reference item's row of stored scores.
+     * @param ref The index of the reference item.
+     * @return The position after the row's last stored score.
+     */
+    int rowEnd(int ref);
+
+    /**
+     * Get the item of a stored score.
+     * @param pos The score position.
+     * @return The index of the scored item (Y).
+     */
+    int columnAt(int pos);
+
+    /**
+     * Get a stored score.
+     * @param ref The index of the reference item whose row holds the position; storage that scales its scores by row
+     *            needs it to decode the score.
+     * @param pos The score position.
+     * @return The score.
+     */
+    double valueAt(int ref, int pos);
+
+    /**
+     * Get the number of scores kept per row.  Rows of a truncated store hold their top scores in decreasing order of
+     * score (ties in increasing item index); complete rows are in increasing order of item index.
+     * @return The row limit, or -1 if every row is complete.
+     */
+    int getRowLimit();
+
+    /**
+     * Get the number of scores actually stored.
+     * @return The number of stored scores.
+     */
+    long getStoredCount();
+
+    /**
+     * Estimate the heap used by the score storage.
+     * @return The approximate size of the storage arrays, in bytes.
+     */
+    long getMemoryFootprint();
+}
@@ -1,20 +1,16 @@
 package org.lenskit.mooc.nonpers.assoc;
 
-import it.unimi.dsi.fastutil.longs.*;
-import org.lenskit.data.dao.DataAccessObject;
-import org.lenskit.data.entities.CommonAttributes;
-import org.lenskit.data.ratings.Rating;
 import org.lenskit.inject.Transient;
-import org.lenskit.mooc.nonpers.mean.ItemMeanModelProvider;
-import org.lenskit.util.IdBox;
-import org.lenskit.util.collections.LongUtils;
-import org.lenskit.util.io.ObjectStream;
+import org.lenskit.mooc.nonpers.data.SparseRatingMatrix;
+import org.lenskit.mooc.nonpers.structures.BuildThreadCount;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Provider;
-import java.util.List;
+import java.io.File;
+import java.util.Locale;
 
 /**
  * Build a model for basic association rules.  This class computes the association for all pairs of items.
@@ -23,97 +19,50 @@ public class BasicAssociationModelProvider implements Provider<AssociationModel>
     /**
      * A logger that you can use to emit debug messages.
      */
-    private static final Logger logger = LoggerFactory.getLogger(ItemMeanModelProvider.class);
+    private static final Logger logger = LoggerFactory.getLogger(BasicAssociationModelProvider.class);
 
     /**
-     * The data access object, to be used when computing the mean ratings.
+     * The rating matrix to build the model from.
      */
-    private final DataAccessObject dao;
+    private final SparseRatingMatrix ratings;
+    /**
+     * The builder, configured with the basic metric and the model parameters.
+     */
+    private final AssociationModelBuilder builder;
 
+    /**
+     * Construct the provider.
+     * @param ratings The rating matrix.
+     * @param threads The number of threads to build the model on.  The model is identical for any thread count; a
+     *                temporal model is replayed in time order on one thread.
+     * @param rowLimit The number of associated items to keep per reference item, or -1 to keep them all.
+     * @param precision The name of the {@link ScorePrecision} to store the model's scores with.
+     * @param window The length of the time window to count ratings in, or 0 to count them all.
+     * @param halfLife The half-life of rating weights, or 0 to weight every rating equally.
+     * @param errorBound The error bound of an approximate model built from rater sketches, or 0 to count
+     *                   co-occurrences exactly.
+     * @param modelFile The file to write the model to and map it from, or {@code null} to keep it on the heap.
+     */
     @Inject
-    public BasicAssociationModelProvider(@Transient DataAccessObject dao) {
-        this.dao = dao;
+    public BasicAssociationModelProvider(@Transient SparseRatingMatrix ratings,
+                                         @BuildThreadCount int threads, @AssociationRowLimit int rowLimit,
+                                         @AssociationScorePrecision String precision,
+                                         @AssociationWindow int window, @AssociationHalfLife double halfLife,
+                                         @AssociationErrorBound double errorBound,
+                                         @Nullable @AssociationModelPath File modelFile) {
+        this.ratings = ratings;
+        builder = new AssociationModelBuilder(AssociationMetric.BASIC)
+                .setThreads(threads)
+                .setRowLimit(rowLimit)
+                .setPrecision(ScorePrecision.valueOf(precision.toUpperCase(Locale.ROOT)))
+                .setWindow(window)
+                .setHalfLife(halfLife)
+                .setErrorBound(errorBound)
+                .setModelFile(modelFile);
     }
 
     @Override
     public AssociationModel get() {
-        // First step: map each item to the set of users who have rated it.
-
-        // This map will map each item ID to the set of users who have rated it.
-        Long2ObjectMap<LongSortedSet> itemUsers = new Long2ObjectOpenHashMap<>();
-        LongSet allUsers = new LongOpenHashSet();
-
-        // Open a stream, grouping ratings by item ID
-        try (ObjectStream<IdBox<List<Rating>>> ratingStream = dao.query(Rating.class)
-                                                                 .groupBy(CommonAttributes.ITEM_ID)
-                                                                 .stream()) {
-            // Process each item's ratings
-            for (IdBox<List<Rating>> item: ratingStream) {
-                // Build a set of users.  We build an array first, then convert to a set.
-                LongList users = new LongArrayList();
-                // Add each rating's user ID to the user sets
-                for (Rating r: item.getValue()) {
-                    long user = r.getUserId();
-                    users.add(user);
-                    allUsers.add(user);
-                }
-                // put this item's user set into the item user map
-                // a frozen set will be very efficient later
-                itemUsers.put(item.getId(), LongUtils.frozenSet(users));
-            }
-        }
-
-        long numAllUsers = allUsers.size();
-
-        // Second step: compute all association rules
-
-        // We need a map to store them
-        Long2ObjectMap<Long2DoubleMap> assocMatrix = new Long2ObjectOpenHashMap<>();
-
-        // then loop over 'x' items
-        for (Long2ObjectMap.Entry<LongSortedSet> xEntry: itemUsers.long2ObjectEntrySet()) {
-            long xId = xEntry.getLongKey();
-            LongSortedSet xUsers = xEntry.getValue();
-
-            // set up a map to hold the scores for each 'y' item for this 'x'
-            Long2DoubleMap itemScores = new Long2DoubleOpenHashMap();
-
-            // loop over the 'y' items
-            for (Long2ObjectMap.Entry<LongSortedSet> yEntry: itemUsers.long2ObjectEntrySet()) {
-                long yId = yEntry.getLongKey();
-                LongSortedSet yUsers = yEntry.getValue();
-
-                // percent users that rated both x and y / percent of users that rated x
-                long numIntersectUsers = 0;
-
-                //don't compare the same product IDs and count user IDs that are in both xUsers and yUsers
-                if (xId != yId) {
-                    //for each yUser look for same userId in xUsers list and count the total intersections
-                    for (long yUser: yUsers) if (xUsers.contains(yUser)) numIntersectUsers++;
-
-                    double P_x_intersect_y = (double)numIntersectUsers / (double)numAllUsers;
-                    double P_x = (double)xUsers.size() / (double)numAllUsers;
-                    double P_x_y = P_x_intersect_y / P_x;
-                    ((Long2DoubleOpenHashMap) itemScores).addTo(yId,P_x_y);
-                }
-            }
-
-            // save the score map to the main map
-            assocMatrix.put(xId, itemScores);
-            /*if (xId==260) {
-                logger.info("2571 should be 0.916, calculated as: {}", itemScores.get(2571));
-                logger.info("1196 should be 0.899, calculated as: {}", itemScores.get(1196));
-                logger.info("4993 should be 0.892, calculated as: {}", itemScores.get(4993));
-                logger.info("1210 should be 0.847, calculated as: {}", itemScores.get(1210));
-                logger.info("356 should be 0.843, calculated as: {}", itemScores.get(356));
-                logger.info("5952 should be 0.841, calculated as: {}", itemScores.get(5952));
-                logger.info("7153 should be 0.830, calculated as: {}", itemScores.get(7153));
-                logger.info("296 should be 0.828, calculated as: {}", itemScores.get(296));
-                logger.info("1198 should be 0.791, calculated as: {}", itemScores.get(1198));
-                logger.info("480 should be 0.789, calculated as: {}", itemScores.get(480));
-            }*/
-        }
-
-        return new AssociationModel(assocMatrix);
+        return builder.build(ratings);
     }
 }
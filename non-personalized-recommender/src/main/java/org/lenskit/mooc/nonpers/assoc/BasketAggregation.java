@@ -0,0 +1,23 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+/**
+ * How {@link AssociationItemBasedItemRecommender} combines the association rows of a multi-item basket.  Pairs with
+ * no stored score contribute 0.
+ */
+public enum BasketAggregation {
+    /**
+     * Score each item with the sum of its associations with the basket items.
+     */
+    SUM,
+    /**
+     * Score each item with its strongest association with any basket item.
+     */
+    MAX,
+    /**
+     * Score each item with the sum of its associations with the basket items, each weighted by
+     * {@code decay^age}, where the most recently added basket item has age 0.  The basket must be ordered oldest
+     * first, as a list or a {@link java.util.LinkedHashSet}; the items of any other set are weighted equally.
+     * @see RecencyDecay
+     */
+    RECENCY
+}
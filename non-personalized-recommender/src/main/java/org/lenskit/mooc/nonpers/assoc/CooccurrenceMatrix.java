@@ -0,0 +1,541 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.mooc.nonpers.data.SparseRatingMatrix;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * Item-item co-occurrence counts: for each pair of items, the number of users who rated both.
+ *
+ * <p>The counts are computed user-major: every user's item list is walked once, so the cost is proportional to the
+ * number of co-rated pairs rather than to the square of the number of items.  The exception is the small block of
+ * items rated by a large share of the users, where nearly every pair co-occurs many times; those pairs are counted
+ * item-major with the intersection kernels of {@link ItemUserSets} instead.  Only pairs that actually co-occur are
+ * stored, in compressed sparse rows over the dense item index.  The matrix is symmetric, so only the upper triangle
+ * is counted and it is mirrored at the end; each row then holds all of an item's co-occurring items, sorted by
+ * index.</p>
+ *
+ * <p>Each row of the upper triangle is counted into its own slot, with thread-confined scratch arrays, so the rows
+ * can be counted on the fork-join threads of a {@link RowExecutor}; the slots are then assembled in row order, which
+ * makes the result the same for any number of threads.</p>
+ *
+ * <p>Both association metrics are derived from these counts together with the per-item rater counts and the total
+ * number of users.</p>
+ */
+public class CooccurrenceMatrix {
+    private static final Logger logger = LoggerFactory.getLogger(CooccurrenceMatrix.class);
+    /**
+     * Pairs of items that are each rated by at least 1/DENSE_FRACTION of the users are counted by intersecting their
+     * rater bitsets.  At that density the expected overlap exceeds the number of bitset words, so a word-at-a-time
+     * AND beats walking the shared raters one scattered increment at a time.
+     */
+    static final int DENSE_FRACTION = 8;
+
+    private final SortedKeyIndex items;
+    private final int userCount;
+    private final int[] raterCounts;
+    private final int[] rowStart;
+    private final int[] columns;
+    private final int[] counts;
+
+    private CooccurrenceMatrix(SortedKeyIndex items, int userCount, int[] raterCounts,
+                               int[] rowStart, int[] columns, int[] counts) {
+        this.items = items;
+        this.userCount = userCount;
+        this.raterCounts = raterCounts;
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.counts = counts;
+    }
+
+    /**
+     * Count item co-occurrences over the ratings in a DAO.  Repeated ratings of an item by the same user count once.
+     * @param dao The DAO.
+     * @return The co-occurrence matrix.
+     */
+    public static CooccurrenceMatrix build(DataAccessObject dao) {
+        try (RowExecutor rows = new RowExecutor(1)) {
+            return build(dao, rows);
+        }
+    }
+
+    /**
+     * Count item co-occurrences over the ratings in a DAO, on the threads of a row executor.
+     * @param dao The DAO.
+     * @param rows The executor to count rows on.
+     * @return The co-occurrence matrix.
+     */
+    static CooccurrenceMatrix build(DataAccessObject dao, RowExecutor rows) {
+        LongArrayList userIds = new LongArrayList();
+        LongArrayList itemIds = new LongArrayList();
+        try (ObjectStream<Rating> ratings = dao.query(Rating.class).stream()) {
+            for (Rating r: ratings) {
+                userIds.add(r.getUserId());
+                itemIds.add(r.getItemId());
+            }
+        }
+        return build(userIds.toLongArray(), itemIds.toLongArray(), DENSE_FRACTION, rows);
+    }
+
+    /**
+     * Count item co-occurrences over a list of (user, item) pairs.
+     * @param userIds The user IDs.
+     * @param itemIds The item IDs, parallel to {@code userIds}.
+     * @return The co-occurrence matrix.
+     */
+    public static CooccurrenceMatrix build(long[] userIds, long[] itemIds) {
+        return build(userIds, itemIds, DENSE_FRACTION);
+    }
+
+    /**
+     * Count item co-occurrences, with a given threshold for the dense block.
+     * @see #build(long[], long[], int, RowExecutor)
+     */
+    static CooccurrenceMatrix build(long[] userIds, long[] itemIds, int denseFraction) {
+        try (RowExecutor rows = new RowExecutor(1)) {
+            return build(userIds, itemIds, denseFraction, rows);
+        }
+    }
+
+    /**
+     * Count item co-occurrences, with a given threshold for the dense block, on the threads of a row executor.  The
+     * result does not depend on the number of threads.
+     * @param userIds The user IDs.
+     * @param itemIds The item IDs, parallel to {@code userIds}.
+     * @param denseFraction Items rated by at least 1/denseFraction of the users are counted with bitset kernels; 0
+     *                      counts every pair user-major.
+     * @param rows The executor to count rows on.
+     * @return The co-occurrence matrix.
+     */
+    static CooccurrenceMatrix build(long[] userIds, long[] itemIds, int denseFraction, RowExecutor rows) {
+        Stopwatch timer = Stopwatch.createStarted();
+        SortedKeyIndex users = SortedKeyIndex.fromCollection(new LongOpenHashSet(userIds));
+        SortedKeyIndex items = SortedKeyIndex.fromCollection(new LongOpenHashSet(itemIds));
+        int nUsers = users.size();
+
+        // group the item indexes by user, then sort and de-duplicate each user's list
+        int[] userStart = new int[nUsers + 1];
+        int[] userOf = new int[userIds.length];
+        for (int k = 0; k < userIds.length; k++) {
+            userOf[k] = users.getIndex(userIds[k]);
+            userStart[userOf[k] + 1]++;
+        }
+        for (int u = 0; u < nUsers; u++) {
+            userStart[u + 1] += userStart[u];
+        }
+        int[] fill = Arrays.copyOf(userStart, nUsers);
+        int[] userItems = new int[userIds.length];
+        for (int k = 0; k < itemIds.length; k++) {
+            userItems[fill[userOf[k]]++] = items.getIndex(itemIds[k]);
+        }
+        int size = 0;
+        int start = 0;
+        for (int u = 0; u < nUsers; u++) {
+            int end = userStart[u + 1];
+            Arrays.sort(userItems, start, end);
+            userStart[u] = size;
+            for (int k = start; k < end; k++) {
+                if (k == start || userItems[k] != userItems[k - 1]) {
+                    userItems[size++] = userItems[k];
+                }
+            }
+            start = end;
+        }
+        userStart[nUsers] = size;
+        return count(items, nUsers, userStart, userItems, denseFraction, rows, timer);
+    }
+
+    /**
+     * Count item co-occurrences over a rating matrix, on the threads of a row executor.  Items and users without
+     * ratings are left out, so the result is the same as counting the matrix's ratings from the DAO.
+     * @param ratings The rating matrix.
+     * @param rows The executor to count rows on.
+     * @return The co-occurrence matrix.
+     */
+    static CooccurrenceMatrix build(SparseRatingMatrix ratings, RowExecutor rows) {
+        Stopwatch timer = Stopwatch.createStarted();
+        // the matrix's rows are already grouped, sorted and de-duplicated; just renumber the rated items densely
+        SortedKeyIndex allItems = ratings.getItemIndex();
+        int[] rated = new int[allItems.size()];
+        LongArrayList itemIds = new LongArrayList();
+        for (int i = 0; i < rated.length; i++) {
+            if (ratings.itemEnd(i) > ratings.itemStart(i)) {
+                rated[i] = itemIds.size();
+                itemIds.add(allItems.getKey(i));
+            } else {
+                rated[i] = -1;
+            }
+        }
+        int nAllUsers = ratings.getUserIndex().size();
+        int[] userStart = new int[nAllUsers + 1];
+        int[] userItems = new int[ratings.getRatingCount()];
+        int nUsers = 0;
+        for (int u = 0; u < nAllUsers; u++) {
+            int end = ratings.userEnd(u);
+            if (end == ratings.userStart(u)) {
+                continue;
+            }
+            // dropping users without ratings leaves the positions of the others unchanged
+            for (int pos = ratings.userStart(u); pos < end; pos++) {
+                userItems[pos] = rated[ratings.userItemAt(pos)];
+            }
+            userStart[++nUsers] = end;
+        }
+        SortedKeyIndex items = SortedKeyIndex.wrap(itemIds.toLongArray(), itemIds.size());
+        return count(items, nUsers, Arrays.copyOf(userStart, nUsers + 1), userItems, DENSE_FRACTION, rows, timer);
+    }
+
+    /**
+     * Count item co-occurrences over users' item lists.
+     * @param items The item index.
+     * @param nUsers The number of users.
+     * @param userStart The start of each user's items in {@code userItems}, with the end of the last one.
+     * @param userItems The item indexes of each user, sorted and distinct; reordered in place.
+     * @param denseFraction The threshold of the dense block.
+     * @param rows The executor to count rows on.
+     * @param timer The build timer.
+     * @return The co-occurrence matrix.
+     */
+    private static CooccurrenceMatrix count(SortedKeyIndex items, int nUsers, int[] userStart, int[] userItems,
+                                            int denseFraction, RowExecutor rows, Stopwatch timer) {
+        int nItems = items.size();
+        int size = userStart[nUsers];
+
+        // and invert to the users of each item
+        int[] itemStart = new int[nItems + 1];
+        for (int k = 0; k < size; k++) {
+            itemStart[userItems[k] + 1]++;
+        }
+        for (int i = 0; i < nItems; i++) {
+            itemStart[i + 1] += itemStart[i];
+        }
+        int[] raterCounts = new int[nItems];
+        for (int i = 0; i < nItems; i++) {
+            raterCounts[i] = itemStart[i + 1] - itemStart[i];
+        }
+        int[] fill = Arrays.copyOf(itemStart, nItems);
+        int[] itemUsers = new int[size];
+        for (int u = 0; u < nUsers; u++) {
+            for (int k = userStart[u]; k < userStart[u + 1]; k++) {
+                itemUsers[fill[userItems[k]]++] = u;
+            }
+        }
+
+        // items rated by a large fraction of the users form a dense block, whose pairs are counted by intersecting
+        // bitsets instead of walking every shared rater; only the block's items are held as bitsets
+        ItemUserSets sets = new ItemUserSets(nUsers, itemStart, itemUsers, denseFraction);
+        boolean[] dense = new boolean[nItems];
+        int nDense = 0;
+        for (int i = 0; i < nItems; i++) {
+            if (sets.isBitset(i)) {
+                dense[i] = true;
+                nDense++;
+            }
+        }
+        int[] denseItems = new int[nDense];
+        int[] denseRank = new int[nItems];
+        for (int i = 0, d = 0; i < nItems; i++) {
+            if (dense[i]) {
+                denseRank[i] = d;
+                denseItems[d++] = i;
+            }
+        }
+
+        // reorder each user's list into its sparse items and then its dense items, both still sorted
+        int[] userSplit = new int[nUsers];
+        int[] scratch = new int[nItems];
+        for (int u = 0; u < nUsers; u++) {
+            int next = userStart[u];
+            int nDenseItems = 0;
+            for (int k = userStart[u]; k < userStart[u + 1]; k++) {
+                int b = userItems[k];
+                if (dense[b]) {
+                    scratch[nDenseItems++] = b;
+                } else {
+                    userItems[next++] = b;
+                }
+            }
+            userSplit[u] = next;
+            System.arraycopy(scratch, 0, userItems, next, nDenseItems);
+        }
+        logger.info("indexed {} items ({} dense) rated by {} users in {}", nItems, nDense, nUsers, timer);
+
+        // count each row into its own slot.  A sparse row walks its raters' sparse items from the top down and all
+        // of their dense items, so its slot also holds its pairs with earlier dense items; a dense row intersects
+        // itself with the later dense items.
+        int[][] slotColumns = new int[nItems][];
+        int[][] slotCounts = new int[nItems][];
+        ThreadLocal<int[][]> accumulators = ThreadLocal.withInitial(() -> new int[][]{new int[nItems], new int[nItems]});
+        rows.forEachRow("co-occurrence counting", nItems, a -> {
+            IntArrayList columns = new IntArrayList();
+            IntArrayList counts = new IntArrayList();
+            if (dense[a]) {
+                for (int e = denseRank[a] + 1; e < denseItems.length; e++) {
+                    int b = denseItems[e];
+                    int count = sets.intersectionSize(a, b);
+                    if (count > 0) {
+                        columns.add(b);
+                        counts.add(count);
+                    }
+                }
+            } else {
+                int[][] scratchArrays = accumulators.get();
+                int[] acc = scratchArrays[0];
+                int[] touched = scratchArrays[1];
+                int nTouched = 0;
+                for (int k = itemStart[a]; k < itemStart[a + 1]; k++) {
+                    int u = itemUsers[k];
+                    for (int m = userSplit[u] - 1; m >= userStart[u] && userItems[m] > a; m--) {
+                        int b = userItems[m];
+                        if (acc[b]++ == 0) {
+                            touched[nTouched++] = b;
+                        }
+                    }
+                    for (int m = userSplit[u]; m < userStart[u + 1]; m++) {
+                        int b = userItems[m];
+                        if (acc[b]++ == 0) {
+                            touched[nTouched++] = b;
+                        }
+                    }
+                }
+                nTouched = sortTouched(touched, nTouched, acc);
+                columns.ensureCapacity(nTouched);
+                counts.ensureCapacity(nTouched);
+                for (int t = 0; t < nTouched; t++) {
+                    int b = touched[t];
+                    columns.add(b);
+                    counts.add(acc[b]);
+                    acc[b] = 0;
+                }
+            }
+            slotColumns[a] = columns.toIntArray();
+            slotCounts[a] = counts.toIntArray();
+        });
+
+        // assemble the upper triangle; a dense row merges its kernel counts with the sparse rows that paired with it
+        timer.reset().start();
+        IntArrayList[] laterColumns = new IntArrayList[nItems];
+        IntArrayList[] laterCounts = new IntArrayList[nItems];
+        for (int b: denseItems) {
+            laterColumns[b] = new IntArrayList();
+            laterCounts[b] = new IntArrayList();
+        }
+        int[] upperStart = new int[nItems + 1];
+        for (int a = 0; a < nItems; a++) {
+            int[] columns = slotColumns[a];
+            int upper = 0;
+            if (!dense[a]) {
+                for (; upper < columns.length && columns[upper] < a; upper++) {
+                    laterColumns[columns[upper]].add(a);
+                    laterCounts[columns[upper]].add(slotCounts[a][upper]);
+                }
+            }
+            upperStart[a + 1] = columns.length - upper;
+        }
+        for (int b: denseItems) {
+            upperStart[b + 1] += laterColumns[b].size();
+        }
+        for (int a = 0; a < nItems; a++) {
+            upperStart[a + 1] += upperStart[a];
+        }
+        int[] upperColumns = new int[upperStart[nItems]];
+        int[] upperCounts = new int[upperStart[nItems]];
+        for (int a = 0; a < nItems; a++) {
+            int[] columns = slotColumns[a];
+            int[] counts = slotCounts[a];
+            int out = upperStart[a];
+            if (dense[a]) {
+                IntArrayList later = laterColumns[a];
+                int p = 0;
+                for (int k = 0; k < columns.length; k++) {
+                    for (; p < later.size() && later.getInt(p) < columns[k]; p++) {
+                        upperColumns[out] = later.getInt(p);
+                        upperCounts[out++] = laterCounts[a].getInt(p);
+                    }
+                    upperColumns[out] = columns[k];
+                    upperCounts[out++] = counts[k];
+                }
+                for (; p < later.size(); p++) {
+                    upperColumns[out] = later.getInt(p);
+                    upperCounts[out++] = laterCounts[a].getInt(p);
+                }
+                laterColumns[a] = null;
+                laterCounts[a] = null;
+            } else {
+                for (int k = 0; k < columns.length; k++) {
+                    if (columns[k] > a) {
+                        upperColumns[out] = columns[k];
+                        upperCounts[out++] = counts[k];
+                    }
+                }
+            }
+            slotColumns[a] = null;
+            slotCounts[a] = null;
+        }
+
+        CooccurrenceMatrix matrix = mirror(items, nUsers, raterCounts, upperStart, upperColumns, upperCounts);
+        logger.info("assembled {} co-occurring pairs among {} items in {}", upperColumns.length, nItems, timer);
+        return matrix;
+    }
+
+    /**
+     * Put the touched columns of an accumulator in order.  Rows touching a large share of the columns are re-read
+     * from the accumulator in a linear scan, which is cheaper than sorting them.
+     * @return The number of touched columns.
+     */
+    private static int sortTouched(int[] touched, int nTouched, int[] acc) {
+        if (nTouched * 16L > acc.length) {
+            int n = 0;
+            for (int b = 0; b < acc.length; b++) {
+                if (acc[b] != 0) {
+                    touched[n++] = b;
+                }
+            }
+            return n;
+        } else {
+            Arrays.sort(touched, 0, nTouched);
+            return nTouched;
+        }
+    }
+
+    /**
+     * Expand an upper-triangular count matrix into full symmetric rows.
+     */
+    private static CooccurrenceMatrix mirror(SortedKeyIndex items, int nUsers, int[] raterCounts,
+                                             int[] upperStart, int[] upperColumns, int[] upperCounts) {
+        int n = items.size();
+        int[] rowStart = new int[n + 1];
+        for (int a = 0; a < n; a++) {
+            for (int k = upperStart[a]; k < upperStart[a + 1]; k++) {
+                rowStart[a + 1]++;
+                rowStart[upperColumns[k] + 1]++;
+            }
+        }
+        for (int a = 0; a < n; a++) {
+            rowStart[a + 1] += rowStart[a];
+        }
+        int[] fill = Arrays.copyOf(rowStart, n);
+        int[] columns = new int[rowStart[n]];
+        int[] counts = new int[rowStart[n]];
+        // visiting rows in order emits each row's lower entries (from earlier rows) before its upper ones, and both
+        // runs are already sorted, so every row comes out sorted by column
+        for (int a = 0; a < n; a++) {
+            for (int k = upperStart[a]; k < upperStart[a + 1]; k++) {
+                int b = upperColumns[k];
+                columns[fill[b]] = a;
+                counts[fill[b]++] = upperCounts[k];
+            }
+            for (int k = upperStart[a]; k < upperStart[a + 1]; k++) {
+                columns[fill[a]] = upperColumns[k];
+                counts[fill[a]++] = upperCounts[k];
+            }
+        }
+        return new CooccurrenceMatrix(items, nUsers, raterCounts, rowStart, columns, counts);
+    }
+
+    /**
+     * Get the index of items in the matrix.
+     * @return The item index; rows and columns are positions in this index.
+     */
+    public SortedKeyIndex getItemIndex() {
+        return items;
+    }
+
+    /**
+     * Get the number of distinct users with ratings.
+     * @return The user count.
+     */
+    public int getUserCount() {
+        return userCount;
+    }
+
+    /**
+     * Get the number of distinct users who rated an item.
+     * @param item The item's index.
+     * @return The number of users who rated the item.
+     */
+    public int getRaterCount(int item) {
+        return raterCounts[item];
+    }
+
+    /**
+     * Get the number of stored (non-zero) entries, counting both (x,y) and (y,x).
+     * @return The number of stored entries.
+     */
+    public int getEntryCount() {
+        return columns.length;
+    }
+
+    /**
+     * Get the start of an item's row in the entry arrays.
+     * @param item The item's index.
+     * @return The position of the item's first entry.
+     */
+    public int rowStart(int item) {
+        return rowStart[item];
+    }
+
+    /**
+     * Get the end of an item's row in the entry arrays.
+     * @param item The item's index.
+     * @return The position after the item's last entry.
+     */
+    public int rowEnd(int item) {
+        return rowStart[item + 1];
+    }
+
+    /**
+     * Get the column (co-occurring item index) of an entry.
+     * @param pos The entry position.
+     * @return The index of the co-occurring item.
+     */
+    public int columnAt(int pos) {
+        return columns[pos];
+    }
+
+    /**
+     * Get the count of an entry.
+     * @param pos The entry position.
+     * @return The number of users who rated both items.
+     */
+    public int countAt(int pos) {
+        return counts[pos];
+    }
+
+    /**
+     * Get the row start array, for sharing with score storage laid out over the same entries.
+     * @return The internal row start array; it must not be modified.
+     */
+    int[] getRowStarts() {
+        return rowStart;
+    }
+
+    /**
+     * Get the column array, for sharing with score storage laid out over the same entries.
+     * @return The internal column array; it must not be modified.
+     */
+    int[] getColumns() {
+        return columns;
+    }
+
+    /**
+     * Get the number of users who rated both of two items.
+     * @param x The first item's index.
+     * @param y The second item's index.
+     * @return The co-occurrence count, 0 if the items never co-occur.
+     */
+    public int getCount(int x, int y) {
+        int pos = Arrays.binarySearch(columns, rowStart[x], rowStart[x + 1], y);
+        return pos >= 0 ? counts[pos] : 0;
+    }
+}
@@ -0,0 +1,59 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+/**
+ * Association scores in a dense matrix.  This is only compact when most pairs have a score.  Row positions are
+ * {@code ref * n + item}, so the matrix must have fewer than 2<sup>31</sup> cells.
+ */
+class DenseAssociationScores implements AssociationScores {
+    private static final long serialVersionUID = 1L;
+
+    private final double[][] scores;
+
+    /**
+     * Create dense score storage.
+     * @param scores The score matrix.  The storage takes ownership of it.
+     */
+    DenseAssociationScores(double[][] scores) {
+        this.scores = scores;
+    }
+
+    @Override
+    public double get(int ref, int item) {
+        return scores[ref][item];
+    }
+
+    @Override
+    public int rowStart(int ref) {
+        return ref * scores.length;
+    }
+
+    @Override
+    public int rowEnd(int ref) {
+        return (ref + 1) * scores.length;
+    }
+
+    @Override
+    public int columnAt(int pos) {
+        return pos % scores.length;
+    }
+
+    @Override
+    public double valueAt(int ref, int pos) {
+        return scores[pos / scores.length][pos % scores.length];
+    }
+
+    @Override
+    public int getRowLimit() {
+        return -1;
+    }
+
+    @Override
+    public long getStoredCount() {
+        return (long) scores.length * scores.length;
+    }
+
+    @Override
+    public long getMemoryFootprint() {
+        return (long) scores.length * (scores.length * 8L + 16);
+    }
+}
@@ -0,0 +1,53 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import org.lenskit.mooc.nonpers.structures.IntSetKernels;
+
+/**
+ * The sets of users who rated the items of the dense block, over dense user indexes, as bitsets.
+ *
+ * <p>Items rated by at least 1/{@code bitsetFraction} of the users are held as bitsets, which then take at most
+ * {@code 2 bitsetFraction / 64} times the memory of their sorted user arrays and intersect a word of users at a time.
+ * {@link CooccurrenceMatrix} builds the sets with its dense-block threshold and counts only the pairs of two dense
+ * items here; it counts every other pair user-major, which is faster than intersecting the rater sets of items below
+ * that density.</p>
+ */
+class ItemUserSets {
+    private final long[][] bitsets;
+
+    /**
+     * Build the user sets.
+     * @param userCount The number of users; every user index is less than it.
+     * @param start The start of each item's users in {@code users}, with a final entry marking the end of the last.
+     * @param users The users of each item, sorted within each item.
+     * @param bitsetFraction Items rated by at least 1/bitsetFraction of the users are held as bitsets; 0 holds none.
+     */
+    ItemUserSets(int userCount, int[] start, int[] users, int bitsetFraction) {
+        int n = start.length - 1;
+        bitsets = new long[n][];
+        for (int i = 0; i < n; i++) {
+            int size = start[i + 1] - start[i];
+            if (bitsetFraction > 0 && size > 0 && (long) size * bitsetFraction >= userCount) {
+                bitsets[i] = IntSetKernels.toBitset(users, start[i], start[i + 1], userCount);
+            }
+        }
+    }
+
+    /**
+     * Query whether an item is held as a bitset.
+     * @param item The item index.
+     * @return {@code true} if the item's users are held as a bitset.
+     */
+    boolean isBitset(int item) {
+        return bitsets[item] != null;
+    }
+
+    /**
+     * Count the users who rated both of two items.
+     * @param x The first item index, which must be held as a bitset.
+     * @param y The second item index, which must be held as a bitset.
+     * @return The number of users who rated both.
+     */
+    int intersectionSize(int x, int y) {
+        return IntSetKernels.bitsetCount(bitsets[x], bitsets[y]);
+    }
+}
@@ -0,0 +1,153 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Association scores read in place from a memory-mapped {@linkplain AssociationModelFile model file}.
+ *
+ * <p>The rows are read-only views of the mapped file, so the scores take no heap and are shared with every other
+ * process mapping the same file through the page cache.  Rows have the layout of the storage the file was written
+ * from: sorted by item index for complete rows, searched by bisection, or in decreasing order of score for truncated
+ * rows, which are short and scanned.</p>
+ *
+ * <p>Serializing the scores writes only the file's path; deserializing maps the file again.</p>
+ */
+class MappedAssociationScores implements AssociationScores {
+    private static final long serialVersionUID = 1L;
+
+    private final File file;
+    private final int limit;
+    private final transient IntBuffer rowStart;
+    private final transient IntBuffer columns;
+    private final transient DoubleBuffer values;
+
+    /**
+     * Create mapped score storage.
+     * @param file The file the buffers were mapped from.
+     * @param limit The row limit the file was written with.
+     * @param rowStart The start of each row, with a final entry marking the end of the last row.
+     * @param columns The item index of each stored score.
+     * @param values The stored scores.
+     */
+    MappedAssociationScores(File file, int limit, IntBuffer rowStart, IntBuffer columns, DoubleBuffer values) {
+        this.file = file;
+        this.limit = limit;
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    /**
+     * Get the file the scores are mapped from.
+     * @return The model file.
+     */
+    File getFile() {
+        return file;
+    }
+
+    @Override
+    public double get(int ref, int item) {
+        int lo = rowStart.get(ref);
+        int hi = rowStart.get(ref + 1);
+        if (limit >= 0) {
+            for (int pos = lo; pos < hi; pos++) {
+                if (columns.get(pos) == item) {
+                    return values.get(pos);
+                }
+            }
+            return 0;
+        }
+
+        hi -= 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int col = columns.get(mid);
+            if (col < item) {
+                lo = mid + 1;
+            } else if (col > item) {
+                hi = mid - 1;
+            } else {
+                return values.get(mid);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public int rowStart(int ref) {
+        return rowStart.get(ref);
+    }
+
+    @Override
+    public int rowEnd(int ref) {
+        return rowStart.get(ref + 1);
+    }
+
+    @Override
+    public int columnAt(int pos) {
+        return columns.get(pos);
+    }
+
+    @Override
+    public double valueAt(int ref, int pos) {
+        return values.get(pos);
+    }
+
+    @Override
+    public int getRowLimit() {
+        return limit;
+    }
+
+    @Override
+    public long getStoredCount() {
+        return columns.capacity();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The mapped scores are off the heap, so this is 0.
+     */
+    @Override
+    public long getMemoryFootprint() {
+        return 0;
+    }
+
+    private Object writeReplace() {
+        return new SerializedForm(file);
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("mapped scores must be read through their serialized form");
+    }
+
+    /**
+     * The serialized form of mapped scores: the path of the model file to map again.
+     */
+    private static class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final File file;
+
+        SerializedForm(File file) {
+            this.file = file;
+        }
+
+        private Object readResolve() throws ObjectStreamException {
+            try {
+                return AssociationModelFile.read(file).getScores();
+            } catch (IOException e) {
+                InvalidObjectException ex = new InvalidObjectException("cannot map association model file " + file);
+                ex.initCause(e);
+                throw ex;
+            }
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.mooc.nonpers.data.SparseRatingMatrix;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+
+/**
+ * Builds approximate association models from MinHash sketches of each item's raters, for catalogs too large to count
+ * co-occurrences exactly.
+ *
+ * <p>Each item's set of raters is summarized by its minimum under {@code k} hash functions.  Two items' signatures
+ * agree in each position with probability equal to the Jaccard similarity {@code J} of their rater sets, so the
+ * fraction of agreeing positions estimates {@code J}, and since the rater counts are known exactly, the number of
+ * common raters is estimated as {@code J (|X| + |Y|) / (1 + J)}.  By Hoeffding's inequality, {@code k =
+ * ln(2/d) / (2 e^2)} hashes put each estimate within {@code e} of {@code J} with probability {@code 1 - d}; the
+ * {@linkplain AssociationErrorBound error bound} sets {@code e}, with {@code d} fixed at
+ * {@value #FAILURE_PROBABILITY}.</p>
+ *
+ * <p>Candidate pairs are found by locality-sensitive hashing instead of comparing every pair: the signatures are cut
+ * into {@code b} bands of {@code r} hashes, and items whose signatures agree on a whole band share a bucket.  A pair
+ * becomes a candidate with probability {@code 1 - (1 - J^r)^b}; the band width is the widest that still makes pairs
+ * with {@code J} at half the error bound likely candidates, since smaller similarities cannot be told from 0 anyway.
+ * Agreeing on a hash means sharing a rater, so every stored pair co-occurs.  A wide band is bucketed by a 32-bit
+ * hash of its key, so colliding keys can make candidates that agree on no hash at all; those, like every pair that is
+ * not a candidate, score 0 and are not stored.  The signatures and bucket tables take about {@code 12k} bytes per
+ * item; each item's signature is its own array, so the sketch's size is not limited by the largest array.</p>
+ *
+ * <p>The error bound holds for the Jaccard estimates, not for the association scores made from them.  Confidence and
+ * lift divide the common raters by one item's rater count, and a pair only becomes a likely candidate when {@code J}
+ * is at least half the bound.  A small item whose raters nearly all rated a much more popular one has a high
+ * confidence with it but a low Jaccard similarity, so the pair is likely left out and scores 0; and when it is a
+ * candidate, the error of its common-rater estimate is about the bound times the popular item's rater count.  Such
+ * pairs can be off by far more than the bound.</p>
+ *
+ * <p>Sketching and candidate scoring both run row by row on a {@link RowExecutor}, and the model is the same for any
+ * number of threads.</p>
+ */
+public class MinHashAssociationBuilder {
+    private static final Logger logger = LoggerFactory.getLogger(MinHashAssociationBuilder.class);
+    /**
+     * The probability that a pair's similarity estimate misses the error bound.
+     */
+    static final double FAILURE_PROBABILITY = 0.05;
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final int hashes;
+    private final int bandWidth;
+    private final int bands;
+
+    /**
+     * Create a builder.
+     * @param errorBound The bound on the error of the similarity estimates, in (0, 1).
+     */
+    public MinHashAssociationBuilder(double errorBound) {
+        Preconditions.checkArgument(errorBound > 0 && errorBound < 1, "error bound must be in (0, 1)");
+        hashes = hashCount(errorBound);
+        bandWidth = bandWidth(hashes, errorBound / 2);
+        bands = hashes / bandWidth;
+    }
+
+    /**
+     * Create a builder with a given sketch shape.
+     * @param hashes The signature length.
+     * @param bandWidth The number of hashes in each band.
+     */
+    MinHashAssociationBuilder(int hashes, int bandWidth) {
+        Preconditions.checkArgument(bandWidth > 0 && bandWidth <= hashes, "band width must be in [1, hashes]");
+        this.hashes = hashes;
+        this.bandWidth = bandWidth;
+        bands = hashes / bandWidth;
+    }
+
+    /**
+     * Get the number of hashes needed for an error bound.
+     * @param errorBound The error bound.
+     * @return The signature length.
+     */
+    static int hashCount(double errorBound) {
+        return (int) Math.ceil(Math.log(2 / FAILURE_PROBABILITY) / (2 * errorBound * errorBound));
+    }
+
+    /**
+     * Get the widest band whose candidate threshold, the similarity at which a pair becomes a candidate with
+     * probability of about {@code 1 - 1/e}, is at most a target.
+     * @param hashes The signature length.
+     * @param threshold The target similarity.
+     * @return The number of hashes in each band.
+     */
+    static int bandWidth(int hashes, double threshold) {
+        int width = 1;
+        for (int r = 2; r <= hashes; r++) {
+            if (Math.pow(1.0 / (hashes / r), 1.0 / r) > threshold) {
+                break;
+            }
+            width = r;
+        }
+        return width;
+    }
+
+    /**
+     * Get the signature length.
+     * @return The number of hashes in each item's signature.
+     */
+    public int getHashCount() {
+        return hashes;
+    }
+
+    /**
+     * Get the number of bands.
+     * @return The number of LSH bands.
+     */
+    public int getBandCount() {
+        return bands;
+    }
+
+    /**
+     * Get the width of the bands.
+     * @return The number of hashes in each LSH band.
+     */
+    public int getBandWidth() {
+        return bandWidth;
+    }
+
+    /**
+     * Build an approximate association model over the ratings in a DAO.
+     * @param dao The DAO.
+     * @param metric The association metric.
+     * @param rowLimit The number of scores to keep for each reference item, or -1 to keep them all.
+     * @param precision The precision to store the scores with.
+     * @return The association model.
+     */
+    public AssociationModel build(DataAccessObject dao, AssociationMetric metric, int rowLimit,
+                                  ScorePrecision precision) {
+        try (RowExecutor rows = new RowExecutor(1)) {
+            return build(dao, metric, rowLimit, precision, rows);
+        }
+    }
+
+    /**
+     * Build an approximate association model over the ratings in a DAO, on the threads of a row executor.
+     * @see #build(DataAccessObject, AssociationMetric, int, ScorePrecision)
+     */
+    AssociationModel build(DataAccessObject dao, AssociationMetric metric, int rowLimit, ScorePrecision precision,
+                           RowExecutor rows) {
+        LongArrayList userIds = new LongArrayList();
+        LongArrayList itemIds = new LongArrayList();
+        try (ObjectStream<Rating> ratings = dao.query(Rating.class).stream()) {
+            for (Rating r: ratings) {
+                userIds.add(r.getUserId());
+                itemIds.add(r.getItemId());
+            }
+        }
+        return build(userIds.toLongArray(), itemIds.toLongArray(), metric, rowLimit, precision, rows);
+    }
+
+    /**
+     * Build an approximate association model over a list of (user, item) pairs.
+     * @param userIds The user IDs.
+     * @param itemIds The item IDs, parallel to {@code userIds}.
+     * @param metric The association metric.
+     * @param rowLimit The number of scores to keep for each reference item, or -1 to keep them all.
+     * @param precision The precision to store the scores with.
+     * @param rows The executor to sketch and score rows on.
+     * @return The association model.
+     */
+    AssociationModel build(long[] userIds, long[] itemIds, AssociationMetric metric, int rowLimit,
+                           ScorePrecision precision, RowExecutor rows) {
+        Stopwatch timer = Stopwatch.createStarted();
+        SortedKeyIndex items = SortedKeyIndex.fromCollection(new LongOpenHashSet(itemIds));
+        double users = new LongOpenHashSet(userIds).size();
+        int n = items.size();
+
+        // group the user IDs by item, then sort and de-duplicate each item's list
+        int[] itemStart = new int[n + 1];
+        int[] itemOf = new int[itemIds.length];
+        for (int k = 0; k < itemIds.length; k++) {
+            itemOf[k] = items.getIndex(itemIds[k]);
+            itemStart[itemOf[k] + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            itemStart[i + 1] += itemStart[i];
+        }
+        int[] fill = Arrays.copyOf(itemStart, n);
+        long[] itemUsers = new long[userIds.length];
+        for (int k = 0; k < userIds.length; k++) {
+            itemUsers[fill[itemOf[k]]++] = userIds[k];
+        }
+        int[] sizes = new int[n];
+        int size = 0;
+        int start = 0;
+        for (int i = 0; i < n; i++) {
+            int end = itemStart[i + 1];
+            Arrays.sort(itemUsers, start, end);
+            itemStart[i] = size;
+            for (int k = start; k < end; k++) {
+                if (k == start || itemUsers[k] != itemUsers[k - 1]) {
+                    itemUsers[size++] = itemUsers[k];
+                }
+            }
+            sizes[i] = size - itemStart[i];
+            start = end;
+        }
+        itemStart[n] = size;
+        return sketchAndScore(items, users, itemStart, itemUsers, sizes, metric, rowLimit, precision, rows, timer);
+    }
+
+    /**
+     * Build an approximate association model over a rating matrix, on the threads of a row executor.  Items and users
+     * without ratings are left out, so the model is the same as one built from the matrix's ratings in the DAO.
+     * @param ratings The rating matrix.
+     * @param metric The association metric.
+     * @param rowLimit The number of scores to keep for each reference item, or -1 to keep them all.
+     * @param precision The precision to store the scores with.
+     * @param rows The executor to sketch and score rows on.
+     * @return The association model.
+     */
+    AssociationModel build(SparseRatingMatrix ratings, AssociationMetric metric, int rowLimit,
+                           ScorePrecision precision, RowExecutor rows) {
+        Stopwatch timer = Stopwatch.createStarted();
+        // the matrix's columns are already grouped and sorted by user, so sorted by user ID too
+        SortedKeyIndex allUsers = ratings.getUserIndex();
+        SortedKeyIndex allItems = ratings.getItemIndex();
+        LongArrayList itemIds = new LongArrayList();
+        IntArrayList itemStart = new IntArrayList();
+        long[] itemUsers = new long[ratings.getRatingCount()];
+        int size = 0;
+        itemStart.add(0);
+        for (int i = 0; i < allItems.size(); i++) {
+            if (ratings.itemEnd(i) == ratings.itemStart(i)) {
+                continue;
+            }
+            for (int pos = ratings.itemStart(i); pos < ratings.itemEnd(i); pos++) {
+                itemUsers[size++] = allUsers.getKey(ratings.itemUserAt(pos));
+            }
+            itemIds.add(allItems.getKey(i));
+            itemStart.add(size);
+        }
+        int n = itemIds.size();
+        int[] sizes = new int[n];
+        for (int x = 0; x < n; x++) {
+            sizes[x] = itemStart.getInt(x + 1) - itemStart.getInt(x);
+        }
+        int users = 0;
+        for (int u = 0; u < allUsers.size(); u++) {
+            if (ratings.userEnd(u) > ratings.userStart(u)) {
+                users++;
+            }
+        }
+        return sketchAndScore(SortedKeyIndex.wrap(itemIds.toLongArray(), n), users, itemStart.toIntArray(),
+                              itemUsers, sizes, metric, rowLimit, precision, rows, timer);
+    }
+
+    /**
+     * Sketch the items' rater lists and score the candidate pairs.
+     * @param items The item index.
+     * @param users The number of users.
+     * @param itemStart The start of each item's users in {@code itemUsers}, with the end of the last one.
+     * @param itemUsers The user IDs of each item, sorted and distinct.
+     * @param sizes The number of users of each item.
+     * @return The association model.
+     */
+    private AssociationModel sketchAndScore(SortedKeyIndex items, double users, int[] itemStart, long[] itemUsers,
+                                            int[] sizes, AssociationMetric metric, int rowLimit,
+                                            ScorePrecision precision, RowExecutor rows, Stopwatch timer) {
+        int n = items.size();
+
+        // each item's signature is written only by its own row
+        int[][] signatures = new int[n][];
+        rows.forEachRow("min-hash sketching", n, x -> signatures[x] = sketch(itemUsers, itemStart[x],
+                                                                             itemStart[x + 1]));
+        logger.info("sketched {} items with {} hashes in {}", n, hashes, timer);
+
+        timer.reset().start();
+        int[][] bucketOf = new int[bands][];
+        int[][] bucketStart = new int[bands][];
+        int[][] bucketItems = new int[bands][];
+        for (int band = 0; band < bands; band++) {
+            buildBuckets(signatures, n, band, bucketOf, bucketStart, bucketItems);
+        }
+        logger.info("hashed {} items into {} bands of {} in {}", n, bands, bandWidth, timer);
+
+        // score each row's candidates into its own slot.  A candidate is marked with its row's number plus one,
+        // which no other row on the thread uses, so the marks never need clearing
+        int[][] slotColumns = new int[n][];
+        double[][] slotValues = new double[n][];
+        ThreadLocal<int[]> marks = ThreadLocal.withInitial(() -> new int[n]);
+        rows.forEachRow("candidate scoring", n, x -> {
+            int[] mark = marks.get();
+            IntArrayList candidates = new IntArrayList();
+            for (int band = 0; band < bands; band++) {
+                int bucket = bucketOf[band][x];
+                if (bucket < 0) {
+                    continue;
+                }
+                int[] members = bucketItems[band];
+                for (int k = bucketStart[band][bucket]; k < bucketStart[band][bucket + 1]; k++) {
+                    int y = members[k];
+                    if (y != x && mark[y] != x + 1) {
+                        mark[y] = x + 1;
+                        candidates.add(y);
+                    }
+                }
+            }
+            int[] sorted = candidates.toIntArray();
+            IntArrays.quickSort(sorted);
+            IntArrayList columns = new IntArrayList(sorted.length);
+            DoubleArrayList values = new DoubleArrayList(sorted.length);
+            for (int y: sorted) {
+                double common = estimateIntersection(signatures, x, y, sizes[x], sizes[y]);
+                // a pair that met through colliding band keys may agree on no hash; it is not stored, like any pair
+                // estimated not to co-occur
+                if (common > 0) {
+                    columns.add(y);
+                    values.add(metric.score(common, sizes[x], sizes[y], users));
+                }
+            }
+            slotColumns[x] = columns.toIntArray();
+            slotValues[x] = values.toDoubleArray();
+        });
+
+        int[] rowStart = new int[n + 1];
+        for (int x = 0; x < n; x++) {
+            rowStart[x + 1] = rowStart[x] + slotColumns[x].length;
+        }
+        int[] columns = new int[rowStart[n]];
+        double[] values = new double[rowStart[n]];
+        for (int x = 0; x < n; x++) {
+            System.arraycopy(slotColumns[x], 0, columns, rowStart[x], slotColumns[x].length);
+            System.arraycopy(slotValues[x], 0, values, rowStart[x], slotValues[x].length);
+            slotColumns[x] = null;
+            slotValues[x] = null;
+        }
+        logger.info("estimated {} candidate pairs among {} items", columns.length, n);
+        return AssociationModel.fromRows(items, rowStart, columns, values, rowLimit, precision, rows);
+    }
+
+    /**
+     * Compute an item's signature: the minimum of each hash over its users.  The hashes are formed from two base
+     * hashes of each user as {@code h1 + j h2}, so a user costs two mixes and then an add per hash.
+     */
+    private int[] sketch(long[] users, int start, int end) {
+        int[] signature = new int[hashes];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (int k = start; k < end; k++) {
+            long h1 = mix(users[k] + GOLDEN_GAMMA);
+            long h2 = mix(users[k] + 2 * GOLDEN_GAMMA) | 1;
+            long h = h1;
+            for (int j = 0; j < hashes; j++) {
+                int v = (int) (h >>> 32);
+                if (v < signature[j]) {
+                    signature[j] = v;
+                }
+                h += h2;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * Group the items into buckets by one band of their signatures.  Items alone in their bucket get bucket -1.
+     */
+    private void buildBuckets(int[][] signatures, int n, int band, int[][] bucketOf, int[][] bucketStart,
+                              int[][] bucketItems) {
+        // sort the items by band key, with the item in the low bits; a narrow band's key is its single hash
+        long[] keyed = new long[n];
+        for (int x = 0; x < n; x++) {
+            int[] signature = signatures[x];
+            int offset = band * bandWidth;
+            long key = signature[offset];
+            if (bandWidth > 1) {
+                key = 0;
+                for (int j = 0; j < bandWidth; j++) {
+                    key = key * 31 + signature[offset + j];
+                }
+                key = (int) (mix(key) >>> 32);
+            }
+            keyed[x] = (key << 32) | x;
+        }
+        Arrays.sort(keyed);
+
+        int[] of = new int[n];
+        Arrays.fill(of, -1);
+        IntArrayList starts = new IntArrayList();
+        IntArrayList members = new IntArrayList();
+        int run = 0;
+        while (run < n) {
+            int end = run + 1;
+            while (end < n && keyed[end] >> 32 == keyed[run] >> 32) {
+                end++;
+            }
+            if (end - run > 1) {
+                int bucket = starts.size();
+                starts.add(members.size());
+                for (int k = run; k < end; k++) {
+                    int x = (int) keyed[k];
+                    of[x] = bucket;
+                    members.add(x);
+                }
+            }
+            run = end;
+        }
+        starts.add(members.size());
+        bucketOf[band] = of;
+        bucketStart[band] = starts.toIntArray();
+        bucketItems[band] = members.toIntArray();
+    }
+
+    /**
+     * Estimate the number of users who rated both of two items from their signatures.
+     */
+    private double estimateIntersection(int[][] signatures, int x, int y, int xSize, int ySize) {
+        int[] sx = signatures[x];
+        int[] sy = signatures[y];
+        int agree = 0;
+        for (int j = 0; j < hashes; j++) {
+            if (sx[j] == sy[j]) {
+                agree++;
+            }
+        }
+        double jaccard = agree / (double) hashes;
+        return Math.min(jaccard * (xSize + ySize) / (1 + jaccard), Math.min(xSize, ySize));
+    }
+
+    /**
+     * The SplitMix64 finalizer.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
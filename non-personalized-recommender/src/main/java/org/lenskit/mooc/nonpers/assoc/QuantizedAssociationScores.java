@@ -0,0 +1,187 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import java.util.Arrays;
+
+/**
+ * Association scores in sparse rows, with each score stored as a {@code float} or as a 16- or 8-bit step between its
+ * row's smallest and largest score.  Scores are decoded on every read.
+ *
+ * <p>The rows keep the layout of the storage they were quantized from: sorted by item index for complete rows, or in
+ * decreasing order of score for truncated rows.  Quantizing never reorders two scores, but it can make different
+ * scores equal; truncated rows re-sort such ties by item index, so a row's prefix is still exactly its top-N.  A
+ * 16-bit score is off by at most 1/131070 of its row's range, and an 8-bit score by at most 1/510.</p>
+ */
+class QuantizedAssociationScores implements AssociationScores {
+    private static final long serialVersionUID = 1L;
+
+    private final ScorePrecision precision;
+    private final int limit;
+    private final int[] rowStart;
+    private final int[] columns;
+    private final float[] floats;
+    private final char[] shorts;
+    private final byte[] bytes;
+    private final double[] rowBase;
+    private final double[] rowStep;
+
+    private QuantizedAssociationScores(ScorePrecision precision, int limit, int[] rowStart, int[] columns,
+                                       float[] floats, char[] shorts, byte[] bytes,
+                                       double[] rowBase, double[] rowStep) {
+        this.precision = precision;
+        this.limit = limit;
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.floats = floats;
+        this.shorts = shorts;
+        this.bytes = bytes;
+        this.rowBase = rowBase;
+        this.rowStep = rowStep;
+    }
+
+    /**
+     * Quantize score storage.
+     * @param source The scores to quantize.
+     * @param n The number of rows.
+     * @param precision The precision to store the scores with.
+     * @return The quantized scores.
+     * @throws IllegalArgumentException if {@code precision} is {@link ScorePrecision#DOUBLE}.
+     */
+    static QuantizedAssociationScores quantize(AssociationScores source, int n, ScorePrecision precision) {
+        if (precision == ScorePrecision.DOUBLE) {
+            throw new IllegalArgumentException("double-precision scores are not quantized");
+        }
+        int[] starts = new int[n + 1];
+        for (int x = 0; x < n; x++) {
+            starts[x + 1] = starts[x] + source.rowEnd(x) - source.rowStart(x);
+        }
+        int size = starts[n];
+        int[] columns = new int[size];
+        float[] floats = precision == ScorePrecision.FLOAT ? new float[size] : null;
+        char[] shorts = precision == ScorePrecision.SHORT ? new char[size] : null;
+        byte[] bytes = precision == ScorePrecision.BYTE ? new byte[size] : null;
+        double[] base = new double[n];
+        double[] step = new double[n];
+        double levels = (1 << precision.getBits()) - 1;
+
+        for (int x = 0; x < n; x++) {
+            int from = source.rowStart(x);
+            int to = source.rowEnd(x);
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int pos = from; pos < to; pos++) {
+                min = Math.min(min, source.valueAt(x, pos));
+                max = Math.max(max, source.valueAt(x, pos));
+            }
+            if (from < to) {
+                base[x] = min;
+                step[x] = (max - min) / levels;
+            }
+            for (int pos = from; pos < to; pos++) {
+                int out = starts[x] + pos - from;
+                double value = source.valueAt(x, pos);
+                columns[out] = source.columnAt(pos);
+                if (floats != null) {
+                    floats[out] = (float) value;
+                } else {
+                    long q = step[x] > 0 ? Math.round((value - base[x]) / step[x]) : 0;
+                    if (shorts != null) {
+                        shorts[out] = (char) q;
+                    } else {
+                        bytes[out] = (byte) q;
+                    }
+                }
+            }
+        }
+
+        QuantizedAssociationScores scores =
+                new QuantizedAssociationScores(precision, source.getRowLimit(), starts, columns,
+                                               floats, shorts, bytes, base, step);
+        if (scores.limit >= 0) {
+            for (int x = 0; x < n; x++) {
+                scores.sortTies(x);
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Re-sort runs of equal scores in a ranked row by item index.  Scores in a run are equal, so only the columns move.
+     */
+    private void sortTies(int ref) {
+        int end = rowStart[ref + 1];
+        int run = rowStart[ref];
+        for (int pos = run + 1; pos <= end; pos++) {
+            if (pos == end || valueAt(ref, pos) != valueAt(ref, run)) {
+                Arrays.sort(columns, run, pos);
+                run = pos;
+            }
+        }
+    }
+
+    /**
+     * Get the precision the scores are stored with.
+     * @return The score precision.
+     */
+    ScorePrecision getPrecision() {
+        return precision;
+    }
+
+    @Override
+    public double get(int ref, int item) {
+        int pos;
+        if (limit >= 0) {
+            pos = -1;
+            for (int p = rowStart[ref]; p < rowStart[ref + 1]; p++) {
+                if (columns[p] == item) {
+                    pos = p;
+                    break;
+                }
+            }
+        } else {
+            pos = Arrays.binarySearch(columns, rowStart[ref], rowStart[ref + 1], item);
+        }
+        return pos >= 0 ? valueAt(ref, pos) : 0;
+    }
+
+    @Override
+    public int rowStart(int ref) {
+        return rowStart[ref];
+    }
+
+    @Override
+    public int rowEnd(int ref) {
+        return rowStart[ref + 1];
+    }
+
+    @Override
+    public int columnAt(int pos) {
+        return columns[pos];
+    }
+
+    @Override
+    public double valueAt(int ref, int pos) {
+        switch (precision) {
+        case FLOAT:
+            return floats[pos];
+        case SHORT:
+            return rowBase[ref] + shorts[pos] * rowStep[ref];
+        default:
+            return rowBase[ref] + (bytes[pos] & 0xFF) * rowStep[ref];
+        }
+    }
+
+    @Override
+    public int getRowLimit() {
+        return limit;
+    }
+
+    @Override
+    public long getStoredCount() {
+        return columns.length;
+    }
+
+    @Override
+    public long getMemoryFootprint() {
+        return rowStart.length * 4L + columns.length * (4L + precision.getBits() / 8) + rowBase.length * 16L;
+    }
+}
@@ -0,0 +1,20 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import org.grouplens.grapht.annotation.DefaultDouble;
+import org.lenskit.inject.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * The per-item weight decay for {@link BasketAggregation#RECENCY}: each older basket item's associations count this
+ * much less than the next newer one's.
+ */
+@Documented
+@DefaultDouble(0.8)
+@Parameter(Double.class)
+@Qualifier
+@Target({ElementType.METHOD, ElementType.PARAMETER, ElementType.FIELD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RecencyDecay {
+}
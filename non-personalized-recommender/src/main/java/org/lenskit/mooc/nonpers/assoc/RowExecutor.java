@@ -0,0 +1,133 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import com.google.common.base.Stopwatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs the per-item-row phases of an association model build, on a fork-join pool when there is more than one
+ * thread.
+ *
+ * <p>A phase's rows are split in halves until the pieces are small, and idle workers steal pieces from busy ones, so
+ * a few very expensive rows (the most popular items) do not leave the other threads waiting.  Row actions must only
+ * write the row's own output slots, so no locking is needed; anything else a row needs to write must be
+ * thread-confined.  Every phase is timed, and its progress is logged every tenth of its rows.</p>
+ */
+class RowExecutor implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(RowExecutor.class);
+    /**
+     * Split row ranges until each piece is at most 1/PIECES_PER_THREAD of a thread's share.
+     */
+    private static final int PIECES_PER_THREAD = 64;
+
+    private final int threads;
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a row executor.
+     * @param threads The number of threads; 1 or less runs every phase on the calling thread.
+     */
+    RowExecutor(int threads) {
+        this.threads = Math.max(threads, 1);
+        pool = this.threads > 1 ? new ForkJoinPool(this.threads) : null;
+    }
+
+    /**
+     * Get the number of threads.
+     * @return The number of threads phases run on.
+     */
+    int getThreadCount() {
+        return threads;
+    }
+
+    /**
+     * Run an action for every row.
+     * @param phase The phase name, for logging.
+     * @param rows The number of rows.
+     * @param action The action, called once with each row index in {@code [0, rows)}, possibly from several threads
+     *               at once.
+     */
+    void forEachRow(String phase, int rows, IntConsumer action) {
+        Stopwatch timer = Stopwatch.createStarted();
+        Progress progress = new Progress(phase, rows);
+        if (pool == null) {
+            for (int row = 0; row < rows; row++) {
+                action.accept(row);
+                progress.advance(1);
+            }
+        } else {
+            int grain = Math.max(1, rows / (threads * PIECES_PER_THREAD));
+            pool.invoke(new RowTask(0, rows, grain, action, progress));
+        }
+        logger.info("{} finished {} rows on {} threads in {}", phase, rows, threads, timer);
+    }
+
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Logs a phase's progress each time another tenth of its rows is done.
+     */
+    private static class Progress {
+        private final String phase;
+        private final int rows;
+        private final AtomicInteger done = new AtomicInteger();
+
+        Progress(String phase, int rows) {
+            this.phase = phase;
+            this.rows = rows;
+        }
+
+        void advance(int count) {
+            int before = done.getAndAdd(count);
+            long tenth = (before + count) * 10L / rows;
+            if (tenth != before * 10L / rows) {
+                logger.debug("{}: {}0% of {} rows done", phase, tenth, rows);
+            }
+        }
+    }
+
+    /**
+     * Runs a range of rows, splitting it while it is larger than the grain.
+     */
+    private static class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int lo;
+        private final int hi;
+        private final int grain;
+        private final IntConsumer action;
+        private final Progress progress;
+
+        RowTask(int lo, int hi, int grain, IntConsumer action, Progress progress) {
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+            this.action = action;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo > grain) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new RowTask(lo, mid, grain, action, progress),
+                          new RowTask(mid, hi, grain, action, progress));
+            } else {
+                for (int row = lo; row < hi; row++) {
+                    action.accept(row);
+                }
+                progress.advance(hi - lo);
+            }
+        }
+    }
+}
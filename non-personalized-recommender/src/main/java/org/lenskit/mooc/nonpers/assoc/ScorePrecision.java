@@ -0,0 +1,38 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+/**
+ * How precisely an {@link AssociationModel} stores its scores.  Scores are only used to rank items, so a lower
+ * precision usually gives the same rankings in a fraction of the memory.
+ */
+public enum ScorePrecision {
+    /**
+     * Store every score as a {@code double}.
+     */
+    DOUBLE(64),
+    /**
+     * Store every score as a {@code float}.
+     */
+    FLOAT(32),
+    /**
+     * Store every score as a 16-bit step between its row's smallest and largest score.
+     */
+    SHORT(16),
+    /**
+     * Store every score as an 8-bit step between its row's smallest and largest score.
+     */
+    BYTE(8);
+
+    private final int bits;
+
+    ScorePrecision(int bits) {
+        this.bits = bits;
+    }
+
+    /**
+     * Get the size of a stored score.
+     * @return The number of bits each score takes.
+     */
+    public int getBits() {
+        return bits;
+    }
+}
@@ -0,0 +1,173 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.mooc.nonpers.data.RatingColumnFile;
+import org.lenskit.mooc.nonpers.data.SparseRatingMatrix;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compares association models stored at reduced {@linkplain ScorePrecision precision} with the double-precision
+ * model: how much memory the scores take, and how well each item's top-N related items agree.
+ *
+ * <p>Agreement is the overlap of the two models' top-N lists for each reference item, as a fraction of N, averaged
+ * over the items; the worst item's overlap is reported too.  Run {@link #main(String[])} (the {@code evalScorePrecision}
+ * Gradle task) to compare every precision on a data set.</p>
+ */
+public class ScorePrecisionEvaluation {
+    /**
+     * The default length of the compared lists.
+     */
+    public static final int DEFAULT_LIST_SIZE = 25;
+
+    private final AssociationModel reference;
+    private final AssociationItemBasedItemRecommender referenceRecommender;
+    private final int listSize;
+
+    /**
+     * Create an evaluation.
+     * @param reference The double-precision model to compare against.
+     * @param listSize The length of the compared lists.
+     */
+    public ScorePrecisionEvaluation(AssociationModel reference, int listSize) {
+        this.reference = reference;
+        referenceRecommender = new AssociationItemBasedItemRecommender(reference);
+        this.listSize = listSize;
+    }
+
+    /**
+     * Compare a model with the reference model.
+     * @param candidate The reduced-precision model, built from the same data as the reference model.
+     * @return The comparison.
+     */
+    public Report evaluate(AssociationModel candidate) {
+        AssociationItemBasedItemRecommender recommender = new AssociationItemBasedItemRecommender(candidate);
+        double total = 0;
+        double worst = 1;
+        int count = 0;
+        LongIterator iter = reference.getKnownItems().iterator();
+        while (iter.hasNext()) {
+            long ref = iter.nextLong();
+            List<Long> expected = referenceRecommender.recommendRelatedItems(Collections.singleton(ref), listSize);
+            if (expected.isEmpty()) {
+                continue;
+            }
+            LongSet expectedSet = new LongOpenHashSet(expected);
+            int common = 0;
+            for (long item: recommender.recommendRelatedItems(Collections.singleton(ref), listSize)) {
+                if (expectedSet.contains(item)) {
+                    common++;
+                }
+            }
+            double overlap = common / (double) expected.size();
+            total += overlap;
+            worst = Math.min(worst, overlap);
+            count++;
+        }
+        return new Report(reference.getMemoryFootprint(), candidate.getMemoryFootprint(),
+                          count > 0 ? total / count : 1, worst);
+    }
+
+    /**
+     * Build a model at every precision and compare it with the double-precision model.
+     * @param args The data source file, optionally followed by the association metric ({@code basic} or
+     *             {@code lift}, default {@code lift}) and the row limit (default -1).
+     * @throws IOException if there is an error loading the data.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: ScorePrecisionEvaluation DATA-SOURCE [basic|lift] [ROW-LIMIT]");
+            System.exit(2);
+        }
+        DataAccessObject dao = RatingColumnFile.loadDataSource(Paths.get(args[0]));
+        SparseRatingMatrix ratings = SparseRatingMatrix.build(dao);
+        AssociationMetric metric = args.length < 2 || args[1].equalsIgnoreCase("lift")
+                ? AssociationMetric.LIFT : AssociationMetric.BASIC;
+        int rowLimit = args.length < 3 ? -1 : Integer.parseInt(args[2]);
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        ScorePrecisionEvaluation eval = null;
+        System.out.printf("%-8s %14s %8s %10s %10s %10s%n",
+                          "Scores", "Bytes", "Saved", "Overlap", "Worst", "Build");
+        for (ScorePrecision precision: ScorePrecision.values()) {
+            Stopwatch timer = Stopwatch.createStarted();
+            AssociationModel model = new AssociationModelBuilder(metric)
+                    .setThreads(threads)
+                    .setRowLimit(rowLimit)
+                    .setPrecision(precision)
+                    .build(ratings);
+            timer.stop();
+            if (eval == null) {
+                eval = new ScorePrecisionEvaluation(model, DEFAULT_LIST_SIZE);
+            }
+            Report report = eval.evaluate(model);
+            System.out.printf("%-8s %14d %7.1f%% %10.4f %10.4f %10s%n",
+                              precision, report.getCandidateBytes(), report.getMemorySaved() * 100,
+                              report.getMeanOverlap(), report.getWorstOverlap(), timer);
+        }
+    }
+
+    /**
+     * The comparison of a reduced-precision model with the reference model.
+     */
+    public static class Report {
+        private final long referenceBytes;
+        private final long candidateBytes;
+        private final double meanOverlap;
+        private final double worstOverlap;
+
+        Report(long referenceBytes, long candidateBytes, double meanOverlap, double worstOverlap) {
+            this.referenceBytes = referenceBytes;
+            this.candidateBytes = candidateBytes;
+            this.meanOverlap = meanOverlap;
+            this.worstOverlap = worstOverlap;
+        }
+
+        /**
+         * Get the reference model's memory footprint.
+         * @return The approximate heap used by the reference model, in bytes.
+         */
+        public long getReferenceBytes() {
+            return referenceBytes;
+        }
+
+        /**
+         * Get the compared model's memory footprint.
+         * @return The approximate heap used by the compared model, in bytes.
+         */
+        public long getCandidateBytes() {
+            return candidateBytes;
+        }
+
+        /**
+         * Get the memory saved by the compared model.
+         * @return The fraction of the reference model's footprint the compared model saves.
+         */
+        public double getMemorySaved() {
+            return 1 - candidateBytes / (double) referenceBytes;
+        }
+
+        /**
+         * Get the mean agreement of the top-N lists.
+         * @return The mean fraction of each reference item's top-N list the two models share.
+         */
+        public double getMeanOverlap() {
+            return meanOverlap;
+        }
+
+        /**
+         * Get the worst agreement of the top-N lists.
+         * @return The smallest fraction of any reference item's top-N list the two models share.
+         */
+        public double getWorstOverlap() {
+            return worstOverlap;
+        }
+    }
+}
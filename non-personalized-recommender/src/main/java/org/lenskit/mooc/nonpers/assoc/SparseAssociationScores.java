@@ -0,0 +1,69 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import java.util.Arrays;
+
+/**
+ * Association scores in compressed sparse rows: each reference item's stored scores, sorted by item index, in
+ * parallel column and value arrays.  Pairs with no stored score are 0.
+ */
+class SparseAssociationScores implements AssociationScores {
+    private static final long serialVersionUID = 1L;
+
+    private final int[] rowStart;
+    private final int[] columns;
+    private final double[] values;
+
+    /**
+     * Create sparse score storage.  The storage takes ownership of the arrays.
+     * @param rowStart The start of each row in {@code columns} and {@code values}, with a final entry marking the end
+     *                 of the last row.
+     * @param columns The item index of each stored score, sorted within each row.
+     * @param values The stored scores.
+     */
+    SparseAssociationScores(int[] rowStart, int[] columns, double[] values) {
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    @Override
+    public double get(int ref, int item) {
+        int pos = Arrays.binarySearch(columns, rowStart[ref], rowStart[ref + 1], item);
+        return pos >= 0 ? values[pos] : 0;
+    }
+
+    @Override
+    public int rowStart(int ref) {
+        return rowStart[ref];
+    }
+
+    @Override
+    public int rowEnd(int ref) {
+        return rowStart[ref + 1];
+    }
+
+    @Override
+    public int columnAt(int pos) {
+        return columns[pos];
+    }
+
+    @Override
+    public double valueAt(int ref, int pos) {
+        return values[pos];
+    }
+
+    @Override
+    public int getRowLimit() {
+        return -1;
+    }
+
+    @Override
+    public long getStoredCount() {
+        return rowStart[rowStart.length - 1];
+    }
+
+    @Override
+    public long getMemoryFootprint() {
+        return rowStart.length * 4L + columns.length * 4L + values.length * 8L;
+    }
+}
@@ -0,0 +1,310 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.mooc.nonpers.data.SparseRatingMatrix;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An association model over recent ratings: only ratings within a sliding time window are counted, and each can be
+ * weighted by an exponential decay of its age.
+ *
+ * <p>With a window of length {@code W}, a rating counts while it is less than {@code W} old, so the scores are those
+ * of a model built over just the ratings in the window.  The window's ratings are kept in a ring buffer in time order;
+ * advancing the clock pops the ratings that fell out of the window off its head and retracts them from an
+ * {@link UpdatableAssociationModel}, so advancing costs {@code O(k)} per expired rating of a user with {@code k}
+ * items, not a rebuild.  A user's repeated rating of an item counts once, from its latest time.</p>
+ *
+ * <p>With a half-life {@code h}, a rating of age {@code a} counts with weight {@code 2^(-a/h)}.  A pair co-occurs with
+ * the weight of its older rating, and each user counts with the weight of their latest rating, so the decayed counts
+ * keep the bounds of plain counts.  All weights decay at the same rate, so they are stored relative to a fixed origin
+ * and never updated as time passes; every metric is a ratio of weights, so the scores are the same.  The origin is
+ * moved forward, rescaling every weight, only once the newest weights reach 2<sup>{@value #MAX_HALF_LIVES}</sup>.</p>
+ *
+ * <p>Times are in the units of the rating timestamps.  Events must arrive in time order.</p>
+ */
+@ThreadSafe
+public class TemporalAssociationModel {
+    private static final Logger logger = LoggerFactory.getLogger(TemporalAssociationModel.class);
+    /**
+     * The number of half-lives after the decay origin at which weights are rescaled.
+     */
+    static final int MAX_HALF_LIVES = 256;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final UpdatableAssociationModel counts;
+    private final long window;
+    private final double halfLife;
+
+    // the window's events, oldest first, in a ring buffer
+    private long[] bufUsers = new long[INITIAL_CAPACITY];
+    private long[] bufItems = new long[INITIAL_CAPACITY];
+    private long[] bufTimes = new long[INITIAL_CAPACITY];
+    private int head;
+    private int size;
+    // the time of each user's latest rating of each item in the window
+    private final Long2ObjectOpenHashMap<Long2LongOpenHashMap> latest = new Long2ObjectOpenHashMap<>();
+
+    private long now = Long.MIN_VALUE;
+    private long origin = Long.MIN_VALUE;
+    /**
+     * The time of the latest event, with or without a window to buffer it in.
+     */
+    private long lastEvent = Long.MIN_VALUE;
+
+    /**
+     * Create an empty temporal model.
+     * @param metric The association metric.
+     * @param window The length of the window, or 0 for no window.
+     * @param halfLife The half-life of rating weights, or 0 for no decay.
+     * @param rowLimit The number of scores to keep for each reference item, or -1 to keep them all.
+     * @param precision The precision to store the scores with.
+     */
+    public TemporalAssociationModel(AssociationMetric metric, long window, double halfLife, int rowLimit,
+                                    ScorePrecision precision) {
+        counts = new UpdatableAssociationModel(metric, rowLimit, precision);
+        this.window = window;
+        this.halfLife = halfLife;
+    }
+
+    /**
+     * Create a temporal model from the ratings in a DAO, with its clock at the time of the latest rating.
+     * @param dao The DAO.
+     * @param metric The association metric.
+     * @param window The length of the window, or 0 for no window.
+     * @param halfLife The half-life of rating weights, or 0 for no decay.
+     * @param rowLimit The number of scores to keep for each reference item, or -1 to keep them all.
+     * @param precision The precision to store the scores with.
+     * @return The temporal model, with a published snapshot.
+     */
+    public static TemporalAssociationModel build(DataAccessObject dao, AssociationMetric metric, long window,
+                                                 double halfLife, int rowLimit, ScorePrecision precision) {
+        return build(SparseRatingMatrix.build(dao), metric, window, halfLife, rowLimit, precision);
+    }
+
+    /**
+     * Create a temporal model from a rating matrix, with its clock at the time of the latest rating.
+     *
+     * <p>The matrix already holds each user's latest rating of each item, with its time; they are replayed in time
+     * order.  The replay is sequential, since each event retracts the ones that fall out of the window before it and
+     * decays against the ones after it, so it does not use build threads.</p>
+     *
+     * @param ratings The rating matrix.
+     * @param metric The association metric.
+     * @param window The length of the window, or 0 for no window.
+     * @param halfLife The half-life of rating weights, or 0 for no decay.
+     * @param rowLimit The number of scores to keep for each reference item, or -1 to keep them all.
+     * @param precision The precision to store the scores with.
+     * @return The temporal model, with a published snapshot.
+     */
+    public static TemporalAssociationModel build(SparseRatingMatrix ratings, AssociationMetric metric, long window,
+                                                 double halfLife, int rowLimit, ScorePrecision precision) {
+        Stopwatch timer = Stopwatch.createStarted();
+        int n = ratings.getRatingCount();
+        int nUsers = ratings.getUserIndex().size();
+        int[] userOf = new int[n];
+        for (int u = 0; u < nUsers; u++) {
+            Arrays.fill(userOf, ratings.userStart(u), ratings.userEnd(u), u);
+        }
+        int[] order = new int[n];
+        for (int k = 0; k < n; k++) {
+            order[k] = k;
+        }
+        IntArrays.quickSort(order, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return Long.compare(ratings.userTimeAt(a), ratings.userTimeAt(b));
+            }
+        });
+        TemporalAssociationModel model = new TemporalAssociationModel(metric, window, halfLife, rowLimit, precision);
+        if (n > 0) {
+            // start the clock at the end, so ratings that are already out of the window are never counted
+            model.advanceTo(ratings.userTimeAt(order[n - 1]));
+        }
+        for (int k: order) {
+            model.addEvent(ratings.getUserIndex().getKey(userOf[k]),
+                           ratings.getItemIndex().getKey(ratings.userItemAt(k)),
+                           ratings.userTimeAt(k));
+        }
+        logger.info("replayed {} ratings into {}-long window with half-life {} in {}",
+                    n, window, halfLife, timer);
+        model.publish();
+        return model;
+    }
+
+    /**
+     * Get the current time.
+     * @return The time of the latest event or clock advance.
+     */
+    public synchronized long getTime() {
+        return now;
+    }
+
+    /**
+     * Get the number of events in the window.
+     * @return The number of buffered events, including repeated ratings that no longer count.
+     */
+    synchronized int getBufferedEventCount() {
+        return size;
+    }
+
+    /**
+     * Record that a user rated an item, and advance the clock to the rating's time.
+     * @param r The rating.
+     * @return {@code true} if the rating changed the counts.
+     */
+    public boolean addRating(Rating r) {
+        return addEvent(r.getUserId(), r.getItemId(), r.getTimestamp());
+    }
+
+    /**
+     * Record that a user rated an item at a time, and advance the clock to that time.  The event is visible after the
+     * next {@link #publish()}.
+     * @param user The user ID.
+     * @param item The item ID.
+     * @param time The time of the rating.
+     * @return {@code true} if the event changed the counts, {@code false} if it is already out of the window or
+     *         repeats a rating with no effect.
+     * @throws IllegalArgumentException if the event is older than the latest event.
+     */
+    public synchronized boolean addEvent(long user, long item, long time) {
+        if (time < lastEvent) {
+            throw new IllegalArgumentException("event at " + time + " is older than the latest event");
+        }
+        lastEvent = time;
+        advanceTo(time);
+        if (window > 0 && now - time >= window) {
+            return false;
+        }
+        double weight = weight(time);
+        if (weight <= 0) {
+            return false;
+        }
+        if (window > 0) {
+            push(user, item, time);
+            Long2LongOpenHashMap mine = latest.get(user);
+            if (mine == null) {
+                mine = new Long2LongOpenHashMap();
+                latest.put(user, mine);
+            }
+            mine.put(item, time);
+        }
+        return counts.addEvent(user, item, weight);
+    }
+
+    /**
+     * Advance the clock, retracting the events that fall out of the window.  The retractions are visible after the
+     * next {@link #publish()}.
+     * @param time The new time; the clock never moves back.
+     */
+    public synchronized void advanceTo(long time) {
+        if (time <= now) {
+            return;
+        }
+        now = time;
+        if (halfLife > 0) {
+            if (origin == Long.MIN_VALUE) {
+                origin = now;
+            } else if ((now - origin) / halfLife > MAX_HALF_LIVES) {
+                counts.scaleWeights(Math.pow(2, (origin - now) / halfLife));
+                origin = now;
+            }
+        }
+        int expired = 0;
+        while (window > 0 && size > 0 && now - bufTimes[head] >= window) {
+            long user = bufUsers[head];
+            long item = bufItems[head];
+            long at = bufTimes[head];
+            head = (head + 1) & (bufTimes.length - 1);
+            size -= 1;
+            // a user's later rating of the item supersedes this one, and expires with its own entry
+            Long2LongOpenHashMap mine = latest.get(user);
+            if (mine != null && mine.containsKey(item) && mine.get(item) == at) {
+                mine.remove(item);
+                if (mine.isEmpty()) {
+                    latest.remove(user);
+                }
+                counts.removeEvent(user, item);
+                expired++;
+            }
+        }
+        if (expired > 0) {
+            logger.debug("advanced window to {}, expiring {} ratings", now, expired);
+        }
+    }
+
+    /**
+     * Publish a snapshot that includes every event and expiry so far.
+     * @return The new snapshot.
+     * @see UpdatableAssociationModel#publish()
+     */
+    public AssociationModel publish() {
+        return counts.publish();
+    }
+
+    /**
+     * Get the current snapshot.
+     * @return The model as of the last publication, or {@code null} if nothing has been published.
+     */
+    public AssociationModel getSnapshot() {
+        return counts.getSnapshot();
+    }
+
+    /**
+     * Publish a snapshot periodically.  This does not advance the clock; do that on each event, or on a schedule of
+     * its own.
+     * @see UpdatableAssociationModel#schedulePublishing(ScheduledExecutorService, long, TimeUnit)
+     */
+    public ScheduledFuture<?> schedulePublishing(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        return counts.schedulePublishing(executor, period, unit);
+    }
+
+    /**
+     * Get the weight of a rating at a time, relative to the decay origin.
+     */
+    private double weight(long time) {
+        return halfLife > 0 ? Math.pow(2, (time - origin) / halfLife) : 1;
+    }
+
+    /**
+     * Append an event to the ring buffer, doubling it if it is full.
+     */
+    private void push(long user, long item, long time) {
+        int capacity = bufTimes.length;
+        if (size == capacity) {
+            bufUsers = unwrap(bufUsers, capacity * 2);
+            bufItems = unwrap(bufItems, capacity * 2);
+            bufTimes = unwrap(bufTimes, capacity * 2);
+            head = 0;
+            capacity *= 2;
+        }
+        int tail = (head + size) & (capacity - 1);
+        bufUsers[tail] = user;
+        bufItems[tail] = item;
+        bufTimes[tail] = time;
+        size += 1;
+    }
+
+    /**
+     * Copy the ring buffer's contents, oldest first, into a larger array.
+     */
+    private long[] unwrap(long[] buffer, int capacity) {
+        long[] copy = new long[capacity];
+        int first = Math.min(size, buffer.length - head);
+        System.arraycopy(buffer, head, copy, 0, first);
+        System.arraycopy(buffer, 0, copy, first, size - first);
+        return copy;
+    }
+}
@@ -0,0 +1,167 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+/**
+ * Association scores truncated to each reference item's K highest scores, stored in decreasing order of score (ties
+ * in increasing item index, which is also increasing item ID).  Pairs outside a row's top K score 0.
+ *
+ * <p>Memory is {@code O(n K)} for {@code n} items.  Each row's top K is selected with a bounded heap, in
+ * {@code O(r log K)} for a row of {@code r} scores.  Rows are short, so lookups scan them; the point of the ordering is
+ * that a top-N query can read a row's prefix instead of scoring every candidate.</p>
+ */
+class TopKAssociationScores implements AssociationScores {
+    private static final long serialVersionUID = 1L;
+
+    private final int limit;
+    private final int[] rowStart;
+    private final int[] columns;
+    private final double[] values;
+
+    private TopKAssociationScores(int limit, int[] rowStart, int[] columns, double[] values) {
+        this.limit = limit;
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    /**
+     * Truncate sparse score rows to their top K non-zero scores.
+     * @param rowStart The start of each row in {@code columns} and {@code values}, with a final entry marking the end
+     *                 of the last row.
+     * @param columns The item index of each score.
+     * @param values The scores.
+     * @param limit The number of scores to keep per row.
+     * @param rows The executor to select the rows' top scores on.
+     * @return The truncated scores.
+     */
+    static TopKAssociationScores truncate(int[] rowStart, int[] columns, double[] values, int limit,
+                                          RowExecutor rows) {
+        int n = rowStart.length - 1;
+        int[] outStart = new int[n + 1];
+        for (int x = 0; x < n; x++) {
+            int nonZero = 0;
+            for (int pos = rowStart[x]; pos < rowStart[x + 1]; pos++) {
+                if (values[pos] != 0) {
+                    nonZero++;
+                }
+            }
+            outStart[x + 1] = outStart[x] + Math.min(nonZero, limit);
+        }
+
+        int[] outColumns = new int[outStart[n]];
+        double[] outValues = new double[outStart[n]];
+        rows.forEachRow("association truncation", n, x -> {
+            // keep the row's best positions in a bounded min-heap, then pop them off worst-first into place
+            int[] heap = new int[outStart[x + 1] - outStart[x]];
+            int size = 0;
+            for (int pos = rowStart[x]; pos < rowStart[x + 1]; pos++) {
+                if (values[pos] == 0) {
+                    continue;
+                }
+                if (size < heap.length) {
+                    heap[size] = pos;
+                    siftUp(heap, size++, columns, values);
+                } else if (heap.length > 0 && worse(heap[0], pos, columns, values)) {
+                    heap[0] = pos;
+                    siftDown(heap, size, columns, values);
+                }
+            }
+            while (size > 0) {
+                int pos = heap[0];
+                outColumns[outStart[x] + size - 1] = columns[pos];
+                outValues[outStart[x] + size - 1] = values[pos];
+                heap[0] = heap[--size];
+                siftDown(heap, size, columns, values);
+            }
+        });
+        return new TopKAssociationScores(limit, outStart, outColumns, outValues);
+    }
+
+    /**
+     * Whether the score at position p1 ranks below the one at p2.
+     */
+    private static boolean worse(int p1, int p2, int[] columns, double[] values) {
+        int cmp = Double.compare(values[p1], values[p2]);
+        return cmp < 0 || (cmp == 0 && columns[p1] > columns[p2]);
+    }
+
+    private static void siftUp(int[] heap, int i, int[] columns, double[] values) {
+        int pos = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(pos, heap[parent], columns, values)) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = pos;
+    }
+
+    private static void siftDown(int[] heap, int size, int[] columns, double[] values) {
+        if (size == 0) {
+            return;
+        }
+        int pos = heap[0];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && worse(heap[child + 1], heap[child], columns, values)) {
+                child++;
+            }
+            if (!worse(heap[child], pos, columns, values)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = pos;
+    }
+
+    @Override
+    public int getRowLimit() {
+        return limit;
+    }
+
+    @Override
+    public int rowStart(int ref) {
+        return rowStart[ref];
+    }
+
+    @Override
+    public int rowEnd(int ref) {
+        return rowStart[ref + 1];
+    }
+
+    @Override
+    public int columnAt(int pos) {
+        return columns[pos];
+    }
+
+    @Override
+    public double valueAt(int ref, int pos) {
+        return values[pos];
+    }
+
+    @Override
+    public double get(int ref, int item) {
+        for (int pos = rowStart[ref]; pos < rowStart[ref + 1]; pos++) {
+            if (columns[pos] == item) {
+                return values[pos];
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public long getStoredCount() {
+        return rowStart[rowStart.length - 1];
+    }
+
+    @Override
+    public long getMemoryFootprint() {
+        return rowStart.length * 4L + columns.length * 4L + values.length * 8L;
+    }
+}
@@ -0,0 +1,471 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleArrays;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An association model that absorbs new rating events without recounting the ratings in the DAO.
+ *
+ * <p>This class keeps the counts association rules are computed from &mdash; each item's number of raters, each
+ * co-occurring pair's number of common raters, and each user's set of items &mdash; and publishes immutable
+ * {@link AssociationModel} snapshots.  A new event (a user rating an item they had not rated) costs {@code O(k)} for a
+ * user with {@code k} earlier items: it bumps the item's rater count and the counts of its pairs with the user's
+ * earlier items, and marks those rows as changed.  Retracting an event undoes it at the same cost.  Readers call
+ * {@link #getSnapshot()} and use the returned model for the whole request; events are not visible until the next
+ * {@link #publish()}, which {@link #schedulePublishing(ScheduledExecutorService, long, TimeUnit)} runs
+ * periodically.</p>
+ *
+ * <p>Events can also carry a weight, for {@link TemporalAssociationModel}'s decay.  A user's ratings then count
+ * with their weights, a pair with the smaller of its two ratings' weights, and each user with their largest weight;
+ * with the default weight of 1 these are the plain counts.</p>
+ *
+ * <p>Publishing re-sorts only the changed rows' pair counts, then scores every pair from the counts with the same
+ * arithmetic as the model providers, so a snapshot of unweighted events has exactly the scores a full rebuild over
+ * the same ratings would have.  Scoring is linear in the number of pairs and needs no intersection counting, so it is
+ * much cheaper than a rebuild.  Events are serialized with each other, and neither events nor readers wait for
+ * scoring.</p>
+ */
+@ThreadSafe
+public class UpdatableAssociationModel {
+    private static final Logger logger = LoggerFactory.getLogger(UpdatableAssociationModel.class);
+    /**
+     * Pair weights left below this fraction of a retracted contribution are rounding residue, and are dropped.
+     */
+    private static final double RESIDUE = 1.0e-9;
+
+    private final AssociationMetric metric;
+    private final int rowLimit;
+    private final ScorePrecision precision;
+
+    // items are numbered in the order they were first seen, and all item state is indexed by that number
+    private final LongArrayList itemIds = new LongArrayList();
+    private final Long2IntOpenHashMap itemNumbers = new Long2IntOpenHashMap();
+    private final IntArrayList raterCounts = new IntArrayList();
+    private final DoubleArrayList raterWeights = new DoubleArrayList();
+    private final List<Int2DoubleOpenHashMap> pairWeights = new ArrayList<>();
+    // each row's pairs as of the last publication, sorted by item ID
+    private final List<int[]> rowItems = new ArrayList<>();
+    private final List<double[]> rowWeights = new ArrayList<>();
+    private final IntOpenHashSet changedRows = new IntOpenHashSet();
+    // each user's items, with the weights they were rated with
+    private final Long2ObjectOpenHashMap<Int2DoubleOpenHashMap> userItems = new Long2ObjectOpenHashMap<>();
+    private double userWeight;
+    private long pendingEvents;
+
+    private final Object publishLock = new Object();
+    private volatile AssociationModel snapshot;
+
+    /**
+     * Create an empty updatable model.
+     * @param metric The association metric.
+     * @param rowLimit The number of scores to keep for each reference item, or -1 to keep them all.
+     * @param precision The precision to store the scores with.
+     */
+    public UpdatableAssociationModel(AssociationMetric metric, int rowLimit, ScorePrecision precision) {
+        this.metric = metric;
+        this.rowLimit = rowLimit;
+        this.precision = precision;
+        itemNumbers.defaultReturnValue(-1);
+    }
+
+    /**
+     * Create an updatable model from the ratings in a DAO.
+     * @param dao The DAO.
+     * @param metric The association metric.
+     * @param rowLimit The number of scores to keep for each reference item, or -1 to keep them all.
+     * @param precision The precision to store the scores with.
+     * @return The updatable model, with a published snapshot of the DAO's ratings.
+     */
+    public static UpdatableAssociationModel build(DataAccessObject dao, AssociationMetric metric, int rowLimit,
+                                                  ScorePrecision precision) {
+        LongArrayList userIds = new LongArrayList();
+        LongArrayList itemIds = new LongArrayList();
+        try (ObjectStream<Rating> ratings = dao.query(Rating.class).stream()) {
+            for (Rating r: ratings) {
+                userIds.add(r.getUserId());
+                itemIds.add(r.getItemId());
+            }
+        }
+        return build(userIds.toLongArray(), itemIds.toLongArray(), metric, rowLimit, precision);
+    }
+
+    /**
+     * Create an updatable model from a list of (user, item) pairs.  The initial pair counts are computed in bulk by
+     * {@link CooccurrenceMatrix}.
+     * @param userIds The user IDs.
+     * @param itemIds The item IDs, parallel to {@code userIds}.
+     * @param metric The association metric.
+     * @param rowLimit The number of scores to keep for each reference item, or -1 to keep them all.
+     * @param precision The precision to store the scores with.
+     * @return The updatable model, with a published snapshot of the pairs.
+     */
+    public static UpdatableAssociationModel build(long[] userIds, long[] itemIds, AssociationMetric metric,
+                                                  int rowLimit, ScorePrecision precision) {
+        Stopwatch timer = Stopwatch.createStarted();
+        CooccurrenceMatrix cooc = CooccurrenceMatrix.build(userIds, itemIds);
+        UpdatableAssociationModel model = new UpdatableAssociationModel(metric, rowLimit, precision);
+        SortedKeyIndex index = cooc.getItemIndex();
+        for (int x = 0; x < index.size(); x++) {
+            int num = model.itemNumber(index.getKey(x));
+            model.raterCounts.set(num, cooc.getRaterCount(x));
+            model.raterWeights.set(num, cooc.getRaterCount(x));
+            Int2DoubleOpenHashMap pairs = model.pairWeights.get(num);
+            for (int pos = cooc.rowStart(x); pos < cooc.rowEnd(x); pos++) {
+                // items were numbered in index order, so the column is also the item number
+                pairs.put(cooc.columnAt(pos), cooc.countAt(pos));
+            }
+        }
+        for (int k = 0; k < userIds.length; k++) {
+            model.itemsOf(userIds[k]).put(model.itemNumbers.get(itemIds[k]), 1.0);
+        }
+        model.userWeight = model.userItems.size();
+        logger.info("loaded counts of {} items and {} users in {}", index.size(), cooc.getUserCount(), timer);
+        model.publish();
+        return model;
+    }
+
+    /**
+     * Get the current snapshot.
+     * @return The model as of the last publication, or {@code null} if nothing has been published.  It is immutable,
+     *         and is not affected by later events.
+     */
+    public AssociationModel getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Get the number of events since the last publication.
+     * @return The number of events that changed the counts but are not in the snapshot yet.
+     */
+    public synchronized long getPendingEventCount() {
+        return pendingEvents;
+    }
+
+    /**
+     * Record that a user rated an item.  The event is visible after the next {@link #publish()}.
+     * @param user The user ID.
+     * @param item The item ID.
+     * @return {@code true} if the event changed the counts, {@code false} if the user had already rated the item.
+     */
+    public boolean addEvent(long user, long item) {
+        return addEvent(user, item, 1);
+    }
+
+    /**
+     * Record that a user rated an item, with a weight.  If the user had already rated the item, its weight is
+     * replaced.
+     * @param user The user ID.
+     * @param item The item ID.
+     * @param weight The weight of the rating; it must be positive.
+     * @return {@code true} if the event changed the counts, {@code false} if the user had already rated the item with
+     *         the same weight.
+     */
+    public synchronized boolean addEvent(long user, long item, double weight) {
+        Preconditions.checkArgument(weight > 0, "rating weight must be positive");
+        int num = itemNumber(item);
+        Int2DoubleOpenHashMap mine = itemsOf(user);
+        if (mine.containsKey(num)) {
+            if (mine.get(num) == weight) {
+                return false;
+            }
+            retract(mine, num);
+        }
+
+        double before = maxWeight(mine);
+        mine.put(num, weight);
+        userWeight += Math.max(before, weight) - before;
+        raterCounts.set(num, raterCounts.getInt(num) + 1);
+        raterWeights.set(num, raterWeights.getDouble(num) + weight);
+        Int2DoubleOpenHashMap row = pairWeights.get(num);
+        for (Int2DoubleMap.Entry e: mine.int2DoubleEntrySet()) {
+            int other = e.getIntKey();
+            if (other != num) {
+                double w = Math.min(weight, e.getDoubleValue());
+                row.addTo(other, w);
+                pairWeights.get(other).addTo(num, w);
+                changedRows.add(other);
+            }
+        }
+        changedRows.add(num);
+        pendingEvents += 1;
+        return true;
+    }
+
+    /**
+     * Retract a user's rating of an item.  The retraction is visible after the next {@link #publish()}; an item left
+     * with no raters is dropped from the model.
+     * @param user The user ID.
+     * @param item The item ID.
+     * @return {@code true} if the event changed the counts, {@code false} if the user had not rated the item.
+     */
+    public synchronized boolean removeEvent(long user, long item) {
+        int num = itemNumbers.get(item);
+        Int2DoubleOpenHashMap mine = userItems.get(user);
+        if (num < 0 || mine == null || !mine.containsKey(num)) {
+            return false;
+        }
+        retract(mine, num);
+        if (mine.isEmpty()) {
+            userItems.remove(user);
+        }
+        pendingEvents += 1;
+        return true;
+    }
+
+    /**
+     * Record a batch of ratings.  Only the user and item of each rating are used.
+     * @param ratings The new ratings.
+     * @return The number of ratings that changed the counts.
+     */
+    public synchronized int addRatings(@Nonnull Collection<Rating> ratings) {
+        int added = 0;
+        for (Rating r: ratings) {
+            if (addEvent(r.getUserId(), r.getItemId())) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Multiply every weight by a factor.  This changes no score, since every metric is a ratio of weights; it lets
+     * weights that grow over time be brought back into range.
+     * @param factor The factor.
+     */
+    synchronized void scaleWeights(double factor) {
+        for (int num = 0; num < itemIds.size(); num++) {
+            raterWeights.set(num, raterWeights.getDouble(num) * factor);
+            for (Int2DoubleMap.Entry e: pairWeights.get(num).int2DoubleEntrySet()) {
+                e.setValue(e.getDoubleValue() * factor);
+            }
+            changedRows.add(num);
+        }
+        for (Int2DoubleOpenHashMap items: userItems.values()) {
+            for (Int2DoubleMap.Entry e: items.int2DoubleEntrySet()) {
+                e.setValue(e.getDoubleValue() * factor);
+            }
+        }
+        userWeight *= factor;
+    }
+
+    /**
+     * Publish a snapshot that includes every event so far.  If there are no new events, the current snapshot is kept.
+     * @return The new snapshot.
+     */
+    public AssociationModel publish() {
+        synchronized (publishLock) {
+            Stopwatch timer = Stopwatch.createStarted();
+            long events;
+            int changed;
+            long[] ids;
+            int[] counts;
+            double[] raters;
+            int[][] items;
+            double[][] weights;
+            double users;
+            synchronized (this) {
+                if (snapshot != null && pendingEvents == 0) {
+                    return snapshot;
+                }
+                events = pendingEvents;
+                changed = changedRows.size();
+                IntIterator iter = changedRows.iterator();
+                while (iter.hasNext()) {
+                    freezeRow(iter.nextInt());
+                }
+                changedRows.clear();
+                pendingEvents = 0;
+                ids = itemIds.toLongArray();
+                counts = raterCounts.toIntArray();
+                raters = raterWeights.toDoubleArray();
+                items = rowItems.toArray(new int[ids.length][]);
+                weights = rowWeights.toArray(new double[ids.length][]);
+                users = userWeight;
+            }
+
+            // rows were frozen in item ID order, so mapping item numbers to index positions keeps them sorted
+            LongArrayList live = new LongArrayList(ids.length);
+            for (int num = 0; num < ids.length; num++) {
+                if (counts[num] > 0) {
+                    live.add(ids[num]);
+                }
+            }
+            SortedKeyIndex index = SortedKeyIndex.fromCollection(live);
+            int n = index.size();
+            int[] position = new int[ids.length];
+            int[] numberAt = new int[n];
+            for (int num = 0; num < ids.length; num++) {
+                position[num] = index.tryGetIndex(ids[num]);
+                if (position[num] >= 0) {
+                    numberAt[position[num]] = num;
+                }
+            }
+            int[] rowStart = new int[n + 1];
+            for (int x = 0; x < n; x++) {
+                rowStart[x + 1] = rowStart[x] + items[numberAt[x]].length;
+            }
+            int[] columns = new int[rowStart[n]];
+            double[] values = new double[rowStart[n]];
+            for (int x = 0; x < n; x++) {
+                int num = numberAt[x];
+                int[] others = items[num];
+                double[] common = weights[num];
+                for (int k = 0; k < others.length; k++) {
+                    int y = others[k];
+                    columns[rowStart[x] + k] = position[y];
+                    values[rowStart[x] + k] = metric.score(common[k], raters[num], raters[y], users);
+                }
+            }
+
+            AssociationModel model;
+            try (RowExecutor rows = new RowExecutor(1)) {
+                model = AssociationModel.fromRows(index, rowStart, columns, values, rowLimit, precision, rows);
+            }
+            snapshot = model;
+            logger.info("published association snapshot with {} new events and {} changed rows in {}",
+                        events, changed, timer);
+            return model;
+        }
+    }
+
+    /**
+     * Publish a snapshot periodically.  Publishing is skipped while there are no new events, and failures are logged
+     * without cancelling later publications.
+     * @param executor The executor to publish on.
+     * @param period The time between the end of one publication and the start of the next.
+     * @param unit The unit of {@code period}.
+     * @return The future of the scheduled task; cancel it to stop publishing.
+     */
+    public ScheduledFuture<?> schedulePublishing(ScheduledExecutorService executor, long period, TimeUnit unit) {
+        return executor.scheduleWithFixedDelay(() -> {
+            try {
+                publish();
+            } catch (RuntimeException e) {
+                logger.error("error publishing association snapshot", e);
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Undo a user's rating of an item.
+     */
+    private void retract(Int2DoubleOpenHashMap mine, int num) {
+        double weight = mine.remove(num);
+        double after = maxWeight(mine);
+        userWeight -= Math.max(after, weight) - after;
+        raterCounts.set(num, raterCounts.getInt(num) - 1);
+        raterWeights.set(num, raterCounts.getInt(num) > 0 ? raterWeights.getDouble(num) - weight : 0);
+        Int2DoubleOpenHashMap row = pairWeights.get(num);
+        for (Int2DoubleMap.Entry e: mine.int2DoubleEntrySet()) {
+            int other = e.getIntKey();
+            double w = Math.min(weight, e.getDoubleValue());
+            subtract(row, other, w);
+            subtract(pairWeights.get(other), num, w);
+            changedRows.add(other);
+        }
+        changedRows.add(num);
+        if (raterCounts.getInt(num) == 0) {
+            // the item has no raters left, so it pairs with nothing; clear any rounding residue
+            IntIterator iter = row.keySet().iterator();
+            while (iter.hasNext()) {
+                int other = iter.nextInt();
+                pairWeights.get(other).remove(num);
+                changedRows.add(other);
+            }
+            row.clear();
+        }
+    }
+
+    /**
+     * Subtract a contribution from a pair weight, dropping the pair if nothing is left.
+     */
+    private static void subtract(Int2DoubleOpenHashMap row, int other, double w) {
+        double left = row.addTo(other, -w) - w;
+        if (left <= w * RESIDUE) {
+            row.remove(other);
+        }
+    }
+
+    private static double maxWeight(Int2DoubleOpenHashMap items) {
+        double max = 0;
+        for (Int2DoubleMap.Entry e: items.int2DoubleEntrySet()) {
+            max = Math.max(max, e.getDoubleValue());
+        }
+        return max;
+    }
+
+    /**
+     * Get an item's number, numbering it if it is new.
+     */
+    private int itemNumber(long item) {
+        int num = itemNumbers.get(item);
+        if (num < 0) {
+            num = itemIds.size();
+            itemNumbers.put(item, num);
+            itemIds.add(item);
+            raterCounts.add(0);
+            raterWeights.add(0);
+            pairWeights.add(new Int2DoubleOpenHashMap());
+            rowItems.add(IntArrays.EMPTY_ARRAY);
+            rowWeights.add(DoubleArrays.EMPTY_ARRAY);
+            changedRows.add(num);
+        }
+        return num;
+    }
+
+    private Int2DoubleOpenHashMap itemsOf(long user) {
+        Int2DoubleOpenHashMap items = userItems.get(user);
+        if (items == null) {
+            items = new Int2DoubleOpenHashMap();
+            userItems.put(user, items);
+        }
+        return items;
+    }
+
+    /**
+     * Copy a row's pair weights into arrays sorted by item ID.
+     */
+    private void freezeRow(int num) {
+        Int2DoubleOpenHashMap pairs = pairWeights.get(num);
+        int[] items = pairs.keySet().toIntArray();
+        IntArrays.quickSort(items, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                return Long.compare(itemIds.getLong(a), itemIds.getLong(b));
+            }
+        });
+        double[] weights = new double[items.length];
+        for (int k = 0; k < items.length; k++) {
+            weights[k] = pairs.get(items[k]);
+        }
+        rowItems.set(num, items);
+        rowWeights.set(num, weights);
+    }
+}
@@ -0,0 +1,213 @@
+package org.lenskit.mooc.nonpers.data;
+
+import com.google.common.collect.Ordering;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import org.lenskit.data.dao.AbstractDataAccessObject;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.EntityQuery;
+import org.lenskit.data.dao.SortKey;
+import org.lenskit.data.entities.*;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.io.AbstractObjectStream;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.io.ObjectStreams;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.*;
+
+/**
+ * A DAO that serves ratings from {@linkplain RatingColumns rating columns}, and every other entity type from another
+ * DAO.
+ *
+ * <p>Queries filtered on an item or a user read just that item's or user's range of rows, and grouping ratings by item
+ * or user walks the ranges in order, so {@code query(Rating.class)}, {@code withAttribute(USER_ID, ...)} and
+ * {@code groupBy(ITEM_ID)} (or {@code USER_ID}) cost one rating entity per row they return and no index building.
+ * Other filters are applied to the rows of the narrowest range, and sorted queries are sorted after filtering.
+ * Ratings are numbered by their rows, in item order.</p>
+ */
+@ThreadSafe
+public class ColumnarRatingDAO extends AbstractDataAccessObject {
+    private final RatingColumns ratings;
+    @Nullable
+    private final DataAccessObject others;
+    private volatile LongSet ratingIds;
+
+    /**
+     * Create a DAO.
+     * @param ratings The rating columns.
+     * @param others The DAO for every other entity type, or {@code null} if there are only ratings.
+     */
+    public ColumnarRatingDAO(RatingColumns ratings, @Nullable DataAccessObject others) {
+        this.ratings = ratings;
+        this.others = others;
+    }
+
+    /**
+     * Get the rating columns.
+     * @return The columns the ratings are read from.
+     */
+    public RatingColumns getRatingColumns() {
+        return ratings;
+    }
+
+    @Override
+    public Set<EntityType> getEntityTypes() {
+        Set<EntityType> types = new HashSet<>();
+        if (others != null) {
+            types.addAll(others.getEntityTypes());
+        }
+        types.add(CommonTypes.RATING);
+        return types;
+    }
+
+    @Override
+    public LongSet getEntityIds(EntityType type) {
+        if (!CommonTypes.RATING.equals(type)) {
+            return others != null ? others.getEntityIds(type) : LongSets.EMPTY_SET;
+        }
+        LongSet ids = ratingIds;
+        if (ids == null) {
+            long[] rows = new long[ratings.size()];
+            for (int row = 0; row < rows.length; row++) {
+                rows[row] = row;
+            }
+            ids = SortedKeyIndex.wrap(rows, rows.length).keySet();
+            ratingIds = ids;
+        }
+        return ids;
+    }
+
+    @Override
+    public Entity lookupEntity(EntityType type, long id) {
+        if (!CommonTypes.RATING.equals(type)) {
+            return others != null ? others.lookupEntity(type, id) : null;
+        }
+        return id >= 0 && id < ratings.size() ? ratings.ratingAt((int) id) : null;
+    }
+
+    @Override
+    public <E extends Entity> E lookupEntity(EntityType type, long id, Class<E> view) {
+        Entity entity = lookupEntity(type, id);
+        return entity != null ? Entities.project(entity, view) : null;
+    }
+
+    @Override
+    public <E extends Entity> ObjectStream<E> streamEntities(EntityQuery<E> query) {
+        if (!CommonTypes.RATING.equals(query.getEntityType())) {
+            return others != null ? others.streamEntities(query) : ObjectStreams.<E>empty();
+        }
+        ObjectStream<Entity> stream = new RowStream(query);
+        List<SortKey> keys = query.getSortKeys();
+        if (!keys.isEmpty()) {
+            List<Ordering<Entity>> orderings = new ArrayList<>();
+            for (SortKey key: keys) {
+                orderings.add(key.ordering());
+            }
+            stream = ObjectStreams.sort(stream, Ordering.compound(orderings));
+        }
+        return ObjectStreams.transform(stream, Entities.projection(query.getViewType()));
+    }
+
+    @Override
+    public <E extends Entity> ObjectStream<IdBox<List<E>>> streamEntityGroups(EntityQuery<E> query,
+                                                                             TypedName<Long> grouping) {
+        if (!CommonTypes.RATING.equals(query.getEntityType())) {
+            return others != null ? others.streamEntityGroups(query, grouping) : ObjectStreams.empty();
+        }
+        boolean byItem = CommonAttributes.ITEM_ID.equals(grouping);
+        if (!query.getSortKeys().isEmpty() || !(byItem || CommonAttributes.USER_ID.equals(grouping))) {
+            return super.streamEntityGroups(query, grouping);
+        }
+        return new GroupStream<>(query, byItem);
+    }
+
+    /**
+     * Get the rows a query can match: the range of the item or user it is filtered on, or all of them.
+     * @return The first position, the end position and whether positions are in user order; the range is empty if
+     *         the query filters on an unknown item or user.
+     */
+    private int[] scanRange(EntityQuery<?> query) {
+        for (Attribute<?> attr: query.getFilterFields()) {
+            TypedName<?> name = attr.getTypedName();
+            if (CommonAttributes.ITEM_ID.equals(name)) {
+                int item = ratings.getItemIndex().tryGetIndex((Long) attr.getValue());
+                return item < 0 ? new int[3] : new int[]{ratings.itemStart(item), ratings.itemEnd(item), 0};
+            } else if (CommonAttributes.USER_ID.equals(name)) {
+                int user = ratings.getUserIndex().tryGetIndex((Long) attr.getValue());
+                return user < 0 ? new int[3] : new int[]{ratings.userStart(user), ratings.userEnd(user), 1};
+            }
+        }
+        return new int[]{0, ratings.size(), 0};
+    }
+
+    /**
+     * Streams the ratings in a query's scan range that match it.
+     */
+    private class RowStream extends AbstractObjectStream<Entity> {
+        private final EntityQuery<?> query;
+        private final boolean byUser;
+        private final int end;
+        private int pos;
+
+        RowStream(EntityQuery<?> query) {
+            this.query = query;
+            int[] range = scanRange(query);
+            pos = range[0];
+            end = range[1];
+            byUser = range[2] != 0;
+        }
+
+        @Override
+        public Entity readObject() {
+            while (pos < end) {
+                int row = byUser ? ratings.userRowAt(pos) : pos;
+                pos++;
+                Rating rating = ratings.ratingAt(row);
+                if (query.matches(rating)) {
+                    return rating;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Streams the matching ratings of each item or user in turn, skipping those with none.
+     */
+    private class GroupStream<E extends Entity> extends AbstractObjectStream<IdBox<List<E>>> {
+        private final EntityQuery<E> query;
+        private final boolean byItem;
+        private final SortedKeyIndex keys;
+        private int next;
+
+        GroupStream(EntityQuery<E> query, boolean byItem) {
+            this.query = query;
+            this.byItem = byItem;
+            keys = byItem ? ratings.getItemIndex() : ratings.getUserIndex();
+        }
+
+        @Override
+        public IdBox<List<E>> readObject() {
+            while (next < keys.size()) {
+                int key = next++;
+                int start = byItem ? ratings.itemStart(key) : ratings.userStart(key);
+                int end = byItem ? ratings.itemEnd(key) : ratings.userEnd(key);
+                List<E> group = new ArrayList<>(end - start);
+                for (int pos = start; pos < end; pos++) {
+                    Rating rating = ratings.ratingAt(byItem ? pos : ratings.userRowAt(pos));
+                    if (query.matches(rating)) {
+                        group.add(Entities.project(rating, query.getViewType()));
+                    }
+                }
+                if (!group.isEmpty()) {
+                    return IdBox.create(keys.getKey(key), group);
+                }
+            }
+            return null;
+        }
+    }
+}
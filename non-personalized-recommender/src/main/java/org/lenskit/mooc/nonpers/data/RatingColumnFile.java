@@ -0,0 +1,380 @@
+package org.lenskit.mooc.nonpers.data;
+
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.EntitySource;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.dao.file.TextEntitySource;
+import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Reads and writes ratings in a columnar binary file that can be memory-mapped, so that models are built without
+ * parsing the ratings CSV every time.
+ *
+ * <p>A rating file is written once from any DAO and then mapped read-only: opening it copies only the user and item
+ * ID dictionaries onto the heap, and the columns are read in place by {@link RatingColumns}.  {@link ColumnarRatingDAO}
+ * serves the usual rating queries from the columns, and {@link #loadDataSource(Path)} puts it in front of a data
+ * source's rating files, converting them the first time and whenever they change.</p>
+ *
+ * <p>The file is little-endian, with every section aligned to 8 bytes:</p>
+ * <ol>
+ *     <li>a 32-byte header: the magic number {@code LKRATES1}, the format version, the user count {@code u}, the item
+ *     count {@code i}, and the rating count {@code n};</li>
+ *     <li>the {@code u} user IDs and then the {@code i} item IDs, each sorted, as {@code long}s;</li>
+ *     <li>the {@code i + 1} starts of each item's rows and the {@code u + 1} starts of each user's positions in user
+ *     order, as {@code int}s;</li>
+ *     <li>the {@code n} user indexes and the {@code n} item indexes of the rows, as {@code int}s;</li>
+ *     <li>the {@code n} rating values as {@code float}s;</li>
+ *     <li>the {@code n} timestamps as {@code long}s;</li>
+ *     <li>the {@code n} rows in user order, as {@code int}s.</li>
+ * </ol>
+ * <p>Rating values are stored as {@code float}s, which hold every value on a half-star scale exactly.  Each section
+ * is mapped as a single buffer, so a file can hold at most 2<sup>28</sup> ratings.</p>
+ */
+public final class RatingColumnFile {
+    private static final Logger logger = LoggerFactory.getLogger(RatingColumnFile.class);
+    /**
+     * The magic number at the start of every rating file, "LKRATES1" in ASCII.
+     */
+    private static final long MAGIC = 0x4C4B524154455331L;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * The suffix of the rating file cached next to a data source definition.
+     */
+    public static final String CACHE_SUFFIX = ".ratings.lkr";
+
+    private RatingColumnFile() {
+    }
+
+    /**
+     * Write the ratings in a DAO to a file.  The ratings are written to a temporary file that then replaces
+     * {@code file}, so processes that have the old file mapped keep reading the old ratings.
+     * @param dao The DAO.
+     * @param file The file to write.
+     * @throws IOException if there is an error writing the file.
+     * @throws IllegalArgumentException if there are too many ratings for a rating file.
+     */
+    public static void write(DataAccessObject dao, File file) throws IOException {
+        Stopwatch timer = Stopwatch.createStarted();
+        LongArrayList userIds = new LongArrayList();
+        LongArrayList itemIds = new LongArrayList();
+        FloatArrayList values = new FloatArrayList();
+        LongArrayList timestamps = new LongArrayList();
+        try (ObjectStream<Rating> ratings = dao.query(Rating.class).stream()) {
+            for (Rating r: ratings) {
+                userIds.add(r.getUserId());
+                itemIds.add(r.getItemId());
+                values.add((float) r.getValue());
+                timestamps.add(r.getTimestamp());
+            }
+        }
+        int n = userIds.size();
+        if (n * 8L > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(n + " ratings are too many for a rating file");
+        }
+        SortedKeyIndex users = SortedKeyIndex.fromCollection(new LongOpenHashSet(userIds));
+        SortedKeyIndex items = SortedKeyIndex.fromCollection(new LongOpenHashSet(itemIds));
+        int nUsers = users.size();
+        int nItems = items.size();
+        int[] userOf = new int[n];
+        int[] itemOf = new int[n];
+        for (int k = 0; k < n; k++) {
+            userOf[k] = users.getIndex(userIds.getLong(k));
+            itemOf[k] = items.getIndex(itemIds.getLong(k));
+        }
+
+        // two stable counting sorts put the rows in item order and then user order within each item
+        int[] userStart = starts(userOf, nUsers);
+        int[] byUser = new int[n];
+        int[] fill = userStart.clone();
+        for (int k = 0; k < n; k++) {
+            byUser[fill[userOf[k]]++] = k;
+        }
+        int[] itemStart = starts(itemOf, nItems);
+        int[] rows = new int[n];
+        fill = itemStart.clone();
+        for (int k: byUser) {
+            rows[fill[itemOf[k]]++] = k;
+        }
+        // and a third lists the rows in user order, which is then item order within each user
+        int[] userOrder = new int[n];
+        fill = userStart.clone();
+        for (int row = 0; row < n; row++) {
+            userOrder[fill[userOf[rows[row]]]++] = row;
+        }
+
+        Path target = file.toPath().toAbsolutePath();
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                buf.putLong(MAGIC)
+                   .putInt(VERSION)
+                   .putInt(nUsers)
+                   .putInt(nItems)
+                   .putInt(0)
+                   .putLong(n);
+                for (int u = 0; u < nUsers; u++) {
+                    ensure(channel, buf, 8);
+                    buf.putLong(users.getKey(u));
+                }
+                for (int i = 0; i < nItems; i++) {
+                    ensure(channel, buf, 8);
+                    buf.putLong(items.getKey(i));
+                }
+                putInts(channel, buf, itemStart, nItems + 1);
+                putInts(channel, buf, userStart, nUsers + 1);
+                int[] column = new int[n];
+                for (int row = 0; row < n; row++) {
+                    column[row] = userOf[rows[row]];
+                }
+                putInts(channel, buf, column, n);
+                for (int row = 0; row < n; row++) {
+                    column[row] = itemOf[rows[row]];
+                }
+                putInts(channel, buf, column, n);
+                for (int row = 0; row < n; row++) {
+                    ensure(channel, buf, 4);
+                    buf.putFloat(values.getFloat(rows[row]));
+                }
+                pad(channel, buf, n);
+                for (int row = 0; row < n; row++) {
+                    ensure(channel, buf, 8);
+                    buf.putLong(timestamps.getLong(rows[row]));
+                }
+                putInts(channel, buf, userOrder, n);
+                flush(channel, buf);
+                channel.force(false);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        logger.info("wrote {} ratings of {} items by {} users to {} in {}", n, nItems, nUsers, file, timer);
+    }
+
+    /**
+     * Map a rating file.
+     * @param file The file to read.
+     * @return The rating columns, read in place from the file.
+     * @throws IOException if there is an error reading the file, or it is not a valid rating file.
+     */
+    public static RatingColumns read(File file) throws IOException {
+        Stopwatch timer = Stopwatch.createStarted();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException(file + ": too short for a rating file");
+            }
+            ByteBuffer header = map(channel, 0, HEADER_SIZE);
+            if (header.getLong() != MAGIC) {
+                throw new IOException(file + ": not a rating file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + ": unsupported rating file version " + version);
+            }
+            int nUsers = header.getInt();
+            int nItems = header.getInt();
+            header.getInt();
+            long n = header.getLong();
+            if (nUsers < 0 || nItems < 0 || n < 0 || n * 8 > Integer.MAX_VALUE) {
+                throw new IOException(file + ": corrupt header");
+            }
+
+            long userKeyStart = HEADER_SIZE;
+            long itemKeyStart = userKeyStart + nUsers * 8L;
+            long itemStartStart = itemKeyStart + nItems * 8L;
+            long userStartStart = itemStartStart + aligned(nItems + 1L);
+            long userColumnStart = userStartStart + aligned(nUsers + 1L);
+            long itemColumnStart = userColumnStart + aligned(n);
+            long valueStart = itemColumnStart + aligned(n);
+            long timeStart = valueStart + aligned(n);
+            long orderStart = timeStart + n * 8;
+            long end = orderStart + aligned(n);
+            if (size != end) {
+                throw new IOException(file + ": expected " + end + " bytes, found " + size);
+            }
+
+            // the dictionaries are copied to make the key indexes; the columns stay mapped
+            SortedKeyIndex users = readKeys(channel, userKeyStart, nUsers, file);
+            SortedKeyIndex items = readKeys(channel, itemKeyStart, nItems, file);
+            IntBuffer itemStarts = readStarts(channel, itemStartStart, nItems, n, file);
+            IntBuffer userStarts = readStarts(channel, userStartStart, nUsers, n, file);
+            int count = (int) n;
+            RatingColumns columns =
+                    new RatingColumns(users, items, itemStarts, userStarts,
+                                      map(channel, userColumnStart, count * 4L).asIntBuffer(),
+                                      map(channel, itemColumnStart, count * 4L).asIntBuffer(),
+                                      map(channel, valueStart, count * 4L).asFloatBuffer(),
+                                      map(channel, timeStart, count * 8L).asLongBuffer(),
+                                      map(channel, orderStart, count * 4L).asIntBuffer());
+            logger.info("mapped {} ratings of {} items by {} users from {} in {}", n, nItems, nUsers, file, timer);
+            return columns;
+        }
+    }
+
+    /**
+     * Load a data source, serving its ratings from a rating file cached next to its definition.  The cache is
+     * written from the source's rating files when it is missing or older than them or the definition; the other
+     * entity types are loaded from the source as usual.
+     * @param path The data source definition (e.g. {@code data/movielens.yml}).
+     * @return A DAO over the data source.
+     * @throws IOException if there is an error reading the data or writing the cache.
+     */
+    public static DataAccessObject loadDataSource(Path path) throws IOException {
+        StaticDataSource source = StaticDataSource.load(path);
+        List<EntitySource> ratingSources = source.getSourcesForType(CommonTypes.RATING);
+        if (ratingSources.isEmpty()) {
+            return source.get();
+        }
+        String name = path.getFileName().toString().replaceFirst("\\.[^.]*$", "");
+        File cache = path.resolveSibling(name + CACHE_SUFFIX).toFile();
+        long modified = path.toFile().lastModified();
+        StaticDataSource ratings = new StaticDataSource(source.getName() + " ratings");
+        StaticDataSource others = new StaticDataSource(source.getName());
+        for (EntitySource src: source.getSources()) {
+            if (ratingSources.contains(src)) {
+                ratings.addSource(src);
+                if (src instanceof TextEntitySource && ((TextEntitySource) src).getFile() != null) {
+                    modified = Math.max(modified, ((TextEntitySource) src).getFile().toFile().lastModified());
+                }
+            } else {
+                others.addSource(src);
+            }
+        }
+        if (!cache.exists() || cache.lastModified() < modified) {
+            logger.info("caching ratings of {} in {}", path, cache);
+            write(ratings.get(), cache);
+        }
+        return new ColumnarRatingDAO(read(cache), others.get());
+    }
+
+    /**
+     * Convert a data source's ratings to its cached rating file, if it is not already up to date.
+     * @param args The data source file.
+     * @throws IOException if there is an error reading the data or writing the cache.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("usage: RatingColumnFile DATA-SOURCE");
+            System.exit(2);
+        }
+        loadDataSource(Paths.get(args[0]));
+    }
+
+    /**
+     * Compute the start of each key's run from the key of each row.
+     */
+    private static int[] starts(int[] keys, int n) {
+        int[] start = new int[n + 1];
+        for (int k: keys) {
+            start[k + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            start[i + 1] += start[i];
+        }
+        return start;
+    }
+
+    private static SortedKeyIndex readKeys(FileChannel channel, long start, int n, File file) throws IOException {
+        long[] keys = new long[n];
+        map(channel, start, n * 8L).asLongBuffer().get(keys);
+        for (int i = 1; i < n; i++) {
+            if (keys[i] <= keys[i - 1]) {
+                throw new IOException(file + ": IDs are not sorted");
+            }
+        }
+        return SortedKeyIndex.wrap(keys, n);
+    }
+
+    private static IntBuffer readStarts(FileChannel channel, long start, int n, long rows,
+                                        File file) throws IOException {
+        IntBuffer starts = map(channel, start, (n + 1) * 4L).asIntBuffer();
+        for (int i = 0; i < n; i++) {
+            if (starts.get(i) > starts.get(i + 1)) {
+                throw new IOException(file + ": row starts are not sorted");
+            }
+        }
+        if (starts.get(0) != 0 || starts.get(n) != rows) {
+            throw new IOException(file + ": row starts do not cover the ratings");
+        }
+        return starts;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long start, long length) throws IOException {
+        MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    /**
+     * Get the size of a section of {@code int}s or {@code float}s, padded to 8 bytes.
+     */
+    private static long aligned(long ints) {
+        return (ints * 4 + 7) & ~7L;
+    }
+
+    /**
+     * Write a section of {@code int}s, padded to 8 bytes.
+     */
+    private static void putInts(FileChannel channel, ByteBuffer buf, int[] values, int n) throws IOException {
+        for (int k = 0; k < n; k++) {
+            ensure(channel, buf, 4);
+            buf.putInt(values[k]);
+        }
+        pad(channel, buf, n);
+    }
+
+    /**
+     * Pad a section of {@code int}s or {@code float}s to 8 bytes.
+     */
+    private static void pad(FileChannel channel, ByteBuffer buf, long ints) throws IOException {
+        if (ints % 2 != 0) {
+            ensure(channel, buf, 4);
+            buf.putInt(0);
+        }
+    }
+
+    /**
+     * Make room in the buffer for the next value, writing it out if it is full.
+     */
+    private static void ensure(FileChannel channel, ByteBuffer buf, int bytes) throws IOException {
+        if (buf.remaining() < bytes) {
+            flush(channel, buf);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+}
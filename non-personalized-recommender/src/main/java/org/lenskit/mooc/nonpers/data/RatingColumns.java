@@ -0,0 +1,164 @@
+package org.lenskit.mooc.nonpers.data;
+
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * The ratings of a {@linkplain RatingColumnFile rating file}, read in place as parallel columns.
+ *
+ * <p>Ratings are rows, sorted by item and then user; a user's repeated ratings of an item keep their order in the
+ * source.  Users and items are numbered densely by their ID dictionaries, so each item's ratings are a range of rows,
+ * and a second index lists the rows in user order so that each user's ratings are a range too.  Every accessor reads
+ * a buffer at an absolute position, so a column set can be shared by any number of threads.</p>
+ */
+@ThreadSafe
+public final class RatingColumns {
+    private final SortedKeyIndex users;
+    private final SortedKeyIndex items;
+    private final IntBuffer itemStart;
+    private final IntBuffer userStart;
+    private final IntBuffer userColumn;
+    private final IntBuffer itemColumn;
+    private final FloatBuffer valueColumn;
+    private final LongBuffer timestampColumn;
+    private final IntBuffer userOrder;
+
+    RatingColumns(SortedKeyIndex users, SortedKeyIndex items, IntBuffer itemStart, IntBuffer userStart,
+                  IntBuffer userColumn, IntBuffer itemColumn, FloatBuffer valueColumn, LongBuffer timestampColumn,
+                  IntBuffer userOrder) {
+        this.users = users;
+        this.items = items;
+        this.itemStart = itemStart;
+        this.userStart = userStart;
+        this.userColumn = userColumn;
+        this.itemColumn = itemColumn;
+        this.valueColumn = valueColumn;
+        this.timestampColumn = timestampColumn;
+        this.userOrder = userOrder;
+    }
+
+    /**
+     * Get the number of ratings.
+     * @return The number of rows.
+     */
+    public int size() {
+        return userColumn.limit();
+    }
+
+    /**
+     * Get the user dictionary.
+     * @return The index of the user IDs.
+     */
+    public SortedKeyIndex getUserIndex() {
+        return users;
+    }
+
+    /**
+     * Get the item dictionary.
+     * @return The index of the item IDs.
+     */
+    public SortedKeyIndex getItemIndex() {
+        return items;
+    }
+
+    /**
+     * Get the user of a rating.
+     * @param row The row.
+     * @return The user's index.
+     */
+    public int userAt(int row) {
+        return userColumn.get(row);
+    }
+
+    /**
+     * Get the item of a rating.
+     * @param row The row.
+     * @return The item's index.
+     */
+    public int itemAt(int row) {
+        return itemColumn.get(row);
+    }
+
+    /**
+     * Get the value of a rating.
+     * @param row The row.
+     * @return The rating value.
+     */
+    public float valueAt(int row) {
+        return valueColumn.get(row);
+    }
+
+    /**
+     * Get the timestamp of a rating.
+     * @param row The row.
+     * @return The rating's timestamp.
+     */
+    public long timestampAt(int row) {
+        return timestampColumn.get(row);
+    }
+
+    /**
+     * Get the first row of an item's ratings.
+     * @param item The item index.
+     * @return The first row rating the item.
+     */
+    public int itemStart(int item) {
+        return itemStart.get(item);
+    }
+
+    /**
+     * Get the end of an item's ratings.
+     * @param item The item index.
+     * @return The row after the last one rating the item.
+     */
+    public int itemEnd(int item) {
+        return itemStart.get(item + 1);
+    }
+
+    /**
+     * Get the first position of a user's ratings in user order.
+     * @param user The user index.
+     * @return The first position of the user's rows in {@link #userRowAt(int)}.
+     */
+    public int userStart(int user) {
+        return userStart.get(user);
+    }
+
+    /**
+     * Get the end of a user's ratings in user order.
+     * @param user The user index.
+     * @return The position after the last of the user's rows in {@link #userRowAt(int)}.
+     */
+    public int userEnd(int user) {
+        return userStart.get(user + 1);
+    }
+
+    /**
+     * Get a row in user order.
+     * @param pos The position in user order.
+     * @return The row at that position; rows of the same user are sorted by item.
+     */
+    public int userRowAt(int pos) {
+        return userOrder.get(pos);
+    }
+
+    /**
+     * Make a rating entity for a row.
+     * @param row The row.
+     * @return The rating, with the row number as its ID.
+     */
+    public Rating ratingAt(int row) {
+        return Rating.newBuilder()
+                     .setId(row)
+                     .setUserId(users.getKey(userAt(row)))
+                     .setItemId(items.getKey(itemAt(row)))
+                     .setRating(valueAt(row))
+                     .setTimestamp(timestampAt(row))
+                     .build();
+    }
+}
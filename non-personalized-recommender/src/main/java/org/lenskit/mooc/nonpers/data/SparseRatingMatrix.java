@@ -0,0 +1,333 @@
+package org.lenskit.mooc.nonpers.data;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.longs.*;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.inject.Shareable;
+import org.lenskit.util.io.ObjectStream;
+import org.lenskit.util.keys.Long2DoubleSortedArrayMap;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An immutable sparse user-item rating matrix, stored both user-major (compressed sparse rows) and item-major
+ * (compressed sparse columns).
+ *
+ * <p>Users and items are numbered densely by sorted key indexes over every user and item in the data, including those
+ * without ratings.  Each user's ratings are a range of row positions and each item's ratings a range of column
+ * positions; within a range the entries are sorted by index, and so by ID.  A user's repeated ratings of an item are
+ * reduced to the latest one, and the rows keep its timestamp.</p>
+ *
+ * <p>The matrix is built once per recommender engine and shared by the model builders and scorers that read ratings,
+ * instead of each of them grouping the ratings out of the DAO again.  Ratings served from {@linkplain RatingColumns
+ * rating columns} are read without making rating entities.</p>
+ */
+@Shareable
+@DefaultProvider(SparseRatingMatrixProvider.class)
+public final class SparseRatingMatrix implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    private final SortedKeyIndex users;
+    private final SortedKeyIndex items;
+    private final int[] userStart;
+    private final int[] userItems;
+    private final double[] userValues;
+    private final long[] userTimes;
+    private final int[] itemStart;
+    private final int[] itemUsers;
+    private final double[] itemValues;
+
+    private SparseRatingMatrix(SortedKeyIndex users, SortedKeyIndex items,
+                               int[] userStart, int[] userItems, double[] userValues, long[] userTimes,
+                               int[] itemStart, int[] itemUsers, double[] itemValues) {
+        this.users = users;
+        this.items = items;
+        this.userStart = userStart;
+        this.userItems = userItems;
+        this.userValues = userValues;
+        this.userTimes = userTimes;
+        this.itemStart = itemStart;
+        this.itemUsers = itemUsers;
+        this.itemValues = itemValues;
+    }
+
+    /**
+     * Build the rating matrix of a DAO.
+     * @param dao The DAO.
+     * @return The matrix of its ratings, indexed over its users and items.
+     */
+    public static SparseRatingMatrix build(DataAccessObject dao) {
+        if (dao instanceof ColumnarRatingDAO) {
+            // read the rating columns in place instead of making a rating entity per row
+            RatingColumns columns = ((ColumnarRatingDAO) dao).getRatingColumns();
+            int n = columns.size();
+            long[] userIds = new long[n];
+            long[] itemIds = new long[n];
+            double[] values = new double[n];
+            long[] timestamps = new long[n];
+            for (int row = 0; row < n; row++) {
+                userIds[row] = columns.getUserIndex().getKey(columns.userAt(row));
+                itemIds[row] = columns.getItemIndex().getKey(columns.itemAt(row));
+                values[row] = columns.valueAt(row);
+                timestamps[row] = columns.timestampAt(row);
+            }
+            return build(dao.getEntityIds(CommonTypes.USER), dao.getEntityIds(CommonTypes.ITEM),
+                         userIds, itemIds, values, timestamps);
+        }
+
+        LongArrayList userIds = new LongArrayList();
+        LongArrayList itemIds = new LongArrayList();
+        DoubleArrayList values = new DoubleArrayList();
+        LongArrayList timestamps = new LongArrayList();
+        try (ObjectStream<Rating> ratings = dao.query(Rating.class).stream()) {
+            for (Rating r: ratings) {
+                userIds.add(r.getUserId());
+                itemIds.add(r.getItemId());
+                values.add(r.getValue());
+                timestamps.add(r.getTimestamp());
+            }
+        }
+        return build(dao.getEntityIds(CommonTypes.USER), dao.getEntityIds(CommonTypes.ITEM),
+                     userIds.toLongArray(), itemIds.toLongArray(), values.toDoubleArray(), timestamps.toLongArray());
+    }
+
+    /**
+     * Build a rating matrix from parallel arrays of ratings.
+     * @param allUsers Users to index even if they have no ratings.
+     * @param allItems Items to index even if they have no ratings.
+     * @param userIds The users of the ratings.
+     * @param itemIds The items of the ratings.
+     * @param values The rating values.
+     * @param timestamps The rating timestamps; of a user's repeated ratings of an item, the latest is kept, and of
+     *                   equally late ones the last in the arrays.
+     * @return The rating matrix.
+     */
+    static SparseRatingMatrix build(Collection<Long> allUsers, Collection<Long> allItems,
+                                    long[] userIds, long[] itemIds, double[] values, long[] timestamps) {
+        LongOpenHashSet userSet = new LongOpenHashSet(allUsers);
+        userSet.addAll(LongArrayList.wrap(userIds));
+        LongOpenHashSet itemSet = new LongOpenHashSet(allItems);
+        itemSet.addAll(LongArrayList.wrap(itemIds));
+        SortedKeyIndex users = SortedKeyIndex.fromCollection(userSet);
+        SortedKeyIndex items = SortedKeyIndex.fromCollection(itemSet);
+        int nUsers = users.size();
+        int nItems = items.size();
+        int n = userIds.length;
+
+        // group the ratings by user, as (item << 32 | rating) keys so that sorting a user's keys sorts by item
+        int[] userStart = new int[nUsers + 1];
+        int[] userOf = new int[n];
+        for (int k = 0; k < n; k++) {
+            userOf[k] = users.getIndex(userIds[k]);
+            userStart[userOf[k] + 1]++;
+        }
+        for (int u = 0; u < nUsers; u++) {
+            userStart[u + 1] += userStart[u];
+        }
+        int[] fill = Arrays.copyOf(userStart, nUsers);
+        long[] keys = new long[n];
+        for (int k = 0; k < n; k++) {
+            keys[fill[userOf[k]]++] = (long) items.getIndex(itemIds[k]) << 32 | k;
+        }
+
+        // sort each user's ratings by item, keeping the latest of each run of the same item
+        int[] userItems = new int[n];
+        double[] userValues = new double[n];
+        long[] userTimes = new long[n];
+        int size = 0;
+        int start = 0;
+        for (int u = 0; u < nUsers; u++) {
+            int end = userStart[u + 1];
+            Arrays.sort(keys, start, end);
+            userStart[u] = size;
+            int k = start;
+            while (k < end) {
+                int item = (int) (keys[k] >>> 32);
+                int latest = (int) keys[k];
+                for (k++; k < end && (int) (keys[k] >>> 32) == item; k++) {
+                    int r = (int) keys[k];
+                    if (timestamps[r] >= timestamps[latest]) {
+                        latest = r;
+                    }
+                }
+                userItems[size] = item;
+                userValues[size] = values[latest];
+                userTimes[size] = timestamps[latest];
+                size++;
+            }
+            start = end;
+        }
+        userStart[nUsers] = size;
+        userItems = Arrays.copyOf(userItems, size);
+        userValues = Arrays.copyOf(userValues, size);
+        userTimes = Arrays.copyOf(userTimes, size);
+
+        // and transpose; walking the users in order leaves each item's users sorted
+        int[] itemStart = new int[nItems + 1];
+        for (int k = 0; k < size; k++) {
+            itemStart[userItems[k] + 1]++;
+        }
+        for (int i = 0; i < nItems; i++) {
+            itemStart[i + 1] += itemStart[i];
+        }
+        fill = Arrays.copyOf(itemStart, nItems);
+        int[] itemUsers = new int[size];
+        double[] itemValues = new double[size];
+        for (int u = 0; u < nUsers; u++) {
+            for (int k = userStart[u]; k < userStart[u + 1]; k++) {
+                int pos = fill[userItems[k]]++;
+                itemUsers[pos] = u;
+                itemValues[pos] = userValues[k];
+            }
+        }
+
+        return new SparseRatingMatrix(users, items, userStart, userItems, userValues, userTimes,
+                                      itemStart, itemUsers, itemValues);
+    }
+
+    /**
+     * Get the user index.
+     * @return The mapping between user IDs and row numbers.
+     */
+    public SortedKeyIndex getUserIndex() {
+        return users;
+    }
+
+    /**
+     * Get the item index.
+     * @return The mapping between item IDs and column numbers.
+     */
+    public SortedKeyIndex getItemIndex() {
+        return items;
+    }
+
+    /**
+     * Get the number of ratings.
+     * @return The number of stored (user, item) entries.
+     */
+    public int getRatingCount() {
+        return userItems.length;
+    }
+
+    /**
+     * Get the first position of a user's ratings.
+     * @param user The user's row number.
+     * @return The first position of the user's ratings in the rows.
+     */
+    public int userStart(int user) {
+        return userStart[user];
+    }
+
+    /**
+     * Get the end of a user's ratings.
+     * @param user The user's row number.
+     * @return The position after the user's last rating in the rows.
+     */
+    public int userEnd(int user) {
+        return userStart[user + 1];
+    }
+
+    /**
+     * Get the item of a rating in the rows.
+     * @param pos The position in the rows.
+     * @return The item's column number.
+     */
+    public int userItemAt(int pos) {
+        return userItems[pos];
+    }
+
+    /**
+     * Get the value of a rating in the rows.
+     * @param pos The position in the rows.
+     * @return The rating value.
+     */
+    public double userValueAt(int pos) {
+        return userValues[pos];
+    }
+
+    /**
+     * Get the timestamp of a rating in the rows.
+     * @param pos The position in the rows.
+     * @return The timestamp of the latest rating of the user and item.
+     */
+    public long userTimeAt(int pos) {
+        return userTimes[pos];
+    }
+
+    /**
+     * Get the first position of an item's ratings.
+     * @param item The item's column number.
+     * @return The first position of the item's ratings in the columns.
+     */
+    public int itemStart(int item) {
+        return itemStart[item];
+    }
+
+    /**
+     * Get the end of an item's ratings.
+     * @param item The item's column number.
+     * @return The position after the item's last rating in the columns.
+     */
+    public int itemEnd(int item) {
+        return itemStart[item + 1];
+    }
+
+    /**
+     * Get the user of a rating in the columns.
+     * @param pos The position in the columns.
+     * @return The user's row number.
+     */
+    public int itemUserAt(int pos) {
+        return itemUsers[pos];
+    }
+
+    /**
+     * Get the value of a rating in the columns.
+     * @param pos The position in the columns.
+     * @return The rating value.
+     */
+    public double itemValueAt(int pos) {
+        return itemValues[pos];
+    }
+
+    /**
+     * Get a user's ratings.
+     * @param user The user ID.
+     * @return The user's ratings, keyed by item ID; empty if the user is unknown.
+     */
+    public Long2DoubleMap getUserRatingVector(long user) {
+        int u = users.tryGetIndex(user);
+        if (u < 0) {
+            return Long2DoubleMaps.EMPTY_MAP;
+        }
+        return vector(items, userItems, userValues, userStart[u], userStart[u + 1]);
+    }
+
+    /**
+     * Get an item's ratings.
+     * @param item The item ID.
+     * @return The item's ratings, keyed by user ID; empty if the item is unknown.
+     */
+    public Long2DoubleMap getItemRatingVector(long item) {
+        int i = items.tryGetIndex(item);
+        if (i < 0) {
+            return Long2DoubleMaps.EMPTY_MAP;
+        }
+        return vector(users, itemUsers, itemValues, itemStart[i], itemStart[i + 1]);
+    }
+
+    private static Long2DoubleMap vector(SortedKeyIndex keys, int[] indexes, double[] values, int start, int end) {
+        long[] ids = new long[end - start];
+        for (int k = start; k < end; k++) {
+            ids[k - start] = keys.getKey(indexes[k]);
+        }
+        return Long2DoubleSortedArrayMap.wrap(SortedKeyIndex.wrap(ids, ids.length),
+                                              Arrays.copyOfRange(values, start, end));
+    }
+}
@@ -1,20 +1,17 @@
 package org.lenskit.mooc.nonpers.mean;
 
 import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
-import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import org.lenskit.baseline.MeanDamping;
 import org.lenskit.data.dao.DataAccessObject;
-import org.lenskit.data.ratings.Rating;
 import org.lenskit.inject.Transient;
-import org.lenskit.mooc.nonpers.structures.RatingCount;
-import org.lenskit.util.io.ObjectStream;
+import org.lenskit.mooc.nonpers.structures.BuildThreadCount;
+import org.lenskit.mooc.nonpers.structures.KeyStatistics;
+import org.lenskit.mooc.nonpers.structures.RatingStatistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * Provider class that builds the mean rating item scorer, computing damped item means from the
@@ -34,6 +31,10 @@ public class DampedItemMeanModelProvider implements Provider<ItemMeanModel> {
      * The damping factor.
      */
     private final double damping;
+    /**
+     * The number of threads to aggregate ratings on.
+     */
+    private final int threads;
 
     /**
      * Constructor for the mean item score provider.
@@ -47,12 +48,15 @@ public class DampedItemMeanModelProvider implements Provider<ItemMeanModel> {
      * @param damping The damping factor for Bayesian damping.  This is number of fake global-mean ratings to
      *                assume.  It is provided as a parameter so that it can be reconfigured.  See the file
      *                {@code damped-mean.groovy} for how it is used.
+     * @param threads The number of threads to aggregate ratings on.  The means are identical for any thread count.
      */
     @Inject
     public DampedItemMeanModelProvider(@Transient DataAccessObject dao,
-                                       @MeanDamping double damping) {
+                                       @MeanDamping double damping,
+                                       @BuildThreadCount int threads) {
         this.dao = dao;
         this.damping = damping;
+        this.threads = threads;
     }
 
     /**
@@ -64,45 +68,23 @@ public class DampedItemMeanModelProvider implements Provider<ItemMeanModel> {
      */
     @Override
     public ItemMeanModel get() {
-        List<RatingCount> ratingsList = new ArrayList<RatingCount>();
-        double globalCount = 0;
-        double globalSum = 0;
-
-        try (ObjectStream<Rating> ratings = dao.query(Rating.class).stream()) {
-            for (Rating r: ratings) {
-                //count and sum for each item
-                long itemID = r.getItemId();
-
-                //check if rating count for item exists in ratingsList
-                if (ratingsList.stream().filter(o -> itemID==o.getItemId()).findFirst().isPresent() ) {
-                    RatingCount rc = ratingsList.stream().filter(o -> itemID==o.getItemId()).findFirst().get();
-                    rc.incrementCount();
-                    rc.runningTotal(r.getValue());
-                } else {
-                    RatingCount rc = new RatingCount();
-                    rc.setItemId(r.getItemId());
-                    rc.setCount(1);
-                    rc.setSum(r.getValue());
-                    ratingsList.add(rc);
-                }
-
-                //count and sum for all items
-                globalCount += 1;
-                globalSum += r.getValue();
-            }
-        }
+        // one linear pass over the ratings accumulates count and sum for every item and for all items
+        RatingStatistics stats = RatingStatistics.compute(dao, threads);
+        KeyStatistics itemStats = stats.getItemStatistics();
 
         //compute global mean
-        double gMean = globalSum/globalCount;
+        double gMean = stats.getGlobalMean();
 
-        Long2DoubleOpenHashMap means = new Long2DoubleOpenHashMap();
+        Long2DoubleOpenHashMap means = new Long2DoubleOpenHashMap(itemStats.size());
 
         //compute damped mean for each item
-        for (RatingCount rc: ratingsList) {
-            long count = rc.getCount();
-            double sum = rc.getSum();
-            double dampedMean = (sum + (gMean * this.damping)) / (count + this.damping);
-            means.addTo(rc.getItemId(),dampedMean);
+        for (int slot = 0; slot < itemStats.slotCount(); slot++) {
+            if (itemStats.isOccupied(slot)) {
+                long count = itemStats.countAt(slot);
+                double sum = itemStats.sumAt(slot);
+                double dampedMean = (sum + (gMean * this.damping)) / (count + this.damping);
+                means.put(itemStats.keyAt(slot), dampedMean);
+            }
         }
 
         logger.info("computed mean ratings for {} items", means.size());
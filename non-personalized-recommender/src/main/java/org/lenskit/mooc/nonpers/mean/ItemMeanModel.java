@@ -1,12 +1,16 @@
 package org.lenskit.mooc.nonpers.mean;
 
 import com.google.common.base.Preconditions;
-import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
 import org.grouplens.grapht.annotation.DefaultProvider;
 import org.lenskit.inject.Shareable;
-import org.lenskit.util.collections.LongUtils;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 import java.io.Serializable;
 import java.util.Map;
@@ -28,14 +32,63 @@ import java.util.Map;
 public class ItemMeanModel implements Serializable {
     private static final long serialVersionUID = 1L;
 
-    private final Long2DoubleMap itemMeans;
+    /**
+     * The items' slots in {@link #sums} and {@link #weights}, in a hash map rather than a frozen sorted map:
+     * per-item lookups are on the request path, and hashing is several times faster than binary search over the
+     * key array.
+     */
+    private final Long2IntOpenHashMap itemSlots;
+    /**
+     * Each item's mean is {@code (sums[slot] + prior) / weights[slot]}, so a damped mean keeps its undamped sum
+     * and count here and a move of the global mean only changes {@link #prior}.
+     */
+    private final double[] sums;
+    private final double[] weights;
+    private final double prior;
+    /**
+     * The items in decreasing order of mean (ties by increasing item ID), or {@code null} until it is first needed.
+     */
+    @Nullable
+    private transient volatile Ranking ranking;
 
     /**
      * Construct a new item mean model.
      * @param means A map of item IDs to their mean ratings.
      */
     public ItemMeanModel(Map<Long, Double> means) {
-        itemMeans = LongUtils.frozenMap(means);
+        int n = means.size();
+        itemSlots = new Long2IntOpenHashMap(n);
+        itemSlots.defaultReturnValue(-1);
+        sums = new double[n];
+        weights = new double[n];
+        prior = 0;
+        int slot = 0;
+        for (Map.Entry<Long, Double> e: means.entrySet()) {
+            itemSlots.put((long) e.getKey(), slot);
+            sums[slot] = e.getValue();
+            weights[slot] = 1;
+            slot++;
+        }
+        ranking = rank();
+    }
+
+    /**
+     * Construct an item mean model from item statistics, for {@link UpdatableItemMeanModel}.  The model takes
+     * ownership of the map and arrays, which must not be modified afterwards.
+     * @param itemSlots The items' slots in the arrays, with a default return value of -1.  Slots not in the map are
+     *                  ignored.
+     * @param sums Each slot's rating sum.
+     * @param weights Each slot's rating count, plus the damping.
+     * @param prior The global mean times the damping.
+     * @param ranking The items' ranking, if it is known, or {@code null} to rank them when first needed.
+     */
+    ItemMeanModel(Long2IntOpenHashMap itemSlots, double[] sums, double[] weights, double prior,
+                  @Nullable Ranking ranking) {
+        this.itemSlots = itemSlots;
+        this.sums = sums;
+        this.weights = weights;
+        this.prior = prior;
+        this.ranking = ranking;
     }
 
     /**
@@ -43,7 +96,7 @@ public class ItemMeanModel implements Serializable {
      * @return The set of items known by the model.
      */
     public LongSet getKnownItems() {
-        return itemMeans.keySet();
+        return LongSets.unmodifiable(itemSlots.keySet());
     }
 
     /**
@@ -52,7 +105,7 @@ public class ItemMeanModel implements Serializable {
      * @return {@code true} if the item is known by the model, {@code false} otherwise.
      */
     public boolean hasItem(long item) {
-        return itemMeans.containsKey(item);
+        return itemSlots.containsKey(item);
     }
 
     /**
@@ -62,7 +115,144 @@ public class ItemMeanModel implements Serializable {
      * @throws IllegalArgumentException if the item is not a known itemm.
      */
     public double getMeanRating(long item) {
-        Preconditions.checkArgument(hasItem(item), "unknown item " + item);
-        return itemMeans.get(item);
+        int slot = itemSlots.get(item);
+        Preconditions.checkArgument(slot >= 0, "unknown item %s", item);
+        return mean(slot);
+    }
+
+    /**
+     * Get the number of items known by the model.
+     * @return The number of items, which is also the number of ranks.
+     */
+    public int getItemCount() {
+        return itemSlots.size();
+    }
+
+    /**
+     * Get the item at a position in the ranking by mean rating.
+     * @param rank The rank, from 0 (highest mean) to {@link #getItemCount()} - 1.
+     * @return The item at that rank.
+     */
+    public long getItemAtRank(int rank) {
+        return getRanking().items[rank];
+    }
+
+    /**
+     * Get the mean rating of the item at a position in the ranking.
+     * @param rank The rank, from 0 (highest mean) to {@link #getItemCount()} - 1.
+     * @return The mean rating of the item at that rank.
+     */
+    public double getMeanAtRank(int rank) {
+        return getRanking().means[rank];
+    }
+
+    /**
+     * Get the ranking, if it has been computed.
+     * @return The ranking, or {@code null} if no ranked read has needed it yet.
+     */
+    @Nullable
+    Ranking getRankingIfComputed() {
+        return ranking;
+    }
+
+    private Ranking getRanking() {
+        Ranking r = ranking;
+        if (r == null) {
+            // concurrent readers may each rank the items, but they all get the same ranking
+            r = rank();
+            ranking = r;
+        }
+        return r;
+    }
+
+    private double mean(int slot) {
+        return (sums[slot] + prior) / weights[slot];
+    }
+
+    private Ranking rank() {
+        int n = itemSlots.size();
+        long[] items = new long[n];
+        double[] means = new double[n];
+        int i = 0;
+        for (Long2IntMap.Entry e: itemSlots.long2IntEntrySet()) {
+            items[i] = e.getLongKey();
+            means[i] = mean(e.getIntValue());
+            i++;
+        }
+        return Ranking.sort(items, means);
+    }
+
+    /**
+     * Items in decreasing order of mean, ties by increasing item ID, with their means.
+     */
+    static final class Ranking {
+        final long[] items;
+        final double[] means;
+
+        private Ranking(long[] items, double[] means) {
+            this.items = items;
+            this.means = means;
+        }
+
+        /**
+         * Rank items.
+         * @param items The items.  The array is sorted in place and kept by the ranking.
+         * @param means The items' means, sorted along with them.
+         * @return The ranking.
+         */
+        static Ranking sort(long[] items, double[] means) {
+            Arrays.quickSort(0, items.length, new AbstractIntComparator() {
+                @Override
+                public int compare(int a, int b) {
+                    return Ranking.compare(items[a], means[a], items[b], means[b]);
+                }
+            }, (a, b) -> {
+                long item = items[a];
+                items[a] = items[b];
+                items[b] = item;
+                double mean = means[a];
+                means[a] = means[b];
+                means[b] = mean;
+            });
+            return new Ranking(items, means);
+        }
+
+        /**
+         * Reposition some items, in time linear in the number of items.
+         * @param moved The items to take out of this ranking.
+         * @param placed The ranking of the items to put in; it may leave out moved items that are gone.
+         * @param size The number of items in the new ranking.
+         * @return The new ranking.
+         */
+        Ranking reposition(LongSet moved, Ranking placed, int size) {
+            int n = items.length;
+            int m = placed.items.length;
+            long[] newItems = new long[size];
+            double[] newMeans = new double[newItems.length];
+            int i = 0;
+            int j = 0;
+            int k = 0;
+            while (true) {
+                while (i < n && moved.contains(items[i])) {
+                    i++;
+                }
+                if (i < n && (j == m || compare(items[i], means[i], placed.items[j], placed.means[j]) < 0)) {
+                    newItems[k] = items[i];
+                    newMeans[k++] = means[i++];
+                } else if (j < m) {
+                    newItems[k] = placed.items[j];
+                    newMeans[k++] = placed.means[j++];
+                } else {
+                    break;
+                }
+            }
+            assert k == newItems.length;
+            return new Ranking(newItems, newMeans);
+        }
+
+        private static int compare(long itemA, double meanA, long itemB, double meanB) {
+            int cmp = Double.compare(meanB, meanA);
+            return cmp != 0 ? cmp : Long.compare(itemA, itemB);
+        }
     }
 }
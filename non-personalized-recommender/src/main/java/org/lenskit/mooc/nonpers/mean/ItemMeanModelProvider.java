@@ -1,21 +1,16 @@
 package org.lenskit.mooc.nonpers.mean;
 
 import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
-import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
-import org.lenskit.api.Result;
 import org.lenskit.data.dao.DataAccessObject;
-import org.lenskit.data.ratings.Rating;
-import org.lenskit.mooc.nonpers.structures.RatingCount;
 import org.lenskit.inject.Transient;
-import org.lenskit.util.io.ObjectStream;
+import org.lenskit.mooc.nonpers.structures.BuildThreadCount;
+import org.lenskit.mooc.nonpers.structures.KeyStatistics;
+import org.lenskit.mooc.nonpers.structures.RatingStatistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Optional;
 
 
 /**
@@ -32,6 +27,10 @@ public class ItemMeanModelProvider implements Provider<ItemMeanModel> {
      * The data access object, to be used when computing the mean ratings.
      */
     private final DataAccessObject dao;
+    /**
+     * The number of threads to aggregate ratings on.
+     */
+    private final int threads;
 
     /**
      * Constructor for the mean item score provider.
@@ -42,10 +41,13 @@ public class ItemMeanModelProvider implements Provider<ItemMeanModel> {
      *            annotation on this parameter means that the DAO will be used to build the model, but the
      *            model will <strong>not</strong> retain a reference to the DAO.  This is standard procedure
      *            for LensKit models.
+     * @param threads The number of threads to aggregate ratings on.  The means are identical for any thread count.
      */
     @Inject
-    public ItemMeanModelProvider(@Transient DataAccessObject dao) {
+    public ItemMeanModelProvider(@Transient DataAccessObject dao,
+                                 @BuildThreadCount int threads) {
         this.dao = dao;
+        this.threads = threads;
     }
 
     /**
@@ -57,41 +59,19 @@ public class ItemMeanModelProvider implements Provider<ItemMeanModel> {
      */
     @Override
     public ItemMeanModel get() {
-        List<RatingCount> ratingsList = new ArrayList<RatingCount>();
+        // one linear pass over the ratings accumulates count and sum for every item
+        RatingStatistics stats = RatingStatistics.compute(dao, threads);
+        KeyStatistics itemStats = stats.getItemStatistics();
 
-        try (ObjectStream<Rating> ratings = dao.query(Rating.class).stream()) {
-            for (Rating r: ratings) {
-                // this loop will run once for each rating in the data set
-                long itemID = r.getItemId();
+        Long2DoubleOpenHashMap means = new Long2DoubleOpenHashMap(itemStats.size());
 
-                //check if rating count for item exists in ratingsList
-                if (ratingsList.stream().filter(o -> itemID==o.getItemId()).findFirst().isPresent() ) {
-                    RatingCount rc = ratingsList.stream().filter(o -> itemID==o.getItemId()).findFirst().get();
-                    rc.incrementCount();
-                    rc.runningTotal(r.getValue());
-                } else {
-                    RatingCount rc = new RatingCount();
-                    rc.setItemId(r.getItemId());
-                    rc.setCount(1);
-                    rc.setSum(r.getValue());
-                    ratingsList.add(rc);
-
-                }
+        for (int slot = 0; slot < itemStats.slotCount(); slot++) {
+            if (itemStats.isOccupied(slot)) {
+                double mean = itemStats.sumAt(slot) / itemStats.countAt(slot);
+                means.put(itemStats.keyAt(slot), mean);
             }
         }
 
-        //calculate mean for specific item id
-        //RatingCount rc = ratingsList.stream().filter(o -> 1203==o.getItemId()).findFirst().get();
-        //double mean = rc.getSum()/rc.getCount();
-
-        Long2DoubleOpenHashMap means = new Long2DoubleOpenHashMap();
-
-        for (RatingCount rc: ratingsList) {
-            double mean = rc.getSum()/rc.getCount();
-            long itemId = rc.getItemId();
-            means.addTo(itemId,mean);
-        }
-
         logger.info("computed mean ratings for {} items", means.size());
         ItemMeanModel model = new ItemMeanModel(means);
         return model;
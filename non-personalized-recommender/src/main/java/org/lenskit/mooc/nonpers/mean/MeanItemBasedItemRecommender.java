@@ -1,10 +1,12 @@
 package org.lenskit.mooc.nonpers.mean;
 
+import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
 import org.lenskit.api.Result;
 import org.lenskit.api.ResultList;
-import org.lenskit.api.ResultMap;
 import org.lenskit.basic.AbstractItemBasedItemRecommender;
+import org.lenskit.mooc.nonpers.structures.TopNItemHeap;
 import org.lenskit.results.Results;
 import org.lenskit.util.collections.LongUtils;
 import org.slf4j.Logger;
@@ -14,7 +16,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.function.Supplier;
 
 /**
  * An item scorer that scores each item with its mean rating.
@@ -22,7 +24,7 @@ import java.util.stream.Collectors;
 public class MeanItemBasedItemRecommender extends AbstractItemBasedItemRecommender {
     private static final Logger logger = LoggerFactory.getLogger(MeanItemBasedItemRecommender.class);
 
-    private final ItemMeanModel model;
+    private final Supplier<ItemMeanModel> models;
 
     /**
      * Construct a mean global item scorer.
@@ -35,72 +37,88 @@ public class MeanItemBasedItemRecommender extends AbstractItemBasedItemRecommend
      */
     @Inject
     public MeanItemBasedItemRecommender(ItemMeanModel m) {
-        model = m;
+        models = () -> m;
+    }
+
+    /**
+     * Construct a mean item scorer over an updatable model.  Each request reads the model's current snapshot once,
+     * so it sees a consistent set of means even while updates are being applied.
+     *
+     * @param m The updatable model containing item mean ratings.
+     */
+    public MeanItemBasedItemRecommender(UpdatableItemMeanModel m) {
+        models = m::getSnapshot;
     }
 
     /**
      * {@inheritDoc}
      *
-     * This is the LensKit recommend method.  It takes several parameters; we implement it for you in terms of a
-     * simpler method ({@link #recommendItems(int, LongSet)}).
+     * This is the LensKit recommend method.  The model keeps its items pre-sorted by mean, so without candidates this
+     * reads a prefix of that order ({@link #recommendTopItems(ItemMeanModel, int, LongSet)}); with candidates it
+     * selects the best of them with a bounded heap ({@link #recommendItems(ItemMeanModel, int, LongSet, LongSet)}).
      */
     @Override
     public ResultList recommendRelatedItemsWithDetails(Set<Long> basket, int n, @Nullable Set<Long> candidates, @Nullable Set<Long> exclude) {
-        LongSet items;
+        ItemMeanModel model = models.get();
+        LongSet excluded = exclude == null ? LongSets.EMPTY_SET : LongUtils.asLongSet(exclude);
+
         if (candidates == null) {
-            items = model.getKnownItems();
-        } else {
-            items = LongUtils.asLongSet(candidates);
+            logger.debug("computing {} recommendations from ranked model", n);
+            return recommendTopItems(model, n, excluded);
         }
 
-        if (exclude != null) {
-            items = LongUtils.setDifference(items, LongUtils.asLongSet(exclude));
-        }
+        logger.debug("computing {} recommendations from {} items", n, candidates.size());
+        return recommendItems(model, n, LongUtils.asLongSet(candidates), excluded);
+    }
 
-        logger.info("computing {} recommendations from {} items", n, items.size());
+    /**
+     * Recommend the highest-rated items in the model.
+     *
+     * <p>This walks the model's ranking from the top, skipping excluded items, so it costs {@code O(n)} plus the
+     * number of excluded items encountered.</p>
+     *
+     * @param model The model snapshot to score with.
+     * @param n The number of items to recommend.  If this is negative, then recommend all possible items.
+     * @param exclude The items to leave out.
+     * @return The recommendations, in decreasing order of score.
+     */
+    private ResultList recommendTopItems(ItemMeanModel model, int n, LongSet exclude) {
+        int count = model.getItemCount();
+        List<Result> results = new ArrayList<>(n >= 0 ? Math.min(n, count) : count);
+
+        for (int rank = 0; rank < count && (n < 0 || results.size() < n); rank++) {
+            long item = model.getItemAtRank(rank);
+            if (!exclude.contains(item)) {
+                results.add(Results.create(item, model.getMeanAtRank(rank)));
+            }
+        }
 
-        return recommendItems(n, items);
+        return Results.newResultList(results);
     }
 
     /**
      * Recommend some items from a set of candidate items.
      *
-     * <p>Your code needs to obtain the mean rating, if one is available, for each item, and return a list of the
-     * {@code n} highest-rated items, in decreasing order of score.</p>
-     *
-     * <p>To create the {@link ResultMap} data structure, do the following:</p>
-     *
-     * <ol>
-     *     <li>Create a {@link List} to hold {@link Result} objects.</li>
-     *     <li>Create a result object for each item that can be scored.  Use {@link Results#create(long, double)} to
-     *     create the result object. If an item cannot be scored (because there is no mean available), ignore it and
-     *     do not add a result to the list.</li>
-     *     <li>Convert the list of results to a {@link ResultList} using {@link Results#newResultList(List)}.</li>
-     * </ol>
+     * <p>Items the model cannot score (because there is no mean available) are ignored.  The rest go through a
+     * heap bounded at {@code n}, so this costs {@code O(c log n)} for {@code c} candidates.</p>
      *
+     * @param model The model snapshot to score with.
      * @param n The number of items to recommend.  If this is negative, then recommend all possible items.
      * @param items The items to score.
-     * @return A {@link ResultMap} containing the scores.
+     * @param exclude The items to leave out.
+     * @return The recommendations, in decreasing order of score.
      */
-    private ResultList recommendItems(int n, LongSet items) {
-        List<Result> results = new ArrayList<>();
-
-        for (long item: items) {
-            long l = item;
+    private ResultList recommendItems(ItemMeanModel model, int n, LongSet items, LongSet exclude) {
+        TopNItemHeap heap = new TopNItemHeap(n);
 
-            if (model.hasItem(l)) {
-                double mean = model.getMeanRating(l);
-                results.add(Results.create(l, mean));
+        LongIterator iter = items.iterator();
+        while (iter.hasNext()) {
+            long item = iter.nextLong();
+            if (!exclude.contains(item) && model.hasItem(item)) {
+                heap.offer(item, model.getMeanRating(item));
             }
         }
 
-        Collections.sort(results, (r1, r2) -> Double.compare(r2.getScore(), r1.getScore()));
-
-        List<Result> finalResults = results
-                .stream()
-                .limit(n)
-                .collect(Collectors.toList());
-
-        return Results.newResultList(finalResults);
+        return heap.finish();
     }
 }
@@ -0,0 +1,247 @@
+package org.lenskit.mooc.nonpers.mean;
+
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.mooc.nonpers.structures.KeyStatistics;
+import org.lenskit.mooc.nonpers.structures.RatingStatistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * An item mean model that can absorb new and retracted ratings without re-reading the DAO.
+ *
+ * <p>This class keeps the sufficient statistics for the means &mdash; each item's rating count and sum, and the
+ * global count and sum &mdash; and publishes an immutable {@link ItemMeanModel} snapshot after every batch of updates.
+ * Readers call {@link #getSnapshot()} and use the returned model for the whole request, so they always see the state
+ * after some complete batch, never a partly-applied one.  Updates are serialized with each other but never block
+ * readers.</p>
+ *
+ * <p>Only the items touched by a batch are updated.  A snapshot keeps each item's undamped rating sum and count, and
+ * applies the damping toward the global mean when a mean is read, so a move of the global mean changes no item.  The
+ * snapshot's ranking is the previous one with the touched items repositioned, unless the global mean moved in a damped
+ * model: that can reorder any items, so the new snapshot ranks all of them the first time a ranked read needs it.</p>
+ */
+@ThreadSafe
+public class UpdatableItemMeanModel {
+    private static final Logger logger = LoggerFactory.getLogger(UpdatableItemMeanModel.class);
+
+    private final double damping;
+    private final KeyStatistics itemStats;
+    private long globalCount;
+    private double globalSum;
+    /**
+     * The current snapshot's item slots, sums, weights and prior (see {@link ItemMeanModel}).  The snapshot owns
+     * them, so they are copied before they are changed.
+     */
+    private Long2IntOpenHashMap slots;
+    private double[] sums;
+    private double[] weights;
+    private double prior;
+    /**
+     * The number of slots used, including those of items that have been dropped.
+     */
+    private int slotCount;
+    private volatile ItemMeanModel snapshot;
+
+    /**
+     * Create an updatable model from rating statistics.
+     * @param stats The statistics of the initial ratings.  The model takes ownership of them and will modify them.
+     * @param damping The mean damping (the number of fake global-mean ratings to assume); 0 for plain means.
+     */
+    public UpdatableItemMeanModel(RatingStatistics stats, double damping) {
+        this.damping = damping;
+        itemStats = stats.getItemStatistics();
+        globalCount = stats.getGlobalCount();
+        globalSum = stats.getGlobalSum();
+        prior = prior();
+        int n = itemStats.size();
+        slots = new Long2IntOpenHashMap(n);
+        slots.defaultReturnValue(-1);
+        sums = new double[n];
+        weights = new double[n];
+        for (int slot = 0; slot < itemStats.slotCount(); slot++) {
+            if (itemStats.isOccupied(slot) && itemStats.countAt(slot) > 0) {
+                slots.put(itemStats.keyAt(slot), slotCount);
+                sums[slotCount] = itemStats.sumAt(slot);
+                weights[slotCount] = itemStats.countAt(slot) + damping;
+                slotCount++;
+            }
+        }
+        snapshot = new ItemMeanModel(slots, sums, weights, prior, null);
+    }
+
+    /**
+     * Create an updatable model from the ratings in a DAO.
+     * @param dao The DAO.
+     * @param damping The mean damping; 0 for plain means.
+     * @param threads The number of threads to aggregate the initial ratings on.
+     * @return The updatable model.
+     */
+    public static UpdatableItemMeanModel build(DataAccessObject dao, double damping, int threads) {
+        return new UpdatableItemMeanModel(RatingStatistics.compute(dao, threads), damping);
+    }
+
+    /**
+     * Get the current model.
+     * @return The model reflecting every batch applied so far.  It is immutable, and is not affected by later updates.
+     */
+    public ItemMeanModel getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Add a batch of new ratings.
+     * @param ratings The new ratings.
+     * @return The snapshot that includes them.
+     */
+    public ItemMeanModel addRatings(@Nonnull Collection<Rating> ratings) {
+        return update(ratings, Collections.<Rating>emptyList());
+    }
+
+    /**
+     * Apply a batch of new and retracted ratings, and publish a new snapshot.
+     *
+     * @param added The new ratings.
+     * @param retracted The retracted ratings.  Each must carry the value it was added with, and the retractions are
+     *                  applied after the additions.  Items left with no ratings are dropped from the model.
+     * @return The snapshot that includes the batch.
+     * @throws IllegalArgumentException if the batch retracts more ratings of an item than it has; the batch is then
+     *                                  not applied at all.
+     */
+    public synchronized ItemMeanModel update(@Nonnull Collection<Rating> added, @Nonnull Collection<Rating> retracted) {
+        // check the retractions first, so a bad batch leaves the model untouched
+        Long2LongOpenHashMap counts = new Long2LongOpenHashMap();
+        for (Rating r: added) {
+            counts.addTo(r.getItemId(), 1);
+        }
+        for (Rating r: retracted) {
+            long item = r.getItemId();
+            if (itemStats.getCount(item) + counts.addTo(item, -1) <= 0) {
+                throw new IllegalArgumentException("retracted more ratings than recorded for item " + item);
+            }
+        }
+
+        LongSet affected = new LongOpenHashSet();
+        for (Rating r: added) {
+            itemStats.add(r.getItemId(), r.getValue());
+            globalCount += 1;
+            globalSum += r.getValue();
+            affected.add(r.getItemId());
+        }
+        for (Rating r: retracted) {
+            itemStats.remove(r.getItemId(), r.getValue());
+            globalCount -= 1;
+            globalSum -= r.getValue();
+            affected.add(r.getItemId());
+        }
+
+        // the old snapshot owns the slots and arrays, so copy them, and the slots only if items come or go
+        int newItems = 0;
+        boolean dropped = false;
+        for (long item: affected) {
+            boolean live = itemStats.getCount(item) > 0;
+            if (live && !slots.containsKey(item)) {
+                newItems++;
+            } else if (!live && slots.containsKey(item)) {
+                dropped = true;
+            }
+        }
+        if (newItems > 0 || dropped) {
+            slots = slots.clone();
+        }
+        sums = Arrays.copyOf(sums, slotCount + newItems);
+        weights = Arrays.copyOf(weights, slotCount + newItems);
+        for (long item: affected) {
+            long count = itemStats.getCount(item);
+            if (count > 0) {
+                int slot = slots.get(item);
+                if (slot < 0) {
+                    slot = slotCount++;
+                    slots.put(item, slot);
+                }
+                sums[slot] = itemStats.getSum(item);
+                weights[slot] = count + damping;
+            } else {
+                slots.remove(item);
+            }
+        }
+        if (slotCount > 2 * slots.size()) {
+            compactSlots();
+        }
+
+        double oldPrior = prior;
+        prior = prior();
+        ItemMeanModel.Ranking ranking = snapshot.getRankingIfComputed();
+        if (ranking != null && Double.compare(oldPrior, prior) == 0) {
+            ranking = ranking.reposition(affected, rankItems(affected), slots.size());
+        } else {
+            ranking = null;
+        }
+
+        logger.debug("applied {} new and {} retracted ratings to {} items",
+                     added.size(), retracted.size(), affected.size());
+        ItemMeanModel model = new ItemMeanModel(slots, sums, weights, prior, ranking);
+        snapshot = model;
+        return model;
+    }
+
+    /**
+     * Compute the global mean times the damping, which every damped mean is shrunk toward.
+     */
+    private double prior() {
+        // with no ratings there are no items, and no global mean to divide out
+        return globalCount > 0 ? globalSum / globalCount * damping : 0;
+    }
+
+    /**
+     * Rank the items of a set that are still in the model, by their current means.
+     */
+    private ItemMeanModel.Ranking rankItems(LongSet items) {
+        long[] ranked = new long[items.size()];
+        double[] means = new double[items.size()];
+        int n = 0;
+        for (long item: items) {
+            int slot = slots.get(item);
+            if (slot >= 0) {
+                ranked[n] = item;
+                // the same arithmetic as ItemMeanModel, so the ranking has the means it reports
+                means[n] = (sums[slot] + prior) / weights[slot];
+                n++;
+            }
+        }
+        return ItemMeanModel.Ranking.sort(Arrays.copyOf(ranked, n), Arrays.copyOf(means, n));
+    }
+
+    /**
+     * Renumber the slots of the remaining items, dropping the unused ones.  The slots and arrays are new.
+     */
+    private void compactSlots() {
+        int n = slots.size();
+        Long2IntOpenHashMap compacted = new Long2IntOpenHashMap(n);
+        compacted.defaultReturnValue(-1);
+        double[] newSums = new double[n];
+        double[] newWeights = new double[n];
+        int next = 0;
+        for (Long2IntMap.Entry e: slots.long2IntEntrySet()) {
+            compacted.put(e.getLongKey(), next);
+            newSums[next] = sums[e.getIntValue()];
+            newWeights[next] = weights[e.getIntValue()];
+            next++;
+        }
+        slots = compacted;
+        sums = newSums;
+        weights = newWeights;
+        slotCount = n;
+    }
+}
@@ -0,0 +1,150 @@
+package org.lenskit.mooc.nonpers.structures;
+
+import java.util.Arrays;
+
+/**
+ * Intersection-size kernels for sets of small non-negative integers, held either as sorted {@code int[]} ranges or as
+ * {@code long[]} bitsets.
+ *
+ * <p>None of the kernels allocate.  Which one is fastest depends on the sizes and densities of the two sets: a linear
+ * merge for sorted arrays of similar size, galloping search when one array is much smaller than the other, and a word
+ * AND with popcount when both sets are dense enough to be kept as bitsets.</p>
+ */
+public final class IntSetKernels {
+    /**
+     * The size ratio beyond which galloping the smaller array through the larger one beats a linear merge.
+     */
+    public static final int GALLOP_RATIO = 32;
+
+    private IntSetKernels() {
+    }
+
+    /**
+     * Count the common elements of two sorted arrays, picking the merge or galloping kernel by their sizes.
+     * @param a The first array.
+     * @param aFrom The start of the first range (inclusive).
+     * @param aTo The end of the first range (exclusive).
+     * @param b The second array.
+     * @param bFrom The start of the second range (inclusive).
+     * @param bTo The end of the second range (exclusive).
+     * @return The number of values in both ranges.
+     */
+    public static int arrayCount(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo) {
+        int aSize = aTo - aFrom;
+        int bSize = bTo - bFrom;
+        if ((long) aSize * GALLOP_RATIO < bSize) {
+            return gallopCount(a, aFrom, aTo, b, bFrom, bTo);
+        } else if ((long) bSize * GALLOP_RATIO < aSize) {
+            return gallopCount(b, bFrom, bTo, a, aFrom, aTo);
+        } else {
+            return mergeCount(a, aFrom, aTo, b, bFrom, bTo);
+        }
+    }
+
+    /**
+     * Count the common elements of two sorted arrays by merging them.  This is linear in the sum of their sizes.
+     * @see #arrayCount(int[], int, int, int[], int, int)
+     */
+    public static int mergeCount(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo) {
+        int count = 0;
+        int i = aFrom;
+        int j = bFrom;
+        while (i < aTo && j < bTo) {
+            int x = a[i];
+            int y = b[j];
+            if (x < y) {
+                i++;
+            } else if (x > y) {
+                j++;
+            } else {
+                count++;
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Count the common elements of two sorted arrays by galloping each element of the small one through the large
+     * one.  This is linear in the small array's size and logarithmic in the gaps between its matches.
+     * @param small The smaller array.
+     * @param sFrom The start of the smaller range (inclusive).
+     * @param sTo The end of the smaller range (exclusive).
+     * @param large The larger array.
+     * @param lFrom The start of the larger range (inclusive).
+     * @param lTo The end of the larger range (exclusive).
+     * @return The number of values in both ranges.
+     */
+    public static int gallopCount(int[] small, int sFrom, int sTo, int[] large, int lFrom, int lTo) {
+        int count = 0;
+        int lo = lFrom;
+        for (int i = sFrom; i < sTo && lo < lTo; i++) {
+            int x = small[i];
+            // double the step until we pass x, then binary search the last step
+            int hi = lo;
+            int step = 1;
+            while (hi < lTo && large[hi] < x) {
+                lo = hi + 1;
+                hi += step;
+                step <<= 1;
+            }
+            int pos = Arrays.binarySearch(large, lo, Math.min(hi + 1, lTo), x);
+            if (pos >= 0) {
+                count++;
+                lo = pos + 1;
+            } else {
+                lo = -pos - 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Count the common elements of two bitsets.
+     * @param a The first bitset.
+     * @param b The second bitset.
+     * @return The number of bits set in both.
+     */
+    public static int bitsetCount(long[] a, long[] b) {
+        int n = Math.min(a.length, b.length);
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            count += Long.bitCount(a[i] & b[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Count the elements of a sorted array that are in a bitset.
+     * @param a The array.
+     * @param aFrom The start of the range (inclusive).
+     * @param aTo The end of the range (exclusive).
+     * @param bits The bitset; it must be large enough to hold every value in the range.
+     * @return The number of values in both.
+     */
+    public static int probeCount(int[] a, int aFrom, int aTo, long[] bits) {
+        int count = 0;
+        for (int i = aFrom; i < aTo; i++) {
+            int x = a[i];
+            count += (int) (bits[x >>> 6] >>> x) & 1;
+        }
+        return count;
+    }
+
+    /**
+     * Build a bitset from an array of values.
+     * @param a The array.
+     * @param aFrom The start of the range (inclusive).
+     * @param aTo The end of the range (exclusive).
+     * @param universe The number of possible values; every value must be less than it.
+     * @return A bitset with the bit of every value in the range set.
+     */
+    public static long[] toBitset(int[] a, int aFrom, int aTo, int universe) {
+        long[] bits = new long[(universe + 63) >>> 6];
+        for (int i = aFrom; i < aTo; i++) {
+            bits[a[i] >>> 6] |= 1L << a[i];
+        }
+        return bits;
+    }
+}
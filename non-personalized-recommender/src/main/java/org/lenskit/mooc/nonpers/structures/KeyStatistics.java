@@ -0,0 +1,252 @@
+package org.lenskit.mooc.nonpers.structures;
+
+import it.unimi.dsi.fastutil.Hash;
+import it.unimi.dsi.fastutil.HashCommon;
+
+/**
+ * Count, sum and sum of squares of rating values, grouped by a key (an item or a user ID).
+ *
+ * <p>The statistics live in parallel primitive arrays addressed by an open-addressing (linear probing) hash of the
+ * key, so accumulating a value is a constant-time probe with no allocation.  The slots are exposed directly
+ * ({@link #slotCount()}, {@link #isOccupied(int)}, {@link #keyAt(int)}, ...) so callers can walk the table without
+ * boxing.</p>
+ *
+ * <p>This class is not thread-safe; build one per thread and {@linkplain #merge(KeyStatistics) merge} them.</p>
+ */
+public class KeyStatistics {
+    private long[] keys;
+    private boolean[] used;
+    private long[] counts;
+    private double[] sums;
+    private double[] sumSquares;
+    private int mask;
+    private int maxFill;
+    private int size;
+
+    /**
+     * Create an empty statistics table.
+     */
+    public KeyStatistics() {
+        this(Hash.DEFAULT_INITIAL_SIZE);
+    }
+
+    /**
+     * Create an empty statistics table.
+     * @param expected The expected number of keys.
+     */
+    public KeyStatistics(int expected) {
+        allocate(HashCommon.arraySize(Math.max(expected, 1), Hash.DEFAULT_LOAD_FACTOR));
+    }
+
+    private void allocate(int n) {
+        keys = new long[n];
+        used = new boolean[n];
+        counts = new long[n];
+        sums = new double[n];
+        sumSquares = new double[n];
+        mask = n - 1;
+        maxFill = HashCommon.maxFill(n, Hash.DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * Find the slot holding a key, or the empty slot where it would be inserted.
+     */
+    private int find(long key) {
+        int pos = (int) HashCommon.mix(key) & mask;
+        while (used[pos] && keys[pos] != key) {
+            pos = (pos + 1) & mask;
+        }
+        return pos;
+    }
+
+    /**
+     * Get the slot for a key, claiming a new one if the key is absent.
+     */
+    private int slotFor(long key) {
+        int pos = find(key);
+        if (!used[pos]) {
+            if (size >= maxFill) {
+                rehash(keys.length * 2);
+                pos = find(key);
+            }
+            used[pos] = true;
+            keys[pos] = key;
+            size++;
+        }
+        return pos;
+    }
+
+    private void rehash(int n) {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        long[] oldCounts = counts;
+        double[] oldSums = sums;
+        double[] oldSquares = sumSquares;
+        allocate(n);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int pos = find(oldKeys[i]);
+                used[pos] = true;
+                keys[pos] = oldKeys[i];
+                counts[pos] = oldCounts[i];
+                sums[pos] = oldSums[i];
+                sumSquares[pos] = oldSquares[i];
+            }
+        }
+    }
+
+    /**
+     * Record a value for a key.
+     * @param key The key (item or user ID).
+     * @param value The rating value.
+     */
+    public void add(long key, double value) {
+        int pos = slotFor(key);
+        counts[pos] += 1;
+        sums[pos] += value;
+        sumSquares[pos] += value * value;
+    }
+
+    /**
+     * Retract a value previously recorded for a key.  The key keeps its slot even if its count drops to zero, so
+     * callers that retract values should check {@link #countAt(int)} rather than {@link #isOccupied(int)}.
+     * @param key The key (item or user ID).
+     * @param value The rating value that was recorded.
+     * @throws IllegalArgumentException if the key has no recorded values.
+     */
+    public void remove(long key, double value) {
+        int pos = find(key);
+        if (!used[pos] || counts[pos] == 0) {
+            throw new IllegalArgumentException("no values recorded for key " + key);
+        }
+        counts[pos] -= 1;
+        sums[pos] -= value;
+        sumSquares[pos] -= value * value;
+    }
+
+    /**
+     * Add another table's statistics into this one.  Per-key sums are added in the order merges happen, so merging
+     * the same partials in the same order always yields the same values.
+     * @param other The statistics to merge in.
+     */
+    public void merge(KeyStatistics other) {
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.used[i]) {
+                int pos = slotFor(other.keys[i]);
+                counts[pos] += other.counts[i];
+                sums[pos] += other.sums[i];
+                sumSquares[pos] += other.sumSquares[i];
+            }
+        }
+    }
+
+    /**
+     * Get the number of distinct keys.
+     * @return The number of keys with statistics.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Query whether a key has statistics.
+     * @param key The key.
+     * @return {@code true} if at least one value has been recorded for the key.
+     */
+    public boolean containsKey(long key) {
+        return used[find(key)];
+    }
+
+    /**
+     * Get the number of values recorded for a key.
+     * @param key The key.
+     * @return The count, or 0 if the key is unknown.
+     */
+    public long getCount(long key) {
+        int pos = find(key);
+        return used[pos] ? counts[pos] : 0;
+    }
+
+    /**
+     * Get the sum of the values recorded for a key.
+     * @param key The key.
+     * @return The sum, or 0 if the key is unknown.
+     */
+    public double getSum(long key) {
+        int pos = find(key);
+        return used[pos] ? sums[pos] : 0;
+    }
+
+    /**
+     * Get the sum of the squared values recorded for a key.
+     * @param key The key.
+     * @return The sum of squares, or 0 if the key is unknown.
+     */
+    public double getSumOfSquares(long key) {
+        int pos = find(key);
+        return used[pos] ? sumSquares[pos] : 0;
+    }
+
+    /**
+     * Get the mean of the values recorded for a key.
+     * @param key The key.
+     * @return The mean, or {@link Double#NaN} if the key is unknown.
+     */
+    public double getMean(long key) {
+        int pos = find(key);
+        return used[pos] ? sums[pos] / counts[pos] : Double.NaN;
+    }
+
+    /**
+     * Get the number of slots in the table, for iterating with the slot accessors.
+     * @return The slot count (the table capacity, not the number of keys).
+     */
+    public int slotCount() {
+        return keys.length;
+    }
+
+    /**
+     * Query whether a slot holds a key.
+     * @param slot The slot number.
+     * @return {@code true} if the slot is occupied.
+     */
+    public boolean isOccupied(int slot) {
+        return used[slot];
+    }
+
+    /**
+     * Get the key stored in an occupied slot.
+     * @param slot The slot number.
+     * @return The key.
+     */
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * Get the value count stored in an occupied slot.
+     * @param slot The slot number.
+     * @return The count.
+     */
+    public long countAt(int slot) {
+        return counts[slot];
+    }
+
+    /**
+     * Get the value sum stored in an occupied slot.
+     * @param slot The slot number.
+     * @return The sum.
+     */
+    public double sumAt(int slot) {
+        return sums[slot];
+    }
+
+    /**
+     * Get the sum of squared values stored in an occupied slot.
+     * @param slot The slot number.
+     * @return The sum of squares.
+     */
+    public double sumOfSquaresAt(int slot) {
+        return sumSquares[slot];
+    }
+}
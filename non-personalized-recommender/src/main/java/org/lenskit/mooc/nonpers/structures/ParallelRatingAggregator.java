@@ -0,0 +1,344 @@
+package org.lenskit.mooc.nonpers.structures;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.mooc.nonpers.data.RatingColumns;
+import org.lenskit.util.keys.SortedKeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes {@link RatingStatistics} on several threads.
+ *
+ * <p>The ratings are cut into fixed-size chunks in stream order.  Each chunk is read and split by one worker of a
+ * splitting pool: it decodes the chunk's rows when the ratings are {@linkplain RatingColumns columns}, and sorts the
+ * chunk's ratings into one slice per shard of the item IDs and of the user IDs (chosen by key hash), keeping their
+ * order.  Each shard is then accumulated by its own worker, which reads only its slices of each chunk, in chunk order,
+ * so the shard workers never share a table and no worker reads every rating.  Because each key is owned by exactly one
+ * worker, which sees that key's ratings in stream order, every per-key sum is added up in the same order as on the
+ * sequential path and the merged statistics are bit-identical to it.  The global totals are accumulated by one more
+ * worker, again in stream order.</p>
+ *
+ * <p>At most {@value #CHUNKS_AHEAD} chunks per thread are read or split ahead of the slowest shard, which bounds the
+ * memory held in flight.</p>
+ */
+class ParallelRatingAggregator {
+    private static final Logger logger = LoggerFactory.getLogger(ParallelRatingAggregator.class);
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int CHUNKS_AHEAD = 4;
+    private static final Future<Split> END = CompletableFuture.completedFuture(null);
+
+    private final int threads;
+
+    /**
+     * Create a parallel aggregator.
+     * @param threads The number of worker threads.
+     */
+    ParallelRatingAggregator(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Aggregate ratings.  The calling thread reads the ratings into chunks, and the workers split them.
+     * @param ratings The ratings to aggregate.
+     * @return The rating statistics.
+     */
+    RatingStatistics aggregate(Iterable<Rating> ratings) {
+        try (Run run = new Run()) {
+            Chunk chunk = new Chunk(CHUNK_SIZE);
+            for (Rating r: ratings) {
+                chunk.users[chunk.size] = r.getUserId();
+                chunk.items[chunk.size] = r.getItemId();
+                chunk.values[chunk.size] = r.getValue();
+                chunk.size++;
+                if (chunk.size == CHUNK_SIZE) {
+                    Chunk full = chunk;
+                    run.submit(() -> full);
+                    chunk = new Chunk(CHUNK_SIZE);
+                }
+            }
+            if (chunk.size > 0) {
+                Chunk last = chunk;
+                run.submit(() -> last);
+            }
+            return run.finish();
+        }
+    }
+
+    /**
+     * Aggregate the ratings of a column set, in row order.  The workers decode the rows of their chunks themselves, so
+     * no rating objects are made.
+     * @param columns The rating columns.
+     * @return The rating statistics, the same as those of the columns' ratings in row order.
+     */
+    RatingStatistics aggregate(RatingColumns columns) {
+        SortedKeyIndex users = columns.getUserIndex();
+        SortedKeyIndex items = columns.getItemIndex();
+        int n = columns.size();
+        try (Run run = new Run()) {
+            for (int start = 0; start < n; start += CHUNK_SIZE) {
+                int from = start;
+                int to = Math.min(n, start + CHUNK_SIZE);
+                run.submit(() -> {
+                    Chunk chunk = new Chunk(to - from);
+                    for (int row = from; row < to; row++) {
+                        chunk.users[chunk.size] = users.getKey(columns.userAt(row));
+                        chunk.items[chunk.size] = items.getKey(columns.itemAt(row));
+                        chunk.values[chunk.size] = columns.valueAt(row);
+                        chunk.size++;
+                    }
+                    return chunk;
+                });
+            }
+            return run.finish();
+        }
+    }
+
+    /**
+     * Get the shard that owns a key.  This uses the high bits of the hash, as {@link KeyStatistics} addresses its
+     * slots with the low bits and a shard's keys would otherwise pile up in a fraction of the table.
+     */
+    static int shardOf(long key, int shards) {
+        return (int) ((HashCommon.mix(key) >>> 33) % shards);
+    }
+
+    /**
+     * One aggregation: the splitting pool, the shard and totals workers, and the queues of split chunks feeding them.
+     */
+    private class Run implements AutoCloseable {
+        private final ExecutorService splitters = Executors.newFixedThreadPool(threads);
+        private final ExecutorService accumulators = Executors.newFixedThreadPool(threads + 1);
+        private final Semaphore ahead = new Semaphore(CHUNKS_AHEAD * threads);
+        private final List<BlockingQueue<Future<Split>>> queues = new ArrayList<>(threads + 1);
+        private final List<Future<KeyStatistics[]>> shards = new ArrayList<>(threads);
+        private final Future<double[]> totals;
+        private int chunks;
+
+        Run() {
+            for (int shard = 0; shard < threads; shard++) {
+                BlockingQueue<Future<Split>> queue = new LinkedBlockingQueue<>();
+                queues.add(queue);
+                shards.add(accumulators.submit(new ShardWorker(shard, queue)));
+            }
+            BlockingQueue<Future<Split>> queue = new LinkedBlockingQueue<>();
+            queues.add(queue);
+            totals = accumulators.submit(new TotalsWorker(queue));
+        }
+
+        /**
+         * Read and split a chunk on the splitting pool, and queue it for every accumulator, waiting if too many chunks
+         * are in flight.  Fails fast if an accumulator has died and stopped releasing chunks.
+         */
+        void submit(Callable<Chunk> reader) {
+            try {
+                while (!ahead.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    checkAccumulators();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while aggregating ratings", e);
+            }
+            Future<Split> split = splitters.submit(() -> new Split(reader.call(), threads, queues.size(), ahead));
+            for (BlockingQueue<Future<Split>> queue: queues) {
+                queue.add(split);
+            }
+            chunks++;
+        }
+
+        /**
+         * Wait for the accumulators, and merge their results.
+         */
+        RatingStatistics finish() {
+            for (BlockingQueue<Future<Split>> queue: queues) {
+                queue.add(END);
+            }
+            try {
+                // merge the shards in shard order; their keys are disjoint, so this only copies values
+                KeyStatistics itemStats = new KeyStatistics();
+                KeyStatistics userStats = new KeyStatistics();
+                for (Future<KeyStatistics[]> result: shards) {
+                    KeyStatistics[] partial = result.get();
+                    itemStats.merge(partial[0]);
+                    userStats.merge(partial[1]);
+                }
+                double[] global = totals.get();
+                long count = (long) global[0];
+                logger.debug("aggregated {} ratings in {} chunks on {} threads", count, chunks, threads);
+                return new RatingStatistics(itemStats, userStats, count, global[1], global[2]);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while aggregating ratings", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("rating aggregation failed", e.getCause());
+            }
+        }
+
+        private void checkAccumulators() {
+            List<Future<?>> all = new ArrayList<>(shards);
+            all.add(totals);
+            for (Future<?> result: all) {
+                if (result.isDone()) {
+                    try {
+                        result.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("interrupted while aggregating ratings", e);
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException("rating aggregation failed", e.getCause());
+                    }
+                    throw new IllegalStateException("rating aggregation worker exited early");
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            splitters.shutdownNow();
+            accumulators.shutdownNow();
+        }
+    }
+
+    /**
+     * A block of ratings in primitive arrays.
+     */
+    private static class Chunk {
+        final long[] users;
+        final long[] items;
+        final double[] values;
+        int size;
+
+        Chunk(int capacity) {
+            users = new long[capacity];
+            items = new long[capacity];
+            values = new double[capacity];
+        }
+    }
+
+    /**
+     * A chunk's ratings sliced by item shard and by user shard, each slice in chunk order.  Splits are not modified
+     * once made; each reader releases it when done, and the last one lets another chunk be read.
+     */
+    private static class Split {
+        final long[][] itemKeys;
+        final double[][] itemValues;
+        final long[][] userKeys;
+        final double[][] userValues;
+        final double[] values;
+        final int size;
+        private final AtomicInteger readers;
+        private final Semaphore ahead;
+
+        Split(Chunk chunk, int shards, int readers, Semaphore ahead) {
+            int n = chunk.size;
+            size = n;
+            values = chunk.values;
+            this.readers = new AtomicInteger(readers);
+            this.ahead = ahead;
+
+            int[] itemShards = new int[n];
+            int[] userShards = new int[n];
+            int[] itemSizes = new int[shards];
+            int[] userSizes = new int[shards];
+            for (int i = 0; i < n; i++) {
+                itemShards[i] = shardOf(chunk.items[i], shards);
+                itemSizes[itemShards[i]]++;
+                userShards[i] = shardOf(chunk.users[i], shards);
+                userSizes[userShards[i]]++;
+            }
+            itemKeys = new long[shards][];
+            itemValues = new double[shards][];
+            userKeys = new long[shards][];
+            userValues = new double[shards][];
+            for (int s = 0; s < shards; s++) {
+                itemKeys[s] = new long[itemSizes[s]];
+                itemValues[s] = new double[itemSizes[s]];
+                userKeys[s] = new long[userSizes[s]];
+                userValues[s] = new double[userSizes[s]];
+            }
+            int[] itemFill = new int[shards];
+            int[] userFill = new int[shards];
+            for (int i = 0; i < n; i++) {
+                int s = itemShards[i];
+                itemKeys[s][itemFill[s]] = chunk.items[i];
+                itemValues[s][itemFill[s]++] = chunk.values[i];
+                s = userShards[i];
+                userKeys[s][userFill[s]] = chunk.users[i];
+                userValues[s][userFill[s]++] = chunk.values[i];
+            }
+        }
+
+        void release() {
+            if (readers.decrementAndGet() == 0) {
+                ahead.release();
+            }
+        }
+    }
+
+    /**
+     * Accumulates the statistics for one shard of the items and users.
+     */
+    private static class ShardWorker implements Callable<KeyStatistics[]> {
+        private final int shard;
+        private final BlockingQueue<Future<Split>> queue;
+
+        ShardWorker(int shard, BlockingQueue<Future<Split>> queue) {
+            this.shard = shard;
+            this.queue = queue;
+        }
+
+        @Override
+        public KeyStatistics[] call() throws InterruptedException, ExecutionException {
+            KeyStatistics itemStats = new KeyStatistics();
+            KeyStatistics userStats = new KeyStatistics();
+            for (Future<Split> next = queue.take(); next != END; next = queue.take()) {
+                Split split = next.get();
+                long[] items = split.itemKeys[shard];
+                double[] itemValues = split.itemValues[shard];
+                for (int i = 0; i < items.length; i++) {
+                    itemStats.add(items[i], itemValues[i]);
+                }
+                long[] users = split.userKeys[shard];
+                double[] userValues = split.userValues[shard];
+                for (int i = 0; i < users.length; i++) {
+                    userStats.add(users[i], userValues[i]);
+                }
+                split.release();
+            }
+            return new KeyStatistics[]{itemStats, userStats};
+        }
+    }
+
+    /**
+     * Accumulates the global count, sum and sum of squares.
+     */
+    private static class TotalsWorker implements Callable<double[]> {
+        private final BlockingQueue<Future<Split>> queue;
+
+        TotalsWorker(BlockingQueue<Future<Split>> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public double[] call() throws InterruptedException, ExecutionException {
+            long count = 0;
+            double sum = 0;
+            double sumSquares = 0;
+            for (Future<Split> next = queue.take(); next != END; next = queue.take()) {
+                Split split = next.get();
+                for (int i = 0; i < split.size; i++) {
+                    double value = split.values[i];
+                    count += 1;
+                    sum += value;
+                    sumSquares += value * value;
+                }
+                split.release();
+            }
+            return new double[]{count, sum, sumSquares};
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.lenskit.mooc.nonpers.structures;
+
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.mooc.nonpers.data.ColumnarRatingDAO;
+import org.lenskit.util.io.ObjectStream;
+
+/**
+ * Rating count, sum and sum of squares per item, per user, and over all ratings.
+ *
+ * <p>This is the shared aggregation step for the mean and bias model providers: it is built in a single linear pass
+ * over the ratings, and each provider derives its model from the resulting sufficient statistics.</p>
+ */
+public class RatingStatistics {
+    private final KeyStatistics itemStats;
+    private final KeyStatistics userStats;
+    private long count;
+    private double sum;
+    private double sumSquares;
+
+    /**
+     * Create empty rating statistics.
+     */
+    public RatingStatistics() {
+        itemStats = new KeyStatistics();
+        userStats = new KeyStatistics();
+    }
+
+    RatingStatistics(KeyStatistics items, KeyStatistics users, long count, double sum, double sumSquares) {
+        itemStats = items;
+        userStats = users;
+        this.count = count;
+        this.sum = sum;
+        this.sumSquares = sumSquares;
+    }
+
+    /**
+     * Compute rating statistics from all ratings in a DAO.
+     * @param dao The DAO.
+     * @return The statistics of the DAO's ratings.
+     */
+    public static RatingStatistics compute(DataAccessObject dao) {
+        try (ObjectStream<Rating> ratings = dao.query(Rating.class).stream()) {
+            return compute(ratings);
+        }
+    }
+
+    /**
+     * Compute rating statistics from all ratings in a DAO, optionally in parallel.  The ratings of a
+     * {@link ColumnarRatingDAO} are decoded by the worker threads; other DAOs are read on the calling thread.
+     * @param dao The DAO.
+     * @param threads The number of threads to aggregate on; if 1 or less, aggregate on the calling thread.
+     * @return The statistics of the DAO's ratings.  These are bit-identical for every thread count.
+     * @see ParallelRatingAggregator
+     */
+    public static RatingStatistics compute(DataAccessObject dao, int threads) {
+        if (threads > 1 && dao instanceof ColumnarRatingDAO) {
+            return new ParallelRatingAggregator(threads).aggregate(((ColumnarRatingDAO) dao).getRatingColumns());
+        }
+        try (ObjectStream<Rating> ratings = dao.query(Rating.class).stream()) {
+            return compute(ratings, threads);
+        }
+    }
+
+    /**
+     * Compute rating statistics from a sequence of ratings.
+     * @param ratings The ratings.
+     * @return The statistics of the ratings.
+     */
+    public static RatingStatistics compute(Iterable<Rating> ratings) {
+        RatingStatistics stats = new RatingStatistics();
+        for (Rating r: ratings) {
+            stats.add(r);
+        }
+        return stats;
+    }
+
+    /**
+     * Compute rating statistics from a sequence of ratings, optionally in parallel.
+     * @param ratings The ratings.
+     * @param threads The number of threads to aggregate on; if 1 or less, aggregate on the calling thread.
+     * @return The statistics of the ratings.  These are bit-identical for every thread count.
+     */
+    public static RatingStatistics compute(Iterable<Rating> ratings, int threads) {
+        if (threads <= 1) {
+            return compute(ratings);
+        } else {
+            return new ParallelRatingAggregator(threads).aggregate(ratings);
+        }
+    }
+
+    /**
+     * Add a rating to the statistics.
+     * @param r The rating.
+     */
+    public void add(Rating r) {
+        add(r.getUserId(), r.getItemId(), r.getValue());
+    }
+
+    /**
+     * Add a rating to the statistics.
+     * @param user The user ID.
+     * @param item The item ID.
+     * @param value The rating value.
+     */
+    public void add(long user, long item, double value) {
+        itemStats.add(item, value);
+        userStats.add(user, value);
+        count += 1;
+        sum += value;
+        sumSquares += value * value;
+    }
+
+    /**
+     * Add another set of statistics into this one.
+     * @param other The statistics to merge in.
+     */
+    public void merge(RatingStatistics other) {
+        itemStats.merge(other.itemStats);
+        userStats.merge(other.userStats);
+        count += other.count;
+        sum += other.sum;
+        sumSquares += other.sumSquares;
+    }
+
+    /**
+     * Get the per-item statistics.
+     * @return The rating statistics keyed by item ID.
+     */
+    public KeyStatistics getItemStatistics() {
+        return itemStats;
+    }
+
+    /**
+     * Get the per-user statistics.
+     * @return The rating statistics keyed by user ID.
+     */
+    public KeyStatistics getUserStatistics() {
+        return userStats;
+    }
+
+    /**
+     * Get the total number of ratings.
+     * @return The number of ratings.
+     */
+    public long getGlobalCount() {
+        return count;
+    }
+
+    /**
+     * Get the sum of all rating values.
+     * @return The rating sum.
+     */
+    public double getGlobalSum() {
+        return sum;
+    }
+
+    /**
+     * Get the sum of all squared rating values.
+     * @return The sum of squares.
+     */
+    public double getGlobalSumOfSquares() {
+        return sumSquares;
+    }
+
+    /**
+     * Get the global mean rating.
+     * @return The mean of all ratings, or {@link Double#NaN} if there are none.
+     */
+    public double getGlobalMean() {
+        return count > 0 ? sum / count : Double.NaN;
+    }
+}
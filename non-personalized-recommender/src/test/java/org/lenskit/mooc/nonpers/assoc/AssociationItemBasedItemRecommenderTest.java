@@ -0,0 +1,215 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.api.ResultList;
+import org.lenskit.mooc.nonpers.structures.TopNItemHeap;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AssociationItemBasedItemRecommenderTest {
+    private static final int LIMIT = 5;
+    private CooccurrenceMatrix cooc;
+    private AssociationModel full;
+    private AssociationModel truncated;
+
+    @Before
+    public void createModels() {
+        Random rng = new Random(17);
+        int nRatings = 3000;
+        long[] users = new long[nRatings];
+        long[] items = new long[nRatings];
+        for (int k = 0; k < nRatings; k++) {
+            users[k] = rng.nextInt(300);
+            items[k] = rng.nextInt(120);
+        }
+        cooc = CooccurrenceMatrix.build(users, items);
+        double[] values = new double[cooc.getEntryCount()];
+        for (int x = 0; x < cooc.getItemIndex().size(); x++) {
+            for (int pos = cooc.rowStart(x); pos < cooc.rowEnd(x); pos++) {
+                values[pos] = cooc.countAt(pos) / (double) cooc.getRaterCount(x);
+            }
+        }
+        full = AssociationModel.fromCooccurrence(cooc, values);
+        try (RowExecutor rows = new RowExecutor(1)) {
+            truncated = AssociationModel.fromCooccurrence(cooc, values, LIMIT, rows);
+        }
+    }
+
+    @Test
+    public void testTruncatedModel() {
+        SortedKeyIndex idx = cooc.getItemIndex();
+        assertEquals(-1, full.getRowLimit());
+        assertEquals(LIMIT, truncated.getRowLimit());
+        assertTrue(truncated.getStoredScoreCount() <= idx.size() * LIMIT);
+        assertTrue(truncated.getMemoryFootprint() < full.getMemoryFootprint());
+        for (int x = 0; x < idx.size(); x++) {
+            for (int y = 0; y < idx.size(); y++) {
+                double score = truncated.getItemAssociation(idx.getKey(x), idx.getKey(y));
+                assertTrue(score == 0 || score == full.getItemAssociation(idx.getKey(x), idx.getKey(y)));
+            }
+        }
+    }
+
+    @Test
+    public void testRowPrefixMatchesFullScoring() {
+        AssociationItemBasedItemRecommender fullRec = new AssociationItemBasedItemRecommender(full);
+        AssociationItemBasedItemRecommender truncRec = new AssociationItemBasedItemRecommender(truncated);
+        for (long ref: cooc.getItemIndex().keySet()) {
+            Set<Long> basket = Collections.singleton(ref);
+            ResultList expected = fullRec.recommendRelatedItemsWithDetails(basket, LIMIT, null, null);
+            ResultList actual = truncRec.recommendRelatedItemsWithDetails(basket, LIMIT, null, null);
+            assertEquals(expected.idList(), actual.idList());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).getScore(), actual.get(i).getScore(), 1.0e-10);
+            }
+        }
+    }
+
+    @Test
+    public void testRowFilters() {
+        AssociationItemBasedItemRecommender rec = new AssociationItemBasedItemRecommender(truncated);
+        long ref = cooc.getItemIndex().getKey(0);
+        ResultList top = rec.recommendRelatedItemsWithDetails(Collections.singleton(ref), 3, null, null);
+        Set<Long> exclude = new HashSet<>(top.idList().subList(0, 2));
+
+        ResultList results = rec.recommendRelatedItemsWithDetails(Collections.singleton(ref), 10, null, exclude);
+        assertEquals(10, results.size());
+        assertEquals(top.idList().get(2), results.idList().get(0));
+        for (int i = 0; i < results.size(); i++) {
+            assertFalse(exclude.contains(results.get(i).getId()));
+            if (i > 0) {
+                assertTrue(results.get(i).getScore() <= results.get(i - 1).getScore());
+            }
+        }
+
+        Set<Long> candidates = new HashSet<>(top.idList());
+        candidates.add(-1L);
+        results = rec.recommendRelatedItemsWithDetails(Collections.singleton(ref), -1, candidates, exclude);
+        assertEquals(Collections.singletonList(top.idList().get(2)), results.idList());
+    }
+
+    /**
+     * Score every known item against a basket by brute force, and rank them as the recommender should.
+     */
+    private List<Long> bruteForce(AssociationModel model, List<Long> basket, BasketAggregation mode, double decay,
+                                  int n, Set<Long> exclude) {
+        TopNItemHeap heap = new TopNItemHeap(n);
+        for (long item: model.getKnownItems()) {
+            if (exclude.contains(item)) {
+                continue;
+            }
+            double score = 0;
+            for (int k = 0; k < basket.size(); k++) {
+                double value = model.getItemAssociation(basket.get(k), item);
+                if (mode == BasketAggregation.MAX) {
+                    score = Math.max(score, value);
+                } else {
+                    score += value * (mode == BasketAggregation.RECENCY ? Math.pow(decay, basket.size() - 1 - k) : 1);
+                }
+            }
+            heap.offer(item, score);
+        }
+        return heap.finish().idList();
+    }
+
+    @Test
+    public void testBasketAggregation() {
+        Random rng = new Random(23);
+        List<Long> items = new ArrayList<>(cooc.getItemIndex().keySet());
+        for (BasketAggregation mode: BasketAggregation.values()) {
+            AssociationItemBasedItemRecommender rec = new AssociationItemBasedItemRecommender(full, mode.name(), 0.5);
+            for (int trial = 0; trial < 20; trial++) {
+                Collections.shuffle(items, rng);
+                List<Long> basket = new ArrayList<>(items.subList(0, 2 + rng.nextInt(8)));
+                Set<Long> exclude = new HashSet<>(basket);
+                ResultList results = rec.recommendRelatedItemsWithDetails(new LinkedHashSet<>(basket), 10, null, exclude);
+                assertEquals(bruteForce(full, basket, mode, 0.5, 10, exclude), results.idList());
+            }
+        }
+    }
+
+    @Test
+    public void testDefaultExcludesBasket() {
+        List<Long> items = new ArrayList<>(cooc.getItemIndex().keySet());
+        for (AssociationModel model: Arrays.asList(full, truncated)) {
+            AssociationItemBasedItemRecommender rec = new AssociationItemBasedItemRecommender(model);
+            for (int size = 1; size <= 4; size++) {
+                Set<Long> basket = new HashSet<>(items.subList(0, size));
+                List<Long> results = rec.recommendRelatedItems(basket, items.size());
+                assertEquals(items.size() - size, results.size());
+                for (long item: results) {
+                    assertFalse(basket.contains(item));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnknownReferenceItems() {
+        long known = cooc.getItemIndex().getKey(0);
+        for (AssociationModel model: Arrays.asList(full, truncated)) {
+            AssociationItemBasedItemRecommender rec = new AssociationItemBasedItemRecommender(model);
+            assertTrue(rec.recommendRelatedItems(Collections.singleton(-1L), 10).isEmpty());
+            assertTrue(rec.recommendRelatedItems(new HashSet<>(Arrays.asList(-1L, -2L)), 10).isEmpty());
+            assertEquals(rec.recommendRelatedItems(Collections.singleton(known), 10),
+                         rec.recommendRelatedItems(new HashSet<>(Arrays.asList(-1L, known)), 10));
+        }
+    }
+
+    @Test
+    public void testRecencyOrder() {
+        AssociationItemBasedItemRecommender rec = new AssociationItemBasedItemRecommender(full, "recency", 0.5);
+        List<Long> items = new ArrayList<>(cooc.getItemIndex().keySet());
+        List<Long> basket = new ArrayList<>(items.subList(0, 4));
+        Set<Long> exclude = new HashSet<>(basket);
+        assertEquals(bruteForce(full, basket, BasketAggregation.RECENCY, 0.5, 10, exclude),
+                     rec.recommendRelatedItemsWithDetails(basket, 10, null, null).idList());
+        Collections.reverse(basket);
+        assertEquals(bruteForce(full, basket, BasketAggregation.RECENCY, 0.5, 10, exclude),
+                     rec.recommendRelatedItemsWithDetails(basket, 10, null, null).idList());
+
+        // an item added again counts at its latest position
+        List<Long> repeated = new ArrayList<>(basket);
+        repeated.add(basket.get(0));
+        List<Long> latest = new ArrayList<>(basket.subList(1, 4));
+        latest.add(basket.get(0));
+        assertEquals(bruteForce(full, latest, BasketAggregation.RECENCY, 0.5, 10, exclude),
+                     rec.recommendRelatedItemsWithDetails(repeated, 10, null, null).idList());
+    }
+
+    @Test
+    public void testRecencyWeightsUnorderedBasketEqually() {
+        AssociationItemBasedItemRecommender rec = new AssociationItemBasedItemRecommender(full, "recency", 0.5);
+        List<Long> items = new ArrayList<>(cooc.getItemIndex().keySet());
+        List<Long> basket = items.subList(0, 3);
+        Set<Long> exclude = new HashSet<>(basket);
+        for (int k = 0; k < 2; k++) {
+            assertEquals(bruteForce(full, basket, BasketAggregation.SUM, 0.5, 10, exclude),
+                         rec.recommendRelatedItemsWithDetails(new HashSet<>(basket), 10, null, null).idList());
+        }
+    }
+
+    @Test
+    public void testBasketWithFewCandidates() {
+        AssociationItemBasedItemRecommender rec = new AssociationItemBasedItemRecommender(full, "max", 0.8);
+        List<Long> items = new ArrayList<>(cooc.getItemIndex().keySet());
+        List<Long> basket = items.subList(0, 5);
+        Set<Long> candidates = new HashSet<>(items.subList(5, 8));
+        candidates.add(-1L);
+        ResultList results = rec.recommendRelatedItemsWithDetails(new LinkedHashSet<>(basket), -1, candidates, null);
+        assertEquals(3, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            double expected = 0;
+            for (long ref: basket) {
+                expected = Math.max(expected, full.getItemAssociation(ref, results.get(i).getId()));
+            }
+            assertEquals(expected, results.get(i).getScore(), 1.0e-10);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.api.ResultList;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AssociationModelFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CooccurrenceMatrix cooc;
+    private double[] values;
+
+    @Before
+    public void createMatrix() {
+        Random rng = new Random(23);
+        int nRatings = 3000;
+        long[] users = new long[nRatings];
+        long[] items = new long[nRatings];
+        for (int k = 0; k < nRatings; k++) {
+            users[k] = rng.nextInt(300);
+            items[k] = rng.nextInt(120) * 3 + 7;
+        }
+        cooc = CooccurrenceMatrix.build(users, items);
+        values = new double[cooc.getEntryCount()];
+        for (int x = 0; x < cooc.getItemIndex().size(); x++) {
+            for (int pos = cooc.rowStart(x); pos < cooc.rowEnd(x); pos++) {
+                values[pos] = cooc.countAt(pos) / (double) cooc.getRaterCount(x);
+            }
+        }
+    }
+
+    @Test
+    public void testSparseRoundTrip() throws IOException {
+        AssociationModel model = AssociationModel.fromCooccurrence(cooc, values);
+        File file = folder.newFile("sparse.assoc");
+        AssociationModelFile.write(model, file);
+        AssociationModel mapped = AssociationModelFile.read(file);
+
+        assertEquals(model.getKnownItems(), mapped.getKnownItems());
+        assertEquals(-1, mapped.getRowLimit());
+        assertEquals(model.getStoredScoreCount(), mapped.getStoredScoreCount());
+        assertSameScores(model, mapped);
+    }
+
+    @Test
+    public void testTruncatedRoundTrip() throws IOException {
+        AssociationModel model;
+        try (RowExecutor rows = new RowExecutor(1)) {
+            model = AssociationModel.fromCooccurrence(cooc, values, 5, rows);
+        }
+        File file = folder.newFile("top5.assoc");
+        AssociationModelFile.write(model, file);
+        AssociationModel mapped = AssociationModelFile.read(file);
+
+        assertEquals(5, mapped.getRowLimit());
+        assertSameScores(model, mapped);
+        AssociationItemBasedItemRecommender expected = new AssociationItemBasedItemRecommender(model);
+        AssociationItemBasedItemRecommender actual = new AssociationItemBasedItemRecommender(mapped);
+        for (long ref: model.getKnownItems()) {
+            Set<Long> basket = Collections.singleton(ref);
+            ResultList want = expected.recommendRelatedItemsWithDetails(basket, 8, null, null);
+            ResultList got = actual.recommendRelatedItemsWithDetails(basket, 8, null, null);
+            assertEquals(want.idList(), got.idList());
+            for (int i = 0; i < want.size(); i++) {
+                assertEquals(want.get(i).getScore(), got.get(i).getScore(), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testSerializeMappedModel() throws IOException, ClassNotFoundException {
+        AssociationModel model = AssociationModel.fromCooccurrence(cooc, values);
+        File file = folder.newFile("serial.assoc");
+        AssociationModelFile.write(model, file);
+        AssociationModel mapped = AssociationModelFile.read(file);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(mapped);
+        }
+        // only the path is serialized, not the scores
+        long scoreBytes = model.getStoredScoreCount() * 12;
+        assertTrue(bytes.size() < scoreBytes);
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertSameScores(model, (AssociationModel) in.readObject());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectTruncatedFile() throws IOException {
+        AssociationModel model = AssociationModel.fromCooccurrence(cooc, values);
+        File file = folder.newFile("short.assoc");
+        AssociationModelFile.write(model, file);
+        byte[] data = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(data, data.length - 8));
+        AssociationModelFile.read(file);
+    }
+
+    private static void assertSameScores(AssociationModel expected, AssociationModel actual) {
+        SortedKeyIndex idx = expected.getIndex();
+        for (int x = 0; x < idx.size(); x++) {
+            for (int y = 0; y < idx.size(); y++) {
+                assertEquals(expected.getItemAssociation(idx.getKey(x), idx.getKey(y)),
+                             actual.getItemAssociation(idx.getKey(x), idx.getKey(y)),
+                             0);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AssociationModelTest {
+    @Test
+    public void testAbsentPairsScoreZero() {
+        Map<Long, Map<Long, Double>> scores = new HashMap<>();
+        scores.put(1L, new HashMap<>());
+        scores.put(2L, new HashMap<>());
+        scores.put(3L, new HashMap<>());
+        scores.get(1L).put(2L, 0.5);
+        scores.get(2L).put(1L, 0.25);
+        scores.get(2L).put(3L, 0.0);
+
+        AssociationModel model = new AssociationModel(scores);
+        assertEquals(0.5, model.getItemAssociation(1, 2), 1.0e-10);
+        assertEquals(0.25, model.getItemAssociation(2, 1), 1.0e-10);
+        assertEquals(0, model.getItemAssociation(1, 3), 1.0e-10);
+        assertEquals(0, model.getItemAssociation(3, 1), 1.0e-10);
+        assertEquals(2, model.getStoredScoreCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownItem() {
+        Map<Long, Map<Long, Double>> scores = new HashMap<>();
+        scores.put(1L, new HashMap<>());
+        new AssociationModel(scores).getItemAssociation(1, 2);
+    }
+
+    @Test
+    public void testSparseMatchesCounts() {
+        Random rng = new Random(11);
+        int nRatings = 2000;
+        long[] users = new long[nRatings];
+        long[] items = new long[nRatings];
+        for (int k = 0; k < nRatings; k++) {
+            users[k] = rng.nextInt(500);
+            items[k] = rng.nextInt(300);
+        }
+        CooccurrenceMatrix cooc = CooccurrenceMatrix.build(users, items);
+        double[] values = new double[cooc.getEntryCount()];
+        for (int pos = 0; pos < values.length; pos++) {
+            values[pos] = cooc.countAt(pos);
+        }
+
+        AssociationModel model = AssociationModel.fromCooccurrence(cooc, values);
+        int n = cooc.getItemIndex().size();
+        assertEquals(cooc.getEntryCount(), model.getStoredScoreCount());
+        assertTrue("sparse storage should beat a dense matrix", model.getMemoryFootprint() < n * n * 8L);
+        for (int x = 0; x < n; x++) {
+            for (int y = 0; y < n; y++) {
+                assertEquals(cooc.getCount(x, y),
+                             model.getItemAssociation(cooc.getItemIndex().getKey(x), cooc.getItemIndex().getKey(y)),
+                             1.0e-10);
+            }
+        }
+    }
+}
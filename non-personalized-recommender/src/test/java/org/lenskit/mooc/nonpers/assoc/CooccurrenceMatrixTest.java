@@ -0,0 +1,151 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.junit.Test;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.mooc.nonpers.data.SparseRatingMatrix;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CooccurrenceMatrixTest {
+    @Test
+    public void testSmallMatrix() {
+        // user 1 rated a, b, c; user 2 rated a, b (twice); user 3 rated c
+        long[] users = {1, 1, 1, 2, 2, 2, 3};
+        long[] items = {10, 20, 30, 10, 20, 20, 30};
+        CooccurrenceMatrix cooc = CooccurrenceMatrix.build(users, items);
+        SortedKeyIndex idx = cooc.getItemIndex();
+        int a = idx.getIndex(10), b = idx.getIndex(20), c = idx.getIndex(30);
+
+        assertEquals(3, cooc.getUserCount());
+        assertEquals(2, cooc.getRaterCount(b));
+        assertEquals(2, cooc.getCount(a, b));
+        assertEquals(2, cooc.getCount(b, a));
+        assertEquals(1, cooc.getCount(a, c));
+        assertEquals(0, cooc.getCount(a, a));
+        // (a,b), (a,c), (b,c), each stored both ways
+        assertEquals(6, cooc.getEntryCount());
+    }
+
+    @Test
+    public void testMatchesBruteForce() {
+        Random rng = new Random(7);
+        int nRatings = 3000;
+        long[] users = new long[nRatings];
+        long[] items = new long[nRatings];
+        Long2ObjectOpenHashMap<LongSet> itemUsers = new Long2ObjectOpenHashMap<>();
+        for (int k = 0; k < nRatings; k++) {
+            users[k] = rng.nextInt(200);
+            items[k] = rng.nextInt(80) * 3;
+            LongSet set = itemUsers.get(items[k]);
+            if (set == null) {
+                set = new LongOpenHashSet();
+                itemUsers.put(items[k], set);
+            }
+            set.add(users[k]);
+        }
+
+        CooccurrenceMatrix cooc = CooccurrenceMatrix.build(users, items);
+        SortedKeyIndex idx = cooc.getItemIndex();
+        for (int x = 0; x < idx.size(); x++) {
+            LongSet xUsers = itemUsers.get(idx.getKey(x));
+            assertEquals(xUsers.size(), cooc.getRaterCount(x));
+            int previous = -1;
+            for (int pos = cooc.rowStart(x); pos < cooc.rowEnd(x); pos++) {
+                assertTrue("row must be sorted", cooc.columnAt(pos) > previous);
+                previous = cooc.columnAt(pos);
+            }
+            for (int y = 0; y < idx.size(); y++) {
+                int expected = 0;
+                if (x != y) {
+                    for (long u: itemUsers.get(idx.getKey(y))) {
+                        if (xUsers.contains(u)) {
+                            expected++;
+                        }
+                    }
+                }
+                assertEquals(expected, cooc.getCount(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testDenseBlockMatchesUserMajor() {
+        // cube the uniform draw to skew ratings toward a popular head of items
+        Random rng = new Random(3);
+        int nRatings = 20000;
+        long[] users = new long[nRatings];
+        long[] items = new long[nRatings];
+        for (int k = 0; k < nRatings; k++) {
+            double u = rng.nextDouble();
+            users[k] = rng.nextInt(400);
+            items[k] = (long) (500 * u * u * u);
+        }
+
+        CooccurrenceMatrix hybrid = CooccurrenceMatrix.build(users, items);
+        CooccurrenceMatrix userMajor = CooccurrenceMatrix.build(users, items, 0);
+        assertSameMatrix(userMajor, hybrid);
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        Random rng = new Random(9);
+        int nRatings = 20000;
+        long[] users = new long[nRatings];
+        long[] items = new long[nRatings];
+        for (int k = 0; k < nRatings; k++) {
+            double u = rng.nextDouble();
+            users[k] = rng.nextInt(400);
+            items[k] = (long) (500 * u * u * u);
+        }
+
+        CooccurrenceMatrix sequential = CooccurrenceMatrix.build(users, items);
+        try (RowExecutor rows = new RowExecutor(4)) {
+            assertSameMatrix(sequential, CooccurrenceMatrix.build(users, items, CooccurrenceMatrix.DENSE_FRACTION, rows));
+        }
+    }
+
+    @Test
+    public void testRatingMatrixMatchesPairs() {
+        Random rng = new Random(13);
+        int nRatings = 20000;
+        long[] users = new long[nRatings];
+        long[] items = new long[nRatings];
+        List<Rating> ratings = new ArrayList<>();
+        for (int k = 0; k < nRatings; k++) {
+            double u = rng.nextDouble();
+            users[k] = rng.nextInt(400);
+            items[k] = (long) (500 * u * u * u);
+            ratings.add(Rating.create(users[k], items[k], 3, k));
+        }
+
+        CooccurrenceMatrix pairs = CooccurrenceMatrix.build(users, items);
+        SparseRatingMatrix matrix = SparseRatingMatrix.build(StaticDataSource.fromList(ratings).get());
+        try (RowExecutor rows = new RowExecutor(1)) {
+            CooccurrenceMatrix fromMatrix = CooccurrenceMatrix.build(matrix, rows);
+            assertEquals(pairs.getItemIndex().getKeyList(), fromMatrix.getItemIndex().getKeyList());
+            assertEquals(pairs.getUserCount(), fromMatrix.getUserCount());
+            assertSameMatrix(pairs, fromMatrix);
+        }
+    }
+
+    private static void assertSameMatrix(CooccurrenceMatrix userMajor, CooccurrenceMatrix hybrid) {
+        assertEquals(userMajor.getEntryCount(), hybrid.getEntryCount());
+        for (int x = 0; x < hybrid.getItemIndex().size(); x++) {
+            assertEquals(userMajor.rowStart(x), hybrid.rowStart(x));
+            for (int pos = hybrid.rowStart(x); pos < hybrid.rowEnd(x); pos++) {
+                assertEquals(userMajor.columnAt(pos), hybrid.columnAt(pos));
+                assertEquals(userMajor.countAt(pos), hybrid.countAt(pos));
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MinHashAssociationBuilderTest {
+    private static final double BOUND = 0.1;
+
+    private long[] users;
+    private long[] items;
+    private CooccurrenceMatrix cooc;
+
+    @Before
+    public void createRatings() {
+        // users mostly rate the items near their own taste, so nearby items are similar
+        Random rng = new Random(43);
+        LongArrayList us = new LongArrayList();
+        LongArrayList is = new LongArrayList();
+        for (int u = 0; u < 3000; u++) {
+            double taste = rng.nextDouble() * 100;
+            for (int i = 0; i < 100; i++) {
+                if (rng.nextDouble() < 0.5 * Math.exp(-Math.abs(i - taste) / 4) + 0.01) {
+                    us.add(u);
+                    is.add(i);
+                }
+            }
+        }
+        users = us.toLongArray();
+        items = is.toLongArray();
+        cooc = CooccurrenceMatrix.build(users, items);
+    }
+
+    @Test
+    public void testSketchSize() {
+        assertEquals(185, MinHashAssociationBuilder.hashCount(0.1));
+        MinHashAssociationBuilder builder = new MinHashAssociationBuilder(0.02);
+        assertTrue(builder.getBandCount() * builder.getBandWidth() <= builder.getHashCount());
+        double threshold = Math.pow(1.0 / builder.getBandCount(), 1.0 / builder.getBandWidth());
+        assertTrue(threshold <= 0.01);
+    }
+
+    @Test
+    public void testEstimatesWithinBound() {
+        AssociationModel model = build(AssociationMetric.BASIC, 1);
+        SortedKeyIndex idx = cooc.getItemIndex();
+        int pairs = 0;
+        int within = 0;
+        int similar = 0;
+        int missed = 0;
+        for (int x = 0; x < idx.size(); x++) {
+            for (int y = 0; y < idx.size(); y++) {
+                if (x == y) {
+                    continue;
+                }
+                int sx = cooc.getRaterCount(x);
+                int sy = cooc.getRaterCount(y);
+                int count = cooc.getCount(x, y);
+                double jaccard = count / (double) (sx + sy - count);
+                double estimate = model.getItemAssociation(idx.getKey(x), idx.getKey(y)) * sx;
+                if (estimate > 0) {
+                    // only co-occurring pairs can share a hash
+                    assertTrue(count > 0);
+                    pairs++;
+                    if (Math.abs(estimate / (sx + sy - estimate) - jaccard) <= BOUND) {
+                        within++;
+                    }
+                }
+                if (jaccard >= BOUND) {
+                    similar++;
+                    if (estimate == 0) {
+                        missed++;
+                    }
+                }
+            }
+        }
+        assertTrue(pairs > 0);
+        assertTrue(within >= 0.95 * pairs);
+        assertTrue(missed <= 0.01 * similar);
+    }
+
+    @Test
+    public void testSkewedPopularity() {
+        // item popularity falls off as 1/rank, and the raters of a few niche items all rated the most popular one
+        Random rng = new Random(47);
+        LongArrayList us = new LongArrayList();
+        LongArrayList is = new LongArrayList();
+        double[] cumulative = new double[200];
+        for (int i = 0; i < cumulative.length; i++) {
+            cumulative[i] = (i > 0 ? cumulative[i - 1] : 0) + 1.0 / (i + 1);
+        }
+        for (int u = 0; u < 4000; u++) {
+            LongOpenHashSet rated = new LongOpenHashSet();
+            while (rated.size() < 15) {
+                int i = Arrays.binarySearch(cumulative, rng.nextDouble() * cumulative[cumulative.length - 1]);
+                rated.add(i < 0 ? -i - 1 : i);
+            }
+            if (u < 300) {
+                rated.add(0);
+                rated.add(1000 + u / 30);
+            }
+            for (long i: rated) {
+                us.add(u);
+                is.add(i);
+            }
+        }
+        CooccurrenceMatrix skewed = CooccurrenceMatrix.build(us.toLongArray(), is.toLongArray());
+        AssociationModel model;
+        try (RowExecutor rows = new RowExecutor(1)) {
+            model = new MinHashAssociationBuilder(BOUND).build(us.toLongArray(), is.toLongArray(),
+                                                               AssociationMetric.BASIC, -1, ScorePrecision.DOUBLE,
+                                                               rows);
+        }
+
+        SortedKeyIndex idx = skewed.getItemIndex();
+        int pairs = 0;
+        int within = 0;
+        int similar = 0;
+        int missed = 0;
+        for (int x = 0; x < idx.size(); x++) {
+            for (int y = 0; y < idx.size(); y++) {
+                if (x == y) {
+                    continue;
+                }
+                int sx = skewed.getRaterCount(x);
+                int sy = skewed.getRaterCount(y);
+                int count = skewed.getCount(x, y);
+                double jaccard = count / (double) (sx + sy - count);
+                double estimate = model.getItemAssociation(idx.getKey(x), idx.getKey(y)) * sx;
+                if (estimate > 0) {
+                    pairs++;
+                    if (Math.abs(estimate / (sx + sy - estimate) - jaccard) <= BOUND) {
+                        within++;
+                    }
+                }
+                if (jaccard >= BOUND) {
+                    similar++;
+                    if (estimate == 0) {
+                        missed++;
+                    }
+                }
+            }
+        }
+        // the bound holds for the similarity estimates...
+        assertTrue(pairs > 0);
+        assertTrue(within >= 0.95 * pairs);
+        assertTrue(missed <= 0.01 * similar);
+
+        // ...but not for the scores of niche items with the popular item, whose confidence is 1
+        int popular = idx.getIndex(0);
+        int offBound = 0;
+        for (long niche = 1000; niche < 1010; niche++) {
+            int x = idx.getIndex(niche);
+            assertEquals(skewed.getRaterCount(x), skewed.getCount(x, popular));
+            assertTrue(skewed.getRaterCount(x) / (double) skewed.getRaterCount(popular) < BOUND / 2);
+            if (Math.abs(model.getItemAssociation(niche, 0) - 1) > BOUND) {
+                offBound++;
+            }
+        }
+        assertTrue(offBound > 0);
+    }
+
+    @Test
+    public void testStoresOnlyAgreeingPairs() {
+        // wide bands are bucketed by a hash of their keys
+        AssociationModel model;
+        try (RowExecutor rows = new RowExecutor(1)) {
+            model = new MinHashAssociationBuilder(64, 4).build(users, items, AssociationMetric.BASIC, -1,
+                                                               ScorePrecision.DOUBLE, rows);
+        }
+        AssociationScores scores = model.getScores();
+        SortedKeyIndex idx = model.getIndex();
+        int stored = 0;
+        for (int x = 0; x < idx.size(); x++) {
+            for (int pos = scores.rowStart(x); pos < scores.rowEnd(x); pos++) {
+                assertTrue(scores.valueAt(x, pos) > 0);
+                assertTrue(cooc.getCount(cooc.getItemIndex().getIndex(idx.getKey(x)),
+                                         cooc.getItemIndex().getIndex(idx.getKey(scores.columnAt(pos)))) > 0);
+                stored++;
+            }
+        }
+        assertTrue(stored > 0);
+    }
+
+    @Test
+    public void testTopListsAgree() {
+        double[] values = new double[cooc.getEntryCount()];
+        for (int x = 0; x < cooc.getItemIndex().size(); x++) {
+            for (int pos = cooc.rowStart(x); pos < cooc.rowEnd(x); pos++) {
+                values[pos] = AssociationMetric.LIFT.score(cooc.countAt(pos), cooc.getRaterCount(x),
+                                                           cooc.getRaterCount(cooc.columnAt(pos)),
+                                                           cooc.getUserCount());
+            }
+        }
+        ScorePrecisionEvaluation eval = new ScorePrecisionEvaluation(AssociationModel.fromCooccurrence(cooc, values),
+                                                                     10);
+        ScorePrecisionEvaluation.Report report = eval.evaluate(build(AssociationMetric.LIFT, 1));
+        assertTrue(report.getMeanOverlap() > 0.75);
+    }
+
+    @Test
+    public void testThreadCountInvariant() {
+        AssociationModel serial = build(AssociationMetric.LIFT, 1);
+        AssociationModel parallel = build(AssociationMetric.LIFT, 3);
+        SortedKeyIndex idx = serial.getIndex();
+        assertEquals(serial.getKnownItems(), parallel.getKnownItems());
+        for (int x = 0; x < idx.size(); x++) {
+            for (int y = 0; y < idx.size(); y++) {
+                assertEquals(serial.getItemAssociation(idx.getKey(x), idx.getKey(y)),
+                             parallel.getItemAssociation(idx.getKey(x), idx.getKey(y)),
+                             0);
+            }
+        }
+    }
+
+    private AssociationModel build(AssociationMetric metric, int threads) {
+        try (RowExecutor rows = new RowExecutor(threads)) {
+            return new MinHashAssociationBuilder(BOUND).build(users, items, metric, -1, ScorePrecision.DOUBLE, rows);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QuantizedAssociationScoresTest {
+    private CooccurrenceMatrix cooc;
+    private double[] values;
+
+    @Before
+    public void createMatrix() {
+        Random rng = new Random(29);
+        int nRatings = 4000;
+        long[] users = new long[nRatings];
+        long[] items = new long[nRatings];
+        for (int k = 0; k < nRatings; k++) {
+            users[k] = rng.nextInt(400);
+            items[k] = rng.nextInt(150);
+        }
+        cooc = CooccurrenceMatrix.build(users, items);
+        values = new double[cooc.getEntryCount()];
+        for (int x = 0; x < cooc.getItemIndex().size(); x++) {
+            for (int pos = cooc.rowStart(x); pos < cooc.rowEnd(x); pos++) {
+                int y = cooc.columnAt(pos);
+                values[pos] = cooc.countAt(pos) * 400.0 / (cooc.getRaterCount(x) * cooc.getRaterCount(y));
+            }
+        }
+    }
+
+    @Test
+    public void testErrorBounds() {
+        AssociationModel exact = build(-1, ScorePrecision.DOUBLE);
+        SortedKeyIndex idx = exact.getIndex();
+        int n = idx.size();
+        for (ScorePrecision precision: new ScorePrecision[]{ScorePrecision.FLOAT, ScorePrecision.SHORT,
+                                                            ScorePrecision.BYTE}) {
+            AssociationModel model = build(-1, precision);
+            assertEquals(cooc.getEntryCount(), model.getStoredScoreCount());
+            assertTrue(model.getMemoryFootprint() < exact.getMemoryFootprint());
+            for (int x = 0; x < n; x++) {
+                double min = Double.POSITIVE_INFINITY;
+                double max = Double.NEGATIVE_INFINITY;
+                for (int pos = cooc.rowStart(x); pos < cooc.rowEnd(x); pos++) {
+                    min = Math.min(min, values[pos]);
+                    max = Math.max(max, values[pos]);
+                }
+                double bound = precision == ScorePrecision.FLOAT
+                        ? Math.ulp((float) max)
+                        : (max - min) / (2 * ((1 << precision.getBits()) - 1)) + 1.0e-12;
+                for (int y = 0; y < n; y++) {
+                    long xi = idx.getKey(x);
+                    long yi = idx.getKey(y);
+                    assertEquals(exact.getItemAssociation(xi, yi), model.getItemAssociation(xi, yi), bound);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTruncatedRowsStayRanked() {
+        AssociationModel model = build(10, ScorePrecision.BYTE);
+        assertEquals(10, model.getRowLimit());
+        AssociationScores scores = model.getScores();
+        for (int x = 0; x < model.getIndex().size(); x++) {
+            for (int pos = scores.rowStart(x) + 1; pos < scores.rowEnd(x); pos++) {
+                double prev = scores.valueAt(x, pos - 1);
+                double cur = scores.valueAt(x, pos);
+                assertTrue(prev >= cur);
+                if (prev == cur) {
+                    assertTrue(scores.columnAt(pos - 1) < scores.columnAt(pos));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testEvaluationReport() {
+        ScorePrecisionEvaluation eval = new ScorePrecisionEvaluation(build(-1, ScorePrecision.DOUBLE), 25);
+        ScorePrecisionEvaluation.Report floats = eval.evaluate(build(-1, ScorePrecision.FLOAT));
+        assertEquals(1.0, floats.getMeanOverlap(), 1.0e-10);
+        ScorePrecisionEvaluation.Report bytes = eval.evaluate(build(-1, ScorePrecision.BYTE));
+        assertTrue(bytes.getMemorySaved() > floats.getMemorySaved());
+        assertTrue(bytes.getMeanOverlap() > 0.9);
+        assertTrue(bytes.getWorstOverlap() <= bytes.getMeanOverlap());
+    }
+
+    private AssociationModel build(int rowLimit, ScorePrecision precision) {
+        try (RowExecutor rows = new RowExecutor(1)) {
+            return AssociationModel.fromCooccurrence(cooc, values, rowLimit, precision, rows);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.junit.Test;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.mooc.nonpers.data.SparseRatingMatrix;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TemporalAssociationModelTest {
+    private static final int EVENTS = 3000;
+
+    private final long[] users = new long[EVENTS];
+    private final long[] items = new long[EVENTS];
+    private final long[] times = new long[EVENTS];
+
+    public TemporalAssociationModelTest() {
+        Random rng = new Random(37);
+        long time = 0;
+        for (int k = 0; k < EVENTS; k++) {
+            users[k] = rng.nextInt(200);
+            items[k] = rng.nextInt(80);
+            time += rng.nextInt(3);
+            times[k] = time;
+        }
+    }
+
+    @Test
+    public void testWindowMatchesRebuild() {
+        long window = 700;
+        for (AssociationMetric metric: AssociationMetric.values()) {
+            TemporalAssociationModel model = new TemporalAssociationModel(metric, window, 0, -1,
+                                                                          ScorePrecision.DOUBLE);
+            for (int k = 0; k < EVENTS; k++) {
+                model.addEvent(users[k], items[k], times[k]);
+                if (k % 1000 == 999) {
+                    assertSameScores(rebuild(k + 1, times[k], window, metric), model.publish(), 0);
+                }
+            }
+            long end = times[EVENTS - 1] + window / 2;
+            model.advanceTo(end);
+            assertSameScores(rebuild(EVENTS, end, window, metric), model.publish(), 0);
+            assertTrue(model.getBufferedEventCount() < EVENTS);
+        }
+    }
+
+    @Test
+    public void testBuildFromRatingMatrix() {
+        long window = 700;
+        List<Rating> ratings = new ArrayList<>();
+        for (int k = 0; k < EVENTS; k++) {
+            ratings.add(Rating.create(users[k], items[k], 3.5, times[k]));
+        }
+        SparseRatingMatrix matrix = SparseRatingMatrix.build(StaticDataSource.fromList(ratings).get());
+        for (AssociationMetric metric: AssociationMetric.values()) {
+            TemporalAssociationModel model = TemporalAssociationModel.build(matrix, metric, window, 0, -1,
+                                                                            ScorePrecision.DOUBLE);
+            assertEquals(times[EVENTS - 1], model.getTime());
+            assertSameScores(rebuild(EVENTS, times[EVENTS - 1], window, metric), model.getSnapshot(), 0);
+        }
+    }
+
+    @Test
+    public void testDecayMatchesDirectWeights() {
+        double halfLife = 150;
+        for (AssociationMetric metric: AssociationMetric.values()) {
+            TemporalAssociationModel model = new TemporalAssociationModel(metric, 0, halfLife, -1,
+                                                                          ScorePrecision.DOUBLE);
+            for (int k = 0; k < EVENTS; k++) {
+                model.addEvent(users[k], items[k], times[k]);
+            }
+            assertSameScores(decayed(halfLife, metric), model.publish(), 1.0e-9);
+        }
+    }
+
+    @Test
+    public void testDecayRescales() {
+        // enough half-lives pass that the weights are rescaled
+        double halfLife = 10;
+        TemporalAssociationModel model = new TemporalAssociationModel(AssociationMetric.LIFT, 0, halfLife, -1,
+                                                                      ScorePrecision.DOUBLE);
+        for (int k = 0; k < EVENTS; k++) {
+            model.addEvent(users[k], items[k], times[k]);
+        }
+        assertTrue(times[EVENTS - 1] / halfLife > TemporalAssociationModel.MAX_HALF_LIVES);
+        assertSameScores(decayed(halfLife, AssociationMetric.LIFT), model.publish(), 1.0e-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectOutOfOrder() {
+        TemporalAssociationModel model = new TemporalAssociationModel(AssociationMetric.BASIC, 100, 0, -1,
+                                                                      ScorePrecision.DOUBLE);
+        model.addEvent(1, 1, 50);
+        model.addEvent(1, 2, 49);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectOutOfOrderWithoutWindow() {
+        TemporalAssociationModel model = new TemporalAssociationModel(AssociationMetric.BASIC, 0, 10, -1,
+                                                                      ScorePrecision.DOUBLE);
+        model.addEvent(1, 1, 50);
+        model.addEvent(1, 2, 49);
+    }
+
+    /**
+     * Build a model over the first events' latest (user, item) ratings that are in the window ending at a time.
+     */
+    private AssociationModel rebuild(int count, long now, long window, AssociationMetric metric) {
+        Long2ObjectOpenHashMap<Long2LongOpenHashMap> latest = latestTimes(count);
+        LongArrayList us = new LongArrayList();
+        LongArrayList is = new LongArrayList();
+        for (Long2ObjectOpenHashMap.Entry<Long2LongOpenHashMap> e: latest.long2ObjectEntrySet()) {
+            for (Long2LongOpenHashMap.Entry r: e.getValue().long2LongEntrySet()) {
+                if (now - r.getLongValue() < window) {
+                    us.add(e.getLongKey());
+                    is.add(r.getLongKey());
+                }
+            }
+        }
+        CooccurrenceMatrix cooc = CooccurrenceMatrix.build(us.toLongArray(), is.toLongArray());
+        double[] values = new double[cooc.getEntryCount()];
+        for (int x = 0; x < cooc.getItemIndex().size(); x++) {
+            for (int pos = cooc.rowStart(x); pos < cooc.rowEnd(x); pos++) {
+                values[pos] = metric.score(cooc.countAt(pos), cooc.getRaterCount(x),
+                                           cooc.getRaterCount(cooc.columnAt(pos)), cooc.getUserCount());
+            }
+        }
+        return AssociationModel.fromCooccurrence(cooc, values);
+    }
+
+    /**
+     * Compute decayed association scores directly from every user's latest ratings.
+     */
+    private AssociationModel decayed(double halfLife, AssociationMetric metric) {
+        Long2ObjectOpenHashMap<Long2LongOpenHashMap> latest = latestTimes(EVENTS);
+        long now = times[EVENTS - 1];
+        Long2DoubleOpenHashMap raters = new Long2DoubleOpenHashMap();
+        Long2ObjectOpenHashMap<Long2DoubleOpenHashMap> pairs = new Long2ObjectOpenHashMap<>();
+        double userWeight = 0;
+        for (Long2LongOpenHashMap mine: latest.values()) {
+            double max = 0;
+            for (Long2LongOpenHashMap.Entry x: mine.long2LongEntrySet()) {
+                double wx = Math.pow(2, (x.getLongValue() - now) / halfLife);
+                max = Math.max(max, wx);
+                raters.addTo(x.getLongKey(), wx);
+                for (Long2LongOpenHashMap.Entry y: mine.long2LongEntrySet()) {
+                    if (x.getLongKey() != y.getLongKey()) {
+                        double wy = Math.pow(2, (y.getLongValue() - now) / halfLife);
+                        if (!pairs.containsKey(x.getLongKey())) {
+                            pairs.put(x.getLongKey(), new Long2DoubleOpenHashMap());
+                        }
+                        pairs.get(x.getLongKey()).addTo(y.getLongKey(), Math.min(wx, wy));
+                    }
+                }
+            }
+            userWeight += max;
+        }
+        Map<Long, Map<Long, Double>> scores = new HashMap<>();
+        for (long x: raters.keySet()) {
+            Map<Long, Double> row = new HashMap<>();
+            if (pairs.containsKey(x)) {
+                for (Long2DoubleOpenHashMap.Entry e: pairs.get(x).long2DoubleEntrySet()) {
+                    row.put(e.getLongKey(), metric.score(e.getDoubleValue(), raters.get(x),
+                                                         raters.get(e.getLongKey()), userWeight));
+                }
+            }
+            scores.put(x, row);
+        }
+        return new AssociationModel(scores);
+    }
+
+    private Long2ObjectOpenHashMap<Long2LongOpenHashMap> latestTimes(int count) {
+        Long2ObjectOpenHashMap<Long2LongOpenHashMap> latest = new Long2ObjectOpenHashMap<>();
+        for (int k = 0; k < count; k++) {
+            if (!latest.containsKey(users[k])) {
+                latest.put(users[k], new Long2LongOpenHashMap());
+            }
+            latest.get(users[k]).put(items[k], times[k]);
+        }
+        return latest;
+    }
+
+    private static void assertSameScores(AssociationModel expected, AssociationModel actual, double tolerance) {
+        assertEquals(expected.getKnownItems(), actual.getKnownItems());
+        SortedKeyIndex idx = expected.getIndex();
+        for (int x = 0; x < idx.size(); x++) {
+            for (int y = 0; y < idx.size(); y++) {
+                double score = expected.getItemAssociation(idx.getKey(x), idx.getKey(y));
+                assertEquals(score, actual.getItemAssociation(idx.getKey(x), idx.getKey(y)), score * tolerance);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package org.lenskit.mooc.nonpers.assoc;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.junit.Test;
+import org.lenskit.util.keys.SortedKeyIndex;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class UpdatableAssociationModelTest {
+    @Test
+    public void testEventsMatchRebuild() {
+        for (AssociationMetric metric: AssociationMetric.values()) {
+            Random rng = new Random(31);
+            int nRatings = 4000;
+            long[] users = new long[nRatings];
+            long[] items = new long[nRatings];
+            for (int k = 0; k < nRatings; k++) {
+                users[k] = rng.nextInt(300);
+                // later ratings bring new users and new items, some between the known item IDs
+                items[k] = k < nRatings / 2 ? rng.nextInt(100) * 2 : rng.nextInt(200);
+            }
+            int seed = nRatings / 2;
+            UpdatableAssociationModel updatable =
+                    UpdatableAssociationModel.build(Arrays.copyOf(users, seed), Arrays.copyOf(items, seed),
+                                                    metric, -1, ScorePrecision.DOUBLE);
+            AssociationModel before = updatable.getSnapshot();
+            for (int k = seed; k < nRatings; k++) {
+                updatable.addEvent(users[k] + (k % 3 == 0 ? 1000 : 0), items[k]);
+            }
+            assertSame(before, updatable.getSnapshot());
+            assertTrue(updatable.getPendingEventCount() > 0);
+
+            AssociationModel published = updatable.publish();
+            assertSame(published, updatable.getSnapshot());
+            assertEquals(0, updatable.getPendingEventCount());
+            assertSame(published, updatable.publish());
+
+            LongArrayList allUsers = new LongArrayList(users);
+            for (int k = seed; k < nRatings; k++) {
+                allUsers.set(k, users[k] + (k % 3 == 0 ? 1000 : 0));
+            }
+            assertSameScores(rebuild(allUsers.toLongArray(), items, metric), published);
+        }
+    }
+
+    @Test
+    public void testRepeatedEventIgnored() {
+        UpdatableAssociationModel model = new UpdatableAssociationModel(AssociationMetric.BASIC, -1,
+                                                                        ScorePrecision.DOUBLE);
+        assertTrue(model.addEvent(1, 10));
+        assertTrue(model.addEvent(1, 20));
+        assertFalse(model.addEvent(1, 10));
+        assertTrue(model.addEvent(2, 10));
+        AssociationModel snapshot = model.publish();
+        assertEquals(0.5, snapshot.getItemAssociation(10, 20), 1.0e-10);
+        assertEquals(1.0, snapshot.getItemAssociation(20, 10), 1.0e-10);
+    }
+
+    @Test
+    public void testScheduledPublishing() throws InterruptedException {
+        UpdatableAssociationModel model = new UpdatableAssociationModel(AssociationMetric.LIFT, 5,
+                                                                        ScorePrecision.DOUBLE);
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            ScheduledFuture<?> task = model.schedulePublishing(executor, 10, TimeUnit.MILLISECONDS);
+            model.addEvent(1, 10);
+            model.addEvent(1, 20);
+            for (int i = 0; i < 500 && (model.getSnapshot() == null || !model.getSnapshot().hasItem(20)); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(model.getSnapshot().hasItem(20));
+            assertEquals(5, model.getSnapshot().getRowLimit());
+            task.cancel(false);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static AssociationModel rebuild(long[] users, long[] items, AssociationMetric metric) {
+        CooccurrenceMatrix cooc = CooccurrenceMatrix.build(users, items);
+        double[] values = new double[cooc.getEntryCount()];
+        for (int x = 0; x < cooc.getItemIndex().size(); x++) {
+            for (int pos = cooc.rowStart(x); pos < cooc.rowEnd(x); pos++) {
+                values[pos] = metric.score(cooc.countAt(pos), cooc.getRaterCount(x),
+                                           cooc.getRaterCount(cooc.columnAt(pos)), cooc.getUserCount());
+            }
+        }
+        return AssociationModel.fromCooccurrence(cooc, values);
+    }
+
+    private static void assertSameScores(AssociationModel expected, AssociationModel actual) {
+        assertEquals(expected.getKnownItems(), actual.getKnownItems());
+        SortedKeyIndex idx = expected.getIndex();
+        for (int x = 0; x < idx.size(); x++) {
+            for (int y = 0; y < idx.size(); y++) {
+                assertEquals(expected.getItemAssociation(idx.getKey(x), idx.getKey(y)),
+                             actual.getItemAssociation(idx.getKey(x), idx.getKey(y)),
+                             0);
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.lenskit.mooc.nonpers.data;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.entities.CommonAttributes;
+import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.IdBox;
+import org.lenskit.util.io.ObjectStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class RatingColumnFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<Rating> ratings;
+    private DataAccessObject dao;
+
+    @Before
+    public void createRatings() throws IOException {
+        Random rng = new Random(47);
+        ratings = new ArrayList<>();
+        for (int k = 0; k < 2000; k++) {
+            ratings.add(Rating.create(rng.nextInt(150) * 2 + 1, rng.nextInt(90) + 1000,
+                                      rng.nextInt(10) * 0.5 + 0.5, rng.nextInt(100000)));
+        }
+        File file = folder.newFile("ratings.lkr");
+        RatingColumnFile.write(StaticDataSource.fromList(ratings).get(), file);
+        dao = new ColumnarRatingDAO(RatingColumnFile.read(file), null);
+    }
+
+    @Test
+    public void testAllRatings() {
+        List<String> expected = describe(ratings);
+        try (ObjectStream<Rating> stream = dao.query(Rating.class).stream()) {
+            List<Rating> actual = new ArrayList<>();
+            for (Rating r: stream) {
+                assertEquals(r, dao.lookupEntity(CommonTypes.RATING, r.getId()));
+                actual.add(r);
+            }
+            assertEquals(expected, describe(actual));
+        }
+        assertEquals(ratings.size(), dao.getEntityIds(CommonTypes.RATING).size());
+    }
+
+    @Test
+    public void testGroupByItem() {
+        Map<Long, List<Rating>> expected = new HashMap<>();
+        for (Rating r: ratings) {
+            expected.computeIfAbsent(r.getItemId(), i -> new ArrayList<>()).add(r);
+        }
+        int groups = 0;
+        long last = Long.MIN_VALUE;
+        try (ObjectStream<IdBox<List<Rating>>> stream = dao.query(Rating.class)
+                                                           .groupBy(CommonAttributes.ITEM_ID)
+                                                           .stream()) {
+            for (IdBox<List<Rating>> item: stream) {
+                assertTrue(item.getId() > last);
+                last = item.getId();
+                assertEquals(describe(expected.get(item.getId())), describe(item.getValue()));
+                groups++;
+            }
+        }
+        assertEquals(expected.size(), groups);
+    }
+
+    @Test
+    public void testUserRatings() {
+        Map<Long, List<Rating>> expected = new HashMap<>();
+        for (Rating r: ratings) {
+            expected.computeIfAbsent(r.getUserId(), u -> new ArrayList<>()).add(r);
+        }
+        for (Map.Entry<Long, List<Rating>> e: expected.entrySet()) {
+            List<Rating> actual = dao.query(Rating.class)
+                                     .withAttribute(CommonAttributes.USER_ID, e.getKey())
+                                     .get();
+            assertEquals(describe(e.getValue()), describe(actual));
+        }
+        assertTrue(dao.query(Rating.class).withAttribute(CommonAttributes.USER_ID, 2L).get().isEmpty());
+
+        long user = ratings.get(0).getUserId();
+        long item = ratings.get(0).getItemId();
+        for (Rating r: dao.query(Rating.class)
+                          .withAttribute(CommonAttributes.USER_ID, user)
+                          .withAttribute(CommonAttributes.ITEM_ID, item)
+                          .get()) {
+            assertEquals(user, r.getUserId());
+            assertEquals(item, r.getItemId());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRejectTruncatedFile() throws IOException {
+        File file = folder.newFile("truncated.lkr");
+        RatingColumnFile.write(dao, file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 8);
+        }
+        RatingColumnFile.read(file);
+    }
+
+    @Test
+    public void testDataSourceCache() throws IOException {
+        File csv = folder.newFile("ratings.csv");
+        StringBuilder text = new StringBuilder();
+        for (Rating r: ratings) {
+            text.append(r.getUserId()).append(',').append(r.getItemId()).append(',')
+                .append(r.getValue()).append(',').append(r.getTimestamp()).append('\n');
+        }
+        Files.write(csv.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+        File yml = folder.newFile("test.yml");
+        Files.write(yml.toPath(), "type: textfile\nfile: ratings.csv\nformat: csv\n".getBytes(StandardCharsets.UTF_8));
+
+        DataAccessObject loaded = RatingColumnFile.loadDataSource(yml.toPath());
+        assertTrue(loaded instanceof ColumnarRatingDAO);
+        File cache = new File(folder.getRoot(), "test" + RatingColumnFile.CACHE_SUFFIX);
+        assertTrue(cache.exists());
+        assertEquals(describe(ratings), describe(loaded.query(Rating.class).get()));
+    }
+
+    /**
+     * Describe ratings without their IDs, in a canonical order.
+     */
+    private static List<String> describe(List<Rating> ratings) {
+        List<String> lines = new ArrayList<>();
+        for (Rating r: ratings) {
+            lines.add(r.getUserId() + "," + r.getItemId() + "," + r.getValue() + "," + r.getTimestamp());
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+}
@@ -0,0 +1,141 @@
+package org.lenskit.mooc.nonpers.data;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SparseRatingMatrixTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<Rating> ratings;
+    private SparseRatingMatrix matrix;
+
+    @Before
+    public void createRatings() {
+        Random rng = new Random(31);
+        ratings = new ArrayList<>();
+        for (int k = 0; k < 3000; k++) {
+            ratings.add(Rating.create(rng.nextInt(120) + 1, rng.nextInt(80) * 3 + 500,
+                                      rng.nextInt(10) * 0.5 + 0.5, rng.nextInt(5000)));
+        }
+        matrix = SparseRatingMatrix.build(StaticDataSource.fromList(ratings).get());
+    }
+
+    @Test
+    public void testUserRows() {
+        Map<Long, Long2DoubleMap> expected = latestRatings(true);
+        assertEquals(expected.size(), matrix.getUserIndex().size());
+        int count = 0;
+        for (int u = 0; u < matrix.getUserIndex().size(); u++) {
+            long user = matrix.getUserIndex().getKey(u);
+            assertEquals(expected.get(user), matrix.getUserRatingVector(user));
+            for (int pos = matrix.userStart(u); pos < matrix.userEnd(u); pos++) {
+                if (pos > matrix.userStart(u)) {
+                    assertTrue(matrix.userItemAt(pos) > matrix.userItemAt(pos - 1));
+                }
+                long item = matrix.getItemIndex().getKey(matrix.userItemAt(pos));
+                assertEquals(expected.get(user).get(item), matrix.userValueAt(pos), 0);
+                count++;
+            }
+        }
+        assertEquals(count, matrix.getRatingCount());
+    }
+
+    @Test
+    public void testLatestTimes() {
+        Map<List<Long>, Long> expected = new HashMap<>();
+        for (Rating r: ratings) {
+            expected.merge(Arrays.asList(r.getUserId(), r.getItemId()), r.getTimestamp(), Math::max);
+        }
+        for (int u = 0; u < matrix.getUserIndex().size(); u++) {
+            long user = matrix.getUserIndex().getKey(u);
+            for (int pos = matrix.userStart(u); pos < matrix.userEnd(u); pos++) {
+                long item = matrix.getItemIndex().getKey(matrix.userItemAt(pos));
+                assertEquals((long) expected.get(Arrays.asList(user, item)), matrix.userTimeAt(pos));
+            }
+        }
+    }
+
+    @Test
+    public void testItemColumns() {
+        Map<Long, Long2DoubleMap> expected = latestRatings(false);
+        assertEquals(expected.size(), matrix.getItemIndex().size());
+        for (int i = 0; i < matrix.getItemIndex().size(); i++) {
+            long item = matrix.getItemIndex().getKey(i);
+            assertEquals(expected.get(item), matrix.getItemRatingVector(item));
+            for (int pos = matrix.itemStart(i); pos < matrix.itemEnd(i); pos++) {
+                if (pos > matrix.itemStart(i)) {
+                    assertTrue(matrix.itemUserAt(pos) > matrix.itemUserAt(pos - 1));
+                }
+                long user = matrix.getUserIndex().getKey(matrix.itemUserAt(pos));
+                assertEquals(expected.get(item).get(user), matrix.itemValueAt(pos), 0);
+            }
+        }
+        assertEquals(matrix.getRatingCount(), matrix.itemEnd(matrix.getItemIndex().size() - 1));
+        assertTrue(matrix.getUserRatingVector(-1).isEmpty());
+        assertTrue(matrix.getItemRatingVector(-1).isEmpty());
+    }
+
+    @Test
+    public void testEntitiesWithoutRatings() {
+        long[] users = {1, 1, 2};
+        long[] items = {10, 20, 10};
+        SparseRatingMatrix small = SparseRatingMatrix.build(LongSets.singleton(3L), Arrays.asList(10L, 30L),
+                                                            users, items, new double[]{4, 3, 5}, new long[3]);
+        assertEquals(3, small.getUserIndex().size());
+        assertEquals(3, small.getItemIndex().size());
+        int user = small.getUserIndex().getIndex(3);
+        assertEquals(small.userStart(user), small.userEnd(user));
+        int item = small.getItemIndex().getIndex(30);
+        assertEquals(small.itemStart(item), small.itemEnd(item));
+        assertTrue(small.getItemRatingVector(30).isEmpty());
+        assertEquals(2, small.getItemRatingVector(10).size());
+    }
+
+    @Test
+    public void testColumnarRatings() throws IOException {
+        File file = folder.newFile("ratings.lkr");
+        RatingColumnFile.write(StaticDataSource.fromList(ratings).get(), file);
+        SparseRatingMatrix columnar =
+                SparseRatingMatrix.build(new ColumnarRatingDAO(RatingColumnFile.read(file), null));
+        assertEquals(matrix.getUserIndex().getKeyList(), columnar.getUserIndex().getKeyList());
+        assertEquals(matrix.getItemIndex().getKeyList(), columnar.getItemIndex().getKeyList());
+        for (long user: matrix.getUserIndex().getKeyList()) {
+            assertEquals(matrix.getUserRatingVector(user), columnar.getUserRatingVector(user));
+        }
+    }
+
+    /**
+     * Compute each user's or item's ratings, keeping the latest of repeated ones (the last of equally late ones).
+     */
+    private Map<Long, Long2DoubleMap> latestRatings(boolean byUser) {
+        Map<List<Long>, Rating> latest = new HashMap<>();
+        for (Rating r: ratings) {
+            List<Long> key = Arrays.asList(r.getUserId(), r.getItemId());
+            Rating prev = latest.get(key);
+            if (prev == null || r.getTimestamp() >= prev.getTimestamp()) {
+                latest.put(key, r);
+            }
+        }
+        Map<Long, Long2DoubleMap> vectors = new HashMap<>();
+        for (Rating r: latest.values()) {
+            long id = byUser ? r.getUserId() : r.getItemId();
+            long other = byUser ? r.getItemId() : r.getUserId();
+            vectors.computeIfAbsent(id, k -> new Long2DoubleOpenHashMap()).put(other, r.getValue());
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,56 @@
+package org.lenskit.mooc.nonpers.mean;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.lenskit.api.ResultList;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class MeanItemBasedItemRecommenderTest {
+    private static final Set<Long> NO_BASKET = Collections.emptySet();
+    private MeanItemBasedItemRecommender recommender;
+
+    @Before
+    public void createRecommender() {
+        Long2DoubleOpenHashMap means = new Long2DoubleOpenHashMap();
+        means.put(1, 3.0);
+        means.put(2, 4.5);
+        means.put(3, 2.0);
+        means.put(4, 4.0);
+        means.put(5, 4.5);
+        recommender = new MeanItemBasedItemRecommender(new ItemMeanModel(means));
+    }
+
+    private static void assertItems(ResultList results, Long... items) {
+        assertEquals(Arrays.asList(items), results.idList());
+    }
+
+    @Test
+    public void testTopN() {
+        assertItems(recommender.recommendRelatedItemsWithDetails(NO_BASKET, 3, null, null), 2L, 5L, 4L);
+    }
+
+    @Test
+    public void testAllItems() {
+        assertItems(recommender.recommendRelatedItemsWithDetails(NO_BASKET, -1, null, null), 2L, 5L, 4L, 1L, 3L);
+    }
+
+    @Test
+    public void testExclude() {
+        Set<Long> exclude = new HashSet<>(Arrays.asList(2L, 4L));
+        assertItems(recommender.recommendRelatedItemsWithDetails(NO_BASKET, 2, null, exclude), 5L, 1L);
+    }
+
+    @Test
+    public void testCandidates() {
+        Set<Long> candidates = new HashSet<>(Arrays.asList(1L, 3L, 4L, 99L));
+        Set<Long> exclude = Collections.singleton(4L);
+        assertItems(recommender.recommendRelatedItemsWithDetails(NO_BASKET, 5, candidates, exclude), 1L, 3L);
+    }
+}
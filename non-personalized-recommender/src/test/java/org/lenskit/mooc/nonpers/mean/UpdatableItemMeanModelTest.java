@@ -0,0 +1,118 @@
+package org.lenskit.mooc.nonpers.mean;
+
+import org.junit.Test;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.mooc.nonpers.structures.RatingStatistics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class UpdatableItemMeanModelTest {
+    private static List<Rating> initialRatings() {
+        return Arrays.asList(Rating.create(1, 10, 4.0),
+                             Rating.create(2, 10, 2.0),
+                             Rating.create(1, 20, 5.0));
+    }
+
+    @Test
+    public void testInitialMeans() {
+        UpdatableItemMeanModel model = new UpdatableItemMeanModel(RatingStatistics.compute(initialRatings()), 0);
+        ItemMeanModel snap = model.getSnapshot();
+        assertEquals(3.0, snap.getMeanRating(10), 1.0e-9);
+        assertEquals(5.0, snap.getMeanRating(20), 1.0e-9);
+    }
+
+    @Test
+    public void testAddMatchesRebuild() {
+        UpdatableItemMeanModel model = new UpdatableItemMeanModel(RatingStatistics.compute(initialRatings()), 5);
+        ItemMeanModel before = model.getSnapshot();
+        List<Rating> batch = Arrays.asList(Rating.create(3, 20, 1.0), Rating.create(3, 30, 3.5));
+        ItemMeanModel after = model.addRatings(batch);
+
+        List<Rating> all = new ArrayList<>(initialRatings());
+        all.addAll(batch);
+        ItemMeanModel rebuilt = new UpdatableItemMeanModel(RatingStatistics.compute(all), 5).getSnapshot();
+        assertEquals(rebuilt.getKnownItems(), after.getKnownItems());
+        for (long item: rebuilt.getKnownItems()) {
+            assertEquals(rebuilt.getMeanRating(item), after.getMeanRating(item), 1.0e-9);
+        }
+
+        // the old snapshot must not see the update
+        assertFalse(before.hasItem(30));
+        assertSame(after, model.getSnapshot());
+    }
+
+    @Test
+    public void testRetractDropsEmptyItem() {
+        UpdatableItemMeanModel model = new UpdatableItemMeanModel(RatingStatistics.compute(initialRatings()), 0);
+        ItemMeanModel snap = model.update(Collections.<Rating>emptyList(),
+                                          Arrays.asList(Rating.create(1, 20, 5.0), Rating.create(2, 10, 2.0)));
+        assertFalse(snap.hasItem(20));
+        assertEquals(4.0, snap.getMeanRating(10), 1.0e-9);
+    }
+
+    @Test
+    public void testRetractEverything() {
+        UpdatableItemMeanModel model = new UpdatableItemMeanModel(RatingStatistics.compute(initialRatings()), 5);
+        ItemMeanModel empty = model.update(Collections.<Rating>emptyList(), initialRatings());
+        assertEquals(0, empty.getItemCount());
+
+        ItemMeanModel snap = model.addRatings(Collections.singletonList(Rating.create(3, 30, 2.0)));
+        assertEquals(2.0, snap.getMeanRating(30), 1.0e-9);
+        assertEquals(30, snap.getItemAtRank(0));
+    }
+
+    /**
+     * Over many batches of new and retracted ratings, each snapshot ranks the items as a model built from scratch.
+     */
+    @Test
+    public void testRankingMatchesRebuild() {
+        for (double damping: new double[]{0, 5}) {
+            Random rng = new Random(31);
+            List<Rating> all = new ArrayList<>();
+            for (int k = 0; k < 500; k++) {
+                all.add(Rating.create(rng.nextInt(100), rng.nextInt(60), rng.nextInt(10) * 0.5 + 0.5));
+            }
+            UpdatableItemMeanModel model = new UpdatableItemMeanModel(RatingStatistics.compute(all), damping);
+            for (int batch = 0; batch < 40; batch++) {
+                List<Rating> added = new ArrayList<>();
+                for (int k = rng.nextInt(6); k > 0; k--) {
+                    // now and then an item the model has not seen
+                    added.add(Rating.create(rng.nextInt(100), rng.nextInt(70), rng.nextInt(10) * 0.5 + 0.5));
+                }
+                List<Rating> retracted = new ArrayList<>();
+                for (int k = rng.nextInt(6); k > 0; k--) {
+                    retracted.add(all.remove(rng.nextInt(all.size())));
+                }
+                all.addAll(added);
+                ItemMeanModel snap = model.update(added, retracted);
+
+                ItemMeanModel rebuilt = new UpdatableItemMeanModel(RatingStatistics.compute(all), damping)
+                        .getSnapshot();
+                Map<Long, Double> means = new HashMap<>();
+                for (long item: rebuilt.getKnownItems()) {
+                    means.put(item, rebuilt.getMeanRating(item));
+                }
+                ItemMeanModel expected = new ItemMeanModel(means);
+                assertEquals(expected.getItemCount(), snap.getItemCount());
+                for (int rank = 0; rank < expected.getItemCount(); rank++) {
+                    assertEquals(expected.getItemAtRank(rank), snap.getItemAtRank(rank));
+                    assertEquals(expected.getMeanAtRank(rank), snap.getMeanAtRank(rank), 1.0e-9);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRetractUnknownItem() {
+        UpdatableItemMeanModel model = new UpdatableItemMeanModel(RatingStatistics.compute(initialRatings()), 0);
+        model.update(Collections.<Rating>emptyList(), Collections.singletonList(Rating.create(1, 99, 3.0)));
+    }
+}
@@ -0,0 +1,75 @@
+package org.lenskit.mooc.nonpers.structures;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class IntSetKernelsTest {
+    private static final int UNIVERSE = 300000;
+
+    private static int[] randomSet(Random rng, int size) {
+        IntOpenHashSet set = new IntOpenHashSet();
+        while (set.size() < size) {
+            set.add(rng.nextInt(UNIVERSE));
+        }
+        int[] values = set.toIntArray();
+        Arrays.sort(values);
+        return values;
+    }
+
+    private static int bruteForce(int[] a, int[] b) {
+        IntOpenHashSet set = new IntOpenHashSet(a);
+        int count = 0;
+        for (int x: b) {
+            if (set.contains(x)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testKernelsAgree() {
+        Random rng = new Random(5);
+        int[] sizes = {0, 1, 10, 500, 5000, 40000, 150000};
+        for (int aSize: sizes) {
+            for (int bSize: sizes) {
+                int[] a = randomSet(rng, aSize);
+                int[] b = randomSet(rng, bSize);
+                int expected = bruteForce(a, b);
+                long[] aBits = IntSetKernels.toBitset(a, 0, a.length, UNIVERSE);
+                long[] bBits = IntSetKernels.toBitset(b, 0, b.length, UNIVERSE);
+                RoaringIntSet aRoaring = RoaringIntSet.fromSorted(a, 0, a.length);
+                RoaringIntSet bRoaring = RoaringIntSet.fromSorted(b, 0, b.length);
+
+                assertEquals(expected, IntSetKernels.mergeCount(a, 0, a.length, b, 0, b.length));
+                assertEquals(expected, IntSetKernels.gallopCount(a, 0, a.length, b, 0, b.length));
+                assertEquals(expected, IntSetKernels.arrayCount(a, 0, a.length, b, 0, b.length));
+                assertEquals(expected, IntSetKernels.bitsetCount(aBits, bBits));
+                assertEquals(expected, IntSetKernels.probeCount(a, 0, a.length, bBits));
+                assertEquals(expected, aRoaring.intersectionSize(bRoaring));
+                assertEquals(expected, aRoaring.intersectionSize(b, 0, b.length));
+                assertEquals(expected, aRoaring.intersectionSize(bBits));
+            }
+        }
+    }
+
+    @Test
+    public void testRoaringContains() {
+        int[] values = new int[5000];
+        for (int i = 0; i < values.length; i++) {
+            // a dense run in the first block, then a sparse tail across several more
+            values[i] = i < 4500 ? i * 2 : 70000 + i * 97;
+        }
+        RoaringIntSet set = RoaringIntSet.fromSorted(values, 0, values.length);
+        assertEquals(values.length, set.size());
+        for (int v: values) {
+            assertEquals(true, set.contains(v));
+            assertEquals(false, set.contains(v + 1));
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.lenskit.mooc.nonpers.structures;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.dao.file.StaticDataSource;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.mooc.nonpers.data.ColumnarRatingDAO;
+import org.lenskit.mooc.nonpers.data.RatingColumnFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RatingStatisticsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEmpty() {
+        RatingStatistics stats = RatingStatistics.compute(new ArrayList<Rating>());
+        assertEquals(0, stats.getGlobalCount());
+        assertTrue(Double.isNaN(stats.getGlobalMean()));
+        assertEquals(0, stats.getItemStatistics().size());
+        assertFalse(stats.getItemStatistics().containsKey(1));
+        assertTrue(Double.isNaN(stats.getItemStatistics().getMean(1)));
+    }
+
+    @Test
+    public void testItemAndUserSums() {
+        List<Rating> ratings = new ArrayList<>();
+        ratings.add(Rating.create(1, 10, 4.0));
+        ratings.add(Rating.create(1, 20, 2.0));
+        ratings.add(Rating.create(2, 10, 5.0));
+        RatingStatistics stats = RatingStatistics.compute(ratings);
+
+        assertEquals(3, stats.getGlobalCount());
+        assertEquals(11.0, stats.getGlobalSum(), 1.0e-9);
+        assertEquals(45.0, stats.getGlobalSumOfSquares(), 1.0e-9);
+
+        KeyStatistics items = stats.getItemStatistics();
+        assertEquals(2, items.size());
+        assertEquals(2, items.getCount(10));
+        assertEquals(9.0, items.getSum(10), 1.0e-9);
+        assertEquals(41.0, items.getSumOfSquares(10), 1.0e-9);
+        assertEquals(4.5, items.getMean(10), 1.0e-9);
+
+        KeyStatistics users = stats.getUserStatistics();
+        assertEquals(2, users.size());
+        assertEquals(2, users.getCount(1));
+        assertEquals(3.0, users.getMean(1), 1.0e-9);
+    }
+
+    @Test
+    public void testGrowAndMerge() {
+        RatingStatistics left = new RatingStatistics();
+        RatingStatistics right = new RatingStatistics();
+        for (int i = 0; i < 1000; i++) {
+            left.add(i, i, 1.0);
+            right.add(i, i + 500, 3.0);
+        }
+        left.merge(right);
+
+        KeyStatistics items = left.getItemStatistics();
+        assertEquals(1500, items.size());
+        assertEquals(2000, left.getGlobalCount());
+        assertEquals(1, items.getCount(0));
+        assertEquals(2, items.getCount(700));
+        assertEquals(2.0, items.getMean(700), 1.0e-9);
+        assertEquals(3.0, items.getMean(1400), 1.0e-9);
+
+        int seen = 0;
+        for (int slot = 0; slot < items.slotCount(); slot++) {
+            if (items.isOccupied(slot)) {
+                assertEquals(items.getCount(items.keyAt(slot)), items.countAt(slot));
+                seen++;
+            }
+        }
+        assertEquals(1500, seen);
+    }
+
+    @Test
+    public void testParallelMatchesSequential() {
+        Random rng = new Random(17);
+        List<Rating> ratings = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            // arbitrary doubles, so any change in summation order would show up
+            ratings.add(Rating.create(rng.nextInt(3000), rng.nextInt(500), rng.nextDouble() * 5));
+        }
+        RatingStatistics sequential = RatingStatistics.compute(ratings);
+        RatingStatistics parallel = RatingStatistics.compute(ratings, 4);
+
+        assertEquals(sequential.getGlobalCount(), parallel.getGlobalCount());
+        assertEquals(Double.doubleToLongBits(sequential.getGlobalSum()),
+                     Double.doubleToLongBits(parallel.getGlobalSum()));
+        assertSameStatistics(sequential.getItemStatistics(), parallel.getItemStatistics());
+        assertSameStatistics(sequential.getUserStatistics(), parallel.getUserStatistics());
+    }
+
+    @Test
+    public void testParallelColumnsMatchSequential() throws IOException {
+        Random rng = new Random(19);
+        List<Rating> ratings = new ArrayList<>();
+        for (int i = 0; i < 100000; i++) {
+            ratings.add(Rating.create(rng.nextInt(3000), rng.nextInt(500), rng.nextDouble() * 5, i));
+        }
+        File file = folder.newFile("ratings.lkr");
+        RatingColumnFile.write(StaticDataSource.fromList(ratings).get(), file);
+        DataAccessObject dao = new ColumnarRatingDAO(RatingColumnFile.read(file), null);
+        RatingStatistics sequential = RatingStatistics.compute(dao);
+        RatingStatistics parallel = RatingStatistics.compute(dao, 4);
+
+        assertEquals(100000, parallel.getGlobalCount());
+        assertEquals(Double.doubleToLongBits(sequential.getGlobalSum()),
+                     Double.doubleToLongBits(parallel.getGlobalSum()));
+        assertSameStatistics(sequential.getItemStatistics(), parallel.getItemStatistics());
+        assertSameStatistics(sequential.getUserStatistics(), parallel.getUserStatistics());
+    }
+
+    private static void assertSameStatistics(KeyStatistics expected, KeyStatistics actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int slot = 0; slot < expected.slotCount(); slot++) {
+            if (expected.isOccupied(slot)) {
+                long key = expected.keyAt(slot);
+                assertEquals(expected.countAt(slot), actual.getCount(key));
+                assertEquals(Double.doubleToLongBits(expected.sumAt(slot)),
+                             Double.doubleToLongBits(actual.getSum(key)));
+                assertEquals(Double.doubleToLongBits(expected.sumOfSquaresAt(slot)),
+                             Double.doubleToLongBits(actual.getSumOfSquares(key)));
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package org.lenskit.mooc.nonpers.structures;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of non-negative integers in roaring-style containers.
+ *
+ * <p>The values are split into blocks of 2<sup>16</sup> by their high bits.  Each non-empty block is a container that
+ * holds its low bits either as a sorted {@code char[]} (up to {@value #ARRAY_LIMIT} values) or as a 1024-word bitmap,
+ * whichever is smaller.  This keeps large sparse sets compact while letting their dense regions be intersected a
+ * word at a time.</p>
+ *
+ * <p>The co-occurrence counts do not use it; it is kept with the tests as the baseline that the intersection kernel
+ * benchmark compares {@link IntSetKernels} against.</p>
+ */
+public class RoaringIntSet {
+    /**
+     * The maximum number of values held in an array container.
+     */
+    public static final int ARRAY_LIMIT = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private final char[] keys;
+    private final char[][] arrays;
+    private final long[][] bitmaps;
+    private final int size;
+
+    private RoaringIntSet(char[] keys, char[][] arrays, long[][] bitmaps, int size) {
+        this.keys = keys;
+        this.arrays = arrays;
+        this.bitmaps = bitmaps;
+        this.size = size;
+    }
+
+    /**
+     * Build a set from sorted, distinct values.
+     * @param values The array of values.
+     * @param from The start of the range (inclusive).
+     * @param to The end of the range (exclusive).
+     * @return The set of values in the range.
+     */
+    public static RoaringIntSet fromSorted(int[] values, int from, int to) {
+        int nContainers = 0;
+        for (int i = from; i < to; i++) {
+            if (i == from || (values[i] >>> 16) != (values[i - 1] >>> 16)) {
+                nContainers++;
+            }
+        }
+        char[] keys = new char[nContainers];
+        char[][] arrays = new char[nContainers][];
+        long[][] bitmaps = new long[nContainers][];
+        int c = 0;
+        int start = from;
+        while (start < to) {
+            int key = values[start] >>> 16;
+            int end = start + 1;
+            while (end < to && (values[end] >>> 16) == key) {
+                end++;
+            }
+            keys[c] = (char) key;
+            if (end - start <= ARRAY_LIMIT) {
+                char[] array = new char[end - start];
+                for (int i = start; i < end; i++) {
+                    array[i - start] = (char) values[i];
+                }
+                arrays[c] = array;
+            } else {
+                long[] bitmap = new long[BITMAP_WORDS];
+                for (int i = start; i < end; i++) {
+                    int low = values[i] & 0xFFFF;
+                    bitmap[low >>> 6] |= 1L << low;
+                }
+                bitmaps[c] = bitmap;
+            }
+            c++;
+            start = end;
+        }
+        return new RoaringIntSet(keys, arrays, bitmaps, to - from);
+    }
+
+    /**
+     * Get the number of values in the set.
+     * @return The set size.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Query whether the set contains a value.
+     * @param value The value.
+     * @return {@code true} if the value is in the set.
+     */
+    public boolean contains(int value) {
+        int c = Arrays.binarySearch(keys, (char) (value >>> 16));
+        return c >= 0 && containerContains(c, (char) value);
+    }
+
+    /**
+     * Count the values in both this set and another.
+     * @param other The other set.
+     * @return The size of the intersection.
+     */
+    public int intersectionSize(RoaringIntSet other) {
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < keys.length && j < other.keys.length) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                count += containerIntersectionSize(arrays[i], bitmaps[i], other.arrays[j], other.bitmaps[j]);
+                i++;
+                j++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Count the values in both this set and a sorted array.
+     * @param values The array of sorted, distinct values.
+     * @param from The start of the range (inclusive).
+     * @param to The end of the range (exclusive).
+     * @return The size of the intersection.
+     */
+    public int intersectionSize(int[] values, int from, int to) {
+        int count = 0;
+        int c = 0;
+        for (int i = from; i < to && c < keys.length; i++) {
+            int key = values[i] >>> 16;
+            while (c < keys.length && keys[c] < key) {
+                c++;
+            }
+            if (c < keys.length && keys[c] == key && containerContains(c, (char) values[i])) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Count the values in both this set and a bitset.
+     * @param bits The bitset.
+     * @return The size of the intersection.
+     */
+    public int intersectionSize(long[] bits) {
+        int count = 0;
+        for (int c = 0; c < keys.length; c++) {
+            int base = keys[c] * BITMAP_WORDS;
+            if (base >= bits.length) {
+                break;
+            }
+            if (arrays[c] != null) {
+                for (char low: arrays[c]) {
+                    int word = base + (low >>> 6);
+                    if (word < bits.length) {
+                        count += (int) (bits[word] >>> low) & 1;
+                    }
+                }
+            } else {
+                long[] bitmap = bitmaps[c];
+                int n = Math.min(BITMAP_WORDS, bits.length - base);
+                for (int w = 0; w < n; w++) {
+                    count += Long.bitCount(bitmap[w] & bits[base + w]);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Estimate the heap used by the set.
+     * @return The approximate size of the containers, in bytes.
+     */
+    public long getMemoryFootprint() {
+        long bytes = keys.length * 2L + keys.length * 32L;
+        for (int c = 0; c < keys.length; c++) {
+            bytes += arrays[c] != null ? arrays[c].length * 2L : BITMAP_WORDS * 8L;
+        }
+        return bytes;
+    }
+
+    private boolean containerContains(int c, char low) {
+        if (arrays[c] != null) {
+            return Arrays.binarySearch(arrays[c], low) >= 0;
+        } else {
+            return (bitmaps[c][low >>> 6] & (1L << low)) != 0;
+        }
+    }
+
+    private static int containerIntersectionSize(char[] a1, long[] b1, char[] a2, long[] b2) {
+        if (a1 != null && a2 != null) {
+            return arrayIntersectionSize(a1, a2);
+        } else if (a1 != null) {
+            return probeIntersectionSize(a1, b2);
+        } else if (a2 != null) {
+            return probeIntersectionSize(a2, b1);
+        } else {
+            return IntSetKernels.bitsetCount(b1, b2);
+        }
+    }
+
+    private static int arrayIntersectionSize(char[] a, char[] b) {
+        if (a.length > b.length) {
+            char[] tmp = a;
+            a = b;
+            b = tmp;
+        }
+        int count = 0;
+        if (a.length * IntSetKernels.GALLOP_RATIO < b.length) {
+            int lo = 0;
+            for (int i = 0; i < a.length && lo < b.length; i++) {
+                int pos = Arrays.binarySearch(b, lo, b.length, a[i]);
+                if (pos >= 0) {
+                    count++;
+                    lo = pos + 1;
+                } else {
+                    lo = -pos - 1;
+                }
+            }
+        } else {
+            int i = 0;
+            int j = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    count++;
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static int probeIntersectionSize(char[] a, long[] bitmap) {
+        int count = 0;
+        for (char low: a) {
+            count += (int) (bitmap[low >>> 6] >>> low) & 1;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,69 @@
+package org.lenskit.mooc.nonpers.structures;
+
+import org.junit.Test;
+import org.lenskit.api.ResultList;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TopNItemHeapTest {
+    @Test
+    public void testEmpty() {
+        TopNItemHeap heap = new TopNItemHeap(5);
+        assertTrue(heap.finish().isEmpty());
+    }
+
+    @Test
+    public void testKeepsBest() {
+        TopNItemHeap heap = new TopNItemHeap(3);
+        heap.offer(1, 1.0);
+        heap.offer(2, 5.0);
+        heap.offer(3, 3.0);
+        heap.offer(4, 4.0);
+        assertFalse(heap.offer(5, 0.5));
+        ResultList results = heap.finish();
+        assertEquals(3, results.size());
+        assertEquals(2, results.get(0).getId());
+        assertEquals(4, results.get(1).getId());
+        assertEquals(3, results.get(2).getId());
+    }
+
+    @Test
+    public void testTiesByItem() {
+        TopNItemHeap heap = new TopNItemHeap(2);
+        heap.offer(9, 2.0);
+        heap.offer(3, 2.0);
+        heap.offer(5, 2.0);
+        ResultList results = heap.finish();
+        assertEquals(3, results.get(0).getId());
+        assertEquals(5, results.get(1).getId());
+    }
+
+    @Test
+    public void testUnlimited() {
+        TopNItemHeap heap = new TopNItemHeap(-1);
+        Random rng = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            heap.offer(i, rng.nextDouble());
+        }
+        ResultList results = heap.finish();
+        assertEquals(100, results.size());
+        for (int i = 1; i < results.size(); i++) {
+            assertTrue(results.get(i - 1).getScore() >= results.get(i).getScore());
+        }
+    }
+
+    @Test
+    public void testLargeLimit() {
+        // room is made as items come, not for the whole limit up front
+        TopNItemHeap heap = new TopNItemHeap(Integer.MAX_VALUE);
+        for (int i = 0; i < 40; i++) {
+            heap.offer(i, i);
+        }
+        assertFalse(heap.isFull());
+        ResultList results = heap.finish();
+        assertEquals(40, results.size());
+        assertEquals(39, results.get(0).getId());
+    }
+}